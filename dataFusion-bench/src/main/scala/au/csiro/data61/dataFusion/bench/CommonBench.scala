@@ -0,0 +1,131 @@
+package au.csiro.data61.dataFusion.bench
+
+import java.io.{ ByteArrayInputStream, ByteArrayOutputStream }
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+import org.openjdk.jmh.annotations.{ Benchmark, BenchmarkMode, Fork, Measurement, Mode, OutputTimeUnit, Param, Scope, Setup, State, Warmup }
+import org.openjdk.jmh.infra.Blackhole
+
+import au.csiro.data61.dataFusion.common.{ DocIO, EnglishScore, Parallel, Pipeline, Util }
+import au.csiro.data61.dataFusion.common.Data.Doc
+import au.csiro.data61.dataFusion.common.Data.JsonProtocol._
+import spray.json.{ pimpAny, pimpString }
+
+/** dataFusion-common: language scoring, JSON encode/decode of docs, top-n selection */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+class CommonBench {
+  @Param(Array("100"))
+  var numDocs: Int = _
+
+  @Param(Array("1000"))
+  var wordsPerDoc: Int = _
+
+  var docs: IndexedSeq[Doc] = _
+  var json: IndexedSeq[String] = _
+  var scores: Array[Double] = _
+
+  @Setup
+  def setup(): Unit = {
+    docs = new Corpus(numDocs, wordsPerDoc).docs
+    json = docs.map(_.toJson.compactPrint)
+    val rnd = new scala.util.Random(1L)
+    scores = Array.fill(100000)(rnd.nextDouble)
+  }
+
+  @Benchmark
+  def englishScore(bh: Blackhole): Unit = for (d <- docs) bh.consume(EnglishScore.englishScore(d.content.get))
+
+  @Benchmark
+  def docEncode(bh: Blackhole): Unit = for (d <- docs) bh.consume(d.toJson.compactPrint)
+
+  @Benchmark
+  def docDecode(bh: Blackhole): Unit = for (j <- json) bh.consume(j.parseJson.convertTo[Doc])
+
+  @Benchmark
+  def top: List[Double] = Util.top(10, scores.iterator)
+
+  @Benchmark
+  def bottom: List[Double] = Util.bottom(10, scores.iterator)
+}
+
+/**
+ * dataFusion-common: writing and reading the corpus with `DocIO` in each `format`.
+ * `json` is the spray-json encoding of `docEncode`/`docDecode` plus the line handling, so compare the formats with each other.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+class DocIOBench {
+  @Param(Array("100"))
+  var numDocs: Int = _
+
+  @Param(Array("1000"))
+  var wordsPerDoc: Int = _
+
+  @Param(Array("json", "binary", "binary-deflate"))
+  var format: String = _
+
+  var docs: IndexedSeq[Doc] = _
+  var bytes: Array[Byte] = _
+
+  @Setup
+  def setup(): Unit = {
+    docs = new Corpus(numDocs, wordsPerDoc).docs
+    bytes = write
+  }
+
+  @Benchmark
+  def write: Array[Byte] = {
+    val out = new ByteArrayOutputStream
+    val w = DocIO.docWriter(out, format)
+    docs.foreach(w.write)
+    w.close
+    out.toByteArray
+  }
+
+  @Benchmark
+  def read(bh: Blackhole): Unit = DocIO.docs(new ByteArrayInputStream(bytes)).foreach(bh.consume)
+}
+
+/**
+ * Thread hand-off overhead of the parallel processing framework, with trivial work per item.
+ * Compare with the work per item of a CLI to see whether `batchSize` is worth increasing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+class ParallelBench {
+  @Param(Array("100000"))
+  var numItems: Int = _
+
+  @Param(Array("4"))
+  var numWorkers: Int = _
+
+  def work(i: Int) = i * 2L
+
+  @Benchmark
+  def doParallel: Long = {
+    val sum = new AtomicLong
+    Parallel.doParallel(Iterator.range(0, numItems), work, (o: Long) => sum.addAndGet(o), -1, -1L, numWorkers)
+    sum.get
+  }
+
+  @Benchmark
+  def pipelineBatched: Long = {
+    var sum = 0L
+    Pipeline.run(Iterator.range(0, numItems), work, (o: Long) => sum += o, Pipeline.Config(numWorkers, batchSize = 100, logInterval = 0L, name = "bench"))
+    sum
+  }
+}
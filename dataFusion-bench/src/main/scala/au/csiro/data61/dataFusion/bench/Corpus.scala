@@ -0,0 +1,101 @@
+package au.csiro.data61.dataFusion.bench
+
+import scala.collection.mutable.ListBuffer
+import scala.util.Random
+
+import au.csiro.data61.dataFusion.common.Data.{ Doc, Embedded, ExtRef, GAZ, Ner, T_PERSON, T_PERSON2 }
+
+/**
+ * Synthetic corpus for the benchmarks, so they run offline and repeatably (same seed, same docs).
+ * Content is English-like sentences with names from a small gazetteer, some followed by an age (e.g. "Sarah Jones (42)"),
+ * every 4th doc starting with email headers and every 3rd doc having an embedded doc.
+ * Each occurrence of a name has GAZ Ners (as produced by dataFusion-util --hits): 3/4 have a PERSON Ner and half of those also
+ * an overlapping PERSON2 Ner, the rest have only a PERSON2 Ner.
+ */
+class Corpus(numDocs: Int, wordsPerDoc: Int, seed: Long = 1L) {
+  import Corpus._
+
+  private val rnd = new Random(seed)
+  private def pick[T](a: IndexedSeq[T]) = a(rnd.nextInt(a.size))
+
+  /** builds content, keeping track of token positions for the Ners */
+  private class Content {
+    val b = new StringBuilder
+    val ner = ListBuffer[Ner]()
+    var pos = 0
+
+    def word(w: String) = {
+      if (b.nonEmpty && b.last != '\n') b += ' '
+      b ++= w
+      pos += 1
+    }
+
+    def name(i: Int) = {
+      if (b.nonEmpty && b.last != '\n') b += ' '
+      val n = names(i)
+      val extRef = Some(ExtRef(n, List(i.toLong)))
+      val (offStr, posStr) = (b.length, pos)
+      b ++= n
+      pos += 2
+      val per = rnd.nextInt(4) != 0
+      if (per) ner += Ner(posStr, pos, offStr, b.length, 1.0, n, T_PERSON, GAZ, extRef)
+      if (!per || rnd.nextBoolean) ner += Ner(posStr, pos, offStr, b.length, 0.5, n, T_PERSON2, GAZ, extRef)
+    }
+
+    def sentences(numWords: Int) = {
+      var n = 0
+      while (n < numWords) {
+        val len = 5 + rnd.nextInt(20)
+        for (i <- 0 until len) {
+          if (rnd.nextInt(15) == 0) {
+            name(rnd.nextInt(names.size))
+            if (rnd.nextInt(4) == 0) word(s"(${18 + rnd.nextInt(80)})")
+          } else {
+            val w = pick(words)
+            word(if (i == 0) w.capitalize else w)
+          }
+        }
+        b ++= "."
+        n += len
+      }
+    }
+
+    def headers = {
+      for (h <- Seq("From:", "To:", "Cc:")) {
+        word(h)
+        name(rnd.nextInt(names.size))
+        word(s"(${pick(words)})")
+        b ++= "\n\n"
+      }
+      word("Subject:")
+      word(pick(words))
+      b ++= "\n\n"
+    }
+  }
+
+  private def content(id: Int, numWords: Int) = {
+    val c = new Content
+    if (id % 4 == 0) c.headers
+    c.sentences(numWords)
+    (c.b.toString, c.ner.toList)
+  }
+
+  val docs: IndexedSeq[Doc] = (0 until numDocs).map { id =>
+    val (text, ner) = content(id, wordsPerDoc)
+    val embedded = if (id % 3 == 0) {
+      val (t, n) = content(id + 1, wordsPerDoc / 4)
+      List(Embedded(Some(t), Map("Content-Type" -> "text/plain"), n))
+    } else List.empty
+    Doc(id, Some(text), Map("Content-Type" -> "application/pdf", "Author" -> pick(names)), s"/collection/c${id % 5}/doc$id.pdf", ner, embedded)
+  }
+}
+
+object Corpus {
+  val firstNames = IndexedSeq("Sarah", "John", "Jacinda", "Winston", "Helen", "Michael", "Roger", "Anne", "Frederick", "Jane")
+  val lastNames = IndexedSeq("Jones", "Smith", "Ardern", "Peters", "Clark", "Walters", "Bloggs", "Brown", "Wilson", "Taylor")
+  val names = for (f <- firstNames; l <- lastNames) yield s"$f $l"
+
+  val words = IndexedSeq("the", "of", "and", "to", "in", "is", "was", "for", "that", "with", "on", "by", "as", "at", "from",
+    "government", "minister", "report", "meeting", "company", "agreement", "budget", "policy", "party", "leader",
+    "contract", "payment", "director", "office", "account", "transfer", "board", "proposal", "review", "project")
+}
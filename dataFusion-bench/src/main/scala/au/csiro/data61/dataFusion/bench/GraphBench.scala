@@ -0,0 +1,84 @@
+package au.csiro.data61.dataFusion.bench
+
+import java.util.concurrent.TimeUnit
+
+import scala.annotation.tailrec
+import scala.io.Source
+import scala.util.Random
+
+import org.openjdk.jmh.annotations.{ Benchmark, BenchmarkMode, Fork, Measurement, Mode, OutputTimeUnit, Param, Scope, Setup, State, Warmup }
+
+import au.csiro.data61.dataFusion.common.Util
+import au.csiro.data61.dataFusion.graph.service.{ CsrGraph, GraphSnapshot, GraphTraversal }
+
+/**
+ * dataFusion-graph-service: the `maxHops` expansion from a hub node (done by the graph queries) with `GraphTraversal`
+ * and with the hop by hop expansion it replaced, on a random graph in which `hubEdges` of the edges are from the first
+ * `numHubs` nodes. Times are for expanding from each of the first 3 hubs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+class GraphBench {
+  @Param(Array("50000"))
+  var numNodes: Int = _
+
+  @Param(Array("400000"))
+  var numEdges: Int = _
+
+  @Param(Array("20"))
+  var numHubs: Int = _
+
+  @Param(Array("100000"))
+  var hubEdges: Int = _
+
+  val (maxHops, maxEdges) = (3, 100)
+  val ok = (e: Int) => true
+  def distance(a: Double, b: Double) = Math.sqrt(a * a + b * b)
+
+  var g: CsrGraph = _
+  var traversal: GraphTraversal = _
+
+  @Setup
+  def setup(): Unit = {
+    val rnd = new Random(3)
+    val typs = Seq("PERSON", "PERSON2", "ORGANIZATION")
+    val nodes = for (i <- 0 until numNodes) yield
+      s"""{"nodeId":$i,"extRef":{"ids":[$i],"name":"n$i"},"typ":"${typs(rnd.nextInt(typs.size))}","score":${rnd.nextInt(10)}}"""
+    val edges = for (k <- 0 until numEdges) yield {
+      val s = if (k < hubEdges) rnd.nextInt(numHubs) else rnd.nextInt(numNodes)
+      s"""{"source":$s,"target":${rnd.nextInt(numNodes)},"typ":"D61GAZ","weights":{"c":[${1 + rnd.nextInt(20) * 0.25},1]}}"""
+    }
+    g = GraphSnapshot.heap(GraphSnapshot.fromJson(Source.fromString(nodes.mkString("\n")), Source.fromString(edges.mkString("\n"))))
+    traversal = new GraphTraversal(g, distance)
+  }
+
+  /** GraphService.expand before GraphTraversal, for comparison */
+  @tailrec final def expand(n: Int, newIds: Set[Int], nodeDist: Map[Int, Double], edges: Set[Int] = Set.empty): (Map[Int, Double], Set[Int]) = {
+    if (n < 1) (nodeDist, edges) else {
+      val knownSource = newIds.view.flatMap(i => (0 until g.outDegree(i)).map(g.out(i, _))).filter(ok)
+      val nodeDist1 = knownSource.foldLeft(nodeDist) { (z, e) =>
+        val d1 = distance(z(g.source(e)), 1.0/g.totalWeight(e))
+        z + (g.target(e) -> z.get(g.target(e)).map(Math.min(_, d1)).getOrElse(d1))
+      }
+      val knownTarget = newIds.view.flatMap(i => (0 until g.inDegree(i)).map(g.in(i, _))).filter(ok)
+      val nodeDist2 = knownTarget.foldLeft(nodeDist1) { (z, e) =>
+        val d1 = distance(z(g.target(e)), 1.0/g.totalWeight(e))
+        z + (g.source(e) -> z.get(g.source(e)).map(Math.min(_, d1)).getOrElse(d1))
+      }
+      expand(n - 1, nodeDist2.keySet &~ nodeDist.keySet, nodeDist2, edges ++ (knownSource ++ knownTarget))
+    }
+  }
+
+  @Benchmark
+  def closestEdges: Int = (0 until 3).map(hub => traversal.closestEdges(Set(hub), maxHops, maxEdges, ok).size).sum
+
+  @Benchmark
+  def hopByHop: Int = (0 until 3).map { hub =>
+    val (nodeDist, all) = expand(maxHops, Set(hub), Map(hub -> 0.0))
+    Util.bottom(maxEdges, all.iterator)(Ordering.by(e => Math.max(nodeDist(g.source(e)), nodeDist(g.target(e))))).size
+  }.sum
+}
@@ -0,0 +1,64 @@
+package au.csiro.data61.dataFusion.bench
+
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations.{ Benchmark, BenchmarkMode, Fork, Measurement, Mode, OutputTimeUnit, Param, Scope, Setup, State, Warmup }
+import org.openjdk.jmh.infra.Blackhole
+
+import au.csiro.data61.dataFusion.ner.{ OpenNLP, Preprocess, Split }
+import edu.stanford.nlp.ling.CoreAnnotations.TokensAnnotation
+import opennlp.tools.sentdetect.{ SentenceDetectorME, SentenceModel }
+import opennlp.tools.tokenize.{ TokenizerME, TokenizerModel }
+
+/**
+ * dataFusion-ner: sentence splitting and tokenization done once by `Preprocess.tokenize` and shared by the NER implementations,
+ * against each implementation doing its own (as they did before), by document size.
+ * Only the tokenizers are run (not the NER models, which aren't loaded), so this compares just the work that is shared.
+ * `separate` is CoreNLP's and OpenNLP's tokenization; MITIE's would add to it but needs its native library.
+ * The corpus content has a sentence per line, so it is split into paragraphs as OCR'ed text is.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+class NerBench {
+  @Param(Array("10"))
+  var numDocs: Int = _
+
+  @Param(Array("100", "1000", "10000"))
+  var wordsPerDoc: Int = _
+
+  var texts: IndexedSeq[String] = _
+  var sent: SentenceDetectorME = _
+  var tok: TokenizerME = _
+
+  @Setup
+  def setup(): Unit = {
+    texts = new Corpus(numDocs, wordsPerDoc).docs.map(_.content.get.replace(". ", ".\n"))
+    sent = new SentenceDetectorME(OpenNLP.loadModel("/opennlp-models-1.5/en-sent.bin", in => new SentenceModel(in)))
+    tok = new TokenizerME(OpenNLP.loadModel("/opennlp-models-1.5/en-token.bin", in => new TokenizerModel(in)))
+    Preprocess.nlp
+  }
+
+  /** as CoreNLP.nerSplitParagraphs */
+  def coreNLP(in: String) = Split.splitParagraphs(in.split("\n"), 20, 60).map { case (_, _, lines) =>
+    Preprocess.nlp.process(lines).get(classOf[TokensAnnotation])
+  }.toList
+
+  /** as OpenNLP.EnOpenNLP.ner(in: String) */
+  def openNLP(in: String) = sent.sentPosDetect(in).map { s =>
+    val sentence = in.substring(s.getStart, s.getEnd)
+    tok.tokenizePos(sentence).map(p => sentence.substring(p.getStart, p.getEnd))
+  }
+
+  @Benchmark
+  def shared(bh: Blackhole): Unit = for (t <- texts) bh.consume(Preprocess.tokenize("en", t))
+
+  @Benchmark
+  def separate(bh: Blackhole): Unit = for (t <- texts) {
+    bh.consume(coreNLP(t))
+    bh.consume(openNLP(t))
+  }
+}
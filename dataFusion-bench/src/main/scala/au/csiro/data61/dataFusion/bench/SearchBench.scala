@@ -0,0 +1,80 @@
+package au.csiro.data61.dataFusion.bench
+
+import java.io.File
+import java.util.concurrent.TimeUnit
+
+import org.apache.lucene.index.{ DirectoryReader, Term }
+import org.apache.lucene.search.IndexSearcher
+import org.apache.lucene.store.RAMDirectory
+import org.openjdk.jmh.annotations.{ Benchmark, BenchmarkMode, Fork, Measurement, Mode, OutputTimeUnit, Param, Scope, Setup, State, TearDown, Warmup }
+import org.openjdk.jmh.infra.Blackhole
+
+import com.typesafe.config.ConfigFactory
+
+import au.csiro.data61.dataFusion.common.Data.{ ExtRef, IdEmbIdx, LDoc, PosQuery, T_PERSON }
+import au.csiro.data61.dataFusion.search.DataFusionLucene.DFIndexing.{ ldoc2doc, mkIndexer }
+import au.csiro.data61.dataFusion.search.DataFusionLucene.DFSearching.PosDocSearch.{ getTerms, searchSpansPhrase, searchSpansTerm }
+import resource.managed
+
+/**
+ * dataFusion-search: the gazetteer searches done by `dataFusion-search --searchCsv`, each name in Corpus.names
+ * as a phrase and each surname as a single term, against an in memory index of a synthetic corpus.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+class SearchBench {
+  @Param(Array("1000"))
+  var numDocs: Int = _
+
+  @Param(Array("1000"))
+  var wordsPerDoc: Int = _
+
+  var dir: RAMDirectory = _
+  var searcher: IndexSearcher = _
+  var phrases: IndexedSeq[(PosQuery, List[Term])] = _
+  var terms: IndexedSeq[(PosQuery, Term)] = _
+
+  @Setup
+  def setup(): Unit = {
+    SearchBench.findSynonyms
+    dir = new RAMDirectory
+    for (xer <- managed(mkIndexer(dir)); d <- new Corpus(numDocs, wordsPerDoc).docs) {
+      xer.addDocument(LDoc(IdEmbIdx(d.id, -1), d.content.get, d.path))
+      for ((e, embIdx) <- d.embedded.zipWithIndex) xer.addDocument(LDoc(IdEmbIdx(d.id, embIdx), e.content.get, d.path))
+    }
+    searcher = new IndexSearcher(DirectoryReader.open(dir))
+
+    def query(name: String, id: Int) = PosQuery(ExtRef(name, List(id.toLong)), T_PERSON)
+    phrases = Corpus.names.zipWithIndex.map { case (n, i) => (query(n, i), getTerms(n).toList) }
+    terms = Corpus.lastNames.zipWithIndex.map { case (n, i) => (query(n, i), getTerms(n).toList.head) }
+  }
+
+  @TearDown
+  def tearDown(): Unit = {
+    searcher.getIndexReader.close
+    dir.close
+  }
+
+  @Benchmark
+  def phrase(bh: Blackhole): Unit = for ((q, ts) <- phrases) bh.consume(searchSpansPhrase(searcher, 0, q, ts, 1.0))
+
+  @Benchmark
+  def term(bh: Blackhole): Unit = for ((q, t) <- terms) bh.consume(searchSpansTerm(searcher, q, t, 1.0))
+}
+
+object SearchBench {
+  /**
+   * DataFusionLucene reads the file given by config `search.synonyms` (default synonyms.txt in the working directory),
+   * so unless that's been set find dataFusion-search/synonyms.txt from the top level or dataFusion-bench directory.
+   */
+  def findSynonyms = if (!sys.props.contains("search.synonyms") && !sys.env.contains("SEARCH_SYNONYMS")) {
+    Seq("synonyms.txt", "dataFusion-search/synonyms.txt", "../dataFusion-search/synonyms.txt").map(new File(_)).find(_.exists).foreach { f =>
+      System.setProperty("search.synonyms", f.getPath)
+      ConfigFactory.invalidateCaches
+    }
+  }
+}
@@ -0,0 +1,49 @@
+package au.csiro.data61.dataFusion.bench
+
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations.{ Benchmark, BenchmarkMode, Fork, Level, Measurement, Mode, OutputTimeUnit, Param, Scope, Setup, State, Warmup }
+import org.openjdk.jmh.infra.Blackhole
+
+import au.csiro.data61.dataFusion.common.Data.{ Doc, Ner }
+import au.csiro.data61.dataFusion.util.{ Age, Email, Hits, Main, Proximity }
+
+/** dataFusion-util: the per doc work of `--email`, `--age`, `--hits` (filtering of PERSON2 Ners) and `--proximity` */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+class UtilBench {
+  @Param(Array("100"))
+  var numDocs: Int = _
+
+  @Param(Array("1000"))
+  var wordsPerDoc: Int = _
+
+  var docs: IndexedSeq[Doc] = _
+  var proximity: Proximity = _
+
+  @Setup
+  def setup(): Unit = docs = new Corpus(numDocs, wordsPerDoc).docs
+
+  /** a new accumulator per iteration, so the node and edge maps don't grow over the whole run */
+  @Setup(Level.Iteration)
+  def setupProximity(): Unit = proximity = new Proximity(Main.defaultCliOption, Proximity.nerFilter)
+
+  @Benchmark
+  def emailToNer(bh: Blackhole): Unit = for (d <- docs) bh.consume(Email.toNer(Email.extRefNer(d.ner), _ => 1.0)(d.content.get).toList)
+
+  @Benchmark
+  def ageToNer(bh: Blackhole): Unit = for (d <- docs) bh.consume(Age.toNer(d.content.get, d.ner).toList)
+
+  @Benchmark
+  def filterPer2(bh: Blackhole): Unit = for (d <- docs) bh.consume(Hits.filterPer2(d.ner))
+
+  @Benchmark
+  def proximityAccDoc: Int = {
+    docs.foreach(proximity.accDoc)
+    proximity.nodeMap.size
+  }
+}
@@ -0,0 +1,275 @@
+package au.csiro.data61.dataFusion.common
+
+import java.io.{ BufferedInputStream, BufferedOutputStream, ByteArrayInputStream, ByteArrayOutputStream, Closeable, DataInputStream, DataOutputStream, EOFException, File, FileOutputStream, InputStream, OutputStream }
+import java.nio.charset.StandardCharsets.UTF_8
+import java.util.zip.{ Deflater, Inflater }
+
+import scala.io.Source
+
+import Data.{ Doc, Embedded, ExtRef, Ner }
+import Data.JsonProtocol.docFormat
+import spray.json.{ pimpAny, pimpString }
+
+/**
+ * Reading and writing of Doc's in either:
+ *  - JSON: one Doc per line (see README.md); or
+ *  - binary: a compact length-prefixed encoding, optionally compressed, which is much faster to read and write.
+ *
+ * Readers detect the format, so either may be used as input to any stage.
+ *
+ * The binary format is a header: `MAGIC` and a flags byte (`FLAG_DEFLATE`); followed by blocks.
+ * A block is: int length of the uncompressed block, int length of the stored (possibly compressed) block, the stored bytes.
+ * An uncompressed block is a sequence of records: int length, the encoded Doc.
+ * All ints/longs/doubles are big-endian (as written by DataOutputStream), strings are an int length followed by UTF-8 bytes.
+ */
+object DocIO {
+
+  val JSON = "json"
+  val BINARY = "binary"
+  val BINARY_DEFLATE = "binary-deflate"
+  val formats = Seq(JSON, BINARY, BINARY_DEFLATE)
+
+  val MAGIC = Array[Byte](0, 'D'.toByte, 'F'.toByte, 'B'.toByte, 1) // starts with a byte that can't start a line of JSON, last byte is the version
+  val FLAG_DEFLATE = 1
+  val blockSize = 1 << 20
+
+  /** A Doc as read from input, but not yet decoded (so that decoding can be done by a worker thread) */
+  trait DocRecord {
+    def doc: Doc
+    /** for error messages and dead letter files */
+    def json: String
+  }
+
+  case class JsonRecord(json: String) extends DocRecord {
+    def doc = json.parseJson.convertTo[Doc]
+  }
+
+  case class BinaryRecord(bytes: Array[Byte]) extends DocRecord {
+    def doc = Binary.decode(bytes)
+    def json = doc.toJson.compactPrint
+  }
+
+  /** encoding/decoding of a single Doc */
+  object Binary {
+
+    def encode(d: Doc): Array[Byte] = {
+      val b = new ByteArrayOutputStream(256 + d.content.map(_.length).getOrElse(0))
+      val o = new DataOutputStream(b)
+
+      def str(s: String) = {
+        val a = s.getBytes(UTF_8)
+        o.writeInt(a.length)
+        o.write(a)
+      }
+      def optStr(s: Option[String]) = {
+        o.writeBoolean(s.isDefined)
+        s.foreach(str)
+      }
+      def meta(m: Map[String, String]) = {
+        o.writeInt(m.size)
+        for ((k, v) <- m) { str(k); str(v) }
+      }
+      def ners(l: List[Ner]) = {
+        o.writeInt(l.size)
+        for (n <- l) {
+          o.writeInt(n.posStr)
+          o.writeInt(n.posEnd)
+          o.writeInt(n.offStr)
+          o.writeInt(n.offEnd)
+          o.writeDouble(n.score)
+          str(n.text)
+          str(n.typ)
+          str(n.impl)
+          o.writeBoolean(n.extRef.isDefined)
+          for (r <- n.extRef) {
+            str(r.name)
+            o.writeInt(r.ids.size)
+            r.ids.foreach(o.writeLong)
+          }
+        }
+      }
+
+      o.writeLong(d.id)
+      optStr(d.content)
+      meta(d.meta)
+      str(d.path)
+      ners(d.ner)
+      o.writeInt(d.embedded.size)
+      for (e <- d.embedded) {
+        optStr(e.content)
+        meta(e.meta)
+        ners(e.ner)
+      }
+      o.flush
+      b.toByteArray
+    }
+
+    def decode(bytes: Array[Byte]): Doc = {
+      val i = new DataInputStream(new ByteArrayInputStream(bytes))
+
+      def str = {
+        val a = new Array[Byte](i.readInt)
+        i.readFully(a)
+        new String(a, UTF_8)
+      }
+      def optStr = if (i.readBoolean) Some(str) else None
+      def list[T](f: => T) = List.fill(i.readInt)(f)
+      def meta = list((str, str)).toMap
+      def ner = Ner(i.readInt, i.readInt, i.readInt, i.readInt, i.readDouble, str, str, str,
+          if (i.readBoolean) Some(ExtRef(str, list(i.readLong))) else None)
+
+      Doc(i.readLong, optStr, meta, str, list(ner), list(Embedded(optStr, meta, list(ner))))
+    }
+  }
+
+  /**
+   * @return the records from `in`, detecting its format
+   */
+  def records(in: InputStream): Iterator[DocRecord] = {
+    val b = new BufferedInputStream(in, 1 << 16)
+    b.mark(MAGIC.length)
+    val head = new Array[Byte](MAGIC.length)
+    // a read may return fewer bytes than requested (e.g. on a pipe), so loop until the header is filled or EOF
+    var n = 0
+    var r = 0
+    while (n < head.length && r >= 0) {
+      r = b.read(head, n, head.length - n)
+      if (r > 0) n += r
+    }
+    b.reset
+    if (n == MAGIC.length && head.sameElements(MAGIC)) binaryRecords(b)
+    else Source.fromInputStream(b, "UTF-8").getLines.map(JsonRecord)
+  }
+
+  /** @return decoded docs from `in`, detecting its format */
+  def docs(in: InputStream): Iterator[Doc] = records(in).map(_.doc)
+
+  private def binaryRecords(in: InputStream): Iterator[DocRecord] = {
+    val i = new DataInputStream(in)
+    i.skipBytes(MAGIC.length)
+    val deflate = (i.readByte & FLAG_DEFLATE) != 0
+    val inflater = if (deflate) Some(new Inflater) else None
+
+    /** the Inflater's native memory is freed at EOF or on error (only the GC frees it if the Iterator is abandoned part way) */
+    def block: Option[Array[Byte]] = try {
+      val rawLen = try i.readInt catch { case _: EOFException => -1 }
+      if (rawLen < 0) {
+        inflater.foreach(_.end)
+        None
+      } else {
+        val stored = new Array[Byte](i.readInt)
+        i.readFully(stored)
+        Some(inflater.map { inf =>
+          val raw = new Array[Byte](rawLen)
+          inf.reset
+          inf.setInput(stored)
+          inf.inflate(raw)
+          raw
+        }.getOrElse(stored))
+      }
+    } catch {
+      case e: Throwable =>
+        inflater.foreach(_.end)
+        throw e
+    }
+
+    def recs(b: Array[Byte]): Iterator[DocRecord] = {
+      val d = new DataInputStream(new ByteArrayInputStream(b))
+      Iterator.continually(d.available).takeWhile(_ > 0).map { _ =>
+        val a = new Array[Byte](d.readInt)
+        d.readFully(a)
+        BinaryRecord(a)
+      }
+    }
+
+    Iterator.continually(block).takeWhile(_.isDefined).flatMap(b => recs(b.get))
+  }
+
+  /**
+   * Writes Docs in the given format.
+   * `encode` is thread-safe (so can be done by worker threads), `write`, `flush` and `close` are not.
+   */
+  abstract class DocWriter extends Closeable {
+    def encode(d: Doc): Array[Byte]
+    def writeEncoded(a: Array[Byte]): Unit
+    def write(d: Doc): Unit = writeEncoded(encode(d))
+    /** write everything written so far to the underlying stream, leaving it in a readable state */
+    def flush: Unit
+  }
+
+  class JsonDocWriter(out: OutputStream) extends DocWriter {
+    private val o = new BufferedOutputStream(out, 1 << 16)
+    def encode(d: Doc) = (d.toJson.compactPrint + "\n").getBytes(UTF_8)
+    def writeEncoded(a: Array[Byte]) = o.write(a)
+    def flush = o.flush
+    def close = o.close
+  }
+
+  /** @param header false when appending to existing output */
+  class BinaryDocWriter(out: OutputStream, deflate: Boolean, header: Boolean = true) extends DocWriter {
+    private val o = new DataOutputStream(new BufferedOutputStream(out, 1 << 16))
+    if (header) {
+      o.write(MAGIC)
+      o.writeByte(if (deflate) FLAG_DEFLATE else 0)
+    }
+
+    private val buf = new ByteArrayOutputStream(blockSize + (blockSize >> 2))
+    private val bufData = new DataOutputStream(buf)
+    private val deflater = if (deflate) Some(new Deflater(Deflater.BEST_SPEED)) else None
+    private var compressed = new Array[Byte](0)
+
+    def encode(d: Doc) = Binary.encode(d)
+
+    def writeEncoded(a: Array[Byte]) = {
+      bufData.writeInt(a.length)
+      bufData.write(a)
+      if (buf.size >= blockSize) flushBlock
+    }
+
+    private def flushBlock = if (buf.size > 0) {
+      val raw = buf.toByteArray
+      buf.reset
+      o.writeInt(raw.length)
+      deflater.map { d =>
+        d.reset
+        d.setInput(raw)
+        d.finish
+        if (compressed.length < raw.length + 64) compressed = new Array[Byte](raw.length + raw.length / 8 + 64)
+        val n = d.deflate(compressed)
+        if (!d.finished) throw new IllegalStateException("deflate buffer too small")
+        o.writeInt(n)
+        o.write(compressed, 0, n)
+      }.getOrElse {
+        o.writeInt(raw.length)
+        o.write(raw)
+      }
+    }
+
+    def flush = {
+      flushBlock
+      o.flush
+    }
+
+    def close = {
+      flushBlock
+      o.close
+      deflater.foreach(_.end)
+    }
+  }
+
+  def docWriter(out: OutputStream, format: String): DocWriter = docWriter(out, format, true)
+
+  def docWriter(out: OutputStream, format: String, header: Boolean): DocWriter = format match {
+    case JSON => new JsonDocWriter(out)
+    case BINARY => new BinaryDocWriter(out, false, header)
+    case BINARY_DEFLATE => new BinaryDocWriter(out, true, header)
+    case _ => throw new IllegalArgumentException(s"unknown format: $format, expected one of $formats")
+  }
+
+  /** @param append to add to existing output (which must be in the same format) */
+  def docWriter(f: File, format: String, append: Boolean = false): DocWriter = {
+    val header = !(append && f.length > 0)
+    docWriter(new FileOutputStream(f, append), format, header)
+  }
+
+}
@@ -4,51 +4,98 @@ import com.typesafe.scalalogging.Logger
 
 object EnglishScore {
   private val log = Logger(getClass)
-  
+
   case class Feat(wordLike: Boolean, initCap: Boolean, endsDot: Boolean)
 
   // A metric for English text quality.
-  // Near enough is good enough, no need to handle voweless works like "sky" or apostrophes.  
-  
-  val word = """\S+""".r
-  val vowels = "AEIOUaeiou".toSet
-  val upper = ('A' to 'Z').toSet
-  val letter = upper ++ upper.map(Character.toLowerCase)
-  val punct = ",;:'\"!@#$%^&*()-_+=/[]{}.".toSet
+  // Near enough is good enough, no need to handle voweless works like "sky" or apostrophes.
+
+  // character classes (ASCII only, as before), tested without boxing
+  def isVowel(c: Char) = c match {
+    case 'A' | 'E' | 'I' | 'O' | 'U' | 'a' | 'e' | 'i' | 'o' | 'u' => true
+    case _ => false
+  }
+  def isUpper(c: Char) = c >= 'A' && c <= 'Z'
+  def isLetter(c: Char) = isUpper(c) || c >= 'a' && c <= 'z'
+  private val punct = ",;:'\"!@#$%^&*()-_+=/[]{}."
+  def isPunct(c: Char) = punct.indexOf(c) >= 0
+  /** whitespace as matched by regex \s (words were previously found with """\S+""".r) */
+  def isSpace(c: Char) = c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r'
+
+  // Feat as bit flags, so scoring allocates nothing per word
+  val WORD_LIKE = 1
+  val INIT_CAP = 2
+  val ENDS_DOT = 4
+
+  /** @return Feat flags for the word text[start, end) */
+  def feat(text: CharSequence, start: Int, end: Int): Int = {
+    var numVowel = 0
+    var numLetter = 0
+    var numUpper = 0
+    var i = start
+    while (i < end) {
+      val c = text.charAt(i)
+      if (isVowel(c)) numVowel += 1
+      if (isLetter(c)) numLetter += 1
+      if (isUpper(c)) numUpper += 1
+      i += 1
+    }
+    val len = end - start
+    val head = text.charAt(start)
+    val last = text.charAt(end - 1)
+    val startsPunct = isPunct(head)
+    val endsPunct = isPunct(last)
+    val expectedLetters = len - (if (startsPunct) 1 else 0) - (if (endsPunct) 1 else 0)
+    val initCap = numUpper == 1 && (startsPunct && len > 1 && Character.isUpperCase(text.charAt(start + 1)) || Character.isUpperCase(head))
+    val wordLike = len < 30 && numLetter == expectedLetters && (numUpper == 0 || initCap) && numVowel > 0
+    (if (wordLike) WORD_LIKE else 0) | (if (initCap) INIT_CAP else 0) | (if (last == '.') ENDS_DOT else 0)
+  }
 
   def word2feat(w: String): Feat = {
-    val numVowel = w.count(vowels contains _)
-    val numLetter = w.count(letter contains _)
-    val numUpper = w.count(upper contains _)
-    val startsPunct = punct contains w.head 
-    val endsPunct = punct contains w.last
-    val endsDot = w.endsWith(".")
-    val expectedLetters = w.length - (if (startsPunct) 1 else 0) - (if (endsPunct) 1 else 0)
-    val initCap = numUpper == 1 && (startsPunct && w.length > 1 && Character.isUpperCase(w(1))|| Character.isUpperCase(w.head))
-    val wordLike = w.length < 30 && numLetter == expectedLetters && (numUpper == 0 || initCap) && numVowel > 0
-    // log.debug(s"word2feat: numVowel = $numVowel, numLetter = $numLetter, numUpper = $numUpper, startsPunct = $startsPunct, endsPunct = $endsPunct, endsDot = $endsDot, initCap = $initCap, length = ${w.length}, expectedLetters = $expectedLetters, wordLike = $wordLike")
-    Feat(wordLike, initCap, endsDot)
+    val f = feat(w, 0, w.length)
+    Feat((f & WORD_LIKE) != 0, (f & INIT_CAP) != 0, (f & ENDS_DOT) != 0)
   }
 
+  /**
+   * One pass over the text, without allocating per word, giving the same score as the original
+   * `word.findAllIn(text).map(word2feat).toSeq` followed by counts over the Seq and its `sliding(2)` pairs.
+   */
   def englishScore(text: String): Double = {
-    val feats = word.findAllIn(text).map(word2feat).toSeq
-    val numWords = feats.count(_.wordLike)
-    val wordScore = numWords.toDouble / feats.size // ratio
-    
-    // unit test with text from wikipedia is getting a very low sentenceScore, so disabled for now
-    val numSentence = feats.sliding(2).count {
-      case Seq(a, b) => a.wordLike && a.endsDot && b.wordLike && b.initCap
-      case _ => false
+    var numTokens = 0   // whitespace separated
+    var numWords = 0    // wordLike tokens
+    var numSentence = 0 // wordLike tokens ending in '.' followed by an initCap wordLike token
+    var prevEndsSentence = false
+
+    val n = text.length
+    var i = 0
+    while (i < n) {
+      while (i < n && isSpace(text.charAt(i))) i += 1
+      if (i < n) {
+        val start = i
+        while (i < n && !isSpace(text.charAt(i))) i += 1
+        val f = feat(text, start, i)
+        val wordLike = (f & WORD_LIKE) != 0
+        numTokens += 1
+        if (wordLike) {
+          numWords += 1
+          if (prevEndsSentence && (f & INIT_CAP) != 0) numSentence += 1
+        }
+        prevEndsSentence = wordLike && (f & ENDS_DOT) != 0
+      }
     }
+
+    val wordScore = numWords.toDouble / numTokens // ratio
+
+    // unit test with text from wikipedia is getting a very low sentenceScore, so disabled for now
     val x = numWords.toDouble / numSentence // avgSentenceLength
     // See http://hearle.nahoo.net/Academic/Maths/Sentence.html
     // try piece-wise linear score
     val sentenceScore = if (x < 10.0) 0.6 + 0.4 * x/10.0
       else if (x < 30.0) 1.0
-      else if (x < 100.0) 1.0 - 0.8 * (x - 30.0)/70.0 
+      else if (x < 100.0) 1.0 - 0.8 * (x - 30.0)/70.0
       else 0.2
-    
+
     log.debug(s"englishScore: numSentence = $numSentence, numWords = $numWords, wordScore = $wordScore, sentenceScore = $sentenceScore")
     wordScore * sentenceScore
   }
-}
\ No newline at end of file
+}
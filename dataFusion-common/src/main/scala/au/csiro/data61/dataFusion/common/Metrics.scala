@@ -0,0 +1,169 @@
+package au.csiro.data61.dataFusion.common
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.{ AtomicLongArray, LongAccumulator, LongAdder }
+
+import scala.collection.JavaConverters._
+import scala.reflect.ClassTag
+
+import com.typesafe.scalalogging.Logger
+
+import spray.json.{ JsNumber, JsObject, JsValue }
+
+/** a metric registered with `Metrics` */
+sealed trait Metric {
+  def toJson: JsValue
+  def report: String
+}
+
+/** count of events */
+class Counter extends Metric {
+  private val n = new LongAdder
+  def inc = n.increment
+  def add(x: Long) = n.add(x)
+  def count = n.sum
+  def toJson = JsNumber(count)
+  def report = count.toString
+}
+
+/** value computed when read */
+class Gauge(f: => Double) extends Metric {
+  def value = f
+  def toJson = JsNumber(value)
+  def report = f"${value}%.2f"
+}
+
+/**
+ * Histogram of nanosecond durations in log-linear buckets: values below SUB are exact and above that each power of 2
+ * is split into SUB buckets, so a percentile is over-estimated by at most 1/SUB (6%) using a fixed 8KB per histogram.
+ */
+class Histogram extends Metric {
+  import Histogram._
+
+  private val buckets = new AtomicLongArray(NUM_BUCKETS)
+  private val n = new LongAdder
+  private val sum = new LongAdder
+  private val max = new LongAccumulator((a, b) => Math.max(a, b), 0L)
+
+  def record(nanos: Long): Unit = {
+    val v = Math.max(0L, nanos)
+    buckets.incrementAndGet(bucket(v))
+    n.increment
+    sum.add(v)
+    max.accumulate(v)
+  }
+
+  /** record the time taken by `f` (including when it throws) */
+  def time[T](f: => T): T = {
+    val t0 = System.nanoTime
+    try f finally record(System.nanoTime - t0)
+  }
+
+  def count = n.sum
+  def maxNanos = max.get
+  def sumNanos = sum.sum
+  def meanNanos = { val c = count; if (c == 0) 0.0 else sum.sum.toDouble / c }
+
+  /** @return upper bound (nanos) of the value at percentile p (0 to 100), 0 if empty */
+  def percentile(p: Double): Long = percentile(Array.tabulate(NUM_BUCKETS)(buckets.get), p)
+
+  /** @param c a copy of the bucket counts, consistent over several percentiles while there are concurrent updates */
+  private def percentile(c: Array[Long], p: Double): Long = {
+    val target = Math.max(1L, Math.ceil(p / 100.0 * c.sum).toLong)
+    var acc = 0L
+    var i = 0
+    while (i < NUM_BUCKETS && acc + c(i) < target) { acc += c(i); i += 1 }
+    if (i == NUM_BUCKETS) 0L else Math.min(upperBound(i), maxNanos)
+  }
+
+  def snapshot = {
+    val c = Array.tabulate(NUM_BUCKETS)(buckets.get)
+    Snapshot(c.sum, meanNanos * 1e-6, percentile(c, 50) * 1e-6, percentile(c, 90) * 1e-6, percentile(c, 99) * 1e-6, maxNanos * 1e-6)
+  }
+
+  def toJson = {
+    val s = snapshot
+    JsObject("count" -> JsNumber(s.count), "meanMillis" -> JsNumber(s.meanMillis), "p50Millis" -> JsNumber(s.p50Millis),
+      "p90Millis" -> JsNumber(s.p90Millis), "p99Millis" -> JsNumber(s.p99Millis), "maxMillis" -> JsNumber(s.maxMillis))
+  }
+
+  def report = {
+    val s = snapshot
+    f"count ${s.count}, mean ${s.meanMillis}%.3f, p50 ${s.p50Millis}%.3f, p90 ${s.p90Millis}%.3f, p99 ${s.p99Millis}%.3f, max ${s.maxMillis}%.3f ms"
+  }
+}
+
+object Histogram {
+  case class Snapshot(count: Long, meanMillis: Double, p50Millis: Double, p90Millis: Double, p99Millis: Double, maxMillis: Double)
+
+  val SUB_BITS = 4
+  val SUB = 1 << SUB_BITS
+  val NUM_BUCKETS = (64 - SUB_BITS) * SUB // enough for any non-negative Long
+
+  def bucket(v: Long): Int =
+    if (v < SUB) v.toInt
+    else {
+      val e = 63 - java.lang.Long.numberOfLeadingZeros(v) // v in [2^e, 2^(e+1)), e >= SUB_BITS
+      (e - SUB_BITS + 1) * SUB + ((v >>> (e - SUB_BITS)).toInt & (SUB - 1))
+    }
+
+  /** largest value in bucket i */
+  def upperBound(i: Int): Long =
+    if (i < SUB) i
+    else {
+      val shift = i / SUB - 1
+      ((SUB + i % SUB + 1).toLong << shift) - 1
+    }
+}
+
+/**
+ * Process wide registry of named metrics, shared by the CLI's (logged periodically by Pipeline) and the web services
+ * (served as JSON by their `/metrics` routes).
+ *
+ * All metrics are safe and cheap to update from many threads: updates are lock free and use
+ * LongAdder/LongAccumulator to avoid contention on a single counter.
+ *
+ * Usage:
+ * {{{
+ * val latency = Metrics.histogram("search.phrase") // get once, record often
+ * val hits = latency.time { search(q) }
+ * Metrics.counter("search.errors").inc
+ * Metrics.gauge("cliNer.inProgress")(inProgress.size)
+ * }}}
+ */
+object Metrics {
+  private val log = Logger(getClass)
+
+  private val metrics = new ConcurrentHashMap[String, Metric]
+
+  private def get[M <: Metric : ClassTag](name: String, m: => M): M = metrics.computeIfAbsent(name, _ => m) match {
+    case x: M => x
+    case x => throw new IllegalArgumentException(s"metric $name is a ${x.getClass.getSimpleName}")
+  }
+
+  def counter(name: String): Counter = get(name, new Counter)
+
+  def histogram(name: String): Histogram = get(name, new Histogram)
+
+  /** register (or replace) a gauge */
+  def gauge(name: String)(f: => Double): Gauge = {
+    val g = new Gauge(f)
+    metrics.put(name, g)
+    g
+  }
+
+  def remove(name: String): Unit = metrics.remove(name)
+
+  def isEmpty = metrics.isEmpty
+
+  private def sorted = metrics.asScala.toSeq.sortBy(_._1)
+
+  /** all metrics, histograms in millis */
+  def toJson: JsObject = JsObject(sorted.map { case (k, m) => k -> m.toJson }: _*)
+
+  /** one line per metric, histograms in millis */
+  def report: String = sorted.map { case (k, m) => s"$k: ${m.report}" }.mkString("\n")
+
+  /** log the report as info (if there are any metrics) */
+  def logReport(): Unit = if (!isEmpty) log.info(s"metrics:\n$report")
+}
@@ -0,0 +1,341 @@
+package au.csiro.data61.dataFusion.common
+
+import java.io.{ Closeable, File, Writer }
+import java.util.concurrent.{ ArrayBlockingQueue, CancellationException, CountDownLatch, Semaphore, TimeUnit }
+import java.util.concurrent.atomic.{ AtomicLong, AtomicReference }
+
+import scala.collection.mutable
+import scala.util.{ Failure, Success, Try }
+import scala.util.control.NonFatal
+
+import com.typesafe.scalalogging.Logger
+
+import Util.bufWriter
+
+/**
+ * Multi-threaded pipeline used by all the CLI's:
+ * one thread does `in`,
+ * `numWorkers` threads do `work`,
+ * one thread does `out`.
+ *
+ * Items are handed between threads in batches of up to `batchSize` through bounded queues,
+ * so a slow stage applies back pressure to the stages before it.
+ * With `ordered` the results are passed to `out` in input order, otherwise in completion order.
+ * An exception from `work` is passed (on the output thread) to a `Failed` handler,
+ * which may record the input in a dead letter file or rethrow to abort the run.
+ * An exception from `in`, `out` or the handler aborts the run: no more input is read, remaining work is discarded
+ * and `run` throws a PipelineException once all threads have finished.
+ * The latency of each `work` item is recorded in the Metrics histogram `<name>.work` and the Metrics report is logged
+ * along with the Stats.
+ *
+ * Pipelines can be chained as stages, each with its own threads, with `start` and `complete`.
+ */
+object Pipeline {
+  private val log = Logger(getClass)
+
+  /**
+   * @param numWorkers number of threads doing `work`
+   * @param ordered if true `out` gets results in input order (at the cost of buffering results that complete early)
+   * @param batchSize max number of items handed between threads at a time (larger amortizes queue synchronization when `work` is cheap)
+   * @param queueFactor each queue holds up to `numWorkers * queueFactor` items (rounded up to a whole batch, but at least `numWorkers` batches)
+   * @param logInterval millis between logging of Stats, 0 for none until completion
+   * @param name used in log messages
+   */
+  case class Config(numWorkers: Int, ordered: Boolean = false, batchSize: Int = 1, queueFactor: Int = 10, logInterval: Long = 60000L, name: String = "pipeline") {
+    require(numWorkers > 0 && batchSize > 0 && queueFactor > 0, s"invalid Pipeline.Config: $this")
+
+    /** queue capacity in batches */
+    def queueSize = Math.max(numWorkers, (numWorkers * queueFactor + batchSize - 1) / batchSize)
+  }
+
+  class PipelineException(msg: String, cause: Throwable) extends RuntimeException(msg, cause)
+
+  /** handler for an input for which `work` threw an exception, called on the output thread */
+  type Failed[I] = (I, Throwable) => Unit
+
+  /** abort the run */
+  def failFast[I]: Failed[I] = (i, e) => throw e
+
+  /** log and carry on (the behaviour of the original Parallel.doParallel) */
+  def logAndSkip[I]: Failed[I] = (i, e) => log.error("worker exception", e)
+
+  /**
+   * Counters for monitoring where a run is bottlenecked.
+   *
+   * Busy times are the time spent in `in`, `work` (summed over all workers) and `out` (including the Failed handler).
+   * Queue depths are sampled (in batches) each time a batch is added to a queue.
+   * A full input queue indicates the workers are the bottleneck,
+   * a full output queue indicates `out` is the bottleneck and
+   * an empty input queue indicates `in` is the bottleneck.
+   */
+  class Stats(val conf: Config) {
+    val startNanos = System.nanoTime
+    val inCount = new AtomicLong
+    val outCount = new AtomicLong
+    val failCount = new AtomicLong
+    val inBusy = new AtomicLong
+    val workBusy = new AtomicLong
+    val outBusy = new AtomicLong
+
+    class Depth {
+      val sum = new AtomicLong
+      val count = new AtomicLong
+      val max = new AtomicLong
+
+      def sample(n: Int): Unit = {
+        sum.addAndGet(n)
+        count.incrementAndGet
+        max.accumulateAndGet(n, (a, b) => Math.max(a, b))
+      }
+      def mean = if (count.get == 0) 0.0f else sum.get.toFloat / count.get
+      override def toString = f"${mean}%.1f/${max.get}"
+    }
+    val inDepth = new Depth
+    val outDepth = new Depth
+
+    def elapsedNanos = System.nanoTime - startNanos
+    def elapsedSecs = elapsedNanos / 1e9f
+
+    private def pc(busy: AtomicLong, threads: Int) = 100.0f * busy.get / Math.max(1L, elapsedNanos * threads)
+
+    override def toString = {
+      f"${conf.name}: in ${inCount.get}, out ${outCount.get}, failed ${failCount.get} in ${elapsedSecs}%.1f secs; " +
+      f"busy: in ${pc(inBusy, 1)}%.0f%%, work ${pc(workBusy, conf.numWorkers)}%.0f%% of ${conf.numWorkers} workers, out ${pc(outBusy, 1)}%.0f%%; " +
+      s"queue depth mean/max (of ${conf.queueSize} batches of ${conf.batchSize}): input $inDepth, output $outDepth"
+    }
+  }
+
+  private case class Batch[A](seq: Long, items: IndexedSeq[A])
+
+  private def timed[A](busy: AtomicLong)(a: => A): A = {
+    val t0 = System.nanoTime
+    try a finally busy.addAndGet(System.nanoTime - t0)
+  }
+
+  private def thread(name: String, daemon: Boolean = false)(body: => Unit) = {
+    val t = new Thread(name) {
+      override def run = body
+    }
+    t.setDaemon(daemon)
+    t.start
+    t
+  }
+
+  def run[I, O](in: Iterator[I], work: I => O, out: O => Unit, conf: Config, failed: Failed[I] = failFast[I]): Stats = {
+    val stats = new Stats(conf)
+    val workLatency = Metrics.histogram(s"${conf.name}.work")
+    val failure = new AtomicReference[Throwable]
+    def abort(e: Throwable) = if (failure.compareAndSet(null, e)) log.error(s"${conf.name}: aborting", e)
+    def aborted = failure.get != null
+    type R = Either[(I, Throwable), O]
+
+    val iq = new ArrayBlockingQueue[Option[Batch[I]]](conf.queueSize)
+    val oq = new ArrayBlockingQueue[Option[Batch[R]]](conf.queueSize)
+    // when ordered, this bounds the number of batches in flight (including those waiting for an earlier batch)
+    val inFlight = if (conf.ordered) Some(new Semaphore(2 * conf.queueSize + conf.numWorkers)) else None
+
+    val iThread = thread(s"${conf.name}-in") {
+      try {
+        var seq = 0L
+        while (!aborted && timed(stats.inBusy)(in.hasNext)) {
+          val b = timed(stats.inBusy) {
+            val b = new mutable.ArrayBuffer[I](conf.batchSize)
+            while (b.size < conf.batchSize && in.hasNext) b += in.next
+            b
+          }
+          stats.inCount.addAndGet(b.size)
+          inFlight.foreach(_.acquire)
+          iq.put(Some(Batch(seq, b)))
+          stats.inDepth.sample(iq.size)
+          seq += 1
+        }
+      } catch {
+        case e: Throwable => abort(e)
+      } finally iq.put(None)
+    }
+
+    val workers = (0 until conf.numWorkers).map { n => thread(s"${conf.name}-work-$n") {
+      Iterator.continually(iq.take).takeWhile(_.isDefined).flatten.foreach { b =>
+        val r = try {
+          if (aborted) Batch[R](b.seq, IndexedSeq.empty) // discard remaining work, but keep seq for the ordered output
+          else Batch[R](b.seq, timed(stats.workBusy)(b.items.map { i =>
+            try Right(workLatency.time(work(i))) catch { case NonFatal(e) => Left((i, e)) }
+          }))
+        } catch {
+          case e: Throwable => abort(e); Batch[R](b.seq, IndexedSeq.empty)
+        }
+        oq.put(Some(r))
+        stats.outDepth.sample(oq.size)
+      }
+      iq.put(None) // tell another worker
+    } }
+
+    val oThread = thread(s"${conf.name}-out") {
+      def emit(b: Batch[R]) = {
+        if (!aborted) try timed(stats.outBusy) {
+          b.items.foreach {
+            case Right(o) => out(o); stats.outCount.incrementAndGet
+            case Left((i, e)) => stats.failCount.incrementAndGet; failed(i, e)
+          }
+        } catch {
+          case e: Throwable => abort(e)
+        }
+        inFlight.foreach(_.release)
+      }
+
+      val pending = mutable.HashMap.empty[Long, Batch[R]]
+      var next = 0L
+      Iterator.continually(oq.take).takeWhile(_.isDefined).flatten.foreach { b =>
+        if (conf.ordered) {
+          pending += b.seq -> b
+          while (pending contains next) {
+            emit(pending.remove(next).get)
+            next += 1
+          }
+        } else emit(b)
+      }
+    }
+
+    val done = new CountDownLatch(1)
+    if (conf.logInterval > 0) thread(s"${conf.name}-log", true) {
+      while (!done.await(conf.logInterval, TimeUnit.MILLISECONDS)) {
+        log.info(stats.toString)
+        Metrics.logReport()
+      }
+    }
+
+    iThread.join
+    log.debug("iThread done")
+    workers.foreach(_.join)
+    log.debug("workers done")
+    oq.put(None)
+    oThread.join
+    log.debug("oThread done")
+    done.countDown
+    log.info(s"complete: $stats")
+    Metrics.logReport()
+
+    Option(failure.get).foreach { e => throw new PipelineException(s"${conf.name}: aborted after ${stats.outCount.get} items output", e) }
+    stats
+  }
+
+  /**
+   * Run with inputs for which `work` fails written to `deadLetter` (one line per input, using `toLine`, so the file can be used as input for a re-run)
+   * or, if `deadLetter` is None, with such failures aborting the run.
+   */
+  def runWithDeadLetter[I, O](in: Iterator[I], work: I => O, out: O => Unit, conf: Config, deadLetter: Option[File], toLine: I => String): Stats =
+    deadLetter.map { f =>
+      val d = new DeadLetter(f)
+      try run(in, work, out, conf, deadLetterHandler(d, conf, toLine))
+      finally d.close
+    }.getOrElse(run(in, work, out, conf))
+
+  /**
+   * A dead letter file, created only when the first line is written so that a run without failures leaves no file behind.
+   * A file left by an earlier run is deleted up front, so it isn't mistaken for this run's failures.
+   * Writes are synchronized so one file can be shared by several Pipelines.
+   */
+  class DeadLetter(val file: File) extends Closeable {
+    file.delete
+    private var w: Writer = null
+
+    def write(line: String): Unit = synchronized {
+      if (w == null) w = bufWriter(file)
+      w.write(line)
+      w.write('\n')
+    }
+
+    override def close: Unit = synchronized {
+      if (w != null) w.close
+    }
+  }
+
+  /** write the input to the dead letter file `d` */
+  def deadLetterHandler[I](d: DeadLetter, conf: Config, toLine: I => String): Failed[I] = (i, e) => {
+    log.error(s"${conf.name}: worker exception, input written to ${d.file.getPath}", e)
+    d.write(toLine(i))
+  }
+
+  /**
+   * A bounded hand-off from the `out` of one Pipeline to the `in` of the next, so that each stage of a chain has its own
+   * threads and queues and a slow stage applies back pressure to the stages before it.
+   * The consumer calls `cancel` if it stops reading early (it was aborted), after which `put` throws, aborting the producer.
+   */
+  class Connector[A](capacity: Int) extends Iterator[A] {
+    private val q = new ArrayBlockingQueue[Option[A]](capacity)
+    @volatile private var cancelled = false
+    private var head: Option[A] = null // look ahead, only accessed by the consumer
+
+    /** @return false if cancelled */
+    private def offer(x: Option[A]) = {
+      while (!cancelled && !q.offer(x, 100, TimeUnit.MILLISECONDS)) {}
+      !cancelled
+    }
+
+    def put(a: A): Unit = if (!offer(Some(a))) throw new CancellationException("connector cancelled by the next stage")
+    def close: Unit = offer(None)
+    def cancel: Unit = {
+      cancelled = true
+      q.clear
+    }
+
+    override def hasNext = {
+      if (head == null) head = q.take
+      head.isDefined
+    }
+
+    override def next = if (hasNext) {
+      val a = head.get
+      head = null
+      a
+    } else throw new NoSuchElementException("connector closed")
+  }
+
+  /** a Pipeline running on its own thread (see `start`), with its results available from `output` */
+  class Running[O](val conf: Config, val output: Connector[O], thread: Thread, result: AtomicReference[Try[Stats]]) {
+    /** wait for the run to finish, @return its Stats or throw the exception that aborted it */
+    def join: Stats = {
+      thread.join
+      result.get.get
+    }
+  }
+
+  /**
+   * Start a Pipeline on its own thread, with results passed to the returned `output`, which may be the `in` of the next stage.
+   * The output queue holds up to `numWorkers * queueFactor` results.
+   * When the run finishes the output is closed and, if the input is a Connector, it is cancelled (so if this stage
+   * was aborted the previous stage is too, rather than blocking on a full queue).
+   */
+  def start[I, O](in: Iterator[I], work: I => O, conf: Config, failed: Failed[I] = failFast[I]): Running[O] = {
+    val output = new Connector[O](conf.numWorkers * conf.queueFactor)
+    val result = new AtomicReference[Try[Stats]]
+    val t = thread(s"${conf.name}-stage") {
+      try result.set(try Success(run(in, work, output.put, conf, failed)) catch { case e: Throwable => Failure(e) })
+      finally {
+        output.close
+        in match {
+          case c: Connector[_] => c.cancel
+          case _ =>
+        }
+      }
+    }
+    new Running(conf, output, t, result)
+  }
+
+  /** a stage aborted because the next stage stopped reading its output */
+  private def cancelled(e: Throwable) = e.isInstanceOf[PipelineException] && e.getCause.isInstanceOf[CancellationException]
+
+  /**
+   * Run `consume` (on this thread) on the output of the last of the `stages` started with `start`, then wait for all the stages.
+   * @return the result of `consume`, or throw the first exception from a stage or `consume`
+   * (in stage order, ignoring stages aborted only because a later stage stopped)
+   */
+  def complete[A](stages: Seq[Running[_]])(consume: => A): A = {
+    val r = Try(consume)
+    stages.last.output.cancel // stop the stages if consume didn't read all their output
+    val failures = stages.flatMap(s => Try(s.join).failed.toOption) ++ r.failed.toOption
+    failures.find(!cancelled(_)).orElse(failures.headOption).foreach(e => throw e)
+    r.get
+  }
+
+}
@@ -11,6 +11,7 @@ import com.typesafe.scalalogging.Logger
  *  t.stop
  *  log.info(s"... took ${t.elapsedSecs} secs")
  *  }}}
+ *  Not thread-safe; for latency statistics shared between threads use a `Metrics` Histogram.
  */
 class Timer {
   private var t0 = 0L      // start of currently measured time period
@@ -24,12 +25,15 @@ class Timer {
   }
 
   /** `start` need not be used - used to discard (not accumulate) the time between `stop` and `start`. */
-  def start = t0 = System.currentTimeMillis
+  def start = t0 = System.nanoTime
 
-  def stop = elapsed += (System.currentTimeMillis - t0)
+  def stop = elapsed += (System.nanoTime - t0)
+
+  /** Get accumulated nanoseconds up to `stop` */
+  def elapsedNanos: Long = elapsed
 
   /** Get accumulated seconds up to `stop` */
-  def elapsedSecs: Float = elapsed * 1e-3f
+  def elapsedSecs: Float = elapsed * 1e-9f
 }
 
 object Timer {
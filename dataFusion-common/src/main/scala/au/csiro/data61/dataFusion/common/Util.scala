@@ -8,7 +8,7 @@ object Util {
   private val log = Logger(getClass)
   
   /** @return a BufferedWriter using UTF-8 encoding */
-  def bufWriter(f: File) = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(f), "UTF-8"))
+  def bufWriter(f: File, append: Boolean = false) = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(f, append), "UTF-8"))
   
   /** Get a Scala singleton Object.
     * @param fqn object's fully qualified name
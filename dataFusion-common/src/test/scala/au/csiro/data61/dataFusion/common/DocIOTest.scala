@@ -0,0 +1,75 @@
+package au.csiro.data61.dataFusion.common
+
+import java.io.{ ByteArrayInputStream, ByteArrayOutputStream, FilterInputStream }
+
+import scala.util.Random
+
+import org.scalatest.{ FlatSpec, Matchers }
+
+import com.typesafe.scalalogging.Logger
+
+import Data.{ Doc, Embedded, ExtRef, Ner }
+import DocIO.{ BINARY, BINARY_DEFLATE, JSON, docWriter, docs }
+
+class DocIOTest extends FlatSpec with Matchers {
+  val log = Logger(getClass)
+  
+  /** a mix of small born-digital docs and large OCR'd docs with many NERs, similar to real collections */
+  def mkDocs(n: Int, seed: Int = 1) = {
+    val rnd = new Random(seed)
+    val words = Vector("the", "Annual", "Report", "JOHN", "SMITH", "Pty", "Ltd", "of", "and", "2016", "Company", "Sydney", "résumé", "ﬁnance", "a", "to")
+    def text(numWords: Int) = Iterator.fill(numWords)(words(rnd.nextInt(words.size))).mkString(" ")
+    def meta(n: Int) = (0 until n).map(i => s"meta:key-$i" -> text(3)).toMap
+    def ners(n: Int) = List.tabulate(n) { i => 
+      Ner(i, i + 2, i * 10, i * 10 + 9, rnd.nextDouble, text(2), "PERSON", "CoreNLP", if (i % 5 == 0) Some(ExtRef(text(3), List(rnd.nextLong, i))) else None)
+    }
+    List.tabulate(n) { id =>
+      val large = id % 10 == 0
+      val content = if (id % 7 == 3) None else Some(text(if (large) 20000 else 300))
+      val embedded = List.fill(if (large) 5 else rnd.nextInt(2)) { Embedded(Some(text(500)), meta(8), ners(20)) }
+      Doc(id, content, meta(20), s"/collection/c$id/doc$id.pdf", ners(if (large) 2000 else 30), embedded)
+    }
+  }
+  
+  def write(ds: Seq[Doc], format: String) = {
+    val b = new ByteArrayOutputStream
+    val w = docWriter(b, format)
+    ds.foreach(w.write)
+    w.close
+    b.toByteArray
+  }
+  
+  "DocIO" should "round trip in all formats" in {
+    val ds = mkDocs(50) :+ Doc(-1L, Some(""), Map.empty, "", List.empty, List(Embedded(None, Map.empty, List.empty)))
+    for (f <- DocIO.formats) {
+      val bytes = write(ds, f)
+      docs(new ByteArrayInputStream(bytes)).toList should be(ds)
+    }
+  }
+  
+  it should "read empty input" in {
+    for (f <- DocIO.formats) {
+      docs(new ByteArrayInputStream(write(Seq.empty, f))).toList should be(List.empty)
+    }
+    docs(new ByteArrayInputStream(new Array[Byte](0))).toList should be(List.empty)
+  }
+  
+  it should "detect the format when the input returns a byte at a time" in {
+    val ds = mkDocs(5)
+    for (f <- DocIO.formats) {
+      val in = new FilterInputStream(new ByteArrayInputStream(write(ds, f))) { // like a pipe with nothing more available yet
+        override def read(b: Array[Byte], off: Int, len: Int) = super.read(b, off, Math.min(len, 1))
+        override def available = 0
+      }
+      docs(in).toList should be(ds)
+    }
+  }
+  
+  it should "be more compact than JSON" in {
+    val ds = mkDocs(200)
+    val Seq(json, binary, deflate) = Seq(JSON, BINARY, BINARY_DEFLATE).map(write(ds, _))
+    log.info(s"size MB: json ${json.length / 1e6}, binary ${binary.length / 1e6}, binary deflate ${deflate.length / 1e6}")
+    binary.length < json.length should be(true)
+    deflate.length < binary.length / 2 should be(true)
+  }
+}
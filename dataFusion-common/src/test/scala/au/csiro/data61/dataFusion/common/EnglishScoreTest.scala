@@ -67,4 +67,35 @@ Oxygen levels in the atmosphere are trending slightly downward globally, possibl
     log.debug(s"score = $score")
     score > 0.8 should be(true)
   }
-}
\ No newline at end of file
+  
+  /** the original implementation, with a Feat per word and a second pass over sliding(2) pairs */
+  def referenceScore(text: String): Double = {
+    val feats = """\S+""".r.findAllIn(text).map(word2feat).toSeq
+    val numWords = feats.count(_.wordLike)
+    val wordScore = numWords.toDouble / feats.size
+    val numSentence = feats.sliding(2).count {
+      case Seq(a, b) => a.wordLike && a.endsDot && b.wordLike && b.initCap
+      case _ => false
+    }
+    val x = numWords.toDouble / numSentence
+    val sentenceScore = if (x < 10.0) 0.6 + 0.4 * x/10.0
+      else if (x < 30.0) 1.0
+      else if (x < 100.0) 1.0 - 0.8 * (x - 30.0)/70.0 
+      else 0.2
+    wordScore * sentenceScore
+  }
+  
+  it should "give the same scores as the original implementation" in {
+    val texts = Seq("", " \t\n", "word", "Word.", "The end. The start", "(Hello) world. \"Quoted\" text.\u000BNext. Line\fbreak.\r\nEnd.",
+      "ὀξύς oxys, \"acid\", É. Émile went home. 20.8% of 1774.[11]")
+    val rnd = new scala.util.Random(7)
+    val chars = "aeiouAEIOUbcdxyzBCDXYZ.,;:'\"()-[]0123456789 \t\n\u000B\f\rÉéὀ"
+    val random = Seq.fill(500)(Seq.fill(rnd.nextInt(300))(chars(rnd.nextInt(chars.length))).mkString)
+    val words = Seq("The", "man", "lived", "in", "County", "Clair.", "Oxygen", "is", "a", "gas.", "(O'Brian)", "SHOUTING", "x1")
+    val sentences = Seq.fill(500)(Seq.fill(rnd.nextInt(300))(words(rnd.nextInt(words.size))).mkString(" "))
+    for (t <- texts ++ random ++ sentences) {
+      val (a, b) = (englishScore(t), referenceScore(t))
+      if (b.isNaN) a.isNaN should be(true) else a should be(b)
+    }
+  }
+}
@@ -0,0 +1,68 @@
+package au.csiro.data61.dataFusion.common
+
+import org.scalatest.{ FlatSpec, Matchers }
+
+import com.typesafe.scalalogging.Logger
+
+import spray.json.{ JsNumber, JsObject }
+
+class MetricsTest extends FlatSpec with Matchers {
+  val log = Logger(getClass)
+
+  "Histogram.bucket" should "be monotonic with each value within its bucket's bounds" in {
+    import Histogram._
+    val values = (0L until 1000L) ++ (0 until 63).flatMap(e => Seq((1L << e) - 1, 1L << e, (1L << e) + 1)) :+ Long.MaxValue
+    for (v <- values) {
+      val i = bucket(v)
+      i should be < NUM_BUCKETS
+      v should be <= upperBound(i)
+      if (i > 0) v should be > upperBound(i - 1)
+    }
+    for (v <- 0L until SUB) upperBound(bucket(v)) should be(v) // exact for small values
+  }
+
+  "Histogram" should "give percentiles within the bucket resolution" in {
+    val h = new Histogram
+    h.percentile(50) should be(0L)
+    for (v <- 1L to 10000L) h.record(v * 1000L)
+    h.count should be(10000L)
+    h.maxNanos should be(10000000L)
+    h.meanNanos should be(5000500.0 +- 1.0)
+    for (p <- Seq(1.0, 50.0, 90.0, 99.0, 100.0)) {
+      val exact = p * 100 * 1000
+      h.percentile(p).toDouble should (be >= exact and be <= exact * (1.0 + 1.0 / Histogram.SUB))
+    }
+  }
+
+  it should "count every record under contention" in {
+    val h = new Histogram
+    val threads = (0 until 8).map { t => new Thread {
+      override def run = for (i <- 0 until 100000) h.record(i)
+    }}
+    threads.foreach(_.start)
+    threads.foreach(_.join)
+    h.count should be(800000L)
+    h.snapshot.count should be(800000L)
+    h.maxNanos should be(99999L)
+  }
+
+  "Metrics" should "register metrics by name" in {
+    Metrics.counter("test.counter").inc
+    Metrics.counter("test.counter").add(2)
+    Metrics.counter("test.counter").count should be(3L)
+    Metrics.histogram("test.histogram").time { Thread.sleep(1) }
+    Metrics.histogram("test.histogram").count should be(1L)
+    a[IllegalArgumentException] should be thrownBy Metrics.histogram("test.counter")
+
+    var n = 1
+    Metrics.gauge("test.gauge")(n)
+    n = 2
+    val json = Metrics.toJson
+    json.fields("test.counter") should be(JsNumber(3))
+    json.fields("test.gauge") should be(JsNumber(2.0))
+    json.fields("test.histogram").asInstanceOf[JsObject].fields("count") should be(JsNumber(1))
+    log.info(Metrics.report)
+
+    Seq("test.counter", "test.histogram", "test.gauge").foreach(Metrics.remove)
+  }
+}
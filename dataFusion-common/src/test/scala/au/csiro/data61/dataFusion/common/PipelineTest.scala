@@ -0,0 +1,115 @@
+package au.csiro.data61.dataFusion.common
+
+import java.io.File
+import java.util.concurrent.CancellationException
+
+import scala.collection.mutable.ListBuffer
+import scala.io.Source
+
+import org.scalatest.{ FlatSpec, Matchers }
+
+import com.typesafe.scalalogging.Logger
+
+import Pipeline.{ Config, PipelineException }
+
+class PipelineTest extends FlatSpec with Matchers {
+  val log = Logger(getClass)
+  
+  def slowly(i: Int) = {
+    if (i % 7 == 0) Thread.sleep(1)
+    i
+  }
+
+  "Pipeline" should "preserve input order when ordered" in {
+    for (batchSize <- Seq(1, 3, 50)) {
+      val l = ListBuffer[Int]()
+      val conf = Config(4, ordered = true, batchSize = batchSize, logInterval = 0L)
+      val stats = Pipeline.run(Iterator.range(0, 1000), slowly, (i: Int) => l += i, conf)
+      l.toList should be((0 until 1000).toList)
+      stats.inCount.get should be(1000)
+      stats.outCount.get should be(1000)
+      stats.failCount.get should be(0)
+    }
+  }
+  
+  it should "output everything when unordered" in {
+    val l = ListBuffer[Int]()
+    val conf = Config(4, batchSize = 7, logInterval = 0L)
+    Pipeline.run(Iterator.range(0, 1000), slowly, (i: Int) => l += i, conf)
+    l.sorted.toList should be((0 until 1000).toList)
+  }
+  
+  it should "pass failures to the handler in order" in {
+    val l = ListBuffer[Int]()
+    val failed = ListBuffer[Int]()
+    val conf = Config(4, ordered = true, batchSize = 4, logInterval = 0L)
+    val stats = Pipeline.run(Iterator.range(0, 100), (i: Int) => if (i % 10 == 3) throw new IllegalArgumentException(s"bad $i") else i, (i: Int) => l += i, 
+        conf, (i: Int, e: Throwable) => failed += i)
+    failed.toList should be((0 until 100).filter(_ % 10 == 3).toList)
+    l.toList should be((0 until 100).filter(_ % 10 != 3).toList)
+    stats.failCount.get should be(10)
+  }
+  
+  it should "abort and throw on failure by default" in {
+    val l = ListBuffer[Int]()
+    val conf = Config(4, ordered = true, logInterval = 0L)
+    val e = intercept[PipelineException] {
+      Pipeline.run(Iterator.range(0, 100000), (i: Int) => if (i == 500) throw new IllegalArgumentException("bad") else i, (i: Int) => l += i, conf)
+    }
+    e.getCause shouldBe an[IllegalArgumentException]
+    l.toList should be((0 until 500).toList) // everything prior to the failure in input order
+  }
+  
+  it should "abort when the output throws" in {
+    val conf = Config(2, logInterval = 0L)
+    val e = intercept[PipelineException] {
+      Pipeline.run(Iterator.range(0, 100000), (i: Int) => i, (i: Int) => if (i == 10) throw new IllegalStateException("bad"), conf)
+    }
+    e.getCause shouldBe an[IllegalStateException]
+  }
+  
+  it should "only create the dead letter file when there is a failure" in {
+    val f = File.createTempFile("deadLetter", ".txt")
+    try {
+      val conf = Config(2, logInterval = 0L)
+      Pipeline.runWithDeadLetter(Iterator.range(0, 100), (i: Int) => i, (i: Int) => (), conf, Some(f), (i: Int) => i.toString)
+      f.exists should be(false)
+      Pipeline.runWithDeadLetter(Iterator.range(0, 100), (i: Int) => if (i % 10 == 3) throw new IllegalArgumentException(s"bad $i") else i, (i: Int) => (), conf, Some(f), (i: Int) => i.toString)
+      Source.fromFile(f).getLines.map(_.toInt).toList.sorted should be((0 until 100).filter(_ % 10 == 3).toList)
+    } finally f.delete
+  }
+  
+  "Pipeline stages" should "pass everything through in order with different numbers of workers" in {
+    val l = ListBuffer[Int]()
+    val s1 = Pipeline.start(Iterator.range(0, 1000), slowly, Config(4, ordered = true, batchSize = 3, logInterval = 0L, name = "s1"))
+    val s2 = Pipeline.start(s1.output, (i: Int) => slowly(i) * 2, Config(2, ordered = true, queueFactor = 1, logInterval = 0L, name = "s2"))
+    Pipeline.complete(Seq(s1, s2)) {
+      s2.output.foreach(l += _)
+    }
+    l.toList should be((0 until 1000).map(_ * 2).toList)
+    s1.join.outCount.get should be(1000)
+    s2.join.outCount.get should be(1000)
+  }
+  
+  it should "abort earlier stages and throw the first failure when a later stage fails" in {
+    val s1 = Pipeline.start(Iterator.range(0, 100000), (i: Int) => i, Config(2, logInterval = 0L, name = "s1"))
+    val s2 = Pipeline.start(s1.output, (i: Int) => if (i == 500) throw new IllegalArgumentException("bad") else i, Config(2, logInterval = 0L, name = "s2"))
+    val e = intercept[PipelineException] {
+      Pipeline.complete(Seq(s1, s2)) {
+        s2.output.foreach(_ => ())
+      }
+    }
+    e.getCause shouldBe an[IllegalArgumentException]
+    intercept[PipelineException](s1.join).getCause shouldBe a[CancellationException] // stopped early
+  }
+  
+  it should "abort the stages when the consumer fails" in {
+    val s1 = Pipeline.start(Iterator.range(0, 100000), (i: Int) => i, Config(2, logInterval = 0L, name = "s1"))
+    val e = intercept[IllegalStateException] {
+      Pipeline.complete(Seq(s1)) {
+        s1.output.foreach(i => if (i == 10) throw new IllegalStateException("bad"))
+      }
+    }
+    e.getMessage should be("bad")
+  }
+}
@@ -1,134 +1,230 @@
 package au.csiro.data61.dataFusion.db.service
 
+import scala.collection.JavaConverters._
 import scala.concurrent.{ ExecutionContext, Future }
 import scala.language.postfixOps
 
+import com.google.common.cache.{ CacheBuilder, CacheLoader, LoadingCache }
 import com.typesafe.config.Config
 import com.typesafe.scalalogging.Logger
 
+import akka.NotUsed
+import akka.http.scaladsl.common.EntityStreamingSupport
 import akka.http.scaladsl.marshallers.sprayjson.SprayJsonSupport._
 import akka.http.scaladsl.marshalling.{ ToResponseMarshallable, ToResponseMarshaller }
 import akka.http.scaladsl.model.{ StatusCode, StatusCodes }
 import akka.http.scaladsl.server.Directives._
+import akka.stream.scaladsl.Source
 import au.csiro.data61.dataFusion.common.Data, Data.JsonProtocol._
-import au.csiro.data61.dataFusion.common.Util
+import au.csiro.data61.dataFusion.common.{ Metrics, Util }
 import au.csiro.data61.dataFusion.db.Tables, Tables._
 import io.swagger.annotations.{ Api, ApiOperation, ApiResponse, ApiResponses }
-import javax.ws.rs.{ Path, PathParam }
+import javax.ws.rs.{ Consumes, Path, PathParam }
+import javax.ws.rs.core.MediaType
 
 // deleted by Eclipse > Source > Organize Imports
 // import io.swagger.annotations.ApiResponse
 
 object DbService {
-  
+
     // teach spray.json how to en/decode java.sql.Date
 //    val longFormat = implicitly[JsonFormat[Long]]
 //    implicit val sqlDateFormat = new JsonFormat[java.sql.Date] {
 //      override def read(json: JsValue): java.sql.Date = new java.sql.Date(longFormat.read(json))
 //      override def write(obj: java.sql.Date): JsValue = longFormat.write(obj.getTime)
 //    }
-    
+
+  case class Ids(ids: List[Long])
+  case class IdExtRef(extNameId: Long, extRef: Data.ExtRef)
+
   implicit val docRowCodec = jsonFormat4(DocRow)
   implicit val metaRowCodec = jsonFormat4(MetaRow)
   implicit val nerRowCodec = jsonFormat11(NerRow)
+  implicit val idsCodec = jsonFormat1(Ids)
+  implicit val idExtRefCodec = jsonFormat2(IdExtRef)
+
+  /** results are streamed as a JSON array */
+  implicit val jsonStreamingSupport = EntityStreamingSupport.json()
 }
 import DbService._
 
+/**
+ * Doc, Meta and Ner rows are streamed from the database to the response (a JSON array), rather than materialized,
+ * to handle docs with large content or many named entities. Lookups for several ids are made
+ * `dbService.maxIdsPerQuery` ids at a time.
+ * ExtRefs (from ExtName and ExtNameLink) go through a read-through cache of `dbService.extRefCacheSize` entries.
+ */
 @Api(value = "db", description = "read-only access to dataFusion database", produces = "application/json")
 @Path("")
 class DbService(conf: Config)(implicit val executionContext: ExecutionContext) {
   private val log = Logger(getClass)
-  
+
   val myTables = new Tables {
     val profile = Util.getObject[slick.jdbc.JdbcProfile](conf.getString("db.profile")) // e.g. slick.jdbc.H2Profile or slick.jdbc.PostgresProfile
   }
   import myTables._
   import myTables.profile.api._
-  
+
   val db = Database.forConfig("db", conf)
+  val maxIdsPerQuery = conf.getInt("dbService.maxIdsPerQuery")
+  val fetchSize = conf.getInt("dbService.fetchSize")
 
+  /**
+   * Stream the results of `q` for `ids`, maxIdsPerQuery ids at a time.
+   * Postgres only streams from a cursor (rather than fetching all rows) with a fetchSize in a transaction.
+   */
+  def stream[T](ids: Seq[Long])(q: Seq[Long] => DBIOAction[_, Streaming[T], Effect.Read]): Source[T, NotUsed] =
+    Source(ids.distinct.grouped(maxIdsPerQuery).toList).flatMapConcat { g =>
+      Source.fromPublisher(db.stream(q(g).withStatementParameters(fetchSize = fetchSize).transactionally))
+    }
+
+
+
+  def qDocByIds(ids: Seq[Long]) = Doc.filter(_.docId inSet ids).result
 
-  
-  val qDocById = {
-    def q(id: Rep[Long]) = Doc.filter(_.docId === id)
-    Compiled(q _)
-  }
-  
   @Path("doc/{id}")
   @ApiOperation(httpMethod = "GET", response = classOf[Array[DocRow]], responseContainer = "List", value = "Main Doc and embedded Docs")
-  def docById(@PathParam("id") id: Long): Future[Seq[DocRow]] = 
-    db.run(qDocById(id).result)
-      
+  def docById(@PathParam("id") id: Long): Source[DocRow, NotUsed] = docByIds(Ids(List(id)))
+
   def docByIdRoute =
     get { path("doc" / LongNumber) { id => complete {
       docById(id)
     }}}
 
-  
-  
-  val qMetaById = {
-    def q(id: Rep[Long]) = Meta.filter(_.docId === id)
-    Compiled(q _)
-  }
-  
+  @Path("docs")
+  @ApiOperation(httpMethod = "POST", response = classOf[Array[DocRow]], responseContainer = "List", value = "Main Docs and embedded Docs for several ids")
+  @Consumes(Array(MediaType.APPLICATION_JSON))
+  def docByIds(q: Ids): Source[DocRow, NotUsed] = stream(q.ids)(qDocByIds)
+
+  def docByIdsRoute =
+    post { path("docs") { entity(as[Ids]) { q => complete {
+      docByIds(q)
+    }}}}
+
+
+
+  def qMetaByIds(ids: Seq[Long]) = Meta.filter(_.docId inSet ids).result
+
   @Path("meta/{id}")
   @ApiOperation(httpMethod = "GET", response = classOf[Array[MetaRow]], responseContainer = "List", value = "Metadata for main Doc and embedded Docs")
-  def metaById(@PathParam("id") id: Long): Future[Seq[MetaRow]] = 
-    db.run(qMetaById(id).result)
-      
+  def metaById(@PathParam("id") id: Long): Source[MetaRow, NotUsed] = metaByIds(Ids(List(id)))
+
   def metaByIdRoute =
     get { path("meta" / LongNumber) { id => complete {
       metaById(id)
     }}}
 
-  
-  
-  val qNerById = {
-    def q(id: Rep[Long]) = Ner.filter(_.docId === id)
-    Compiled(q _)
-  }
-  
+  @Path("metas")
+  @ApiOperation(httpMethod = "POST", response = classOf[Array[MetaRow]], responseContainer = "List", value = "Metadata for main Docs and embedded Docs for several ids")
+  @Consumes(Array(MediaType.APPLICATION_JSON))
+  def metaByIds(q: Ids): Source[MetaRow, NotUsed] = stream(q.ids)(qMetaByIds)
+
+  def metaByIdsRoute =
+    post { path("metas") { entity(as[Ids]) { q => complete {
+      metaByIds(q)
+    }}}}
+
+
+
+  def qNerByIds(ids: Seq[Long]) = Ner.filter(_.docId inSet ids).result
+
   @Path("ner/{id}")
   @ApiOperation(httpMethod = "GET", response = classOf[Array[NerRow]], responseContainer = "List", value = "Named Entities for main Doc and embedded Docs")
-  def nerById(@PathParam("id") id: Long): Future[Seq[NerRow]] = 
-    db.run(qNerById(id).result)
-      
+  def nerById(@PathParam("id") id: Long): Source[NerRow, NotUsed] = nerByIds(Ids(List(id)))
+
   def nerByIdRoute =
     get { path("ner" / LongNumber) { id => complete {
       nerById(id)
     }}}
 
-  
-  
-  val qExtNameById = {
-    def q(id: Rep[Long]) = ExtName.filter(_.extNameId === id).map(_.name)
-    Compiled(q _)
+  @Path("ners")
+  @ApiOperation(httpMethod = "POST", response = classOf[Array[NerRow]], responseContainer = "List", value = "Named Entities for main Docs and embedded Docs for several ids")
+  @Consumes(Array(MediaType.APPLICATION_JSON))
+  def nerByIds(q: Ids): Source[NerRow, NotUsed] = stream(q.ids)(qNerByIds)
+
+  def nerByIdsRoute =
+    post { path("ners") { entity(as[Ids]) { q => complete {
+      nerByIds(q)
+    }}}}
+
+
+
+  /** name and ids for each extNameId, in one query */
+  def qExtRefByIds(ids: Seq[Long]) = ExtName.filter(_.extNameId inSet ids).joinLeft(ExtNameLink).on(_.extNameId === _.extNameId)
+    .map { case (n, l) => (n.extNameId, n.name, l.map(_.extRefId)) }.result
+
+  val extRefLoadLatency = Metrics.histogram("dbService.extRefLoad")
+
+  def loadExtRefs(ids: Seq[Long]): Future[Map[Long, Data.ExtRef]] = {
+    val t0 = System.nanoTime
+    Future.sequence(ids.grouped(maxIdsPerQuery).toList.map(g => db.run(qExtRefByIds(g)))).map { rs =>
+      extRefLoadLatency.record(System.nanoTime - t0)
+      rs.flatten.groupBy(_._1).map { case (id, rows) => id -> Data.ExtRef(rows.head._2, rows.flatMap(_._3).toList) }
+    }
   }
-  val qExtNameLinkById = {
-    def q(id: Rep[Long]) = ExtNameLink.filter(_.extNameId === id).map(_.extRefId)
-    Compiled(q _)
+
+  /**
+   * Read-through cache of extNameId -> ExtRef (None if there is no such extNameId).
+   * Values are Futures so that lookups don't block and concurrent lookups of an id share one query.
+   * The ids missing from a lookup of several ids are loaded with one query (per maxIdsPerQuery ids).
+   * Failed lookups are removed by `extRefs` (rather than here, where the entries aren't yet in the cache).
+   */
+  val extRefCache: LoadingCache[java.lang.Long, Future[Option[Data.ExtRef]]] = CacheBuilder.newBuilder.maximumSize(conf.getLong("dbService.extRefCacheSize")).recordStats.build(
+    new CacheLoader[java.lang.Long, Future[Option[Data.ExtRef]]] {
+      override def load(id: java.lang.Long) = loadAll(List(id).asJava).get(id)
+
+      override def loadAll(ids: java.lang.Iterable[_ <: java.lang.Long]) = {
+        val keys = ids.asScala.toList
+        val f = loadExtRefs(keys.map(_.longValue))
+        keys.map(k => k -> f.map(_.get(k))).toMap.asJava
+      }
+    }
+  )
+
+  Metrics.gauge("dbService.extRefCache.hitRate")(extRefCache.stats.hitRate)
+  Metrics.gauge("dbService.extRefCache.size")(extRefCache.size)
+
+  def extRefs(ids: Seq[Long]): Future[Seq[(Long, Option[Data.ExtRef])]] = {
+    val m = extRefCache.getAll(ids.distinct.map(Long.box).asJava).asScala
+    for ((id, f) <- m) f.failed.foreach { _ => extRefCache.asMap.remove(id, f) } // don't cache failures, now that getAll has stored them
+    Future.sequence(ids.map(id => m(id).map(id -> _)))
   }
-  
+
   @Path("extRef/{extNameId}")
   @ApiOperation(httpMethod = "GET", response = classOf[Data.ExtRef], value = "name and ids (from external system) associated with a Named Entity")
-  def extRefById(@PathParam("extNameId") id: Long) = {
-    val oRef = for {
-      onam <- db.run(qExtNameById(id).result.headOption)
-      ids <- db.run(qExtNameLinkById(id).result)
-    } yield onam.map(Data.ExtRef(_, ids.toList))
-    optOrElse(oRef, (StatusCodes.NotFound, ""))
-  }
+  def extRefById(@PathParam("extNameId") id: Long) = optOrElse(extRefs(List(id)).map(_.head._2), (StatusCodes.NotFound, ""))
 
   def extRefByIdRoute =
     get { path("extRef" / LongNumber) { id => complete {
       extRefById(id)
   }}}
 
-  
-  
+  @Path("extRefs")
+  @ApiOperation(httpMethod = "POST", response = classOf[Array[IdExtRef]], responseContainer = "List", value = "name and ids (from external system) for several extNameIds, omitting those not found")
+  @Consumes(Array(MediaType.APPLICATION_JSON))
+  def extRefByIds(q: Ids): Future[List[IdExtRef]] = extRefs(q.ids).map(_.flatMap { case (id, r) => r.map(IdExtRef(id, _)) }.toList)
+
+  def extRefByIdsRoute =
+    post { path("extRefs") { entity(as[Ids]) { q => complete {
+      extRefByIds(q)
+  }}}}
+
+
+
+  @Path("metrics")
+  @ApiOperation(httpMethod = "GET", response = classOf[String], value = "counters, gauges and latency histograms (in millis) since startup")
+  def metrics = Metrics.toJson
+
+  def metricsRoute =
+    get { path("metrics") { complete {
+      metrics
+  }}}
+
+
+
   /** if Some(a) marshall the a, else marshall the orElse */
   def optOrElse[A](x: Future[Option[A]], orElse: => (StatusCode, String))(implicit m: ToResponseMarshaller[A]): ToResponseMarshallable =
     x.map(_.map { s => ToResponseMarshallable(s) }.getOrElse(ToResponseMarshallable(orElse)) )
-        
-  val routes = docByIdRoute ~ metaByIdRoute ~ nerByIdRoute ~ extRefByIdRoute
+
+  val routes = docByIdRoute ~ metaByIdRoute ~ nerByIdRoute ~ extRefByIdRoute ~ docByIdsRoute ~ metaByIdsRoute ~ nerByIdsRoute ~ extRefByIdsRoute ~ metricsRoute
 }
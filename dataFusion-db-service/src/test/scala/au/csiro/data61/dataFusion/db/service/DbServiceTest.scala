@@ -0,0 +1,83 @@
+package au.csiro.data61.dataFusion.db.service
+
+import scala.concurrent.Await
+import scala.util.Try
+import scala.concurrent.duration.DurationInt
+
+import org.scalatest.{ BeforeAndAfterAll, FlatSpec, Matchers }
+import org.scalatest.concurrent.Eventually
+
+import com.typesafe.config.ConfigFactory
+import com.typesafe.scalalogging.Logger
+
+import akka.actor.ActorSystem
+import akka.stream.ActorMaterializer
+import akka.stream.scaladsl.{ Sink, Source }
+import au.csiro.data61.dataFusion.common.Data.{ Doc, ExtRef, Ner }
+import au.csiro.data61.dataFusion.common.Data.JsonProtocol._
+import au.csiro.data61.dataFusion.common.DocIO.JsonRecord
+import au.csiro.data61.dataFusion.db.{ BulkLoader, Tables }
+import DbService.Ids
+import spray.json.pimpAny
+
+class DbServiceTest extends FlatSpec with Matchers with BeforeAndAfterAll with Eventually {
+  val log = Logger(getClass)
+
+  implicit val system = ActorSystem("DbServiceTest")
+  implicit val exec = system.dispatcher
+  implicit val materializer = ActorMaterializer()
+
+  val url = "jdbc:h2:mem:dbService;DB_CLOSE_DELAY=-1"
+  val conf = ConfigFactory.parseString(s"""
+    db.url = "$url"
+    db.profile = "slick.jdbc.H2Profile"
+    db.driver = "org.h2.Driver"
+    dbService.maxIdsPerQuery = 2
+  """).withFallback(ConfigFactory.load)
+
+  def ner(i: Int) = Ner(0, 1, 0, 5, 1.0, s"name$i", "PERSON", "D61GAZ", Some(ExtRef(s"name$i", List(100 + i, 200 + i))))
+  val docs = (0 until 10).map(i => Doc(i, Some(s"content $i"), Map("k" -> s"v$i"), s"/path/$i", (0 to i % 3).map(ner).toList, List.empty))
+
+  val dbService = {
+    val tables = new Tables {
+      val profile = slick.jdbc.H2Profile
+    }
+    import tables.profile.api.Database
+    val db = Database.forURL(url, conf.getString("db.properties.user"), conf.getString("db.properties.password"), driver = "org.h2.Driver")
+    try BulkLoader.load(db, tables, docs.iterator.map(d => JsonRecord(d.toJson.compactPrint)), BulkLoader.Config(2, 2, 5, true))
+    finally db.close
+    new DbService(conf)
+  }
+
+  override def afterAll = {
+    dbService.db.close
+    system.terminate
+  }
+
+  def seq[T](s: Source[T, _]) = Await.result(s.runWith(Sink.seq), 10 seconds)
+
+  "DbService" should "stream rows for several ids" in {
+    seq(dbService.docById(3)).map(r => (r.docId, r.content)) should be(Seq((3L, Some("content 3"))))
+    seq(dbService.docByIds(Ids(List(1, 2, 3, 4, 5, 999, 1)))).map(_.docId).sorted should be(Seq(1, 2, 3, 4, 5)) // maxIdsPerQuery = 2
+    seq(dbService.metaByIds(Ids(List(7, 8)))).map(r => (r.docId, r.value)).toSet should be(Set((7L, "v7"), (8L, "v8")))
+    seq(dbService.nerByIds(Ids(List(2, 3)))).size should be(3 + 1)
+  }
+
+  it should "look up extRefs through the cache" in {
+    val id = seq(dbService.nerById(2)).filter(_.text == "name2").flatMap(_.extNameId).head
+    val r = Await.result(dbService.extRefByIds(Ids(List(id, 999))), 10 seconds)
+    r.map(_.extNameId) should be(List(id))
+    r.head.extRef.ids.toSet should be(Set(102L, 202L))
+    dbService.extRefCache.size should be(2) // including the id that was not found
+    Await.result(dbService.extRefs(List(999, id)), 10 seconds).map(_._2.isDefined) should be(Seq(false, true))
+    dbService.extRefCache.size should be(2)
+  }
+  
+  it should "not cache failed extRef lookups" in {
+    val noTables = new DbService(ConfigFactory.parseString("""db.url = "jdbc:h2:mem:dbServiceNoTables;DB_CLOSE_DELAY=-1"""").withFallback(conf))
+    try {
+      Try(Await.result(noTables.extRefs(List(1, 2, 3)), 10 seconds)).isFailure should be(true)
+      eventually { noTables.extRefCache.size should be(0) }
+    } finally noTables.db.close
+  }
+}
@@ -0,0 +1,200 @@
+package au.csiro.data61.dataFusion.db
+
+import java.io.StringReader
+import java.sql.{ Connection, Types }
+import java.util.concurrent.{ Executors, Semaphore, TimeUnit }
+import java.util.concurrent.atomic.AtomicReference
+
+import scala.collection.mutable.ArrayBuffer
+import scala.util.control.NonFatal
+
+import org.postgresql.PGConnection
+import org.postgresql.copy.CopyManager
+
+import com.typesafe.scalalogging.Logger
+
+import Tables.{ DocRow, ExtNameLinkRow, ExtNameRow, MetaRow, NerRow }
+import au.csiro.data61.dataFusion.common.{ DocIO, Pipeline, Timer }
+import au.csiro.data61.dataFusion.common.DocIO.DocRecord
+import resource.managed
+import slick.jdbc.JdbcBackend
+
+/**
+ * Bulk load of the tables from docs, for a large corpus:
+ *   - the tables are created without their foreign keys;
+ *   - `numWorkers` threads decode the docs and make their rows (allocating EXT_NAME ids with `ExtNameIds`);
+ *   - rows are written in batches of about `batchSize` rows (over all tables), with up to `numConnections` batches
+ *     being written at a time, each on its own connection in its own transaction, using COPY on Postgres
+ *     (if `pgCopy`) or else JDBC batch inserts;
+ *   - then the secondary indexes and foreign keys are created.
+ */
+object BulkLoader {
+  private val log = Logger(getClass)
+
+  case class Config(numWorkers: Int, numConnections: Int, batchSize: Int, pgCopy: Boolean)
+
+  /** created after the load, for the lookups done by dataFusion-db-service */
+  val indexes = Seq(
+    """create index "META_DOC_IDX" on "META" ("DOC_ID", "EMB_IDX")""",
+    """create index "NER_DOC_IDX" on "NER" ("DOC_ID", "EMB_IDX")""",
+    """create index "NER_EXT_NAME_IDX" on "NER" ("EXT_NAME_ID")""",
+    """create index "EXT_NAME_LINK_IDX" on "EXT_NAME_LINK" ("EXT_NAME_ID")"""
+  )
+
+  /**
+   * Writes rows of type R to a table.
+   * @param columns (name, java.sql.Types) in the order of `values`
+   * @param values column values for a row, with None for null
+   */
+  case class TableWriter[R](table: String, columns: Seq[(String, Int)], values: R => Seq[Any]) {
+    private def quoted(s: String) = "\"" + s + "\""
+    private val names = columns.map(c => quoted(c._1)).mkString(", ")
+    val insertSql = s"insert into ${quoted(table)} ($names) values (${columns.map(_ => "?").mkString(", ")})"
+    val copySql = s"copy ${quoted(table)} ($names) from stdin"
+
+    def insert(c: Connection, rows: Seq[R]): Unit = if (rows.nonEmpty) for (ps <- managed(c.prepareStatement(insertSql))) {
+      for (r <- rows) {
+        for (((v, (_, typ)), i) <- values(r).zip(columns).zipWithIndex) v match {
+          case None => ps.setNull(i + 1, typ)
+          case Some(x) => ps.setObject(i + 1, x)
+          case x => ps.setObject(i + 1, x)
+        }
+        ps.addBatch
+      }
+      ps.executeBatch
+    }
+
+    /** Postgres COPY text format */
+    def copy(cm: CopyManager, rows: Seq[R]): Unit = if (rows.nonEmpty) {
+      val b = new StringBuilder
+      for (r <- rows) {
+        for ((v, i) <- values(r).zipWithIndex) {
+          if (i > 0) b += '\t'
+          v match {
+            case None => b ++= "\\N"
+            case x => escape(b, (x match { case Some(y) => y case y => y }).toString)
+          }
+        }
+        b += '\n'
+      }
+      cm.copyIn(copySql, new StringReader(b.toString))
+    }
+
+    private def escape(b: StringBuilder, s: String) = for (ch <- s) ch match {
+      case '\\' => b ++= "\\\\"
+      case '\t' => b ++= "\\t"
+      case '\n' => b ++= "\\n"
+      case '\r' => b ++= "\\r"
+      case _ => b += ch
+    }
+  }
+
+  import Types.{ BIGINT, DOUBLE, INTEGER, VARCHAR }
+  val docWriter = TableWriter[DocRow]("DOC", Seq("DOC_ID" -> BIGINT, "EMB_IDX" -> INTEGER, "PATH" -> VARCHAR, "CONTENT" -> VARCHAR),
+    r => Seq(r.docId, r.embIdx, r.path, r.content))
+  val metaWriter = TableWriter[MetaRow]("META", Seq("DOC_ID" -> BIGINT, "EMB_IDX" -> INTEGER, "KEY" -> VARCHAR, "VALUE" -> VARCHAR),
+    r => Seq(r.docId, r.embIdx, r.key, r.value))
+  val extNameWriter = TableWriter[ExtNameRow]("EXT_NAME", Seq("EXT_NAME_ID" -> BIGINT, "NAME" -> VARCHAR, "TYP" -> VARCHAR),
+    r => Seq(r.extNameId, r.name, r.typ))
+  val extNameLinkWriter = TableWriter[ExtNameLinkRow]("EXT_NAME_LINK", Seq("EXT_NAME_ID" -> BIGINT, "EXT_REF_ID" -> BIGINT),
+    r => Seq(r.extNameId, r.extRefId))
+  val nerWriter = TableWriter[NerRow]("NER", Seq("DOC_ID" -> BIGINT, "EMB_IDX" -> INTEGER, "TEXT" -> VARCHAR, "TYP" -> VARCHAR, "IMPL" -> VARCHAR,
+    "SCORE" -> DOUBLE, "EXT_NAME_ID" -> BIGINT, "POS_STR" -> INTEGER, "POS_END" -> INTEGER, "OFF_STR" -> INTEGER, "OFF_END" -> INTEGER),
+    r => Seq(r.docId, r.embIdx, r.text, r.typ, r.impl, r.score, r.extNameId, r.posStr, r.posEnd, r.offStr, r.offEnd))
+
+  /** rows from many docs */
+  class Batch {
+    val docs = ArrayBuffer[DocRow]()
+    val metas = ArrayBuffer[MetaRow]()
+    val extNames = ArrayBuffer[ExtNameRow]()
+    val extNameLinks = ArrayBuffer[ExtNameLinkRow]()
+    val ners = ArrayBuffer[NerRow]()
+    var size = 0
+
+    def +=(r: DocRows) = {
+      docs ++= r.docs
+      metas ++= r.metas
+      extNames ++= r.extNames
+      extNameLinks ++= r.extNameLinks
+      ners ++= r.ners
+      size += r.size
+    }
+
+    def write(c: Connection, copy: Boolean) = {
+      val cm = if (copy && c.isWrapperFor(classOf[PGConnection])) Some(c.unwrap(classOf[PGConnection]).getCopyAPI) else None
+      def w[R](t: TableWriter[R], rows: Seq[R]) = cm.map(t.copy(_, rows)).getOrElse(t.insert(c, rows))
+      w(docWriter, docs)
+      w(metaWriter, metas)
+      w(extNameWriter, extNames)
+      w(extNameLinkWriter, extNameLinks)
+      w(nerWriter, ners)
+    }
+  }
+
+  def execute(db: JdbcBackend#DatabaseDef, sqls: Iterable[String]) = for (c <- managed(db.source.createConnection); s <- managed(c.createStatement)) {
+    for (sql <- sqls) {
+      log.info(s"execute: $sql")
+      s.execute(sql)
+    }
+  }
+
+  /**
+   * Create the tables (which must not exist), load them from `in` and create the indexes and foreign keys.
+   * @param tables for the table and foreign key DDL
+   * @return number of docs loaded
+   */
+  def load(db: JdbcBackend#DatabaseDef, tables: Tables, in: Iterator[DocRecord], conf: Config): Long = {
+    val timer = Timer()
+    val (foreignKeys, create) = tables.schema.createStatements.toList.partition(_.toLowerCase.contains(" foreign key"))
+    execute(db, create) // tables and primary keys
+
+    val ids = new ExtNameIds
+    val pool = Executors.newFixedThreadPool(conf.numConnections)
+    val inFlight = new Semaphore(conf.numConnections) // so that the Pipeline output thread waits for a free connection
+    val failure = new AtomicReference[Throwable]
+    def checkFailure = Option(failure.get).foreach(e => throw e)
+
+    def submit(b: Batch) = {
+      inFlight.acquire
+      pool.execute(() => try {
+        for (c <- managed(db.source.createConnection)) {
+          c.setAutoCommit(false)
+          b.write(c, conf.pgCopy)
+          c.commit
+        }
+      } catch {
+        case e: Throwable =>
+          failure.compareAndSet(null, e) // fatal errors too, so that load fails rather than succeeding with batches missing
+          if (!NonFatal(e)) throw e
+      } finally inFlight.release)
+    }
+
+    var batch = new Batch
+    val work = (r: DocRecord) => DocRows(r.doc, ids)
+    val out = (r: DocRows) => {
+      batch += r
+      if (batch.size >= conf.batchSize) {
+        checkFailure
+        submit(batch)
+        batch = new Batch
+      }
+    }
+    val stats = try {
+      val stats = Pipeline.run(in, work, out, Pipeline.Config(conf.numWorkers, batchSize = 10, name = "bulkLoad"))
+      if (batch.size > 0) submit(batch)
+      stats
+    } finally {
+      pool.shutdown
+      pool.awaitTermination(Long.MaxValue, TimeUnit.DAYS)
+    }
+    checkFailure
+    log.info(s"load: loaded ${stats.outCount.get} docs in ${stats.elapsedSecs} secs")
+
+    execute(db, indexes ++ foreignKeys)
+    timer.stop
+    log.info(s"load: complete, including DDL and indexes, in ${timer.elapsedSecs} secs")
+    stats.outCount.get
+  }
+
+  def load(db: JdbcBackend#DatabaseDef, tables: Tables, conf: Config): Long = load(db, tables, DocIO.records(System.in), conf)
+}
@@ -0,0 +1,67 @@
+package au.csiro.data61.dataFusion.db
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+
+import Tables.{ DocRow, ExtNameLinkRow, ExtNameRow, MetaRow, NerRow }
+import au.csiro.data61.dataFusion.common.Data
+
+/**
+ * Thread-safe allocation of EXT_NAME ids for (name, typ).
+ */
+class ExtNameIds {
+  private val ids = new ConcurrentHashMap[(String, String), java.lang.Long]
+  private val last = new AtomicLong
+
+  /** @return (id, true if allocated by this call) */
+  def id(name: String, typ: String): (Long, Boolean) = {
+    var allocated = false
+    val id = ids.computeIfAbsent((name, typ), _ => {
+      allocated = true
+      last.incrementAndGet
+    })
+    (id, allocated)
+  }
+
+  def get(name: String, typ: String): Option[Long] = Option(ids.get((name, typ))).map(_.longValue)
+}
+
+/**
+ * The rows for a Doc. An ExtNameRow (and its ExtNameLinkRows) is only included for the first Doc to reference it.
+ */
+case class DocRows(docs: Seq[DocRow], metas: Seq[MetaRow], extNames: Seq[ExtNameRow], extNameLinks: Seq[ExtNameLinkRow], ners: Seq[NerRow]) {
+  def size = docs.size + metas.size + extNames.size + extNameLinks.size + ners.size
+}
+
+object DocRows {
+  def apply(d: Data.Doc, ids: ExtNameIds): DocRows = {
+    val ners = d.ner.map((Data.EMB_IDX_MAIN, _)) ++ d.embedded.zipWithIndex.flatMap { case (e, embIdx) => e.ner.map((embIdx, _)) }
+
+    val newExtNames = for {
+      (_, n) <- ners
+      r <- n.extRef
+      (id, allocated) = ids.id(r.name, n.typ)
+      if allocated
+    } yield (ExtNameRow(id, r.name, n.typ), r.ids.map(ExtNameLinkRow(id, _)))
+
+    def extNameId(n: Data.Ner) = n.extRef.flatMap { r => ids.get(r.name, n.typ) }
+
+    DocRows(
+      DocRow(d.id, Data.EMB_IDX_MAIN, Some(d.path), d.content)
+      +: d.embedded.zipWithIndex.map { case (e, embIdx) =>
+        DocRow(d.id, embIdx, None, e.content)
+      },
+
+      d.meta.map { case (k, v) => MetaRow(d.id, Data.EMB_IDX_MAIN, k, v) }.toSeq
+      ++ d.embedded.zipWithIndex.flatMap { case (e, embIdx) =>
+        e.meta.map { case (k, v) => MetaRow(d.id, embIdx, k, v) }
+      },
+
+      newExtNames.map(_._1),
+
+      newExtNames.flatMap(_._2),
+
+      ners.map { case (embIdx, n) => NerRow(d.id, embIdx, n.text, n.typ, n.impl, n.score, extNameId(n), n.posStr, n.posEnd, n.offStr, n.offEnd) }
+    )
+  }
+}
@@ -1,20 +1,15 @@
 package au.csiro.data61.dataFusion.db
 
-import scala.collection.mutable
 import scala.concurrent.Await
 import scala.concurrent.duration.DurationInt
-import scala.io.Source
 import scala.language.{ implicitConversions, postfixOps }
 
 import com.typesafe.config.{ ConfigFactory, ConfigValueFactory }
 import com.typesafe.scalalogging.Logger
 
-import Tables.{ DocRow, ExtNameLinkRow, ExtNameRow, MetaRow, NerRow }
 import au.csiro.data61.dataFusion.common.Data
-import au.csiro.data61.dataFusion.common.Data.JsonProtocol.docFormat
-import au.csiro.data61.dataFusion.common.Util
+import au.csiro.data61.dataFusion.common.{ DocIO, Util }
 import resource.managed
-import spray.json.pimpString
 
 
 object Main {
@@ -22,8 +17,8 @@ object Main {
   val conf = ConfigFactory.load
   def cg(k: String) = conf.getString(k)
   
-  case class CliOption(drop: Boolean, create: Boolean, load: Boolean, slickGen: Boolean, dburl: String, profile: String, driver: String, user: String, password: String)
-  val defaultCliOption = CliOption(false, false, false, false, cg("db.url"), cg("db.profile"), cg("db.driver"), cg("db.properties.user"), cg("db.properties.password"))
+  case class CliOption(drop: Boolean, create: Boolean, load: Boolean, slickGen: Boolean, dburl: String, profile: String, driver: String, user: String, password: String, bulkLoad: Boolean, numWorkers: Int, numConnections: Int, batchSize: Int, pgCopy: Boolean)
+  val defaultCliOption = CliOption(false, false, false, false, cg("db.url"), cg("db.profile"), cg("db.driver"), cg("db.properties.user"), cg("db.properties.password"), false, Runtime.getRuntime.availableProcessors, 4, 10000, true)
 
   def main(args: Array[String]): Unit = {
      val parser = new scopt.OptionParser[CliOption]("db") {
@@ -37,7 +32,28 @@ object Main {
       } text (s"Create database schema, default ${defaultCliOption.create}")
       opt[Unit]("load") action { (_, c) =>
         c.copy(load = true)
-      } text (s"Drop and recreate database schema and load tables from JSON on stdin, default ${defaultCliOption.load}")
+      } text (s"Drop and recreate database schema and load tables from JSON (or binary, see dataFusion-common DocIO) docs on stdin, default ${defaultCliOption.load}")
+      opt[Unit]("bulkLoad") action { (_, c) =>
+        c.copy(bulkLoad = true)
+      } text (s"Create database schema and load tables from JSON (or binary) docs on stdin in parallel, creating indexes and foreign keys after the load (use with --drop to replace existing tables), default ${defaultCliOption.bulkLoad}")
+      opt[Int]("numWorkers") action { (v, c) =>
+        c.copy(numWorkers = v)
+      } text (s"number of worker threads decoding docs for --bulkLoad, default ${defaultCliOption.numWorkers}")
+      opt[Int]("numConnections") action { (v, c) =>
+        c.copy(numConnections = v)
+      } validate { v =>
+        if (v > 0) success
+        else failure("numConnections must be positive")
+      } text (s"number of database connections writing batches for --bulkLoad, default ${defaultCliOption.numConnections}")
+      opt[Int]("batchSize") action { (v, c) =>
+        c.copy(batchSize = v)
+      } validate { v =>
+        if (v > 0) success
+        else failure("batchSize must be positive")
+      } text (s"number of rows (over all tables) written in a transaction for --bulkLoad, default ${defaultCliOption.batchSize}")
+      opt[Boolean]("pgCopy") action { (v, c) =>
+        c.copy(pgCopy = v)
+      } text (s"use COPY rather than JDBC batch inserts for --bulkLoad on Postgres, default ${defaultCliOption.pgCopy}")
       opt[Unit]("slickGen") action { (_, c) =>
         c.copy(slickGen = true)
       } text (s"Create Slick binding (Tables.scala) from existing database tables, default ${defaultCliOption.slickGen}")
@@ -57,13 +73,17 @@ object Main {
         c.copy(password = v)
       } text (s"database user password, default ${defaultCliOption.password}")
       help("help") text ("prints this usage text")
+      checkConfig { c =>
+        if (c.bulkLoad && (c.create || c.load)) failure("--bulkLoad creates the schema and loads it, so don't use it with --create or --load")
+        else success
+      }
     }
     for (c <- parser.parse(args, defaultCliOption)) {
       log.info(s"CliOption: $c}")
       if (c.slickGen) {
         slick.codegen.SourceCodeGenerator.main(Array(c.profile, c.driver, c.dburl, "target/generated", "au.csiro.data61.dataFusion.db", c.user, c.password))
         log.info("Slick binding generated at target/generated/au/csiro/data61/dataFusion/db/Tables.scala")
-      } else if (c.drop || c.create || c.load) {
+      } else if (c.drop || c.create || c.load || c.bulkLoad) {
         dbStuff(c)
         log.info("dbStuff() complete")
       }
@@ -86,69 +106,29 @@ object Main {
       if (c.drop) Await.result(db.run(schema.drop), 1 minute)
       if (c.create) Await.result(db.run(schema.create), 1 minute)
       if (c.load) doLoad
+      if (c.bulkLoad) BulkLoader.load(db, myTables, BulkLoader.Config(c.numWorkers, c.numConnections, c.batchSize, c.pgCopy))
     }
   }
   
-  // (name, typ) -> extNameId
-  val idMap = mutable.HashMap[(String, String), Long]()
+  val extNameIds = new ExtNameIds
   
-  var _id = 0L
-  def nextId = {
-    _id += 1L
-    _id
-  }
-    
   def dbDocAction(d: Data.Doc)(implicit db: Database) = {
-    val (extNameRows, extNameLinkRows) = {
-      val x = for {
-        n <- d.ner ++ d.embedded.flatMap { e => e.ner }
-        r <- n.extRef
-        k = (r.name, n.typ)
-        _ <- Some(()) if !idMap.contains(k)
-        id = nextId
-        _ = idMap += k -> id
-      } yield (ExtNameRow(id, r.name, n.typ), r.ids.map(ExtNameLinkRow(id, _)) )
-      (x.map(_._1), x.flatMap(_._2))
-    }
-    
-    def extNameId(n: Data.Ner) = n.extRef.flatMap { r => idMap.get((r.name, n.typ)) }
-    
+    val r = DocRows(d, extNameIds)
     DBIO.seq(
-        
-      Doc ++= (
-        DocRow(d.id, Data.EMB_IDX_MAIN, Some(d.path), d.content)
-        +: d.embedded.zipWithIndex.map { case (e, embIdx) => 
-          DocRow(d.id, embIdx, None, e.content)
-        }
-      ),
-    
-      Meta ++= (
-        d.meta.map { case (k, v) => MetaRow(d.id, Data.EMB_IDX_MAIN, k, v) }
-        ++ d.embedded.zipWithIndex.flatMap { case (e, embIdx) => 
-          e.meta.map { case (k, v) => MetaRow(d.id, embIdx, k, v) }
-        }
-      ),
-      
-      ExtName ++= extNameRows,
-      
-      ExtNameLink ++= extNameLinkRows,
-      
-      Ner ++= (
-        d.ner.map { n => NerRow(d.id, Data.EMB_IDX_MAIN, n.text, n.typ, n.impl, n.score, extNameId(n), n.posStr, n.posEnd, n.offStr, n.offEnd) }
-        ++ d.embedded.zipWithIndex.flatMap { case (e, embIdx) => 
-          e.ner.map { n => NerRow(d.id, embIdx, n.text, n.typ, n.impl, n.score, extNameId(n), n.posStr, n.posEnd, n.offStr, n.offEnd) }
-        }
-      )
-      
+      Doc ++= r.docs,
+      Meta ++= r.metas,
+      ExtName ++= r.extNames,
+      ExtNameLink ++= r.extNameLinks,
+      Ner ++= r.ners
     )
   }
   
   def doLoad(implicit db: Database) = {
     var n = 0
-    Source.fromInputStream(System.in, "UTF-8").getLines.map { json =>
+    DocIO.docs(System.in).map { d =>
       n += 1
       if (n % 100 == 0) log.info(s"doLoad: done $n docs")
-      dbDocAction(json.parseJson.convertTo[Data.Doc])
+      dbDocAction(d)
     }
     .grouped(10)
     .foreach { s => 
@@ -0,0 +1,56 @@
+package au.csiro.data61.dataFusion.db
+
+import org.scalatest.{ FlatSpec, Matchers }
+
+import com.typesafe.scalalogging.Logger
+
+import au.csiro.data61.dataFusion.common.Data.{ Doc, Embedded, ExtRef, Ner }
+import au.csiro.data61.dataFusion.common.Data.JsonProtocol._
+import au.csiro.data61.dataFusion.common.DocIO.JsonRecord
+import resource.managed
+import spray.json.pimpAny
+
+class BulkLoaderTest extends FlatSpec with Matchers {
+  val log = Logger(getClass)
+
+  val tables = new Tables {
+    val profile = slick.jdbc.H2Profile
+  }
+  import tables.profile.api._
+
+  def ner(i: Int) = Ner(i, i + 1, 10 * i, 10 * i + 5, 1.0, s"name${i % 7}", if (i % 2 == 0) "PERSON" else "ORGANIZATION", "D61GAZ",
+    if (i % 3 == 0) None else Some(ExtRef(s"name${i % 7}", List(i % 7, 100 + i % 7))))
+  val docs = (0 until 50).map { i =>
+    Doc(i, Some(s"content\t$i"), Map("k" -> s"v$i"), s"/path/$i", (0 until i % 5).map(ner).toList,
+      List(Embedded(Some("embedded"), Map("k2" -> "v2"), List(ner(i)))))
+  }
+
+  "BulkLoader" should "load docs with several connections" in {
+    for (db <- managed(Database.forURL("jdbc:h2:mem:bulkLoad;DB_CLOSE_DELAY=-1", driver = "org.h2.Driver"))) {
+      val n = BulkLoader.load(db, tables, docs.iterator.map(d => JsonRecord(d.toJson.compactPrint)), BulkLoader.Config(4, 3, 20, true))
+      n should be(docs.size)
+
+      for (c <- managed(db.source.createConnection); s <- managed(c.createStatement)) {
+        def query(sql: String) = {
+          val rs = s.executeQuery(sql)
+          Iterator.continually(rs).takeWhile(_.next).map(_.getString(1)).toList
+        }
+        def count(table: String) = query(s"""select count(*) from "$table"""").head.toInt
+
+        count("DOC") should be(2 * docs.size)
+        count("META") should be(2 * docs.size)
+        count("NER") should be(docs.map(d => d.ner.size + d.embedded.map(_.ner.size).sum).sum)
+        // (name, typ) pairs with an extRef get a unique id
+        val extNames = docs.flatMap(d => d.ner ++ d.embedded.flatMap(_.ner)).flatMap(n => n.extRef.map(r => (r.name, n.typ))).toSet
+        count("EXT_NAME") should be(extNames.size)
+        query("""select count(distinct "EXT_NAME_ID") from "EXT_NAME"""").head.toInt should be(extNames.size)
+        count("EXT_NAME_LINK") should be(2 * extNames.size)
+        query("""select count(*) from "NER" n left join "EXT_NAME" e on n."EXT_NAME_ID" = e."EXT_NAME_ID" where n."EXT_NAME_ID" is not null and (e."EXT_NAME_ID" is null or e."NAME" <> n."TEXT" or e."TYP" <> n."TYP")""").head.toInt should be(0)
+        query("""select "CONTENT" from "DOC" where "DOC_ID" = 3 and "EMB_IDX" = -1""") should be(List("content\t3"))
+
+        query("""select "INDEX_NAME" from INFORMATION_SCHEMA.INDEXES where "INDEX_NAME" = 'NER_EXT_NAME_IDX'""") should not be empty
+        query("""select "CONSTRAINT_NAME" from INFORMATION_SCHEMA.CONSTRAINTS where "CONSTRAINT_TYPE" = 'REFERENTIAL'""").size should be(2)
+      }
+    }
+  }
+}
@@ -0,0 +1,401 @@
+package au.csiro.data61.dataFusion.graph.service
+
+import java.io.{ BufferedOutputStream, ByteArrayOutputStream, DataOutputStream, File, FileOutputStream, OutputStream, RandomAccessFile }
+import java.nio.{ ByteBuffer, DoubleBuffer, IntBuffer, LongBuffer }
+import java.nio.channels.FileChannel.MapMode
+import java.nio.charset.StandardCharsets.UTF_8
+
+import scala.collection.mutable.{ ArrayBuffer, ArrayBuilder }
+import scala.io.Source
+
+import com.typesafe.scalalogging.Logger
+
+import au.csiro.data61.dataFusion.common.Data.{ Edge, ExtRef, Node, T_ORGANIZATION, T_PERSON, WeightMap }
+import au.csiro.data61.dataFusion.common.Data.JsonProtocol.{ edgeFormat, nodeFormat }
+import spray.json.pimpString
+
+/**
+ * Binary snapshot of the proximity network (node.json and edge.json) in compressed sparse row (CSR) form.
+ *
+ * Nodes are indexed 0 until numNodes in nodeId order and edges 0 until numEdges in edge.json order.
+ * All data is in primitive arrays (sections) which are memory mapped by `GraphSnapshot.map`, so startup is fast and
+ * the heap use is small. Sections:
+ *   - meta: numNodes, numEdges and the dictionaries of collection names, node typs and edge typs;
+ *   - per node: nodeId, score, typ, extRef.name (offsets into UTF-8 bytes), extRef.ids (offsets into longs);
+ *   - per edge: source and target node index, typ, total weight and count over all collections;
+ *   - per edge and collection (offsets by edge): collection, weight, count;
+ *   - adjacency: out edges by source node and in edges by target node (offsets by node);
+ *   - extRef.id -> node index, sorted by id, for PERSON|ORGANIZATION nodes and for the other nodes.
+ * Each section is mapped separately so must be less than 2GB.
+ */
+object GraphSnapshot {
+  private val log = Logger(getClass)
+
+  val MAGIC = 0x44464753 // DFGS
+  val VERSION = 1
+
+  val SECTIONS = IndexedSeq(
+    "meta",
+    "nodeId", "nodeScore", "nodeTyp", "nameOff", "name", "idsOff", "ids",
+    "edgeSource", "edgeTarget", "edgeTyp", "edgeWeight", "edgeCount",
+    "wOff", "wColl", "wWeight", "wCount",
+    "outOff", "outEdges", "inOff", "inEdges",
+    "perOrgExtIds", "perOrgExtNode", "otherExtIds", "otherExtNode"
+  )
+  val HEADER_BYTES = 12 + 16 * SECTIONS.size
+
+  // exclude T_PERSON2 and D61EMAIL FROM|TO etc. nodes
+  // user can choose network restricted to these nodes or not
+  def perOrgTyp(typ: String) = typ == T_PERSON || typ == T_ORGANIZATION
+
+  class Dict {
+    val names = ArrayBuffer[String]()
+    private val ids = collection.mutable.Map[String, Int]()
+    def apply(s: String) = ids.getOrElseUpdate(s, { names += s; names.size - 1 })
+  }
+
+  /** primitive arrays in SECTIONS order (after meta) */
+  case class Arrays(numNodes: Int, numEdges: Int, collections: IndexedSeq[String], nodeTyps: IndexedSeq[String], edgeTyps: IndexedSeq[String], sections: IndexedSeq[AnyRef])
+
+  /** offsets from `count` (of length n) for CSR, with n + 1 elements */
+  def offsets(count: Array[Int]) = {
+    val off = new Array[Int](count.length + 1)
+    for (i <- 0 until count.length) off(i + 1) = off(i) + count(i)
+    off
+  }
+
+  /** indices of elements grouped by key, in index order within each key */
+  def csr(keys: Array[Int], numKeys: Int): (Array[Int], Array[Int]) = {
+    val count = new Array[Int](numKeys)
+    keys.foreach(k => count(k) += 1)
+    val off = offsets(count)
+    val next = java.util.Arrays.copyOf(off, numKeys)
+    val vals = new Array[Int](keys.length)
+    for (i <- 0 until keys.length) {
+      val k = keys(i)
+      vals(next(k)) = i
+      next(k) += 1
+    }
+    (off, vals)
+  }
+
+  /** build from node.json and edge.json (each one JSON object per line) */
+  def fromJson(nodeSource: Source, edgeSource: Source): Arrays = {
+    val nodes = nodeSource.getLines.map(_.parseJson.convertTo[Node]).toArray.sortBy(_.nodeId)
+    val numNodes = nodes.length
+    log.info(s"fromJson: loaded $numNodes nodes")
+    val nodeId = nodes.map(_.nodeId)
+    def nodeIdx(id: Int) = {
+      val i = java.util.Arrays.binarySearch(nodeId, id)
+      if (i < 0) throw new NoSuchElementException(s"edge references unknown nodeId $id")
+      i
+    }
+    val nodeTyps = new Dict
+    val names = nodes.map(_.extRef.name.getBytes(UTF_8))
+    val idsOff = offsets(nodes.map(_.extRef.ids.size))
+    val sections1 = IndexedSeq(
+      nodeId,
+      nodes.map(_.score),
+      nodes.map(n => nodeTyps(n.typ).toByte),
+      offsets(names.map(_.length)),
+      names.flatten,
+      idsOff,
+      nodes.flatMap(_.extRef.ids)
+    )
+
+    val collections = new Dict
+    val edgeTyps = new Dict
+    val (src, tgt, typ, weight, count) = (new ArrayBuilder.ofInt, new ArrayBuilder.ofInt, new ArrayBuilder.ofByte, new ArrayBuilder.ofDouble, new ArrayBuilder.ofInt)
+    val (wNum, wColl, wWeight, wCount) = (new ArrayBuilder.ofInt, new ArrayBuilder.ofInt, new ArrayBuilder.ofDouble, new ArrayBuilder.ofInt)
+    var numEdges = 0
+    for (json <- edgeSource.getLines) {
+      val e = json.parseJson.convertTo[Edge]
+      src += nodeIdx(e.source)
+      tgt += nodeIdx(e.target)
+      typ += edgeTyps(e.typ).toByte
+      var (w, c) = (0.0, 0)
+      for ((k, (w1, c1)) <- e.weights) {
+        wColl += collections(k)
+        wWeight += w1
+        wCount += c1
+        w += w1
+        c += c1
+      }
+      weight += w
+      count += c
+      wNum += e.weights.size
+      numEdges += 1
+    }
+    log.info(s"fromJson: loaded $numEdges edges")
+    val (source, target) = (src.result, tgt.result)
+    val (outOff, outEdges) = csr(source, numNodes)
+    val (inOff, inEdges) = csr(target, numNodes)
+
+    // extRef.id -> node index, a many to one mapping, the last node in nodeId order wins
+    def extIdx(pred: String => Boolean) = {
+      val pairs = for {
+        i <- 0 until numNodes if pred(nodes(i).typ)
+        id <- nodes(i).extRef.ids
+      } yield (id, i)
+      val sorted = pairs.sortBy(_._1) // stable
+      val last = sorted.indices.filter(j => j + 1 == sorted.size || sorted(j + 1)._1 != sorted(j)._1).map(sorted)
+      (last.map(_._1).toArray, last.map(_._2).toArray)
+    }
+    val (perOrgIds, perOrgNode) = extIdx(perOrgTyp)
+    val (otherIds, otherNode) = extIdx(t => !perOrgTyp(t))
+
+    val sections2 = IndexedSeq(
+      source, target, typ.result, weight.result, count.result,
+      offsets(wNum.result), wColl.result, wWeight.result, wCount.result,
+      outOff, outEdges, inOff, inEdges,
+      perOrgIds, perOrgNode, otherIds, otherNode
+    )
+    Arrays(numNodes, numEdges, collections.names.toIndexedSeq, nodeTyps.names.toIndexedSeq, edgeTyps.names.toIndexedSeq, sections1 ++ sections2)
+  }
+
+  def meta(a: Arrays): Array[Byte] = {
+    val b = new ByteArrayOutputStream
+    val o = new DataOutputStream(b)
+    o.writeInt(a.numNodes)
+    o.writeInt(a.numEdges)
+    for (d <- Seq(a.collections, a.nodeTyps, a.edgeTyps)) {
+      o.writeInt(d.size)
+      for (x <- d) {
+        val bytes = x.getBytes(UTF_8)
+        o.writeInt(bytes.length)
+        o.write(bytes)
+      }
+    }
+    o.close
+    b.toByteArray
+  }
+
+  def byteLength(x: AnyRef): Long = x match {
+    case a: Array[Byte] => a.length
+    case a: Array[Int] => 4L * a.length
+    case a: Array[Long] => 8L * a.length
+    case a: Array[Double] => 8L * a.length
+  }
+
+  def write(a: Arrays, out: OutputStream): Unit = {
+    val sections = meta(a) +: a.sections
+    require(sections.size == SECTIONS.size)
+    val o = new DataOutputStream(new BufferedOutputStream(out, 1 << 16))
+    o.writeInt(MAGIC)
+    o.writeInt(VERSION)
+    o.writeInt(sections.size)
+    var off = HEADER_BYTES.toLong
+    for (s <- sections) {
+      val len = byteLength(s)
+      o.writeLong(off)
+      o.writeLong(len)
+      off += len
+    }
+    for (s <- sections) s match {
+      case x: Array[Byte] => o.write(x)
+      case x: Array[Int] => x.foreach(o.writeInt)
+      case x: Array[Long] => x.foreach(o.writeLong)
+      case x: Array[Double] => x.foreach(o.writeDouble)
+    }
+    o.flush
+  }
+
+  /** convert node.json and edge.json to a snapshot file */
+  def convert(nodePath: File, edgePath: File, snapshot: File): Unit = {
+    val (ns, es) = (Source.fromFile(nodePath, "UTF-8"), Source.fromFile(edgePath, "UTF-8"))
+    val a = try fromJson(ns, es) finally { ns.close; es.close }
+    val tmp = new File(snapshot.getPath + ".tmp")
+    val out = new FileOutputStream(tmp)
+    try write(a, out) finally out.close
+    if (!tmp.renameTo(snapshot)) throw new IllegalStateException(s"can't rename $tmp to $snapshot")
+    log.info(s"convert: wrote ${a.numNodes} nodes and ${a.numEdges} edges to $snapshot")
+  }
+
+  /** sections from the header of a snapshot */
+  def sections(header: ByteBuffer, section: (Long, Long) => ByteBuffer): IndexedSeq[ByteBuffer] = {
+    require(header.getInt(0) == MAGIC && header.getInt(4) == VERSION, "not a graph snapshot or wrong version")
+    require(header.getInt(8) == SECTIONS.size)
+    for (i <- SECTIONS.indices) yield {
+      val p = 12 + 16 * i
+      val len = header.getLong(p + 8)
+      require(len <= Int.MaxValue, s"section ${SECTIONS(i)} is too large to map")
+      section(header.getLong(p), len)
+    }
+  }
+
+  /** memory map a snapshot file */
+  def map(f: File): CsrGraph = {
+    val raf = new RandomAccessFile(f, "r")
+    try {
+      val ch = raf.getChannel
+      val secs = sections(ch.map(MapMode.READ_ONLY, 0, HEADER_BYTES), (off, len) => ch.map(MapMode.READ_ONLY, off, len))
+      log.info(s"map: mapped $f")
+      new CsrGraph(secs)
+    } finally raf.close // the mappings remain valid
+  }
+
+  /** a section as a buffer in the same (big endian) layout as in a snapshot file, wrapping rather than copying bytes */
+  def buffer(name: String, x: AnyRef): ByteBuffer = {
+    val len = byteLength(x)
+    require(len <= Int.MaxValue, s"section $name is too large for a buffer")
+    def alloc = ByteBuffer.allocate(len.toInt)
+    x match {
+      case a: Array[Byte] => ByteBuffer.wrap(a)
+      case a: Array[Int] => val b = alloc; b.asIntBuffer.put(a); b
+      case a: Array[Long] => val b = alloc; b.asLongBuffer.put(a); b
+      case a: Array[Double] => val b = alloc; b.asDoubleBuffer.put(a); b
+    }
+  }
+
+  /** a snapshot on the heap, without an intermediate file, with each section in its own exact size buffer */
+  def heap(a: Arrays): CsrGraph = {
+    val sections = meta(a) +: a.sections
+    require(sections.size == SECTIONS.size)
+    new CsrGraph(for ((name, s) <- SECTIONS zip sections) yield buffer(name, s))
+  }
+}
+
+/**
+ * Read only view of a graph snapshot. Thread safe (only absolute gets are used on the buffers).
+ * Node and edge arguments are indices (0 until numNodes/numEdges) not nodeIds.
+ */
+class CsrGraph(buffers: IndexedSeq[ByteBuffer]) {
+  import GraphSnapshot.{ SECTIONS, perOrgTyp }
+
+  private def buf(name: String) = buffers(SECTIONS.indexOf(name))
+  private def ints(name: String): IntBuffer = buf(name).asIntBuffer
+  private def longs(name: String): LongBuffer = buf(name).asLongBuffer
+  private def doubles(name: String): DoubleBuffer = buf(name).asDoubleBuffer
+
+  val (numNodes, numEdges, collections, nodeTyps, edgeTyps) = {
+    val b = buf("meta").duplicate
+    def dict = IndexedSeq.fill(b.getInt) {
+      val a = new Array[Byte](b.getInt)
+      b.get(a)
+      new String(a, UTF_8)
+    }
+    (b.getInt, b.getInt, dict, dict, dict)
+  }
+  private val collectionIds = collections.zipWithIndex.toMap
+
+  private val nodeIdBuf = ints("nodeId")
+  private val nodeScore = doubles("nodeScore")
+  private val nodeTyp = buf("nodeTyp")
+  private val nameOff = ints("nameOff")
+  private val name = buf("name")
+  private val idsOff = ints("idsOff")
+  private val ids = longs("ids")
+  private val edgeSource = ints("edgeSource")
+  private val edgeTarget = ints("edgeTarget")
+  private val edgeTypBuf = buf("edgeTyp")
+  private val edgeWeight = doubles("edgeWeight")
+  private val edgeCount = ints("edgeCount")
+  private val wOff = ints("wOff")
+  private val wColl = ints("wColl")
+  private val wWeight = doubles("wWeight")
+  private val wCount = ints("wCount")
+  private val outOff = ints("outOff")
+  private val outEdges = ints("outEdges")
+  private val inOff = ints("inOff")
+  private val inEdges = ints("inEdges")
+  private val extIds = Array(longs("perOrgExtIds"), longs("otherExtIds"))
+  private val extNode = Array(ints("perOrgExtNode"), ints("otherExtNode"))
+
+  private val perOrgTypCode = nodeTyps.map(perOrgTyp).toArray
+
+  def nodeId(i: Int) = nodeIdBuf.get(i)
+  def score(i: Int) = nodeScore.get(i)
+  def typ(i: Int) = nodeTyps(nodeTyp.get(i))
+  def perOrg(i: Int) = perOrgTypCode(nodeTyp.get(i))
+  def extRef(i: Int) = {
+    val (s, e) = (nameOff.get(i), nameOff.get(i + 1))
+    val a = new Array[Byte](e - s)
+    for (k <- 0 until a.length) a(k) = name.get(s + k)
+    ExtRef(new String(a, UTF_8), (idsOff.get(i) until idsOff.get(i + 1)).map(ids.get).toList)
+  }
+  def node(i: Int) = Node(nodeId(i), extRef(i), score(i), typ(i))
+
+  /** @return index of the node with nodeId `id` or -1 */
+  def nodeIndex(id: Int): Int = {
+    var (lo, hi) = (0, numNodes - 1)
+    while (lo <= hi) {
+      val mid = (lo + hi) >>> 1
+      val x = nodeIdBuf.get(mid)
+      if (x < id) lo = mid + 1
+      else if (x > id) hi = mid - 1
+      else return mid
+    }
+    -1
+  }
+
+  /** @return index of the node for extRef.id `id` with typ PERSON|ORGANIZATION (if perOrg) or other typs, or -1 */
+  def extRefIdToNode(id: Long, perOrg: Boolean): Int = {
+    val (keys, vals) = if (perOrg) (extIds(0), extNode(0)) else (extIds(1), extNode(1))
+    var (lo, hi) = (0, keys.limit() - 1)
+    while (lo <= hi) {
+      val mid = (lo + hi) >>> 1
+      val x = keys.get(mid)
+      if (x < id) lo = mid + 1
+      else if (x > id) hi = mid - 1
+      else return vals.get(mid)
+    }
+    -1
+  }
+  def numExtRefIds(perOrg: Boolean) = extIds(if (perOrg) 0 else 1).limit()
+
+  def source(e: Int) = edgeSource.get(e)
+  def target(e: Int) = edgeTarget.get(e)
+  def edgeTyp(e: Int) = edgeTyps(edgeTypBuf.get(e))
+  /** edge between PERSON|ORGANIZATION nodes */
+  def perOrgEdge(e: Int) = perOrg(source(e)) && perOrg(target(e))
+  def minScore(e: Int) = Math.min(score(source(e)), score(target(e)))
+  def totalWeight(e: Int) = edgeWeight.get(e)
+  def totalCount(e: Int) = edgeCount.get(e)
+
+  def weights(e: Int): WeightMap = (wOff.get(e) until wOff.get(e + 1)).map(k => collections(wColl.get(k)) -> (wWeight.get(k), wCount.get(k))).toMap
+
+  /** the per collection weights of edge e are at indices wStart(e) until wStart(e + 1) */
+  def wStart(e: Int) = wOff.get(e)
+  def wCollectionAt(k: Int) = wColl.get(k)
+  def wWeightAt(k: Int) = wWeight.get(k)
+
+  /** collection selection for `weight` */
+  def collectionMask(cols: Set[String]): Array[Boolean] = {
+    val m = new Array[Boolean](collections.size)
+    for (c <- cols; i <- collectionIds.get(c)) m(i) = true
+    m
+  }
+
+  /** total weight of edge e over the selected collections */
+  def weight(e: Int, mask: Array[Boolean]): Double = {
+    var w = 0.0
+    var k = wOff.get(e)
+    val end = wOff.get(e + 1)
+    while (k < end) {
+      if (mask(wColl.get(k))) w += wWeight.get(k)
+      k += 1
+    }
+    w
+  }
+
+  /** total count of edge e over the selected collections */
+  def count(e: Int, mask: Array[Boolean]): Int = {
+    var c = 0
+    var k = wOff.get(e)
+    val end = wOff.get(e + 1)
+    while (k < end) {
+      if (mask(wColl.get(k))) c += wCount.get(k)
+      k += 1
+    }
+    c
+  }
+
+  def outDegree(i: Int) = outOff.get(i + 1) - outOff.get(i)
+  /** k'th edge with node i as source */
+  def out(i: Int, k: Int) = outEdges.get(outOff.get(i) + k)
+  def inDegree(i: Int) = inOff.get(i + 1) - inOff.get(i)
+  /** number of edges with node i as source or target */
+  def degree(i: Int) = outDegree(i) + inDegree(i)
+  /** k'th edge with node i as target */
+  def in(i: Int, k: Int) = inEdges.get(inOff.get(i) + k)
+}
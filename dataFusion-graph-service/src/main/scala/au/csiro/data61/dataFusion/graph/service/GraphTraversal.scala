@@ -0,0 +1,195 @@
+package au.csiro.data61.dataFusion.graph.service
+
+/**
+ * Open addressing hash table from node index (>= 0) to a Long, with primitive arrays,
+ * for per query node state without boxing or allocating per node arrays over the whole graph.
+ */
+class IntLongMap(initialCapacity: Int = 64) {
+  private var keys = Array.fill(Integer.highestOneBit(Math.max(initialCapacity, 4) - 1) << 1)(-1) // -1 for an empty slot
+  private var values = new Array[Long](keys.length)
+  var size = 0
+
+  private def slot(k: Int): Int = {
+    val mask = keys.length - 1
+    var i = (k * 0x9e3779b9) >>> 7 & mask
+    while (keys(i) != -1 && keys(i) != k) i = (i + 1) & mask
+    i
+  }
+
+  def contains(k: Int) = keys(slot(k)) != -1
+  def getOrElse(k: Int, default: Long) = {
+    val i = slot(k)
+    if (keys(i) == -1) default else values(i)
+  }
+
+  def put(k: Int, v: Long): Unit = {
+    val i = slot(k)
+    if (keys(i) == -1) {
+      keys(i) = k
+      size += 1
+    }
+    values(i) = v
+    if (size * 2 > keys.length) { // load factor 0.5
+      val (ks, vs) = (keys, values)
+      keys = Array.fill(ks.length * 2)(-1)
+      values = new Array[Long](keys.length)
+      size = 0
+      for (j <- 0 until ks.length if ks(j) != -1) put(ks(j), vs(j))
+    }
+  }
+}
+
+/**
+ * Binary min-heap of (dist, node, hops) with primitive arrays.
+ */
+class MinHeap {
+  private var dists = new Array[Double](64)
+  private var nodes = new Array[Int](64)
+  private var hopss = new Array[Int](64)
+  var size = 0
+  // the entry removed by the last pop
+  var dist = 0.0
+  var node = 0
+  var hops = 0
+
+  def isEmpty = size == 0
+
+  def push(d: Double, n: Int, h: Int): Unit = {
+    if (size == dists.length) {
+      dists = java.util.Arrays.copyOf(dists, size * 2)
+      nodes = java.util.Arrays.copyOf(nodes, size * 2)
+      hopss = java.util.Arrays.copyOf(hopss, size * 2)
+    }
+    var i = size
+    size += 1
+    while (i > 0 && dists((i - 1) / 2) > d) { // sift up
+      val p = (i - 1) / 2
+      set(i, p)
+      i = p
+    }
+    dists(i) = d
+    nodes(i) = n
+    hopss(i) = h
+  }
+
+  private def set(i: Int, j: Int) = {
+    dists(i) = dists(j)
+    nodes(i) = nodes(j)
+    hopss(i) = hopss(j)
+  }
+
+  /** remove the entry with the smallest dist into (dist, node, hops) */
+  def pop(): Unit = {
+    dist = dists(0)
+    node = nodes(0)
+    hops = hopss(0)
+    size -= 1
+    if (size > 0) {
+      val (d, n, h) = (dists(size), nodes(size), hopss(size))
+      var i = 0
+      var done = false
+      while (!done) { // sift down
+        val l = 2 * i + 1
+        val c = if (l + 1 < size && dists(l + 1) < dists(l)) l + 1 else l
+        if (l < size && dists(c) < d) {
+          set(i, c)
+          i = c
+        } else done = true
+      }
+      dists(i) = d
+      nodes(i) = n
+      hopss(i) = h
+    }
+  }
+}
+
+/**
+ * Best-first traversal for GraphService.graph, finding the maxEdges edges closest to a set of start nodes.
+ *
+ * The edges are those accepted by `ok` with an end within `maxHops - 1` hops of a start node (so both ends are within
+ * maxHops hops). The distance of a node is the shortest over paths of at most maxHops hops, combining the edge lengths
+ * (1 / totalWeight) with `distance`, and the distance of an edge is the greater distance of its ends.
+ *
+ * A breadth first pass finds the nodes within maxHops - 1 hops without visiting their edges.
+ * Then nodes are settled in order of distance, with (node, hops) labels on a primitive heap so that a shorter path
+ * with more hops doesn't hide a longer one with fewer hops that can reach further.
+ * An edge is settled when its second end is settled, so edges are settled in order of distance and the traversal stops
+ * as soon as maxEdges edges are settled, rather than collecting every edge within maxHops.
+ */
+class GraphTraversal(g: CsrGraph, distance: (Double, Double) => Double) {
+
+  /** call f for each edge incident to node i, once for a self loop */
+  @inline private def foreachEdge(i: Int)(f: Int => Unit): Unit = {
+    var k = 0
+    while (k < g.outDegree(i)) {
+      f(g.out(i, k))
+      k += 1
+    }
+    k = 0
+    while (k < g.inDegree(i)) {
+      val e = g.in(i, k)
+      if (g.source(e) != i) f(e)
+      k += 1
+    }
+  }
+
+  @inline private def other(e: Int, i: Int) = if (g.source(e) == i) g.target(e) else g.source(e)
+
+  /**
+   * @param starts node indices
+   * @param maxHops max path length in edges
+   * @param maxEdges max number of edges
+   * @param ok filter for the edges
+   * @return up to maxEdges edges in ascending order of distance
+   */
+  def closestEdges(starts: Set[Int], maxHops: Int, maxEdges: Int, ok: Int => Boolean): List[Int] = {
+    if (maxHops < 1 || maxEdges < 1) Nil else {
+      // nodes within maxHops - 1 hops, the edges of which are in range
+      val near = new IntLongMap
+      var frontier = starts.toArray
+      starts.foreach(near.put(_, 0))
+      for (h <- 1 until maxHops) {
+        val next = Array.newBuilder[Int]
+        for (i <- frontier) foreachEdge(i) { e =>
+          val j = other(e, i)
+          if (ok(e) && !near.contains(j)) {
+            near.put(j, h)
+            next += j
+          }
+        }
+        frontier = next.result
+      }
+
+      val dist = new IntLongMap // settled node -> distance as raw long bits
+      val minHops = new IntLongMap // node -> fewest hops over the labels popped so far
+      val heap = new MinHeap
+      starts.foreach(heap.push(0.0, _, 0))
+      val edges = List.newBuilder[Int]
+      var numEdges = 0
+
+      while (!heap.isEmpty && numEdges < maxEdges) {
+        heap.pop()
+        val (d, i, h) = (heap.dist, heap.node, heap.hops)
+        if (h < minHops.getOrElse(i, Long.MaxValue)) { // else dominated by a shorter path with no more hops
+          minHops.put(i, h)
+          if (!dist.contains(i)) { // first time popped, so this is its distance
+            dist.put(i, java.lang.Double.doubleToRawLongBits(d))
+            val iNear = h < maxHops || near.contains(i)
+            foreachEdge(i) { e =>
+              val j = other(e, i)
+              if (numEdges < maxEdges && dist.contains(j) && ok(e) && (iNear || near.contains(j))) { // settled at distance d
+                edges += e
+                numEdges += 1
+              }
+            }
+          }
+          if (h < maxHops) foreachEdge(i) { e =>
+            val j = other(e, i)
+            if (ok(e) && h + 1 < minHops.getOrElse(j, Long.MaxValue)) heap.push(distance(d, 1.0/g.totalWeight(e)), j, h + 1)
+          }
+        }
+      }
+      edges.result
+    }
+  }
+}
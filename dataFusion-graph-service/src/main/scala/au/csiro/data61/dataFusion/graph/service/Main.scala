@@ -2,7 +2,6 @@ package au.csiro.data61.dataFusion.graph.service
 
 import java.io.File
 
-import scala.annotation.tailrec
 import scala.io.Source
 import scala.language.postfixOps
 import scala.reflect.runtime.universe.typeOf
@@ -14,20 +13,20 @@ import com.typesafe.scalalogging.Logger
 import akka.actor.ActorSystem
 import akka.http.scaladsl.Http
 import akka.http.scaladsl.marshallers.sprayjson.SprayJsonSupport._
-import akka.http.scaladsl.server.Directives.{ _enhanceRouteWithConcatenation, _segmentStringToPathMatcher, as, complete, entity, path, post }
+import akka.http.scaladsl.server.Directives.{ _enhanceRouteWithConcatenation, _segmentStringToPathMatcher, as, complete, entity, get, path, post }
 import akka.stream.ActorMaterializer
-import au.csiro.data61.dataFusion.common.Data.{ NodeEdgeCount, Edge, Node, T_ORGANIZATION, T_PERSON }
+import au.csiro.data61.dataFusion.common.Data.{ NodeEdgeCount, Node }
 import au.csiro.data61.dataFusion.common.Data.JsonProtocol._
 import ch.megard.akka.http.cors.scaladsl.CorsDirectives.cors
 import io.swagger.annotations.{ Api, ApiOperation }
 import javax.ws.rs.{ Consumes, Path }
 import javax.ws.rs.core.MediaType
 import spray.json.pimpString
-import au.csiro.data61.dataFusion.common.Util
-import au.csiro.data61.dataFusion.common.Timer
+import au.csiro.data61.dataFusion.common.{ Metrics, Timer }
 import au.csiro.data61.dataFusion.common.Data.WeightMap
 import com.google.common.cache.CacheBuilder
 import com.google.common.cache.CacheLoader
+import com.google.common.cache.LoadingCache
 
 // keeps getting deleted by Eclipse > Source > Organize Imports
 // import javax.ws.rs.core.MediaType
@@ -35,11 +34,11 @@ import com.google.common.cache.CacheLoader
 object Main {
   private val log = Logger(getClass)
   
-  case class CliOption(cacheSize: Int, nodePath: File, edgePath: File, host: String, port: Int)
+  case class CliOption(cacheSize: Int, nodePath: File, edgePath: File, snapshotPath: Option[File], convert: Boolean, host: String, port: Int)
 
   def main(args: Array[String]): Unit = {
     val conf = ConfigFactory.load
-    val defaultCliOption = CliOption(conf.getInt("graph.cacheSize"), new File(conf.getString("graph.nodePath")), new File(conf.getString("graph.edgePath")), conf.getString("http.host"), conf.getInt("http.port"))
+    val defaultCliOption = CliOption(conf.getInt("graph.cacheSize"), new File(conf.getString("graph.nodePath")), new File(conf.getString("graph.edgePath")), Some(conf.getString("graph.snapshotPath")).filter(_.nonEmpty).map(new File(_)), false, conf.getString("http.host"), conf.getInt("http.port"))
     val parser = new scopt.OptionParser[CliOption]("graph") {
       head("graph", "0.x")
       note("Run Graph web service.")
@@ -52,6 +51,12 @@ object Main {
       opt[File]("edgePath") action { (v, c) =>
         c.copy(edgePath = v)
       } text (s"path of JSON file containing edges, default ${defaultCliOption.edgePath}")
+      opt[File]("snapshotPath") action { (v, c) =>
+        c.copy(snapshotPath = Some(v))
+      } text (s"path of binary graph snapshot, if set the service memory maps this rather than loading the JSON files, default ${defaultCliOption.snapshotPath}")
+      opt[Unit]("convert") action { (_, c) =>
+        c.copy(convert = true)
+      } text (s"convert the JSON files at nodePath and edgePath to a snapshot at snapshotPath then exit")
       opt[String]("host") action { (v, c) =>
         c.copy(host = v)
       } text (s"host interface for web service, default ${defaultCliOption.host}")
@@ -62,7 +67,8 @@ object Main {
     }
     for (c <- parser.parse(args, defaultCliOption)) {
       log.info(s"CliOption: $c}")
-      start(c)
+      if (c.convert) GraphSnapshot.convert(c.nodePath, c.edgePath, c.snapshotPath.getOrElse(throw new IllegalArgumentException("--convert requires snapshotPath")))
+      else start(c)
     }      
   }
   
@@ -71,7 +77,8 @@ object Main {
     implicit val exec = system.dispatcher
     implicit val materializer = ActorMaterializer()
     
-    val graphService = new GraphService(c.cacheSize, Source.fromFile(c.nodePath), Source.fromFile(c.edgePath))
+    val graphService = c.snapshotPath.map(f => new GraphService(c.cacheSize, GraphSnapshot.map(f)))
+      .getOrElse(new GraphService(c.cacheSize, Source.fromFile(c.nodePath, "UTF-8"), Source.fromFile(c.edgePath, "UTF-8")))
     val routes = cors() {
       graphService.routes ~ 
       swaggerService(c.host, c.port).routes
@@ -84,7 +91,6 @@ Test with:
   }
 
   case class Nodes(nodes: List[Node])
-  case class GEdge(source: Node, target: Node, typ: String, weights: WeightMap, minScore: Double, totalWeight: Double, totalCount: Int)
   case class GrEdge(source: Int, target: Int, typ: String, weights: WeightMap, minScore: Double, totalWeight: Double, totalCount: Int)
 //  case class NodeQuery(text: String, typ: String)
   case class TopClientsQuery(includePerson2: Boolean, minScore: Double, extRefIds: List[Long], maxNodes: Int)
@@ -93,10 +99,6 @@ Test with:
   case class Graph(nodes: List[Node], edges: List[GrEdge])
   case class NodeEdgeCounts(counts: List[NodeEdgeCount])
   
-  type NodeMap = Map[Int, Node]
-  type EdgeMap = Map[Int, IndexedSeq[GEdge]]
-  case class NodeEdgeMap(nodes: NodeMap, edges: IndexedSeq[GEdge], edgesBySource: EdgeMap, edgesByTarget: EdgeMap)
-  
   object JsonProtocol {
     implicit val nodesCodec = jsonFormat1(Nodes)
     implicit val grEdgeCodec = jsonFormat7(GrEdge)
@@ -109,57 +111,37 @@ Test with:
   }
   import JsonProtocol._
   
-  def load(nodeSource: Source, edgeSource: Source) = {
-    val nodes = nodeSource.getLines.map { json =>
-      val n = json.parseJson.convertTo[Node]
-      n.nodeId -> n
-    }.toMap
-    log.info(s"load: loaded ${nodes.size} nodes")
-        
-    val edges = edgeSource.getLines.map{ json =>
-      val e = json.parseJson.convertTo[Edge]
-      val (w, c) = e.weights.values.foldLeft((0.0, 0)) { case ((w, c), (w1, c1)) => (w + w1, c + c1) }
-      val src = nodes(e.source)
-      val tgt = nodes(e.target)
-      GEdge(src, tgt, e.typ, e.weights, Math.min(src.score, tgt.score), w, c)
-    }.toIndexedSeq
-    log.info(s"load: loaded ${edges.size} edges")
+  @Api(value = "graph", description = "graph service", produces = "application/json")
+  @Path("")
+  class GraphService(cacheSize: Int, val g: CsrGraph) {
+    log.info(s"GraphService.ctor: load complete: ${g.numNodes} nodes, ${g.numEdges} edges, extRefIdToPersonNodeId.size = ${g.numExtRefIds(true)}, extRefIdToPerson2EmailNodeId.size = ${g.numExtRefIds(false)}")
     
-    // exclude T_PERSON2 and D61EMAIL FROM|TO etc. nodes
-    // user can choose network restricted to these nodes or not
-    def perOrgPred(n: Node) = n.typ == T_PERSON || n.typ == T_ORGANIZATION    
-    val edges3 = edges.filter(e => perOrgPred(e.source) && perOrgPred(e.target))
-    val node3Ids = (edges3.view.map(_.source.nodeId) ++ edges3.view.map(_.target.nodeId)).toSet
-    val nodes3 = nodes.filter { case (nodeId, _) => node3Ids.contains(nodeId) }
-    log.info(s"load: filtered typ = ${T_PERSON} or ${T_ORGANIZATION}: ${nodes3.size} nodes and ${edges3.size} edges")
+    /** load node.json and edge.json into a snapshot on the heap */
+    def this(cacheSize: Int, nodeSource: Source, edgeSource: Source) = this(cacheSize, GraphSnapshot.heap(GraphSnapshot.fromJson(nodeSource, edgeSource)))
     
-    // extRef.id -> node.id
-    def extRefIdToNode(pred: Node => Boolean) = (for {
-      n <- nodes.values.view if pred(n)
-      id <- n.extRef.ids
-    } yield id -> n).toMap // a many to one mapping
+    /** extRef.id -> list of 0, 1, or 2 node indices */
+    def extRefIdToNode(includePerson2: Boolean): Long => List[Int] = { id =>
+      val per = g.extRefIdToNode(id, true)
+      val other = if (includePerson2) g.extRefIdToNode(id, false) else -1
+      List(per, other).filter(_ >= 0)
+    }
     
-    def edgeMap(edges: IndexedSeq[GEdge], key: GEdge => Int) = edges.groupBy(key).withDefaultValue(IndexedSeq.empty)
+    val topEdges = new TopEdges(g)
     
-    (
-      NodeEdgeMap(nodes, edges, edgeMap(edges, _.source.nodeId), edgeMap(edges, _.target.nodeId)), 
-      NodeEdgeMap(nodes3, edges3, edgeMap(edges3, _.source.nodeId), edgeMap(edges3, _.target.nodeId)), 
-      extRefIdToNode(perOrgPred), 
-      extRefIdToNode(n => !perOrgPred(n))
-    )
-  }
-  
-  
-  @Api(value = "graph", description = "graph service", produces = "application/json")
-  @Path("")
-  class GraphService(cacheSize: Int, nodeSource: Source, edgeSource: Source) {
-    val (nodeEdgeMap, nodeEdgeMap3, extRefIdToPersonNode, extRefIdToPerson2EmailNode) = load(nodeSource, edgeSource)
-    log.info(s"GraphService.ctor: load complete: extRefIdToPersonNodeId.size = ${extRefIdToPersonNode.size}, extRefIdToPerson2EmailNodeId.size = ${extRefIdToPerson2EmailNode.size}")
+    /** edge e is in the network, which without includePerson2 is restricted to PERSON|ORGANIZATION nodes */
+    def inNetwork(includePerson2: Boolean)(e: Int) = includePerson2 || g.perOrgEdge(e)
     
-    /** extRef.id -> list of 0, 1, or 2 nodeIds */
-    def extRefIdToNode(includePerson2: Boolean): Long => List[Node] = 
-      if (includePerson2) id => extRefIdToPersonNode.get(id).toList ++ extRefIdToPerson2EmailNode.get(id).toList
-      else id => extRefIdToPersonNode.get(id).toList
+    /** cache of query results with Metrics: histogram `graph.<name>` of the time to compute a result (on a cache miss) and gauge `graph.<name>.cacheHitRate` */
+    def cached[Q <: AnyRef, R <: AnyRef](name: String)(f: Q => R): LoadingCache[Q, R] = {
+      val latency = Metrics.histogram(s"graph.$name")
+      val c = CacheBuilder.newBuilder.maximumSize(cacheSize).recordStats.build(
+         new CacheLoader[Q, R] {
+           def load(q: Q) = latency.time(f(q))
+         }
+      )
+      Metrics.gauge(s"graph.$name.cacheHitRate")(c.stats.hitRate)
+      c
+    }
     
     // ----------------------------------------------------------
   
@@ -192,20 +174,13 @@ Test with:
     @Consumes(Array(MediaType.APPLICATION_JSON))
     def topConnectedClients(q: TopClientsQuery): NodeEdgeCounts = {
       log.info(s"topConnectedClients: q = $q")
-      val nem = if (q.includePerson2) nodeEdgeMap else nodeEdgeMap3
-      val nodeIds = q.extRefIds.flatMap(extRefIdToNode(q.includePerson2)).filter(_.score >= q.minScore).map(_.nodeId).toSet
-      val iter = nodeIds.iterator.map { id => 
-        NodeEdgeCount(id, nodeEdgeMap.edgesBySource(id).size + nodeEdgeMap.edgesByTarget(id).size)
-      }
-      val top = Util.top(q.maxNodes, iter)(Ordering.by(_.numEdges))
-      NodeEdgeCounts(top)
+      val nodeIdxs = q.extRefIds.flatMap(extRefIdToNode(q.includePerson2)).filter(g.score(_) >= q.minScore).toSet
+      val topK = new TopK(q.maxNodes)
+      for (i <- nodeIdxs) topK.offer(g.degree(i), i) // counts all edges, whether or not includePerson2
+      NodeEdgeCounts(topK.result.map(i => NodeEdgeCount(g.nodeId(i), g.degree(i))))
     }
     
-    val topConnectedClientsCache = CacheBuilder.newBuilder.maximumSize(cacheSize).build(
-       new CacheLoader[TopClientsQuery, NodeEdgeCounts] {
-         def load(q: TopClientsQuery) = topConnectedClients(q)
-       }
-    )
+    val topConnectedClientsCache = cached("topConnectedClients")(topConnectedClients)
     
     def topConnectedClientsRoute =
       post { path("topConnectedClients") { entity(as[TopClientsQuery]) { q => complete {
@@ -214,36 +189,24 @@ Test with:
   
     // ----------------------------------------------------------
     
-    val toGrEdge = (e: GEdge) => GrEdge(e.source.nodeId, e.target.nodeId, e.typ, e.weights, e.minScore, e.totalWeight, e.totalCount)
+    /** @param mask selected collections for totalWeight and totalCount, or None for all */
+    def toGrEdge(mask: Option[Array[Boolean]])(e: Int) = GrEdge(g.nodeId(g.source(e)), g.nodeId(g.target(e)), g.edgeTyp(e), g.weights(e), g.minScore(e),
+      mask.map(g.weight(e, _)).getOrElse(g.totalWeight(e)), mask.map(g.count(e, _)).getOrElse(g.totalCount(e)))
     
-    def edgeTotalWeight(collections: Option[Set[String]]): GEdge => GEdge = collections.map { col => 
-      (e: GEdge) => 
-        val (w, c) = e.weights.foldLeft((0.0, 0)) { case (z@(w, c), (k, (w1, c1))) => if (col contains k) (w + w1, c + c1) else z }
-        e.copy(totalWeight = w, totalCount = c)
-    }.getOrElse(identity)
+    def nodes(edges: Seq[Int]): List[Node] = (edges.view.map(g.source) ++ edges.view.map(g.target)).toSet.toList.map(g.node)
     
     @Path("topConnectedGraph")
     @ApiOperation(httpMethod = "POST", response = classOf[Graph], value = "graph of the strongest edges from the selected collections")
     @Consumes(Array(MediaType.APPLICATION_JSON))
     def topConnectedGraph(q: TopConnectedQuery): Graph = {
       log.info(s"topConnectedGraph: q = $q")
-      val nem = if (q.includePerson2) nodeEdgeMap else nodeEdgeMap3
-      val etw = edgeTotalWeight(q.collections)
-      val edges1 = for {
-        e <- nem.edges.iterator if e.minScore >= q.minScore
-      } yield etw(e)
-      val edges = Util.top(q.maxEdges, edges1)(Ordering.by(_.totalWeight)) // top edges by weight
+      val mask = q.collections.map(g.collectionMask)
+      val edges = topEdges.top(q.maxEdges, mask, e => inNetwork(q.includePerson2)(e) && g.minScore(e) >= q.minScore) // top edges by weight
       log.debug("topConnectedGraph: got highest weight edges")
-      val nodes = (edges.view.map(_.source) ++ edges.view.map(_.target)).toSet.toList
-      log.debug("topConnectedGraph: got nodes")
-      Graph(nodes, edges map toGrEdge)
+      Graph(nodes(edges), edges map toGrEdge(mask))
     }
       
-    val topConnectedGraphCache = CacheBuilder.newBuilder.maximumSize(cacheSize).build(
-       new CacheLoader[TopConnectedQuery, Graph] {
-         def load(q: TopConnectedQuery) = topConnectedGraph(q)
-       }
-    )
+    val topConnectedGraphCache = cached("topConnectedGraph")(topConnectedGraph)
     
     def topConnectedGraphRoute =
       post { path("topConnectedGraph") { entity(as[TopConnectedQuery]) { q => complete {
@@ -256,30 +219,7 @@ Test with:
     // so we'll slightly favour multi-hop paths over single edges.
     def distance(a: Double, b: Double) = Math.sqrt(a * a + b * b)
     
-    @tailrec final def expand(nem: NodeEdgeMap, n: Int, minScore: Double, newIds: Set[Int], nodeDist: Map[Int, Double], edges: Set[GEdge]= Set.empty): (Int, Set[Int], Map[Int, Double], Set[GEdge]) = {
-      if (n < 1) (n, newIds, nodeDist, edges) else {
-        // TODO: filter out those outside maxEdges shortest? Check that end result is the same.
-        val knownSource = newIds.view.flatMap(id => nem.edgesBySource(id)).filter(_.minScore >= minScore) // edges with known node as source
-        val nodeDist1 = knownSource.foldLeft(nodeDist) { (z, e) => 
-          val d0 = z.get(e.target.nodeId)
-          val d1 = distance(z(e.source.nodeId), 1.0/e.totalWeight)
-          val d3 = d0.map(Math.min(_, d1)).getOrElse(d1)
-          z + (e.target.nodeId -> d3)
-        }
-        // TODO: filter out those outside maxEdges shortest?
-        val knownTarget = newIds.view.flatMap(id => nem.edgesByTarget(id)).filter(_.minScore >= minScore) // edges with known node as target
-        val nodeDist2 = knownTarget.foldLeft(nodeDist1) { (z, e) => 
-          val d0 = z.get(e.source.nodeId)
-          val d1 = distance(z(e.target.nodeId), 1.0/e.totalWeight)
-          val d3 = d0.map(Math.min(_, d1)).getOrElse(d1)
-          z + (e.source.nodeId -> d3)
-        }
-        val nIds = nodeDist2.keySet &~ nodeDist.keySet
-        // log.debug(s"expand: nIds = $nIds, knownSource = $knownSource, knownTarget = $knownTarget, nodeDist2 = $nodeDist2")
-        log.debug("expand: recurse ...")
-        expand(nem, n - 1, minScore, nIds, nodeDist2, edges ++ (knownSource ++ knownTarget))
-      }
-    }
+    val traversal = new GraphTraversal(g, distance)
     
     // ----------------------------------------------------------
       
@@ -288,36 +228,38 @@ Test with:
     @Consumes(Array(MediaType.APPLICATION_JSON))
     def graph(q: GraphQuery): Graph = {
       log.info(s"graph: q = $q")
-      val nem = if (q.includePerson2) nodeEdgeMap else nodeEdgeMap3
       val idToNode = extRefIdToNode(q.includePerson2)
-      q.nodeId.map(Set(_)).orElse(q.extRefId.map(id => idToNode(id).map(_.nodeId).toSet)).map { nodeIds =>
-        log.debug(s"graph: nodeIds = ${nodeIds}")
-        val (_, _, nodeDist, edges) = expand(nem, q.maxHops, q.minScore, nodeIds, nodeIds.map(_ -> 0.0).toMap)
-        log.debug(s"graph: got ${edges.size} edges")
-        // take the closest maxEdges
-        val topEdges = Util.bottom(q.maxEdges, edges.iterator)(Ordering.by(e => Math.max(nodeDist(e.source.nodeId), nodeDist(e.target.nodeId))))
-        log.debug(s"graph: got top edges")
-        val topNodes = (topEdges.view.map(_.source) ++ topEdges.view.map(_.target)).toSet.toList
-        log.debug(s"graph: got top nodes")
-        Graph(topNodes, topEdges map toGrEdge)
+      q.nodeId.map(id => Set(g.nodeIndex(id)).filter(_ >= 0)).orElse(q.extRefId.map(id => idToNode(id).toSet)).filter(_.nonEmpty).map { nodeIdxs =>
+        log.debug(s"graph: nodeIdxs = ${nodeIdxs}")
+        // the closest maxEdges within maxHops
+        val topEdges = traversal.closestEdges(nodeIdxs, q.maxHops, q.maxEdges, e => inNetwork(q.includePerson2)(e) && g.minScore(e) >= q.minScore)
+        log.debug(s"graph: got ${topEdges.size} edges")
+        Graph(nodes(topEdges), topEdges map toGrEdge(None))
       }.getOrElse {
         log.info(s"graph: no nodes match query q = $q")
         Graph(List.empty, List.empty)
       }
     }
     
-    val graphCache = CacheBuilder.newBuilder.maximumSize(cacheSize).build(
-       new CacheLoader[GraphQuery, Graph] {
-         def load(q: GraphQuery) = graph(q)
-       }
-    )
+    val graphCache = cached("graph")(graph)
     
     def graphRoute =
       post { path("graph") { entity(as[GraphQuery]) { q => complete {
         graphCache.get(q)
       }}}}
   
-    val routes = topConnectedClientsRoute ~ topConnectedGraphRoute ~ graphRoute
+    // ----------------------------------------------------------
+    
+    @Path("metrics")
+    @ApiOperation(httpMethod = "GET", response = classOf[String], value = "counters, gauges and query latency histograms (in millis) since startup")
+    def metrics = Metrics.toJson
+    
+    def metricsRoute =
+      get { path("metrics") { complete {
+        metrics
+      }}}
+  
+    val routes = topConnectedClientsRoute ~ topConnectedGraphRoute ~ graphRoute ~ metricsRoute
   }
   
   def swaggerService(hst: String, prt: Int)(implicit s: ActorSystem, m: ActorMaterializer) = new SwaggerHttpService with HasActorSystem {
@@ -0,0 +1,136 @@
+package au.csiro.data61.dataFusion.graph.service
+
+import scala.collection.mutable.HashSet
+
+import com.typesafe.scalalogging.Logger
+
+import au.csiro.data61.dataFusion.common.Timer
+
+/**
+ * Bounded min-heap keeping the k (score, id) pairs with the highest scores, with primitive arrays.
+ */
+class TopK(k: Int) {
+  private val scores = new Array[Double](Math.max(k, 0))
+  private val ids = new Array[Int](Math.max(k, 0))
+  var size = 0
+
+  def isFull = size >= k
+  /** lowest score kept, +Infinity if none (so nothing more is needed when k = 0) */
+  def min = if (size > 0) scores(0) else Double.PositiveInfinity
+
+  def offer(score: Double, id: Int): Unit = {
+    if (size < k) {
+      var i = size
+      size += 1
+      while (i > 0 && scores((i - 1) / 2) > score) { // sift up
+        val p = (i - 1) / 2
+        scores(i) = scores(p)
+        ids(i) = ids(p)
+        i = p
+      }
+      scores(i) = score
+      ids(i) = id
+    } else if (k > 0 && score > scores(0)) {
+      var i = 0
+      var done = false
+      while (!done) { // sift down
+        val l = 2 * i + 1
+        val c = if (l + 1 < size && scores(l + 1) < scores(l)) l + 1 else l
+        if (l < size && scores(c) < score) {
+          scores(i) = scores(c)
+          ids(i) = ids(c)
+          i = c
+        } else done = true
+      }
+      scores(i) = score
+      ids(i) = id
+    }
+  }
+
+  /** ids in ascending order of score (as Util.top) */
+  def result: List[Int] = (0 until size).sortBy(scores(_)).map(ids(_)).toList
+}
+
+object TopEdges {
+  private val log = Logger(getClass)
+
+  /** pack (weight, edge) so that sorting longs sorts by weight (as a float, for non-negative weights) then edge */
+  def pack(weight: Double, e: Int): Long = java.lang.Float.floatToIntBits(weight.toFloat).toLong << 32 | e
+  def edge(x: Long) = x.toInt
+  /** an upper bound on the weights packed in x (which were rounded to float) */
+  def maxWeight(x: Long) = Math.nextUp(java.lang.Float.intBitsToFloat((x >>> 32).toInt)).toDouble
+
+  /** sorted ascending, read from the end for descending order */
+  def sorted(a: Array[Long]) = {
+    java.util.Arrays.parallelSort(a)
+    a
+  }
+}
+
+/**
+ * Edge orderings built at load time for top-K queries by weight without a scan of all the edges:
+ * all edges by total weight and, for each collection, the edges in that collection by their weight in the collection.
+ * Queries for a set of collections merge the orderings of those collections with the threshold algorithm
+ * (Fagin, Lotem & Naor) stopping once no unseen edge can have a higher total weight than the k'th best so far.
+ */
+class TopEdges(g: CsrGraph) {
+  import TopEdges._
+
+  val (byWeight, byCollection) = {
+    val timer = Timer()
+    val all = sorted(Array.tabulate(g.numEdges)(e => pack(g.totalWeight(e), e)))
+    val count = new Array[Int](g.collections.size)
+    for (k <- 0 until g.wStart(g.numEdges)) count(g.wCollectionAt(k)) += 1
+    val cols = count.map(n => new Array[Long](n))
+    val next = new Array[Int](count.length)
+    for (e <- 0 until g.numEdges; k <- g.wStart(e) until g.wStart(e + 1)) {
+      val c = g.wCollectionAt(k)
+      cols(c)(next(c)) = pack(g.wWeightAt(k), e)
+      next(c) += 1
+    }
+    cols.foreach(sorted)
+    timer.stop
+    log.info(s"TopEdges: built orderings for ${g.numEdges} edges in ${cols.length} collections in ${timer.elapsedSecs} secs")
+    (all, cols)
+  }
+
+  /**
+   * @param k number of edges
+   * @param mask selected collections or None for all
+   * @param eligible filter for the edges
+   * @return the k eligible edges with the highest weight in the selected collections, in ascending order of weight
+   */
+  def top(k: Int, mask: Option[Array[Boolean]], eligible: Int => Boolean): List[Int] = {
+    val weight: Int => Double = mask.map(m => (e: Int) => g.weight(e, m)).getOrElse(g.totalWeight _)
+    val lists = mask.map(m => byCollection.indices.filter(m).map(byCollection)).getOrElse(Seq(byWeight)).toArray
+    val pos = lists.map(_.length - 1) // next position in each list, reading from the end for descending order
+    val topK = new TopK(k)
+    val seen = HashSet[Int]() // only needed for more than 1 list, where an edge can be in several
+    val dedup = lists.length > 1
+
+    def threshold = {
+      var t = 0.0
+      for (i <- 0 until lists.length if pos(i) >= 0) t += maxWeight(lists(i)(pos(i)))
+      t
+    }
+    def exhausted = pos.forall(_ < 0)
+
+    while (!exhausted && !(topK.isFull && topK.min >= threshold)) {
+      for (i <- 0 until lists.length if pos(i) >= 0) {
+        val e = edge(lists(i)(pos(i)))
+        pos(i) -= 1
+        if ((!dedup || seen.add(e)) && eligible(e)) topK.offer(weight(e), e)
+      }
+    }
+
+    for (m <- mask if !topK.isFull) { // edges with no weight in the selected collections are not in the lists
+      def inLists(e: Int) = (g.wStart(e) until g.wStart(e + 1)).exists(k => m(g.wCollectionAt(k)))
+      var e = 0
+      while (e < g.numEdges && !topK.isFull) {
+        if (!inLists(e) && eligible(e)) topK.offer(0.0, e)
+        e += 1
+      }
+    }
+    topK.result
+  }
+}
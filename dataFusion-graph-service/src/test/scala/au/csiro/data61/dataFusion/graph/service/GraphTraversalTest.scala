@@ -0,0 +1,66 @@
+package au.csiro.data61.dataFusion.graph.service
+
+import scala.io.Source
+import scala.util.Random
+
+import org.scalatest.{ FlatSpec, Matchers }
+
+import com.typesafe.scalalogging.Logger
+
+class GraphTraversalTest extends FlatSpec with Matchers {
+  val log = Logger(getClass)
+
+  def distance(a: Double, b: Double) = Math.sqrt(a * a + b * b)
+
+  /** random graph with numEdges edges, of which hubEdges are from the first numHubs nodes */
+  def graph(rnd: Random, numNodes: Int, numEdges: Int, numHubs: Int, hubEdges: Int) = {
+    val typs = Seq("PERSON", "PERSON2", "ORGANIZATION")
+    val nodes = for (i <- 0 until numNodes) yield
+      s"""{"nodeId":$i,"extRef":{"ids":[$i],"name":"n$i"},"typ":"${typs(rnd.nextInt(typs.size))}","score":${rnd.nextInt(10)}}"""
+    val edges = for (k <- 0 until numEdges) yield {
+      val s = if (k < hubEdges) rnd.nextInt(numHubs) else rnd.nextInt(numNodes)
+      s"""{"source":$s,"target":${rnd.nextInt(numNodes)},"typ":"D61GAZ","weights":{"c":[${1 + rnd.nextInt(20) * 0.25},1]}}"""
+    }
+    GraphSnapshot.heap(GraphSnapshot.fromJson(Source.fromString(nodes.mkString("\n")), Source.fromString(edges.mkString("\n"))))
+  }
+
+  /** distances over paths of at most maxHops hops (Bellman-Ford) and the nodes within maxHops - 1 hops */
+  def reference(g: CsrGraph, starts: Set[Int], maxHops: Int, ok: Int => Boolean) = {
+    val oks = (0 until g.numEdges).filter(ok)
+    var dist = starts.map(_ -> 0.0).toMap
+    var near = starts
+    for (h <- 1 to maxHops) {
+      val prev = dist
+      for (e <- oks; (a, b) <- Seq((g.source(e), g.target(e)), (g.target(e), g.source(e))); da <- prev.get(a)) {
+        val d = distance(da, 1.0/g.totalWeight(e))
+        if (dist.get(b).forall(d < _)) dist += b -> d
+      }
+      if (h < maxHops) near = dist.keySet
+    }
+    (dist, near)
+  }
+
+  "GraphTraversal" should "find the closest edges within maxHops" in {
+    val rnd = new Random(7)
+    val g = graph(rnd, 300, 1500, 10, 200)
+    val traversal = new GraphTraversal(g, distance)
+    for {
+      starts <- Seq(Set(0), Set(5, 100), Set(299))
+      maxHops <- Seq(0, 1, 2, 3)
+      maxEdges <- Seq(1, 20, 100000)
+      minScore <- Seq(0.0, 5.0)
+    } {
+      val ok = (e: Int) => g.perOrgEdge(e) && g.minScore(e) >= minScore
+      val (dist, near) = reference(g, starts, maxHops, ok)
+      def key(e: Int) = Math.max(dist(g.source(e)), dist(g.target(e)))
+      val expected = if (maxHops < 1) Seq.empty else
+        (0 until g.numEdges).filter(e => ok(e) && (near.contains(g.source(e)) || near.contains(g.target(e)))).map(key).sorted.take(maxEdges)
+
+      val edges = traversal.closestEdges(starts, maxHops, maxEdges, ok)
+      edges.distinct.size should be(edges.size)
+      edges.forall(ok) should be(true)
+      edges.size should be(expected.size)
+      for ((a, b) <- edges.map(key) zip expected) a should be(b +- 1e-9) // same distances, ascending
+    }
+  }
+}
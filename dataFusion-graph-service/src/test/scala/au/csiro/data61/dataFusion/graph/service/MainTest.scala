@@ -5,6 +5,7 @@ import org.scalatest.{ FlatSpec, Matchers }
 import com.typesafe.scalalogging.Logger
 
 import Main._
+import au.csiro.data61.dataFusion.common.Data.{ ExtRef, Node, NodeEdgeCount }
 import scala.io.Source
 import scala.io.Codec
 
@@ -29,4 +30,36 @@ class MainTest extends FlatSpec with Matchers {
     g.edges.map(e => (e.source, e.target)).toSet should be(Set((2,3), (3,4), (1,2), (1,3)))
   }
   
-}
\ No newline at end of file
+  "topConnectedGraph" should "provide the strongest edges in the collections" in {
+    val g = gs.topConnectedGraph(TopConnectedQuery(true, 0.0, Some(Set("collectionB")), 5))
+    log.debug(s"g = $g")
+    g.edges.map(e => (e.source, e.target)).toSet should be(Set((2,5), (3,5), (1,6), (2,6), (5,6)))
+    g.edges.map(e => (e.totalWeight, e.totalCount)).toSet should be(Set((1.0, 1)))
+    g.nodes.map(_.nodeId).toSet should be(Set(1, 2, 3, 5, 6))
+    gs.topConnectedGraph(TopConnectedQuery(false, 0.0, None, 10)).edges.map(e => (e.source, e.target)).toSet should be(Set((1,2), (1,3), (2,3), (3,4)))
+  }
+  
+  "topConnectedClients" should "count edges" in {
+    gs.topConnectedClients(TopClientsQuery(true, 0.0, List(211, 223), 10)).counts.toSet should be(Set(NodeEdgeCount(1, 3), NodeEdgeCount(5, 3), NodeEdgeCount(3, 4), NodeEdgeCount(6, 4)))
+    gs.topConnectedClients(TopClientsQuery(false, 0.0, List(211, 223), 2)).counts.toSet should be(Set(NodeEdgeCount(1, 3), NodeEdgeCount(3, 4)))
+  }
+  
+  "GraphSnapshot" should "serve the same results when memory mapped" in {
+    val f = java.io.File.createTempFile("graph", ".snapshot")
+    try {
+      val out = new java.io.FileOutputStream(f)
+      try GraphSnapshot.write(GraphSnapshot.fromJson(getSource("node.json"), getSource("edge.json")), out) finally out.close
+      val gs2 = new GraphService(0, GraphSnapshot.map(f))
+      (gs2.g.numNodes, gs2.g.numEdges) should be((6, 10))
+      (0 until 6).map(gs2.g.node) should be((0 until 6).map(gs.g.node))
+      gs2.g.node(gs2.g.extRefIdToNode(224L, false)) should be(Node(6, ExtRef("fred", List(223L, 224L)), 1.0, "TO"))
+      for (q <- Seq(GraphQuery(true, 0.0, None, None, Some(224), 2, 20), GraphQuery(false, 0.0, None, Some(1), None, 1, 20))) {
+        val (a, b) = (gs.graph(q), gs2.graph(q))
+        (a.nodes.toSet, a.edges.toSet) should be((b.nodes.toSet, b.edges.toSet))
+      }
+      val q = TopConnectedQuery(true, 0.0, Some(Set("collectionB")), 5)
+      gs2.topConnectedGraph(q).edges.toSet should be(gs.topConnectedGraph(q).edges.toSet)
+    } finally f.delete
+  }
+  
+}
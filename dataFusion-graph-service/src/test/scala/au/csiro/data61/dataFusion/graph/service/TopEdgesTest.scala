@@ -0,0 +1,67 @@
+package au.csiro.data61.dataFusion.graph.service
+
+import scala.io.Source
+import scala.util.Random
+
+import org.scalatest.{ FlatSpec, Matchers }
+
+import com.typesafe.scalalogging.Logger
+
+class TopEdgesTest extends FlatSpec with Matchers {
+  val log = Logger(getClass)
+
+  val rnd = new Random(11)
+  val typs = Seq("PERSON", "PERSON2", "ORGANIZATION", "FROM")
+  val cols = Seq("c0", "c1", "c2", "c3", "c4")
+  val numNodes = 200
+
+  val nodes = for (i <- 0 until numNodes) yield
+    s"""{"nodeId":${i * 3},"extRef":{"ids":[$i],"name":"n$i"},"typ":"${typs(rnd.nextInt(typs.size))}","score":${rnd.nextInt(10)}}"""
+  val edges = for (_ <- 0 until 3000) yield {
+    val (s, t) = (rnd.nextInt(numNodes), rnd.nextInt(numNodes))
+    val ws = rnd.shuffle(cols).take(1 + rnd.nextInt(3)).map(c => s""""$c":[${rnd.nextInt(20) * 0.25},${1 + rnd.nextInt(5)}]""")
+    s"""{"source":${s * 3},"target":${t * 3},"typ":"D61GAZ","weights":{${ws.mkString(",")}}}"""
+  }
+  val g = GraphSnapshot.heap(GraphSnapshot.fromJson(Source.fromString(nodes.mkString("\n")), Source.fromString(edges.mkString("\n"))))
+  val topEdges = new TopEdges(g)
+
+  "TopEdges" should "find the same top weights as a full scan" in {
+    for {
+      colSet <- Seq(None, Some(Set("c1")), Some(Set("c0", "c3")), Some(Set("c1", "c2", "c4")), Some(Set("nonexistent")))
+      minScore <- Seq(0.0, 5.0)
+      k <- Seq(0, 1, 10, 100, 5000)
+    } {
+      val mask = colSet.map(g.collectionMask)
+      val weight = (e: Int) => mask.map(g.weight(e, _)).getOrElse(g.totalWeight(e))
+      val eligible = (e: Int) => g.perOrgEdge(e) && g.minScore(e) >= minScore
+      val top = topEdges.top(k, mask, eligible)
+      val expected = (0 until g.numEdges).filter(eligible).map(weight).sorted.reverse.take(k).reverse
+      top.map(weight) should be(expected)
+      top.forall(eligible) should be(true)
+      top.distinct.size should be(top.size)
+    }
+  }
+
+  "GraphSnapshot.heap" should "match a snapshot written to and mapped from a file" in {
+    val f = java.io.File.createTempFile("graph", ".snapshot")
+    try {
+      val out = new java.io.FileOutputStream(f)
+      try GraphSnapshot.write(GraphSnapshot.fromJson(Source.fromString(nodes.mkString("\n")), Source.fromString(edges.mkString("\n"))), out) finally out.close
+      val m = GraphSnapshot.map(f)
+      (m.numNodes, m.numEdges, m.collections, m.nodeTyps, m.edgeTyps) should be((g.numNodes, g.numEdges, g.collections, g.nodeTyps, g.edgeTyps))
+      for (i <- 0 until g.numNodes) {
+        m.node(i) should be(g.node(i))
+        (m.outDegree(i), m.inDegree(i)) should be((g.outDegree(i), g.inDegree(i)))
+      }
+      for (e <- 0 until g.numEdges) (m.source(e), m.target(e), m.edgeTyp(e), m.weights(e)) should be((g.source(e), g.target(e), g.edgeTyp(e), g.weights(e)))
+      for (id <- 0L to numNodes; perOrg <- Seq(true, false)) m.extRefIdToNode(id, perOrg) should be(g.extRefIdToNode(id, perOrg))
+    } finally f.delete
+  }
+
+  "TopK" should "keep the highest scores" in {
+    val xs = Seq.fill(1000)(rnd.nextDouble)
+    val t = new TopK(10)
+    for ((x, i) <- xs.zipWithIndex) t.offer(x, i)
+    t.result.map(xs) should be(xs.sorted.takeRight(10))
+  }
+}
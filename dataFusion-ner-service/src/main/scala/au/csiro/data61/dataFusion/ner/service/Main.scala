@@ -1,7 +1,11 @@
 package au.csiro.data61.dataFusion.ner.service
 
+import java.util.concurrent.RejectedExecutionException
+
+import scala.concurrent.Future
 import scala.language.postfixOps
 import scala.reflect.runtime.universe.typeOf
+import scala.util.{ Failure, Success }
 
 import com.github.swagger.akka.{ HasActorSystem, SwaggerHttpService }
 import com.typesafe.config.ConfigFactory
@@ -10,11 +14,17 @@ import com.typesafe.scalalogging.Logger
 import akka.actor.ActorSystem
 import akka.http.scaladsl.Http
 import akka.http.scaladsl.marshallers.sprayjson.SprayJsonSupport._
+import akka.http.scaladsl.marshalling.ToResponseMarshaller
+import akka.http.scaladsl.model.{ HttpResponse, StatusCodes }
+import akka.http.scaladsl.model.headers.RawHeader
 import akka.http.scaladsl.server.Directives._
+import akka.http.scaladsl.server.Route
 import akka.stream.ActorMaterializer
 import au.csiro.data61.dataFusion.common.Data.Doc
 import au.csiro.data61.dataFusion.common.Data.JsonProtocol.docFormat
-import au.csiro.data61.dataFusion.ner.Main.{ CliOption, Impl, defaultCliOption }
+import au.csiro.data61.dataFusion.common.Metrics
+import au.csiro.data61.dataFusion.ner.Main.{ CliOption, Impl, Latency, defaultCliOption }
+import au.csiro.data61.dataFusion.ner.Main.JsonProtocol.latencyCodec
 import ch.megard.akka.http.cors.scaladsl.CorsDirectives.cors
 import io.swagger.annotations.{ Api, ApiOperation }
 import javax.ws.rs.{ Consumes, Path }
@@ -32,35 +42,74 @@ object Main {
   import JsonProtocol._
     
   
+  /**
+   * @param queueSize max number of documents waiting for a worker (further requests get 503 Service Unavailable)
+   * @param batchSize max number of waiting documents an idle worker takes as one task
+   * @param retryAfterSecs value for the Retry-After header of a 503 response
+   */
+  case class ServiceConfig(queueSize: Int, batchSize: Int, retryAfterSecs: Int)
+  
   @Api(value = "ner", description = "ner service", produces = "application/json")
   @Path("")
-  class NerService(impl: Impl)  {
+  class NerService(impl: Impl, serviceConfig: ServiceConfig)  {
+    import serviceConfig._
+    val executor = new NerExecutor(impl, impl.cliOption.numWorkers, queueSize, batchSize)
+    
+    /** complete with the result of `f`, or 503 if it was refused because too much is in progress */
+    def completeOrBusy[A](f: Future[A])(implicit m: ToResponseMarshaller[A]): Route = onComplete(f) {
+      case Success(a) => complete(a)
+      case Failure(e: RejectedExecutionException) => 
+        complete(HttpResponse(StatusCodes.ServiceUnavailable, List(RawHeader("Retry-After", retryAfterSecs.toString)), e.getMessage))
+      case Failure(e) =>
+        log.error("ner error", e)
+        complete((StatusCodes.InternalServerError, s"${e.getClass.getName}: ${e.getMessage}"))
+    }
 
     @Path("ner")
     @ApiOperation(httpMethod = "POST", response = classOf[Doc], value = "input augmented with Named Entities")
     @Consumes(Array(MediaType.APPLICATION_JSON))
-    def ner(d: Doc): Doc = impl.langNer(d)
+    def ner(d: Doc): Future[Doc] = executor.langNer(d)
         
     def nerRoute =
-      post { path("langNer") { entity(as[Doc]) { in => complete {
-        ner(in)
-      }}}}
+      post { path("langNer") { entity(as[Doc]) { in => 
+        completeOrBusy(ner(in))
+      }}}
     
     // ----------------------------------------------------------
   
     @Path("nerMulti")
     @ApiOperation(httpMethod = "POST", response = classOf[Docs], value = "input augmented with Named Entities")
     @Consumes(Array(MediaType.APPLICATION_JSON))
-    def nerMulti(d: Docs) = Docs(d.docs.map(impl.langNer))
+    def nerMulti(d: Docs): Future[Docs] = executor.langNerMulti(d.docs).map(Docs)(scala.concurrent.ExecutionContext.global)
         
     def nerMultiRoute =
-      post { path("langNerMulti") { entity(as[Docs]) { in => complete {
-        nerMulti(in)
-      }}}}
+      post { path("langNerMulti") { entity(as[Docs]) { in => 
+        completeOrBusy(nerMulti(in))
+      }}}
+  
+    // ----------------------------------------------------------
+  
+    @Path("latency")
+    @ApiOperation(httpMethod = "GET", response = classOf[Latency], responseContainer = "List", value = "time taken by each NER implementation since startup")
+    def latency: List[Latency] = impl.latency
+        
+    def latencyRoute =
+      get { path("latency") { complete {
+        latency
+      }}}
+  
+    @Path("metrics")
+    @ApiOperation(httpMethod = "GET", response = classOf[String], value = "counters, gauges and latency histograms (in millis) since startup, including percentiles for each NER implementation")
+    def metrics = Metrics.toJson
+        
+    def metricsRoute =
+      get { path("metrics") { complete {
+        metrics
+      }}}
   
     // ----------------------------------------------------------
   
-    val routes = nerRoute ~ nerMultiRoute
+    val routes = nerRoute ~ nerMultiRoute ~ latencyRoute ~ metricsRoute
   }
   
   def swaggerService(hst: String, prt: Int)(implicit s: ActorSystem, m: ActorMaterializer) = new SwaggerHttpService with HasActorSystem {
@@ -78,13 +127,14 @@ object Main {
     val conf = ConfigFactory.load
     val host = conf.getString("http.host")
     val port = conf.getInt("http.port")
+    val serviceConfig = ServiceConfig(conf.getInt("ner.queueSize"), conf.getInt("ner.batchSize"), conf.getInt("ner.retryAfterSecs"))
     
     implicit val system = ActorSystem("nerActorSystem")
     implicit val exec = system.dispatcher
     implicit val materializer = ActorMaterializer()
     
     val routes = cors() {
-      new NerService(impl).routes ~ 
+      new NerService(impl, serviceConfig).routes ~ 
       swaggerService(host, port).routes
     }
     
@@ -108,6 +158,15 @@ Test with:
       opt[Boolean]('m', "mitie") action { (v, c) =>
         c.copy(mitie = v)
       } text (s"Use MITIE (default ${defaultCliOption.mitie})")
+      opt[Int]('n', "numWorkers") action { (v, c) =>
+        c.copy(numWorkers = v)
+      } text (s"number of documents processed concurrently (default ${defaultCliOption.numWorkers} the number of CPUs)")
+      opt[Int]("chunkSize") action { (v, c) =>
+        c.copy(chunkSize = v)
+      } text (s"content longer than this many chars is split into chunks which are processed concurrently, 0 for no splitting (default ${defaultCliOption.chunkSize})")
+      opt[Int]("chunkOverlap") action { (v, c) =>
+        c.copy(chunkOverlap = v)
+      } text (s"each chunk is processed with this many chars of the following chunk (default ${defaultCliOption.chunkOverlap})")
       help("help") text ("prints this usage text")
     }
     
@@ -0,0 +1,96 @@
+package au.csiro.data61.dataFusion.ner.service
+
+import java.util.concurrent.{ Executors, LinkedBlockingQueue, RejectedExecutionException, Semaphore, ThreadFactory }
+import java.util.concurrent.atomic.AtomicInteger
+
+import scala.collection.JavaConverters.asScalaBufferConverter
+import scala.concurrent.{ ExecutionContext, Future, Promise }
+import scala.util.Try
+
+import com.typesafe.scalalogging.Logger
+
+import au.csiro.data61.dataFusion.common.Data.Doc
+import au.csiro.data61.dataFusion.ner.Main.Impl
+
+/**
+ * Runs NER for the service on a dedicated pool of `numWorkers` threads (rather than akka's dispatcher).
+ *
+ * Admission is limited to `numWorkers + queueSize` documents in progress, further requests fail with
+ * RejectedExecutionException.
+ * Documents are handed to a worker as soon as one is idle, so there is no waiting for a batch to fill.
+ * While all the workers are busy documents queue up, and an idle worker then takes its share of those waiting
+ * (up to `batchSize`) as one pool task, so under load the hand-off cost is spread over a batch.
+ * The documents of a multi-document request are queued individually, so they are processed in parallel.
+ */
+class NerExecutor(impl: Impl, numWorkers: Int, queueSize: Int, batchSize: Int) {
+  private val log = Logger(getClass)
+  
+  val maxInFlight = numWorkers + queueSize
+  private val admission = new Semaphore(maxInFlight)
+  
+  private def daemonFactory(name: String) = new ThreadFactory {
+    val n = new AtomicInteger
+    override def newThread(r: Runnable) = {
+      val t = new Thread(r, s"$name-${n.incrementAndGet}")
+      t.setDaemon(true)
+      t
+    }
+  }
+  private val pool = Executors.newFixedThreadPool(numWorkers, daemonFactory("ner"))
+  private implicit val poolEC = ExecutionContext.fromExecutor(pool)
+
+  private type Pending = (Doc, Promise[Doc])
+  private val pending = new LinkedBlockingQueue[Pending]
+  private val idle = new Semaphore(numWorkers)
+  
+  /**
+   * wait for an idle worker and a doc, then take this worker's share of the docs waiting (up to batchSize).
+   * The share is of all the workers, as busy workers will soon be idle and shouldn't be left with nothing to do.
+   */
+  private def nextBatch: Seq[Pending] = {
+    idle.acquire
+    val b = new java.util.ArrayList[Pending]
+    b.add(pending.take)
+    val share = (pending.size + numWorkers) / numWorkers // ceil((waiting + this one) / numWorkers)
+    pending.drainTo(b, Math.min(share, batchSize) - 1)
+    b.asScala
+  }
+  
+  private val batcher = daemonFactory("ner-batcher").newThread { () =>
+    while (true) {
+      val batch = nextBatch
+      pool.execute { () =>
+        try for ((d, p) <- batch) p.complete(Try(impl.langNer(d)))
+        finally idle.release
+      }
+    }
+  }
+  batcher.start
+  
+  private def admit(n: Int): Boolean = {
+    val ok = admission.tryAcquire(n)
+    if (!ok) log.warn(s"admit: refusing $n docs, ${admission.availablePermits} of $maxInFlight slots free")
+    ok
+  }
+  
+  private def rejected = Future.failed(new RejectedExecutionException(s"more than $maxInFlight documents in progress"))
+  
+  private def enqueue(d: Doc): Future[Doc] = {
+    val p = Promise[Doc]
+    pending.put((d, p))
+    p.future
+  }
+  
+  def langNer(d: Doc): Future[Doc] = if (!admit(1)) rejected else {
+    enqueue(d).andThen { case _ => admission.release }
+  }
+  
+  /** a request larger than maxInFlight is admitted only when nothing else is in progress */
+  def langNerMulti(ds: List[Doc]): Future[List[Doc]] = {
+    val n = Math.min(ds.size, maxInFlight)
+    if (!admit(n)) rejected else {
+      Future.sequence(ds.map(enqueue))
+        .andThen { case _ => admission.release(n) }
+    }
+  }
+}
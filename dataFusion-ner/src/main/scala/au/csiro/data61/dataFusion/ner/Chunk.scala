@@ -0,0 +1,100 @@
+package au.csiro.data61.dataFusion.ner
+
+import scala.collection.mutable.ListBuffer
+import scala.concurrent.{ Await, ExecutionContext, Future }
+import scala.concurrent.duration.Duration
+
+import com.typesafe.scalalogging.Logger
+
+import au.csiro.data61.dataFusion.common.Data.Ner
+
+/**
+ * NER of large content in chunks processed concurrently, so that multi-megabyte (e.g. OCR) text doesn't occupy one
+ * worker for many minutes.
+ *
+ * Chunks end at a paragraph, line, sentence or word boundary, never inside a word. Each chunk is processed with `overlap`
+ * chars of the following text, so that an entity crossing the end of a chunk is found whole. A chunk keeps the Ner's
+ * starting within it, except those starting inside an entity kept by the previous chunk from the same implementation
+ * (the tail of an entity crossing the boundary). Offsets are rebased to the whole content and token positions are rebased by the number of
+ * tokens in preceding chunks, so the result matches processing the whole content (except where an implementation's
+ * results depend on context beyond the overlap).
+ */
+object Chunk {
+  private val log = Logger(getClass)
+
+  /** (Ner's, char offset of the start of each token) */
+  type NerToks = (List[Ner], Array[Int])
+  type nerToksT = (String, String) => NerToks // (lang, content)
+
+  /**
+   * @return (start, end) of consecutive chunks covering `in`, each ending after whitespace (except the last),
+   * of at most `chunkSize` chars (and more than half that except for the last) unless there is no whitespace in the
+   * second half, in which case the chunk is extended to the next whitespace (or the end of `in` if there is none)
+   */
+  def chunks(in: String, chunkSize: Int): List[(Int, Int)] = {
+    val l = ListBuffer[(Int, Int)]()
+    var s = 0
+    while (s < in.length) {
+      val max = s + chunkSize
+      val e = if (max >= in.length) in.length else {
+        val min = s + chunkSize / 2
+        def after(sep: String) = {
+          val i = in.lastIndexOf(sep, max - sep.length)
+          if (i >= min) Some(i + sep.length) else None
+        }
+        def afterSpace = {
+          var i = max
+          while (i > min && !Character.isWhitespace(in.charAt(i - 1))) i -= 1
+          if (i > min) Some(i) else None
+        }
+        def afterNextSpace = {
+          var i = max
+          while (i < in.length && !Character.isWhitespace(in.charAt(i))) i += 1
+          Math.min(in.length, i + 1)
+        }
+        after("\n\n") orElse after("\n") orElse after(". ") orElse afterSpace getOrElse afterNextSpace
+      }
+      l += ((s, e))
+      s = e
+    }
+    l.toList
+  }
+
+  /** @return end of the text processed for the chunk ending at `end`: `overlap` chars further, extended to the end of a word */
+  def windowEnd(in: String, end: Int, overlap: Int): Int = {
+    var e = Math.min(in.length, end + overlap)
+    while (e < in.length && !Character.isWhitespace(in.charAt(e))) e += 1
+    e
+  }
+
+  /** @return number of elements of sorted `a` < x */
+  def countLess(a: Array[Int], x: Int): Int = {
+    var (lo, hi) = (0, a.length)
+    while (lo < hi) {
+      val mid = (lo + hi) >>> 1
+      if (a(mid) < x) lo = mid + 1 else hi = mid
+    }
+    lo
+  }
+
+  /** @return Ner's from `n` run over the chunks of `in` concurrently using `ec` */
+  def nerChunked(n: nerToksT, lang: String, in: String, chunkSize: Int, overlap: Int)(implicit ec: ExecutionContext): List[Ner] = {
+    val cs = chunks(in, chunkSize)
+    log.debug(s"nerChunked: ${in.length} chars in ${cs.size} chunks")
+    val results = Await.result(Future.traverse(cs) { case (s, e) => Future {
+      (s, e, n(lang, in.substring(s, windowEnd(in, e, overlap))))
+    }}, Duration.Inf)
+
+    val out = ListBuffer[Ner]()
+    var pos = 0      // number of tokens before this chunk
+    var crossEnd = Map.empty[String, Int] withDefaultValue 0 // impl -> end of any entity crossing into this chunk from the previous one
+    for ((s, e, (ners, toks)) <- results) {
+      val len = e - s
+      val kept = ners.filter(x => x.offStr < len && x.offStr + s >= crossEnd(x.impl))
+      out ++= kept.map(x => x.copy(posStr = x.posStr + pos, posEnd = x.posEnd + pos, offStr = x.offStr + s, offEnd = x.offEnd + s))
+      crossEnd = kept.groupBy(_.impl).mapValues(_.foldLeft(e)((m, x) => Math.max(m, x.offEnd + s))).toMap withDefaultValue e
+      pos += countLess(toks, len)
+    }
+    out.toList
+  }
+}
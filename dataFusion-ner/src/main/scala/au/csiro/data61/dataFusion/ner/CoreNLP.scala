@@ -10,8 +10,10 @@ import com.typesafe.scalalogging.Logger
 import au.csiro.data61.dataFusion.common.Data.Ner
 import edu.stanford.nlp.ling.CoreAnnotations.{ SentencesAnnotation, TokensAnnotation }
 import edu.stanford.nlp.ling.CoreLabel
+import edu.stanford.nlp.ling.CoreAnnotations.TextAnnotation
 import edu.stanford.nlp.pipeline.Annotator.{ STANFORD_LEMMA, STANFORD_NER, STANFORD_POS, STANFORD_SSPLIT, STANFORD_TOKENIZE }
 import edu.stanford.nlp.pipeline.StanfordCoreNLP
+import Preprocess.Tokenized
 import resource.managed
 
 object CoreNLP {
@@ -23,16 +25,21 @@ object CoreNLP {
   
   object English {
     // use hard-coded default properties for English models
+    val nerProps = Map(
+      "ner.combinationMode" -> "HIGH_RECALL",
+      "ner.applyFineGrained" -> "false"
+    )
     val nlp = {
-      val p = Map(
-        "annotators" -> Seq(STANFORD_TOKENIZE, STANFORD_SSPLIT, STANFORD_POS, STANFORD_LEMMA, STANFORD_NER).mkString(", "),
-        "ner.combinationMode" -> "HIGH_RECALL",
-        "ner.applyFineGrained" -> "false"
-      ).toProps
+      val p = (nerProps + ("annotators" -> Seq(STANFORD_TOKENIZE, STANFORD_SSPLIT, STANFORD_POS, STANFORD_LEMMA, STANFORD_NER).mkString(", "))).toProps
       val nlp = CoreNLP.synchronized { new StanfordCoreNLP(p, true) } // synchronized else multi-threaded sbt test fails
       log.debug(s"CoreNLP English pipeline initialized with properties: ${p.asScala}")
       nlp
     }
+    /** the rest of the pipeline, for text already tokenized by Preprocess */
+    lazy val tagger = {
+      val p = (nerProps + ("annotators" -> Seq(STANFORD_POS, STANFORD_LEMMA, STANFORD_NER).mkString(", "))).toProps
+      CoreNLP.synchronized { new StanfordCoreNLP(p, false) }
+    }
   }
   
 //  object Spanish {
@@ -88,8 +95,6 @@ object CoreNLP {
    * returns (Ner's, posEnd) where: posEnd = index of last token + 1
    */
   def nersPosEndOffEnd(lang: String, in: String): (List[Ner], Int) = {
-    val NOT_NER = "O" // non-ners including the sentence boundary "." have this value for CoreLabel.ner
-  
     // the "get(classOf[" code to pull apart the Annotation object is based on: edu.stanford.nlp.pipeline.XMLOutputter
     var tokenIdx = 0
     val tokens = for {
@@ -100,9 +105,14 @@ object CoreNLP {
       token <- tokens.asScala
     } yield IdxTok(idx, token)
     
-    // filter named entities and merge e.g. LOCATION "New", LOCATION "York" into LOCATION "New York"
-    tokens += IdxTok(-1, new CoreLabel) // append a dummy
-    val ners = tokens.foldLeft((new ListBuffer[Ner], None: Option[IdxTok], None: Option[IdxTok])) {
+    (toNers(tokens, in), tokenIdx)
+  }
+  
+  /** filter named entities and merge e.g. LOCATION "New", LOCATION "York" into LOCATION "New York" */
+  def toNers(tokens: Seq[IdxTok], in: String): List[Ner] = {
+    val NOT_NER = "O" // non-ners including the sentence boundary "." have this value for CoreLabel.ner
+    val withDummy = tokens :+ IdxTok(-1, new CoreLabel) // append a dummy
+    withDummy.foldLeft((new ListBuffer[Ner], None: Option[IdxTok], None: Option[IdxTok])) {
         case ((lst, None, _), idxTok) => (lst, Some(idxTok), None)
         case ((lst, optFirst @ Some(first), optLast), idxTok) => {
           if (first.tok.ner == idxTok.tok.ner) // same NE type (may be NOT_NER) so update optLast
@@ -111,8 +121,20 @@ object CoreNLP {
             (if (first.tok.ner != NOT_NER) lst += first.toNer(optLast, in) else lst, Some(idxTok), None)
         }
       }._1.toList
-    
-    (ners, tokenIdx)
+  }
+  
+  /** NER on text already tokenized by Preprocess, with token indices into `t.words` */
+  def ner(t: Tokenized): List[Ner] = t.paras.toList.flatMap { p =>
+    English.tagger.annotate(p.ann)
+    var tokenIdx = p.tokIdx
+    val tokens = for {
+      sentence <- p.ann.get(classOf[SentencesAnnotation]).asScala
+      tokens = sentence.get(classOf[TokensAnnotation])
+      idx = tokenIdx
+      _ = tokenIdx += tokens.size
+      token <- tokens.asScala
+    } yield IdxTok(idx, token)
+    toNers(tokens, p.ann.get(classOf[TextAnnotation])).map(n => n.copy(offStr = n.offStr + p.off, offEnd = n.offEnd + p.off))
   }
   
   def nerSplitParagraphs(lang: String, in: String, splitmin: Int, splitmax: Int): List[Ner] = {
@@ -8,11 +8,12 @@ import scala.language.{ implicitConversions, reflectiveCalls }
 import com.typesafe.config.ConfigFactory
 import com.typesafe.scalalogging.Logger
 
-import edu.mit.ll.mitie.{ NamedEntityExtractor, global }
+import edu.mit.ll.mitie.{ NamedEntityExtractor, StringVector, global }
 
 import au.csiro.data61.dataFusion.common.Data.Ner
 import java.nio.charset.Charset
 import au.csiro.data61.dataFusion.common.Timer
+import Preprocess.Tokenized
 
 /**
  * MITIE https://github.com/mit-nlp/MITIE
@@ -107,6 +108,22 @@ object MITIE {
         )
       }.toList
     }
+    
+    /** NER on text already tokenized by Preprocess (so no UTF-8 to Java offset conversion is needed) */
+    def ner(t: Tokenized): List[Ner] = {
+      val words = new StringVector
+      try {
+        t.words.foreach(words.add)
+        neExtractor.get.extractEntities(words).map { e =>
+          val (offStr, offEnd) = (t.begins(e.getStart), t.ends(e.getEnd - 1))
+          Ner(
+            e.getStart, e.getEnd, offStr, offEnd,
+            e.getScore, t.text.substring(offStr, offEnd),
+            neTypes(e.getTag), "MITIE", None
+          )
+        }.toList
+      } finally words.delete
+    }
   }
     
   object English {
@@ -129,4 +146,5 @@ object MITIE {
 //      }
 //    }
   def ner(lang: String, in: String): List[Ner] = English.nlp.ner(in)
+  def ner(t: Tokenized): List[Ner] = English.nlp.ner(t)
 }
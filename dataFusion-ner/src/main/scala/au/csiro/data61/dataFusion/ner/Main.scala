@@ -1,23 +1,24 @@
 package au.csiro.data61.dataFusion.ner
 
 import java.io.File
+import java.util.concurrent.{ Executors, ThreadFactory }
+import java.util.concurrent.atomic.AtomicInteger
 
 import scala.collection.concurrent.TrieMap
 import scala.concurrent.{ Await, ExecutionContext, Future }
 import scala.concurrent.duration.DurationInt
-import scala.io.Source
 import scala.language.postfixOps
-import scala.util.control.NonFatal
 
 import com.typesafe.scalalogging.Logger
 
 import au.csiro.data61.dataFusion.common.Data.{ Doc, Embedded }
 import au.csiro.data61.dataFusion.common.Data.{ META_LANG_CODE, Ner }
 import au.csiro.data61.dataFusion.common.Data.JsonProtocol.docFormat
-import au.csiro.data61.dataFusion.common.Parallel.doParallel
-import au.csiro.data61.dataFusion.common.Util.bufWriter
+import au.csiro.data61.dataFusion.common.{ DocIO, Metrics, Pipeline }
+import au.csiro.data61.dataFusion.common.DocIO.DocRecord
+import au.csiro.data61.dataFusion.ner.Chunk.NerToks
+import au.csiro.data61.dataFusion.ner.Preprocess.Tokenized
 import resource.managed
-import spray.json.{ pimpAny, pimpString }
 import spray.json.DefaultJsonProtocol._
 
 object Main {
@@ -25,8 +26,12 @@ object Main {
   
   case class Docs(docOuts: List[Doc])
   
+  /** per NER implementation latency summary */
+  case class Latency(impl: String, count: Long, meanMillis: Double, maxMillis: Double)
+  
   object JsonProtocol {
     implicit val docsCodec = jsonFormat1(Docs)
+    implicit val latencyCodec = jsonFormat4(Latency)
   }
   import JsonProtocol._
   
@@ -43,15 +48,54 @@ object Main {
     log.info("NLP models loaded")
         
     type nerT = (String, String) => List[Ner] // (lang, content)
-    def nerIf(p: Boolean, n: nerT) = if (p) List(n) else List.empty
-    val ners = nerIf(cliOption.corenlp, CoreNLP.ner) ++
-      nerIf(cliOption.opennlp, OpenNLP.ner) ++
-      nerIf(cliOption.mitie, MITIE.ner)
-      // ++ List(forever _)
+    
+    /** accumulates the time taken by a stage of NER processing, in the Metrics histogram `ner.<name>` */
+    class Timed[A, B](val name: String, f: A => B) extends (A => B) {
+      private val histogram = Metrics.histogram(s"ner.$name")
+      
+      def apply(a: A): B = histogram.time(f(a))
+      
+      def latency = {
+        val s = histogram.snapshot
+        Latency(name, s.count, s.meanMillis, s.maxMillis)
+      }
+    }
+    
+    // sentence splitting and tokenization shared by all the NER implementations
+    val tokenize = new Timed("tokenize", (Preprocess.tokenize _).tupled)
+    
+    def nerIf(p: Boolean, name: String, n: Tokenized => List[Ner]) = if (p) List(new Timed(name, n)) else List.empty
+    val ners = nerIf(cliOption.corenlp, "CoreNLP", (t: Tokenized) => CoreNLP.ner(t)) ++
+      nerIf(cliOption.opennlp, "OpenNLP", (t: Tokenized) => OpenNLP.ner(t)) ++
+      nerIf(cliOption.mitie, "MITIE", (t: Tokenized) => MITIE.ner(t))
+    
+    /** time taken by tokenization and each NER implementation since startup */
+    def latency: List[Latency] = tokenize.latency :: ners.map(_.latency)
     
     def ordering(a: Ner, b: Ner) = a.posStr < b.posStr || a.posStr == b.posStr && a.posEnd < b.posEnd
         
-    def ner(lang: String, in: String): List[Ner] = ners.flatMap(_(lang, in)).sortWith(ordering)
+    // threads for chunks of large content (separate from the callers' threads, which wait for the chunks)
+    lazy val chunkEC = ExecutionContext.fromExecutorService(Executors.newFixedThreadPool(cliOption.numWorkers, new ThreadFactory {
+      val n = new AtomicInteger
+      override def newThread(r: Runnable) = {
+        val t = new Thread(r, s"ner-chunk-${n.incrementAndGet}")
+        t.setDaemon(true)
+        t
+      }
+    }))
+    
+    /** tokenize once then run all the NER implementations on the tokens */
+    def nerToks(lang: String, in: String): NerToks = {
+      val t = tokenize((lang, in))
+      (ners.flatMap(_(t)), t.begins)
+    }
+    
+    def ner(lang: String, in: String): List[Ner] = {
+      val chunked = cliOption.chunkSize > 0 && in.length > cliOption.chunkSize
+      val x = if (chunked) Chunk.nerChunked(nerToks, lang, in, cliOption.chunkSize, cliOption.chunkOverlap)(chunkEC)
+        else nerToks(lang, in)._1
+      x.sortWith(ordering)
+    }
     
     // all we do with this is compare it to "es" for Spanish processing else English
     def getLang(m: Map[String, String]) = m.get(META_LANG_CODE).getOrElse("en")
@@ -73,6 +117,7 @@ object Main {
           
     // identify path for which runtime is long, perhaps infinite, so we can add it to black list next run
     val inProgress = TrieMap.empty[String, Long] // path -> start time
+    Metrics.gauge("cliNer.inProgress")(inProgress.size)
     @volatile var t0 = System.currentTimeMillis
     val logDone = -1L
     val oneMinute = 60000L
@@ -99,41 +144,35 @@ object Main {
     logThread.setDaemon(true)
     logThread.start
       
-    for (w <- managed(bufWriter(impl.cliOption.output))) {
+    for (w <- managed(DocIO.docWriter(impl.cliOption.output, impl.cliOption.format))) {
       
       var cntIn = 0
-      val in = Source.fromInputStream(System.in, "UTF-8").getLines.flatMap { json =>
+      val in = DocIO.records(System.in).map { r =>
         if (cntIn % 1000 == 0) log.info(s"NerCli.run() in: read $cntIn")
-        try {
-          val d = json.parseJson.convertTo[Doc]
-          cntIn += 1
-          Iterator.single(d)
-        } catch { case NonFatal(e) =>
-          log.error(s"Couldn't decode json as Doc: json = $json", e)
-          Iterator.empty
-        }
+        cntIn += 1
+        r
       }
       
-      def work(d: Doc): Doc =  {
+      // decoding and encoding done here in parallel, rather than in the input/output threads
+      def work(r: DocRecord): Array[Byte] = {
+        val d = r.doc
         inProgress += d.path -> System.currentTimeMillis
-        try impl.langNer(d)
+        try w.encode(impl.langNer(d))
         finally inProgress.remove(d.path)
       }
       
-      def out(d: Doc): Unit = {
-        w.write(d.toJson.compactPrint)
-        w.write('\n')
-      }
-      val done = Doc(0, None, Map.empty, "done", List.empty, List.empty)
-      doParallel(in, work, out, done, done, impl.cliOption.numWorkers)
-      log.info("work complete")
+      def out(a: Array[Byte]): Unit = w.writeEncoded(a)
+      
+      val conf = Pipeline.Config(impl.cliOption.numWorkers, impl.cliOption.ordered, impl.cliOption.batchSize, name = "cliNer")
+      Pipeline.runWithDeadLetter(in, work, out, conf, impl.cliOption.deadLetter, (r: DocRecord) => r.json)
+      log.info(s"work complete: NER latency ${impl.latency}")
     }
     t0 = logDone
     // logThread.join // not necessary with daemon thread, can take up to 1 min to wake up
   }
   
-  case class CliOption(output: File, corenlp: Boolean, opennlp: Boolean, mitie: Boolean, numWorkers: Int)
-  val defaultCliOption = CliOption(new File("ner.json"), true, true, true, Runtime.getRuntime.availableProcessors)
+  case class CliOption(output: File, format: String, corenlp: Boolean, opennlp: Boolean, mitie: Boolean, numWorkers: Int, ordered: Boolean, batchSize: Int, deadLetter: Option[File], chunkSize: Int, chunkOverlap: Int)
+  val defaultCliOption = CliOption(new File("ner.json"), DocIO.JSON, true, true, true, Runtime.getRuntime.availableProcessors, false, 1, Some(new File("ner-failed.json")), 0, 500)
 
   def main(args: Array[String]): Unit = {
     
@@ -143,6 +182,11 @@ object Main {
       opt[File]("output") action { (v, c) =>
         c.copy(output = v)
       } text (s"output JSON file, (default ${defaultCliOption.output.getPath})")
+      opt[String]("format") action { (v, c) =>
+        c.copy(format = v)
+      } validate { v =>
+        if (DocIO.formats contains v) success else failure(s"format must be one of ${DocIO.formats.mkString(", ")}")
+      } text (s"output format: ${DocIO.formats.mkString("|")} (default ${defaultCliOption.format}), input format is detected")
       opt[Boolean]('c', "corenlp") action { (v, c) =>
         c.copy(corenlp = v)
       } text (s"Use CoreNLP (default ${defaultCliOption.corenlp})")
@@ -155,6 +199,24 @@ object Main {
       opt[Int]('n', "numWorkers") action { (v, c) =>
         c.copy(numWorkers = v)
       } text (s"numWorkers (default ${defaultCliOption.numWorkers} the number of CPUs)")
+      opt[Boolean]("ordered") action { (v, c) =>
+        c.copy(ordered = v)
+      } text (s"whether output is in input order (default ${defaultCliOption.ordered})")
+      opt[Int]("batchSize") action { (v, c) =>
+        c.copy(batchSize = v)
+      } text (s"number of documents passed between threads at a time (default ${defaultCliOption.batchSize})")
+      opt[File]("deadLetter") action { (v, c) =>
+        c.copy(deadLetter = Some(v))
+      } text (s"JSON for documents that fail is written to this file, which can be used as input for a re-run (default ${defaultCliOption.deadLetter.get.getPath})")
+      opt[Unit]("failFast") action { (_, c) =>
+        c.copy(deadLetter = None)
+      } text (s"abort the run on the first document that fails, rather than writing it to the deadLetter file")
+      opt[Int]("chunkSize") action { (v, c) =>
+        c.copy(chunkSize = v)
+      } text (s"content longer than this many chars is split into chunks of this size (at paragraph, line or sentence boundaries where possible) which are processed concurrently, 0 for no splitting (default ${defaultCliOption.chunkSize})")
+      opt[Int]("chunkOverlap") action { (v, c) =>
+        c.copy(chunkOverlap = v)
+      } text (s"each chunk is processed with this many chars of the following chunk, so that entities crossing chunk boundaries are found (default ${defaultCliOption.chunkOverlap})")
       help("help") text ("prints this usage text")
     }
     
@@ -16,6 +16,7 @@ import opennlp.tools.tokenize.{ TokenizerME, TokenizerModel }
 import resource.managed
 
 import au.csiro.data61.dataFusion.common.Data.Ner
+import Preprocess.Tokenized
 
 object OpenNLP {
    val log = Logger(getClass)
@@ -77,6 +78,21 @@ object OpenNLP {
       ners.foreach(_.clearAdaptiveData)
       r.toList
     }
+    
+    /** NER on text already tokenized by Preprocess */
+    def ner(t: Tokenized): List[Ner] = {
+      val r = for {
+        (sStr, sEnd) <- t.sentenceRanges.toList // strict, so all the finds are done before clearAdaptiveData
+        tokens = t.words.slice(sStr, sEnd)
+        ner <- ners
+        s <- ner.find(tokens)
+        start = t.begins(sStr + s.getStart)
+        end = t.ends(sStr + s.getEnd - 1)
+      } yield Ner(sStr + s.getStart, sStr + s.getEnd, start, end, s.getProb, t.text.substring(start, end), s.getType.toUpperCase, "OpenNLP", None)
+      
+      ners.foreach(_.clearAdaptiveData)
+      r
+    }
   }
   val enOpenNLP = new ThreadLocal[EnOpenNLP] {
     override protected def initialValue = new EnOpenNLP
@@ -124,4 +140,5 @@ object OpenNLP {
 //      }
 //    }
   def ner(lang: String, in: String): List[Ner] = enOpenNLP.get.ner(in)
+  def ner(t: Tokenized): List[Ner] = enOpenNLP.get.ner(t)
 }
@@ -0,0 +1,72 @@
+package au.csiro.data61.dataFusion.ner
+
+import scala.collection.JavaConverters.asScalaBufferConverter
+
+import com.typesafe.scalalogging.Logger
+
+import edu.stanford.nlp.ling.CoreAnnotations.{ SentencesAnnotation, TokensAnnotation }
+import edu.stanford.nlp.pipeline.{ Annotation, StanfordCoreNLP }
+import edu.stanford.nlp.pipeline.Annotator.{ STANFORD_SSPLIT, STANFORD_TOKENIZE }
+import CoreNLP.mapPropOps
+
+/**
+ * Sentence splitting and tokenization done once per text and shared by the NER implementations
+ * (rather than each doing its own).
+ * CoreNLP's tokenizer is used, so that CoreNLP can continue with the rest of its pipeline on the same Annotation.
+ * The text is processed in paragraphs of 20 - 60 lines (see `Split.splitParagraphs`) because CoreNLP doesn't terminate on long input.
+ */
+object Preprocess {
+  private val log = Logger(getClass)
+
+  lazy val nlp = {
+    val p = Map("annotators" -> Seq(STANFORD_TOKENIZE, STANFORD_SSPLIT).mkString(", ")).toProps
+    CoreNLP.synchronized { new StanfordCoreNLP(p, true) }
+  }
+
+  /**
+   * A paragraph of the text as processed by CoreNLP's tokenize and ssplit annotators.
+   * @param off char offset of the paragraph in the text
+   * @param tokIdx index of the paragraph's first token in the text
+   */
+  case class Para(off: Int, tokIdx: Int, ann: Annotation)
+
+  /**
+   * Sentences and tokens of `text`.
+   * Token indices (used for Ner.posStr/posEnd by all implementations) are indices into `words`.
+   * @param words text of each token
+   * @param begins char offset of the start of each token
+   * @param ends char offset of the end of each token
+   * @param sentences token index of the start of each sentence, followed by words.length
+   */
+  class Tokenized(val text: String, val paras: IndexedSeq[Para], val words: Array[String], val begins: Array[Int], val ends: Array[Int], val sentences: Array[Int]) {
+    /** (start, end) token indices of each sentence */
+    def sentenceRanges: Iterator[(Int, Int)] = sentences.iterator.sliding(2).withPartial(false).map(x => (x(0), x(1)))
+  }
+
+  def tokenize(lang: String, in: String): Tokenized = {
+    val words = Array.newBuilder[String]
+    val begins = Array.newBuilder[Int]
+    val ends = Array.newBuilder[Int]
+    val sentences = Array.newBuilder[Int]
+    var tokIdx = 0
+    var off = 0
+    val paras = Split.splitParagraphs(in.split("\n"), 20, 60).map { case (_, _, lines) =>
+      val ann = nlp.process(lines)
+      val p = Para(off, tokIdx, ann)
+      for (s <- ann.get(classOf[SentencesAnnotation]).asScala) {
+        sentences += tokIdx
+        for (t <- s.get(classOf[TokensAnnotation]).asScala) {
+          val (b, e) = (off + t.beginPosition, off + t.endPosition)
+          words += in.substring(b, e) // original text rather than t.word, which has PTB escapes such as -LRB-
+          begins += b
+          ends += e
+          tokIdx += 1
+        }
+      }
+      off += lines.length
+      p
+    }.toIndexedSeq
+    sentences += tokIdx
+    new Tokenized(in, paras, words.result, begins.result, ends.result, sentences.result)
+  }
+}
@@ -0,0 +1,64 @@
+package au.csiro.data61.dataFusion.ner
+
+import scala.concurrent.ExecutionContext.Implicits.global
+
+import org.scalatest.{ FlatSpec, Matchers }
+
+import com.typesafe.scalalogging.Logger
+
+import au.csiro.data61.dataFusion.common.Data.Ner
+import Chunk._
+
+class ChunkTest extends FlatSpec with Matchers {
+  val log = Logger(getClass)
+  
+  /** a toy recognizer: tokens are separated by whitespace, an entity is a run of capitalized tokens */
+  def toyNer(lang: String, in: String): NerToks = {
+    val toks = """\S+""".r.findAllMatchIn(in).map(m => (m.start, m.end)).toIndexedSeq
+    def cap(i: Int) = in.charAt(toks(i)._1).isUpper
+    val ners = Iterator.iterate(0)(i => i + 1).takeWhile(_ < toks.size).filter(i => cap(i) && (i == 0 || !cap(i - 1))).map { i =>
+      val j = (i until toks.size).takeWhile(cap).last + 1
+      val (offStr, offEnd) = (toks(i)._1, toks(j - 1)._2)
+      Ner(i, j, offStr, offEnd, 1.0, in.substring(offStr, offEnd), "X", "toy", None)
+    }.toList
+    (ners, toks.map(_._1).toArray)
+  }
+  
+  val text = (for (i <- 1 to 40) yield 
+    s"Line $i mentions Alice Smith and then\nBob Jones of Big Corp Limited near the end of sentence $i. More text follows here.\n" + (if (i % 7 == 0) "\n" else "")
+  ).mkString
+  
+  "chunks" should "cover the input, preferring paragraph or line ends" in {
+    val cs = chunks(text, 300)
+    cs.head._1 should be(0)
+    cs.last._2 should be(text.length)
+    cs.sliding(2).forall { case List(a, b) => a._2 == b._1 } should be(true)
+    cs.forall { case (s, e) => e - s <= 300 } should be(true)
+    cs.init.forall { case (s, e) => text.charAt(e - 1) == '\n' } should be(true)
+  }
+  
+  it should "not split a word longer than half the chunkSize" in {
+    chunks("x" * 25, 10) should be(List((0, 25)))
+    chunks("ab " + "x" * 12 + " cd\tefgh ij", 10) should be(List((0, 16), (16, 26)))
+    chunks("ab cd efgh ij", 6) should be(List((0, 6), (6, 11), (11, 13)))
+  }
+  
+  "countLess" should "count sorted elements less than x" in {
+    val a = Array(1, 3, 3, 7)
+    (0 to 8).map(countLess(a, _)) should be(List(0, 0, 1, 1, 3, 3, 3, 3, 4))
+  }
+  
+  "nerChunked" should "match whole document processing" in {
+    val expected = toyNer("en", text)._1
+    for (chunkSize <- Seq(50, 97, 300, 1000)) {
+      val ners = nerChunked(toyNer, "en", text, chunkSize, 100)
+      ners should be(expected)
+    }
+  }
+  
+  it should "find entities crossing chunk boundaries" in {
+    val in = "aaa bbb Big Corp Limited ccc ddd"
+    nerChunked(toyNer, "en", in, 14, 20) should be(toyNer("en", in)._1) // boundary after "Big "
+    nerChunked(toyNer, "en", in, 14, 0).map(_.text) should be(List("Big Corp")) // no overlap, only extended to the end of the word
+  }
+}
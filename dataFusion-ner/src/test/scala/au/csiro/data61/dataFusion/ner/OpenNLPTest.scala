@@ -23,6 +23,13 @@ Efectuó cuatro viajes a las Indias —denominación del continente americano ha
     assert(ners.map(_.copy(score = 1.0)).contains(Ner(78, 80, 436, 445, 1.0, "Oak Ridge", "LOCATION", "OpenNLP", None)))
   }
   
+  it should "not carry adaptive data from one tokenized document to the next" in {
+    val t = Preprocess.tokenize(en, enTxt)
+    val first = OpenNLP.ner(t)
+    OpenNLP.ner(Preprocess.tokenize(en, enTxt.replace("Manhattan", "Nichols")))
+    OpenNLP.ner(t) should be(first)
+  }
+  
 //  it should "get Spanish entities" in {
 //    val ners = ner(es, esTxt)
 //    log.debug(s"ners = ${ners}")
@@ -0,0 +1,70 @@
+package au.csiro.data61.dataFusion.ner
+
+import scala.collection.JavaConverters.asScalaBufferConverter
+
+import org.scalatest.{ FlatSpec, Matchers }
+
+import edu.stanford.nlp.ling.CoreAnnotations.TokensAnnotation
+import opennlp.tools.sentdetect.{ SentenceDetectorME, SentenceModel }
+import opennlp.tools.tokenize.{ TokenizerME, TokenizerModel }
+
+class PreprocessTest extends FlatSpec with Matchers {
+  val text = """Fiction House apparently made the decision to launch Planet Stories so quickly that there was little time for Reiss to obtain new stories.
+He worked with Julius Schwartz (and other authors' agents) to fill the first issue.
+
+The results were unremarkable, but Reiss was energetic!
+"""
+
+  "tokenize" should "give tokens with offsets into the text" in {
+    val t = Preprocess.tokenize("en", text)
+    t.words.length should be > 30
+    t.begins.length shouldBe t.words.length
+    t.ends.length shouldBe t.words.length
+    for (i <- t.words.indices) t.words(i) shouldBe text.substring(t.begins(i), t.ends(i))
+    t.begins.sliding(2).forall(x => x(0) < x(1)) shouldBe true
+    t.words.take(2).toList shouldBe List("Fiction", "House")
+    t.words.contains("(") shouldBe true // original text rather than PTB -LRB-
+  }
+
+  it should "give sentences covering all the tokens" in {
+    val t = Preprocess.tokenize("en", text)
+    t.sentences.head shouldBe 0
+    t.sentences.last shouldBe t.words.length
+    val s = t.sentenceRanges.toList
+    s.size shouldBe 3
+    t.words(s(1)._1) shouldBe "He"
+    t.words(s(2)._1) shouldBe "The"
+  }
+
+  it should "number tokens consistently over paragraphs" in {
+    val long = Seq.fill(100)(text).mkString("\n")
+    val t = Preprocess.tokenize("en", long)
+    t.paras.size should be > 1
+    for (p <- t.paras) t.begins(p.tokIdx) should be >= p.off
+    for (i <- t.words.indices) t.words(i) shouldBe long.substring(t.begins(i), t.ends(i))
+    t.paras.head.tokIdx shouldBe 0
+    t.paras.map(_.tokIdx).sliding(2).forall(x => x(0) < x(1)) shouldBe true
+  }
+
+  "shared tokenization" should "give the tokens CoreNLP found itself" in {
+    // as CoreNLP.nerSplitParagraphs: per paragraph, with offsets of the later paragraphs added
+    val long = Seq.fill(100)(text).mkString("\n")
+    val own = Split.splitParagraphs(long.split("\n"), 20, 60).foldLeft((Vector.empty[(Int, Int)], 0)) { case ((z, off), (_, _, lines)) =>
+      val toks = Preprocess.nlp.process(lines).get(classOf[TokensAnnotation]).asScala.map(t => (off + t.beginPosition, off + t.endPosition))
+      (z ++ toks, off + lines.length)
+    }._1
+    val t = Preprocess.tokenize("en", long)
+    t.begins.zip(t.ends).toVector shouldBe own
+  }
+
+  it should "give the sentences and tokens OpenNLP found itself" in {
+    // as OpenNLP.EnOpenNLP.ner(in: String)
+    val sent = new SentenceDetectorME(OpenNLP.loadModel("/opennlp-models-1.5/en-sent.bin", in => new SentenceModel(in)))
+    val tok = new TokenizerME(OpenNLP.loadModel("/opennlp-models-1.5/en-token.bin", in => new TokenizerModel(in)))
+    val sentences = sent.sentPosDetect(text)
+    val own = for (s <- sentences; p <- tok.tokenizePos(text.substring(s.getStart, s.getEnd))) yield (s.getStart + p.getStart, s.getStart + p.getEnd)
+    val t = Preprocess.tokenize("en", text)
+    t.begins.zip(t.ends).toList shouldBe own.toList
+    t.sentences.init.map(t.begins).toList shouldBe sentences.map(_.getStart).toList
+  }
+}
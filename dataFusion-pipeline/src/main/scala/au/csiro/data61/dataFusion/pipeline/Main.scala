@@ -0,0 +1,221 @@
+package au.csiro.data61.dataFusion.pipeline
+
+import java.io.File
+import java.util.concurrent.atomic.AtomicLong
+
+import scala.io.Source
+import scala.util.control.NonFatal
+
+import com.typesafe.scalalogging.Logger
+
+import au.csiro.data61.dataFusion.common.Data.Doc
+import au.csiro.data61.dataFusion.common.{ DocIO, Pipeline }
+import au.csiro.data61.dataFusion.common.DocIO.DocWriter
+import au.csiro.data61.dataFusion.common.Pipeline.{ Config, DeadLetter, Failed }
+import au.csiro.data61.dataFusion.ner.{ Main => NerMain }
+import au.csiro.data61.dataFusion.search.{ Indexer, Main => SearchMain }
+import au.csiro.data61.dataFusion.tika.{ ExtractCache, TikaUtil, Main => TikaMain }
+import au.csiro.data61.dataFusion.util.{ Main => UtilMain }
+import org.apache.tika.parser.ocr.TesseractOCRParser
+
+/**
+ * Runs tika, ner, the util augmenters (--email, --age, --hits) and search --index as stages of one process,
+ * passing Doc's between the stages in memory rather than through intermediate JSON files.
+ * Each stage has its own worker threads and bounded queues (see Pipeline.start), so the cheaper stages process docs
+ * as soon as tika has them rather than waiting for the whole of tika's output, and a slow stage applies back pressure
+ * to the stages before it.
+ */
+object Main {
+  private val log = Logger(getClass)
+
+  /**
+   * Options for each stage are taken from the stage's own CliOption (only some of which are settable here),
+   * the numWorkers of those are replaced by the per stage worker counts.
+   */
+  case class CliOption(tika: TikaMain.CliOption, ner: Option[NerMain.CliOption], util: UtilMain.CliOption, search: SearchMain.CliOption, index: Boolean,
+    tikaWorkers: Int, nerWorkers: Int, augmentWorkers: Int, indexWorkers: Int, ordered: Boolean, batchSize: Int, queueFactor: Int,
+    format: String, tikaOutput: Option[File], nerOutput: Option[File], augmentOutput: Option[File], deadLetter: Option[File])
+
+  val numCPU = Runtime.getRuntime.availableProcessors
+  val defaultCliOption = CliOption(TikaMain.defaultCliOption, Some(NerMain.defaultCliOption), UtilMain.defaultCliOption.copy(emailIDF = false), SearchMain.defaultCliOption, true,
+    numCPU, numCPU, 2, Math.min(12, numCPU), false, 1, 10,
+    DocIO.JSON, None, None, None, Some(new File("pipeline-failed.txt")))
+
+  def augmenting(c: UtilMain.CliOption) = c.hits.isDefined || c.email || c.age || c.tmner.isDefined
+
+  /** tee to an optional intermediate output, encoded on the stage's worker thread (so output is in completion order) */
+  def teed[A](w: Option[DocWriter])(f: A => Doc): A => Doc = w match {
+    case Some(w) => a => {
+      val d = f(a)
+      val e = w.encode(d)
+      w.synchronized { w.writeEncoded(e) }
+      d
+    }
+    case None => f
+  }
+
+  def run(c: CliOption) = {
+    TikaMain.initSystemProperties
+
+    val tikaUtil = new TikaUtil(c.tika)
+    val cache = c.tika.cache.map(new ExtractCache(_, c.tika))
+    val nerImpl = c.ner.map { o =>
+      import scala.concurrent.ExecutionContext.Implicits.global // for Impl parallel initialization
+      new NerMain.Impl(o.copy(numWorkers = c.nerWorkers))
+    }
+
+    def conf(name: String, numWorkers: Int) = Config(numWorkers, c.ordered, c.batchSize, c.queueFactor, name = name)
+
+    val writers = Seq(c.tikaOutput, c.nerOutput, c.augmentOutput).map(_.map(DocIO.docWriter(_, c.format)))
+    val Seq(tikaOut, nerOut, augmentOut) = writers
+    // failures in any stage are recorded by path, so the dead letter file can be used as stdin for a re-run
+    val deadLetter = c.deadLetter.map(new DeadLetter(_))
+    def failed[I](name: String, path: I => String): Failed[I] = deadLetter.map(Pipeline.deadLetterHandler(_, conf(name, 1), path)).getOrElse(Pipeline.failFast[I])
+    val docFailed = (name: String) => failed[Doc](name, _.path)
+
+    try UtilMain.withAugment(c.util) { augment =>
+      val id = new AtomicLong(c.tika.startId)
+      val in = Source.fromInputStream(System.in, "UTF-8").getLines.map { path =>
+        if (id.get % 1000 == 0) log.info(s"run: in: next id ${id.get}")
+        (path, id.getAndIncrement)
+      }
+
+      def tikaWork(pathIdx: (String, Long)): Doc = {
+        val (path, idx) = pathIdx
+        def parse = tikaUtil.tika(TikaMain.inputStream(path), path, idx)
+        cache.map(_.getOrParse(path, idx)(parse)).getOrElse(parse)
+      }
+
+      val tikaStage = Pipeline.start(in, teed(tikaOut)(tikaWork), conf("tika", c.tikaWorkers), failed[(String, Long)]("tika", _._1))
+      val docStages = nerImpl.map(i => ("ner", c.nerWorkers, teed(nerOut)(i.langNer))).toList ++
+        (if (augmenting(c.util)) List(("augment", c.augmentWorkers, teed(augmentOut)(augment))) else Nil)
+      val stages = docStages.scanLeft(tikaStage) { case (prev, (name, n, f)) => Pipeline.start(prev.output, f, conf(name, n), docFailed(name)) }
+      val last = stages.last.output
+
+      // the indices are committed only if all the stages complete
+      if (c.index) Indexer.indexing(c.search) { index =>
+        Pipeline.complete(stages) {
+          Pipeline.run(last, index, (_: Unit) => (), conf("index", c.indexWorkers), docFailed("index"))
+        }
+      } else Pipeline.complete(stages) {
+        last.foreach(_ => ())
+      }
+      log.info(s"run: complete: ${TesseractOCRParser.getTimers}")
+      cache.foreach(c => log.info(s"run: complete: $c"))
+      nerImpl.foreach(i => log.info(s"run: complete: NER latency ${i.latency}"))
+      log.info(s"run: complete: next id would be ${id.get}")
+    } finally {
+      writers.flatten.foreach(_.close)
+      deadLetter.foreach(_.close)
+    }
+  }
+
+  def main(args: Array[String]): Unit = {
+    val parser = new scopt.OptionParser[CliOption]("dataFusion-pipeline") {
+      head("dataFusion-pipeline", "0.x")
+      note("Runs tika, ner, util augmentation and search indexing in one process, passing docs between the stages in memory. Stdin contains local file paths or http URL's, one per line.")
+      opt[Long]("startId") action { (v, c) =>
+        c.copy(tika = c.tika.copy(startId = v))
+      } text (s"id's allocated incrementally starting with this value (default ${defaultCliOption.tika.startId})")
+      opt[Int]("tikaWorkers") action { (v, c) =>
+        c.copy(tikaWorkers = v)
+      } text (s"number of threads doing tika extraction (default ${defaultCliOption.tikaWorkers} the number of CPUs)")
+      opt[Int]("nerWorkers") action { (v, c) =>
+        c.copy(nerWorkers = v)
+      } text (s"number of threads doing NER (default ${defaultCliOption.nerWorkers} the number of CPUs)")
+      opt[Int]("augmentWorkers") action { (v, c) =>
+        c.copy(augmentWorkers = v)
+      } text (s"number of threads doing --hits, --email and --age augmentation (default ${defaultCliOption.augmentWorkers})")
+      opt[Int]("indexWorkers") action { (v, c) =>
+        c.copy(indexWorkers = v)
+      } text (s"number of threads doing indexing (default ${defaultCliOption.indexWorkers})")
+      opt[Boolean]("ordered") action { (v, c) =>
+        c.copy(ordered = v)
+      } text (s"whether each stage passes on docs in input order (default ${defaultCliOption.ordered})")
+      opt[Int]("batchSize") action { (v, c) =>
+        c.copy(batchSize = v)
+      } text (s"number of documents passed between threads within a stage at a time (default ${defaultCliOption.batchSize})")
+      opt[Int]("queueFactor") action { (v, c) =>
+        c.copy(queueFactor = v)
+      } text (s"queues for each stage hold up to its number of workers times this many docs (default ${defaultCliOption.queueFactor})")
+      opt[String]("format") action { (v, c) =>
+        c.copy(format = v)
+      } validate { v =>
+        if (DocIO.formats contains v) success else failure(s"format must be one of ${DocIO.formats.mkString(", ")}")
+      } text (s"format for the intermediate outputs: ${DocIO.formats.mkString("|")} (default ${defaultCliOption.format})")
+      opt[File]("tikaOutput") action { (v, c) =>
+        c.copy(tikaOutput = Some(v))
+      } text (s"also write tika's output to this file, as dataFusion-tika would (default none)")
+      opt[File]("nerOutput") action { (v, c) =>
+        c.copy(nerOutput = Some(v))
+      } text (s"also write ner's output to this file, as dataFusion-ner would (default none)")
+      opt[File]("augmentOutput") action { (v, c) =>
+        c.copy(augmentOutput = Some(v))
+      } text (s"also write the augmented output to this file, as dataFusion-util would (default none)")
+      opt[File]("deadLetter") action { (v, c) =>
+        c.copy(deadLetter = Some(v))
+      } text (s"paths that fail in any stage are written to this file, which can be used as input for a re-run (default ${defaultCliOption.deadLetter.get.getPath})")
+      opt[Unit]("failFast") action { (_, c) =>
+        c.copy(deadLetter = None)
+      } text (s"abort the run on the first path that fails, rather than writing it to the deadLetter file")
+      opt[File]("cache") action { (v, c) =>
+        c.copy(tika = c.tika.copy(cache = Some(v)))
+      } text (s"tika: directory for a persistent cache of extracted docs (default none)")
+      opt[String]("pdfOcrStrategy") action { (v, c) =>
+        c.copy(tika = c.tika.copy(pdfOcrStrategy = v))
+      } text (s"tika: pdfOcrStrategy = no_ocr|ocr_only|ocr_and_text (default ${defaultCliOption.tika.pdfOcrStrategy})")
+      opt[File]("ocrCache") action { (v, c) =>
+        c.copy(tika = c.tika.copy(ocrCache = Some(v)))
+      } text (s"tika: directory for a persistent cache of OCR output (default none)")
+      opt[Int]("ocrMaxProcesses") action { (v, c) =>
+        c.copy(tika = c.tika.copy(ocrMaxProcesses = v))
+      } text (s"tika: max number of images being OCR'd at once (default ${defaultCliOption.tika.ocrMaxProcesses} the number of CPUs)")
+      opt[Boolean]("ner") action { (v, c) =>
+        c.copy(ner = if (v) c.ner.orElse(Some(NerMain.defaultCliOption)) else None)
+      } text (s"whether to run NER (default ${defaultCliOption.ner.isDefined})")
+      opt[Boolean]("corenlp") action { (v, c) =>
+        c.copy(ner = c.ner.map(_.copy(corenlp = v)))
+      } text (s"ner: use CoreNLP (default ${defaultCliOption.ner.get.corenlp})")
+      opt[Boolean]("opennlp") action { (v, c) =>
+        c.copy(ner = c.ner.map(_.copy(opennlp = v)))
+      } text (s"ner: use OpenNLP (default ${defaultCliOption.ner.get.opennlp})")
+      opt[Boolean]("mitie") action { (v, c) =>
+        c.copy(ner = c.ner.map(_.copy(mitie = v)))
+      } text (s"ner: use MITIE (default ${defaultCliOption.ner.get.mitie})")
+      opt[Int]("chunkSize") action { (v, c) =>
+        c.copy(ner = c.ner.map(_.copy(chunkSize = v)))
+      } text (s"ner: content longer than this many chars is split into chunks processed concurrently, 0 for no splitting (default ${defaultCliOption.ner.get.chunkSize})")
+      opt[File]("hits") action { (v, c) =>
+        c.copy(util = c.util.copy(hits = Some(v)))
+      } text (s"util: augment with NER data derived from hits in this file (from a previous search --searchCsv)")
+      opt[File]("hitsIndex") action { (v, c) =>
+        c.copy(util = c.util.copy(hitsIndex = Some(v)))
+      } text (s"util: with --hits, look up hits per doc in an on disk index in this directory")
+      opt[Unit]("email") action { (_, c) =>
+        c.copy(util = c.util.copy(email = true))
+      } text (s"util: augment with NER data derived from email headers (scored with a GAZ NER at the same offset if there is one, else 1.0 as the index isn't available until the run completes)")
+      opt[Unit]("age") action { (_, c) =>
+        c.copy(util = c.util.copy(age = true))
+      } text (s"util: augment with NER data derived from age after a person's name")
+      opt[Boolean]("index") action { (v, c) =>
+        c.copy(index = v)
+      } text (s"whether to create the Lucene indices, as search --index would (default ${defaultCliOption.index})")
+      opt[Boolean]("append") action { (v, c) =>
+        c.copy(search = c.search.copy(append = v))
+      } text (s"index: add to the existing indices, replacing all Lucene documents for the id of each doc (default ${defaultCliOption.search.append})")
+      opt[Boolean]("writerPerThread") action { (v, c) =>
+        c.copy(search = c.search.copy(writerPerThread = v))
+      } text (s"index: each index worker writes to its own temporary indices, which are added to the main indices at the end (default ${defaultCliOption.search.writerPerThread})")
+      note("The intermediate outputs, when written, are in completion order and include docs that later fail in another stage.")
+      help("help") text ("prints this usage text")
+    }
+
+    for (c <- parser.parse(args, defaultCliOption)) {
+      try run(c)
+      catch {
+        case NonFatal(e) => log.error("Main.main:", e)
+      }
+    }
+  }
+
+}
@@ -16,6 +16,7 @@ import akka.http.scaladsl.server.Directives._
 import akka.stream.ActorMaterializer
 import au.csiro.data61.dataFusion.common.Data._
 import au.csiro.data61.dataFusion.common.Data.JsonProtocol._
+import au.csiro.data61.dataFusion.common.Metrics
 import au.csiro.data61.dataFusion.search.Search._
 import ch.megard.akka.http.cors.scaladsl.CorsDirectives.cors
 import io.swagger.annotations.{ Api, ApiOperation }
@@ -94,12 +95,24 @@ object Main {
     
     // ----------------------------------------------------------
     
+    @Path("metrics")
+    @ApiOperation(httpMethod = "GET", response = classOf[String], value = "counters, gauges and search latency histograms (in millis) since startup")
+    def metrics = Metrics.toJson
+    
+    def metricsRoute =
+      get { path("metrics") { complete {
+        metrics
+      }}}
+    
+    // ----------------------------------------------------------
+    
     val routes =
       docSearchRoute ~
       posSearchRoute ~
       posMultiSearchRoute ~
       metaSearchRoute ~
-      nerSearchRoute  
+      nerSearchRoute ~
+      metricsRoute
   }
 
   def swaggerService(hst: String, prt: Int)(implicit s: ActorSystem, m: ActorMaterializer) = new SwaggerHttpService with HasActorSystem {
@@ -4,7 +4,7 @@ import java.io.{ File, FileInputStream, InputStreamReader }
 import java.nio.charset.Charset
 
 import scala.collection.JavaConverters.{ asScalaBufferConverter, mapAsJavaMapConverter }
-import scala.collection.mutable.ListBuffer
+import scala.collection.mutable.{ ArrayBuffer, ListBuffer }
 import scala.language.implicitConversions
 
 import org.apache.lucene.analysis.Analyzer
@@ -14,12 +14,12 @@ import org.apache.lucene.analysis.core.{ FlattenGraphFilter, KeywordAnalyzer, Wh
 import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper
 import org.apache.lucene.analysis.standard.StandardTokenizer
 import org.apache.lucene.analysis.synonym.{ SolrSynonymParser, SynonymGraphFilter }
-import org.apache.lucene.document.{ BinaryDocValuesField, Document, Field, FieldType }
-import org.apache.lucene.index.{ IndexOptions, IndexReader, IndexWriter, IndexWriterConfig, PostingsEnum, Term }
-import org.apache.lucene.search.{ DocIdSetIterator, IndexSearcher, ScoreDoc, SimpleCollector, TermQuery }
+import org.apache.lucene.document.{ BinaryDocValuesField, Document, Field, FieldType, NumericDocValuesField }
+import org.apache.lucene.index.{ IndexOptions, IndexReader, IndexWriter, IndexWriterConfig, LeafReader, PostingsEnum, Term }
+import org.apache.lucene.search.{ DocIdSetIterator, IndexSearcher, ScoreDoc }
 import org.apache.lucene.search.spans.{ SpanCollector, SpanNearQuery, SpanTermQuery, SpanWeight, Spans }
 import org.apache.lucene.store.Directory
-import org.apache.lucene.util.BytesRef
+import org.apache.lucene.util.{ Bits, BytesRef }
 
 import com.typesafe.config.ConfigFactory
 import com.typesafe.scalalogging.Logger
@@ -27,7 +27,7 @@ import com.typesafe.scalalogging.Logger
 import LuceneUtil.{ TrailingPunctuationFilter, tokenIter }
 import au.csiro.data61.dataFusion.common.Data.{ DHits, IdEmbIdx, LDoc, LMeta, LNer, LPosDoc, MHits, NHits, PHits, PosInfo, PosQuery, Stats, T_ORGANIZATION }
 import au.csiro.data61.dataFusion.common.Data.JsonProtocol._
-import au.csiro.data61.dataFusion.common.Timer
+import au.csiro.data61.dataFusion.common.{ Metrics, Timer }
 import spray.json.{ pimpAny, pimpString }
 
 import resource.managed
@@ -46,10 +46,10 @@ object DataFusionLucene {
 
   /** field names */
   
-  val F_ID_EMB_IDX = "idEmbIdx" // for a DocValues, so we can fetch IdEmbIdx without loading the Lucene Document
+  val F_ID_EMB_IDX = "idEmbIdx" // JSON BinaryDocValues in doc indices created before F_ID and F_EMB_IDX had NumericDocValues
   
-  val F_ID = "id"
-  val F_EMB_IDX = "embIdx"
+  val F_ID = "id" // also a NumericDocValues in the doc index, so we can fetch IdEmbIdx without loading the Lucene Document
+  val F_EMB_IDX = "embIdx" // ditto
   val F_JSON = "json"
   
   val F_CONTENT = "content"
@@ -184,6 +184,11 @@ object DataFusionLucene {
         this
       }
       
+      def addNumericDocValue(f: String, v: Long): DocBuilder = {
+        d.add(new NumericDocValuesField(f, v))
+        this
+      }
+      
       def get = d
     }
     
@@ -191,11 +196,15 @@ object DataFusionLucene {
       def apply() = new DocBuilder
     }
     
-    implicit def ldoc2doc(x: LDoc): Document = DocBuilder()
-      .addBinaryDocValue(F_ID_EMB_IDX, x.idEmbIdx.toJson.compactPrint)
+    implicit def ldoc2doc(x: LDoc): Document = ldoc2doc(x, true)
+    
+    /** with storeContent = false the stored JSON has empty content (for when the content is available elsewhere e.g. the database) */
+    def ldoc2doc(x: LDoc, storeContent: Boolean): Document = DocBuilder()
+      .addNumericDocValue(F_ID, x.idEmbIdx.id)
+      .addNumericDocValue(F_EMB_IDX, x.idEmbIdx.embIdx)
       .add(F_ID, x.idEmbIdx.id.toString)
       .add(F_EMB_IDX, x.idEmbIdx.embIdx.toString)
-      .add(F_JSON, x.toJson.compactPrint)
+      .add(F_JSON, (if (storeContent) x else x.copy(content = "")).toJson.compactPrint)
       .add(F_CONTENT, x.content)
       .add(F_PATH, x.path)
       .get
@@ -239,30 +248,52 @@ object DataFusionLucene {
     }
     
     object PosDocSearch {
-      class MyCollector(reader: IndexReader, t: Term, score: Double) extends SimpleCollector {
-        // val fieldsToLoad = java.util.Collections.singleton(F_CONTENT)
-        private var pe: PostingsEnum = null
-        private val hitBuf = ListBuffer[LPosDoc]()
-        private val posInfos = ListBuffer[PosInfo]()
+      /**
+       * IdEmbIdx of the docs in a leaf (segment) read from NumericDocValues, without loading the Lucene Document or parsing JSON.
+       * Falls back to the JSON BinaryDocValues of older indices.
+       */
+      class IdEmbIdxValues(r: LeafReader) {
+        private val ids = r.getNumericDocValues(F_ID)
+        private val embIdxs = r.getNumericDocValues(F_EMB_IDX)
+        private val json = if (ids == null) r.getBinaryDocValues(F_ID_EMB_IDX) else null
+        
+        /** @return IdEmbIdx of docId (relative to the leaf, increasing over calls) or null if it has none */
+        def get(docId: Int): IdEmbIdx =
+          if (ids != null) {
+            if (ids.advanceExact(docId) && embIdxs.advanceExact(docId)) IdEmbIdx(ids.longValue, embIdxs.longValue.toInt) else null
+          } else if (json != null && json.advanceExact(docId)) json.binaryValue.utf8ToString.parseJson.convertTo[IdEmbIdx]
+          else null
+      }
+      
+      /**
+       * Accumulates the hits of a query over the leaves of an index.
+       * The buffer for a doc's PosInfos is reused, so the only allocations are for the hits themselves.
+       */
+      class HitCollector {
+        private val hits = ListBuffer[LPosDoc]()
+        private val posInfos = new ArrayBuffer[PosInfo]
+        private var ids: IdEmbIdxValues = null
+        private var liveDocs: Bits = null
         
-        override def needsScores = false
+        def setLeaf(r: LeafReader): Unit = {
+          ids = new IdEmbIdxValues(r)
+          liveDocs = r.getLiveDocs
+        }
+        
+        /** @return false for a deleted doc (which postings and spans still include) */
+        def isLive(docId: Int) = liveDocs == null || liveDocs.get(docId)
         
-        override def collect(doc: Int): Unit = {
+        def add(posStr: Int, posEnd: Int, offStr: Int, offEnd: Int): Unit = posInfos += PosInfo(posStr, posEnd, offStr, offEnd)
+        
+        /** add a hit for docId if any PosInfos have been added since the last call */
+        def endDoc(docId: Int): Unit = if (posInfos.nonEmpty) {
+          val idEmbIdx = ids.get(docId)
+          if (idEmbIdx != null) hits += LPosDoc(idEmbIdx, posInfos.toList)
           posInfos.clear
-          for { terms <- Option(reader.getTermVector(doc, F_CONTENT)) } {
-            val te = terms.iterator
-            if (te.seekExact(t.bytes)) {
-              // TODO: use DocValues instead
-              val d = ldoc(reader.document(doc))
-              for { (pos, pe) <- LuceneUtil.postIter(te.postings(pe, PostingsEnum.OFFSETS)) } {  // includes POSITIONS
-                posInfos += PosInfo(pos, pos + 1, pe.startOffset, pe.endOffset)
-              }
-              hitBuf += LPosDoc(d.idEmbIdx, posInfos.toList)
-            }
-          }
         }
         
-        def hits = hitBuf.toList
+        def size = hits.size
+        def result = hits.toList
       }
       
       class MySpanCollector extends SpanCollector {
@@ -287,9 +318,13 @@ object DataFusionLucene {
           if (p.endOffset > maxOff) maxOff = p.endOffset
         }
         
-        def posInfo = PosInfo(minPos, maxPos, minOff, maxOff)
+        def numPos = maxPos - minPos
+        def addTo(c: HitCollector) = c.add(minPos, maxPos, minOff, maxOff)
       }
       
+      val phraseLatency = Metrics.histogram("search.phrase")
+      val termLatency = Metrics.histogram("search.term")
+      
 //      val searchSpansScoreTimer = Timer()
 //      val searchSpansNonScoreTimer = Timer()
 //      var searchSpansCount = 0
@@ -303,11 +338,14 @@ object DataFusionLucene {
        * IDF score according to Lucene's formula: https://lucene.apache.org/core/7_1_0/core/org/apache/lucene/search/similarities/TFIDFSimilarity.html
        * Not using term freq or doc length norm etc. This depends only on the query not the matching doc.
        */
-      def getScore(r: IndexReader)(terms: Iterator[Term]) = terms.foldLeft(0.0) { (score, t) => score + 1.0 + Math.log10( (r.numDocs + 1.0) / (r.docFreq(t) + 1.0)) }
+      def getScore(r: IndexReader)(terms: Iterator[Term]) = terms.foldLeft(0.0) { (score, t) => score + idf(r.numDocs, r.docFreq(t)) }
+      
+      def idf(numDocs: Int, docFreq: Int) = 1.0 + Math.log10( (numDocs + 1.0) / (docFreq + 1.0))
       
-      def searchSpans(searcher: IndexSearcher, slop: Int, q: PosQuery, minScore: Float): PHits = {
+      /** @param termStats if given are used for the score rather than the IndexReader's docFreq */
+      def searchSpans(searcher: IndexSearcher, slop: Int, q: PosQuery, minScore: Float, termStats: Option[DocFreq.TermStats] = None): PHits = {
         val terms = getTerms(q.extRef.name).toList
-        val score = getScore(searcher.getIndexReader)(terms.iterator)
+        val score = termStats.map(_.score(terms.iterator)).getOrElse(getScore(searcher.getIndexReader)(terms.iterator))
         val noHits = PHits(Stats(0, 0.0f), List.empty, None, q.extRef, score, q.typ)
 
         if (score <= minScore) noHits 
@@ -328,44 +366,72 @@ object DataFusionLucene {
         
         val weight = snq.createWeight(searcher, false, 1.0f) // not needsScores
         val collector = new MySpanCollector
-        val hits = (for {
-          lrc <- searcher.getIndexReader.getContext.leaves.asScala
-          dv = lrc.reader.getBinaryDocValues(F_ID_EMB_IDX)
-          spans <- Option(weight.getSpans(lrc, SpanWeight.Postings.OFFSETS)).toList
-          docId <- Iterator.continually(spans.nextDoc).takeWhile(_ !=  DocIdSetIterator.NO_MORE_DOCS)
-          idEmbIdx <- if (dv.advanceExact(docId)) List(dv.binaryValue.utf8ToString.parseJson.convertTo[IdEmbIdx]) else List.empty
-          // docId relative to lrc, not searcher.getIndexReader
-          posns = Iterator.continually(spans.nextStartPosition).takeWhile(_ !=  Spans.NO_MORE_POSITIONS)
-            .map { _ =>
-              collector.reset
-              spans.collect(collector)
-              collector.posInfo
-            }.filter(p => p.posEnd - p.posStr == terms.size).toList
-            // handle duplicate terms in query - same num terms in query and match
-            // e.g. prevents "Aaron H Aaron" from matching "H Aaron"
-            // However this still allows "Aaron H Aaron" to match "Aaron H H"!
-            // Don't see any "min must match" functionality.
-            // We've worked hard not to have to actually fetch the doc content to keep it fast
-            // but that's going to be required to solve this last issue.
-            // In util --hits we have the doc content, so defer this last filtering step to there.
-        } yield LPosDoc(idEmbIdx, posns)).filter(_.posInfos.nonEmpty).toList
+        val hits = new HitCollector
+        for (lrc <- searcher.getIndexReader.getContext.leaves.asScala) {
+          val spans = weight.getSpans(lrc, SpanWeight.Postings.OFFSETS)
+          if (spans != null) {
+            hits.setLeaf(lrc.reader)
+            var docId = spans.nextDoc // relative to lrc, not searcher.getIndexReader
+            while (docId != DocIdSetIterator.NO_MORE_DOCS) {
+              if (hits.isLive(docId)) {
+                while (spans.nextStartPosition != Spans.NO_MORE_POSITIONS) {
+                  collector.reset
+                  spans.collect(collector)
+                  if (collector.numPos == terms.size) collector.addTo(hits)
+                  // handle duplicate terms in query - same num terms in query and match
+                  // e.g. prevents "Aaron H Aaron" from matching "H Aaron"
+                  // However this still allows "Aaron H Aaron" to match "Aaron H H"!
+                  // Don't see any "min must match" functionality.
+                  // We've worked hard not to have to actually fetch the doc content to keep it fast
+                  // but that's going to be required to solve this last issue.
+                  // In util --hits we have the doc content, so defer this last filtering step to there.
+                }
+                hits.endDoc(docId)
+              }
+              docId = spans.nextDoc
+            }
+          }
+        }
 //        searchSpansNonScoreTimer.stop
 //        searchSpansCount += 1
 //        if (searchSpansCount % 1000 == 0) log.info(s"searchSpans: scoring took ${searchSpansScoreTimer.elapsedSecs} sec, searching took ${searchSpansNonScoreTimer.elapsedSecs} sec")
         // Scoring is fast enough: scoring took 0.462 sec, searching took 113.58 sec
         timer.stop
-        PHits(Stats(hits.size, timer.elapsedSecs), hits, None, q.extRef, score, q.typ)
+        phraseLatency.record(timer.elapsedNanos)
+        PHits(Stats(hits.size, timer.elapsedSecs), hits.result, None, q.extRef, score, q.typ)
       }
       
+      /** single term search, reading positions and offsets straight from the postings */
       def searchSpansTerm(searcher: IndexSearcher, q: PosQuery, term: Term, score: Double): PHits = {
         val timer = Timer()
-        val tq = new TermQuery(term)
-        log.debug(s"searchSpansTerm: TermQuery = $tq")
-        val coll = new MyCollector(searcher.getIndexReader, term, score)
-        // TODO: this isn't working
-        searcher.search(tq, coll)
-        val hits = coll.hits
-        PHits(Stats(hits.size, timer.elapsedSecs), hits, None, q.extRef, score, q.typ)
+        log.debug(s"searchSpansTerm: term = $term")
+        val hits = new HitCollector
+        var pe: PostingsEnum = null // reused over leaves
+        for {
+          lrc <- searcher.getIndexReader.getContext.leaves.asScala
+          terms <- Option(lrc.reader.terms(term.field))
+          te = terms.iterator
+          if te.seekExact(term.bytes)
+        } {
+          hits.setLeaf(lrc.reader)
+          pe = te.postings(pe, PostingsEnum.OFFSETS) // includes POSITIONS
+          var docId = pe.nextDoc
+          while (docId != DocIdSetIterator.NO_MORE_DOCS) {
+            if (hits.isLive(docId)) {
+              var i = pe.freq
+              while (i > 0) {
+                val pos = pe.nextPosition
+                hits.add(pos, pos + 1, pe.startOffset, pe.endOffset)
+                i -= 1
+              }
+              hits.endDoc(docId)
+            }
+            docId = pe.nextDoc
+          }
+        }
+        timer.stop
+        termLatency.record(timer.elapsedNanos)
+        PHits(Stats(hits.size, timer.elapsedSecs), hits.result, None, q.extRef, score, q.typ)
       }
             
     }
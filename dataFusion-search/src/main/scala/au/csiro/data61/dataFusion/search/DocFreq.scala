@@ -1,16 +1,19 @@
 package au.csiro.data61.dataFusion.search
 
-import java.io.OutputStreamWriter
-import java.nio.charset.Charset
+import java.io.{ File, OutputStreamWriter }
+import java.nio.file.{ Files, StandardCopyOption }
 
 import scala.io.Source
 
-import org.apache.lucene.index.{ DirectoryReader, MultiFields }
+import org.apache.lucene.index.{ DirectoryReader, MultiFields, Term }
+import org.apache.lucene.store.{ FSDirectory, IOContext, MMapDirectory }
+import org.apache.lucene.util.{ BytesRef, IntsRefBuilder }
+import org.apache.lucene.util.fst.{ Builder, FST, PositiveIntOutputs, Util }
 
-import com.google.common.hash.{ BloomFilter, Funnels }
 import com.typesafe.scalalogging.Logger
 
 import DataFusionLucene.{ F_CONTENT, analyzer, docIndex }
+import DataFusionLucene.DFSearching.PosDocSearch.idf
 import LuceneUtil.{ directory, termIter, tokenIter }
 import Main.CliOption
 import au.csiro.data61.dataFusion.common.Data.{ PosQuery, T_ORGANIZATION }
@@ -35,37 +38,107 @@ object DocFreq {
     }
   }
 
-  def loadTermFilter(expectedInsertions: Int) = {
+  /**
+   * Exact F_CONTENT term -> docFreq for the doc index, as an FST.
+   * @param generation of the index commit the stats are from
+   */
+  class TermStats(val generation: Long, val numDocs: Int, val fst: FST[java.lang.Long]) {
+    def docFreq(term: BytesRef): Int = if (fst == null) 0 else {
+      val df = Util.get(fst, term)
+      if (df == null) 0 else df.intValue
+    }
+    def docFreq(term: String): Int = docFreq(new BytesRef(term))
+    def contains(term: String) = docFreq(term) > 0
+    
+    /** same as PosDocSearch.getScore, without using the IndexReader */
+    def score(terms: Iterator[Term]) = terms.foldLeft(0.0) { (score, t) => score + idf(numDocs, docFreq(t.bytes)) }
+  }
+  
+  /** the TermStats file is kept next to (not in) the index directory */
+  def termStatsFile(indexDir: File) = new File(indexDir.getPath + ".terms")
+  val TERM_STATS_VERSION = 1
+  
+  def buildTermStats(r: DirectoryReader) = {
     val timer = Timer()
-    val termFilter = BloomFilter.create(Funnels.stringFunnel(Charset.forName("UTF-8")), expectedInsertions)
+    val builder = new Builder[java.lang.Long](FST.INPUT_TYPE.BYTE1, PositiveIntOutputs.getSingleton)
+    val scratch = new IntsRefBuilder
     var n = 0
     for {
-      r <- managed(DirectoryReader.open(directory(docIndex)))
-      ti <- termIter(MultiFields.getFields(r).terms(F_CONTENT)) // we could filter this: /^[A-Z](?:['A-Z-]*[A-Z])$/, but there are not too many without filtering
+      terms <- Option(MultiFields.getFields(r).terms(F_CONTENT)).iterator
+      ti <- termIter(terms) // in sorted order as required by the Builder
     } {
-      termFilter put ti.term.utf8ToString
+      builder.add(Util.toIntsRef(ti.term, scratch), java.lang.Long.valueOf(ti.docFreq))
       n += 1
     }
-    log.info(s"loadTermSet: $n terms loaded in ${timer.elapsedSecs} secs. Max expectedInsertions = $expectedInsertions")
-    if (n > expectedInsertions) log.error(s"Exceeded expectedInsertions = $expectedInsertions")
-    termFilter
+    val ts = new TermStats(r.getIndexCommit.getGeneration, r.numDocs, builder.finish)
+    log.info(s"buildTermStats: $n terms in ${timer.elapsedSecs} secs")
+    ts
+  }
+  
+  /** build TermStats for the index in `indexDir` and write them to termStatsFile(indexDir) */
+  def writeTermStats(indexDir: File): TermStats = {
+    val f = termStatsFile(indexDir)
+    val ts = managed(DirectoryReader.open(directory(indexDir))).acquireAndGet(buildTermStats)
+    val tmp = new File(f.getPath + ".tmp")
+    for {
+      dir <- managed(FSDirectory.open(f.getAbsoluteFile.getParentFile.toPath))
+      out <- managed({ tmp.delete; dir.createOutput(tmp.getName, IOContext.DEFAULT) })
+    } {
+      out.writeVInt(TERM_STATS_VERSION)
+      out.writeVLong(ts.generation)
+      out.writeVInt(ts.numDocs)
+      out.writeByte(if (ts.fst == null) 0 else 1)
+      if (ts.fst != null) ts.fst.save(out)
+    }
+    Files.move(tmp.toPath, f.toPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+    log.info(s"writeTermStats: wrote $f")
+    ts
+  }
+  
+  /** @return TermStats from termStatsFile(indexDir) if it exists and is for the current commit of the index */
+  def readTermStats(indexDir: File, generation: Long): Option[TermStats] = {
+    val f = termStatsFile(indexDir)
+    if (!f.isFile) None else {
+      val timer = Timer()
+      val ts = for {
+        dir <- managed(new MMapDirectory(f.getAbsoluteFile.getParentFile.toPath))
+        in <- managed(dir.openInput(f.getName, IOContext.READONCE))
+      } yield {
+        if (in.readVInt != TERM_STATS_VERSION) None else {
+          val gen = in.readVLong
+          val numDocs = in.readVInt
+          if (gen != generation) None 
+          else Some(new TermStats(gen, numDocs, if (in.readByte == 0) null else new FST(in, PositiveIntOutputs.getSingleton)))
+        }
+      }
+      val x = ts.acquireAndGet(identity)
+      if (x.isEmpty) log.info(s"readTermStats: $f is out of date")
+      else log.info(s"readTermStats: read $f in ${timer.elapsedSecs} secs")
+      x
+    }
+  }
+  
+  /** TermStats for the doc index, from termStatsFile(docIndex) if it's up to date, else built and written there */
+  def loadTermStats: TermStats = {
+    val generation = managed(DirectoryReader.open(directory(docIndex))).acquireAndGet(_.getIndexCommit.getGeneration)
+    readTermStats(docIndex, generation).getOrElse(writeTermStats(docIndex))
   }
   
   /**
-   * true iff termFilter mightContain all the tokens in query
+   * true iff all the tokens in query are in the index
    */
-  def containsAllTokens(termFilter: BloomFilter[CharSequence], query: String) = {
+  def containsAllTokens(ts: TermStats, query: String) = {
     val tokens = tokenIter(analyzer, F_CONTENT, query).toList
     log.debug(s"containsAllTokens: analyzed tokens = ${tokens.toList}")
-    tokens forall termFilter.mightContain // if false the filter definitely does not contain the term
+    tokens forall ts.contains
   }
   
   def filterQuery(c: CliOption) = {
-    val termFilter = loadTermFilter(c.maxTerms)
+    val termStats = loadTermStats
     for (w <- managed(new OutputStreamWriter(System.out, "UTF-8"))) {
       for (line <- Source.fromInputStream(System.in, "UTF-8").getLines) {
         val q = line.parseJson.convertTo[PosQuery]
-        if (containsAllTokens(termFilter, q.extRef.name)) {
+        if (containsAllTokens(termStats, q.extRef.name)) {
           w.write(line)
           w.write('\n')
         } else log.debug(s"filterQuery: not all tokens in index")
@@ -84,11 +157,11 @@ object DocFreq {
       rBigSpace.replaceAllIn(q2, " ")
     }
     
-    val termFilter = loadTermFilter(c.maxTerms)
+    val termStats = loadTermStats
     for (w <- managed(new OutputStreamWriter(System.out, "UTF-8"))) {
       for (line <- Source.fromInputStream(System.in, "UTF-8").getLines) {
         val query = clean(line.parseJson.toString)
-        if (query.length >= 6 && containsAllTokens(termFilter, query)) {
+        if (query.length >= 6 && containsAllTokens(termStats, query)) {
           val q = PosQuery(ExtRef(query, List.empty), T_ORGANIZATION)
           w.write(q.toJson.compactPrint)
           w.write('\n')
@@ -0,0 +1,381 @@
+package au.csiro.data61.dataFusion.search
+
+import java.util.Arrays
+
+import scala.collection.JavaConverters.asScalaBufferConverter
+import scala.collection.mutable.ListBuffer
+
+import org.apache.lucene.analysis.CharArrayMap
+import org.apache.lucene.analysis.tokenattributes.{ CharTermAttribute, OffsetAttribute, PositionIncrementAttribute }
+import org.apache.lucene.index.{ DirectoryReader, IndexReader, Term }
+
+import com.typesafe.scalalogging.Logger
+
+import DataFusionLucene.{ F_CONTENT, F_JSON, analyzer, docIndex }
+import DataFusionLucene.DFSearching.ldoc
+import DataFusionLucene.DFSearching.PosDocSearch.{ getTerms, idf }
+import LuceneUtil.directory
+import Main.CliOption
+import au.csiro.data61.dataFusion.common.Data.{ LDoc, LPosDoc, PHits, PosInfo, PosQuery, Stats, T_ORGANIZATION }
+import au.csiro.data61.dataFusion.common.Data.JsonProtocol.pHitsCodec
+import au.csiro.data61.dataFusion.common.{ Pipeline, Timer }
+import au.csiro.data61.dataFusion.common.Util.bufWriter
+import resource.managed
+import spray.json.pimpAny
+
+/**
+ * Gazetteer search in a single pass over the doc index, as an alternative to a span query per name (PosDocSearch).
+ *
+ * All the names are analyzed (as for F_CONTENT) and compiled into two tries over term ids: one with the terms in order
+ * for ORGANIZATION and one with the terms sorted for PERSON|PERSON2 (any order). The content of each doc is analyzed and
+ * the tries are walked from each token position, so the cost scales with the size of the corpus (times the length of the
+ * longest name) rather than with the size of the corpus times the number of names.
+ *
+ * PosDocSearch only keeps spans whose width is the number of query terms, so whatever the slop its hits are runs of
+ * consecutive positions matching the query terms in order (ORGANIZATION) or in any order (PERSON). These are the
+ * hits found here, except that the spurious any order matches with the wrong number of occurrences of a repeated term
+ * (see README) are not produced.
+ */
+object Gazetteer {
+  private val log = Logger(getClass)
+
+  /** Growable Array[Int] */
+  class IntBuf(initialSize: Int = 64) {
+    var a = new Array[Int](initialSize)
+    var size = 0
+
+    def +=(x: Int): Unit = {
+      if (size == a.length) a = Arrays.copyOf(a, size * 2)
+      a(size) = x
+      size += 1
+    }
+    def apply(i: Int) = a(i)
+    def clear: Unit = size = 0
+  }
+
+  /** Open addressing hash map from Long to non-negative Int, avoiding the boxing of a java.util.HashMap */
+  class LongIntMap(initialCapacity: Int = 1024) {
+    private var keys = new Array[Long](capacity(initialCapacity))
+    private var vals = Array.fill(keys.length)(-1) // -1 for empty slot
+    private var count = 0
+
+    private def capacity(n: Int) = Integer.highestOneBit(Math.max(16, n) * 2 - 1)
+    private def slot(k: Long, mask: Int) = ((k * 0x9E3779B97F4A7C15L) >>> 32).toInt & mask
+
+    def size = count
+
+    /** @return value for k or -1 if none */
+    def get(k: Long): Int = {
+      val mask = keys.length - 1
+      var i = slot(k, mask)
+      while (vals(i) >= 0 && keys(i) != k) i = (i + 1) & mask
+      vals(i)
+    }
+
+    def put(k: Long, v: Int): Unit = {
+      if ((count + 1) * 2 > keys.length) grow
+      val mask = keys.length - 1
+      var i = slot(k, mask)
+      while (vals(i) >= 0 && keys(i) != k) i = (i + 1) & mask
+      if (vals(i) < 0) count += 1
+      keys(i) = k
+      vals(i) = v
+    }
+
+    private def grow: Unit = {
+      val (k0, v0) = (keys, vals)
+      keys = new Array[Long](k0.length * 2)
+      vals = Array.fill(keys.length)(-1)
+      count = 0
+      for (i <- k0.indices if v0(i) >= 0) put(k0(i), v0(i))
+    }
+  }
+
+  /** Trie over term ids, node 0 is the root. Each node may end any number of queries. */
+  class Trie {
+    private val edges = new LongIntMap
+    private var numNodes = 1
+    private val heads = new IntBuf // node -> first entry or -1
+    heads += -1
+    private val queries = new IntBuf // entry -> query index
+    private val nexts = new IntBuf // entry -> next entry for the same node or -1
+
+    /** @return child of node for term or -1 */
+    def child(node: Int, term: Int): Int = edges.get(node.toLong << 32 | term)
+
+    def add(terms: Array[Int], n: Int, q: Int): Unit = {
+      var node = 0
+      for (i <- 0 until n) {
+        val k = node.toLong << 32 | terms(i)
+        val c = edges.get(k)
+        node = if (c >= 0) c else {
+          edges.put(k, numNodes)
+          heads += -1
+          numNodes += 1
+          numNodes - 1
+        }
+      }
+      queries += q
+      nexts += heads(node)
+      heads.a(node) = queries.size - 1
+    }
+
+    def head(node: Int) = heads(node)
+    def query(entry: Int) = queries(entry)
+    def next(entry: Int) = nexts(entry)
+    def size = numNodes
+  }
+
+  /**
+   * Per thread buffers for matching a doc, reused for each doc.
+   * The doc's tokens that are query terms are grouped by position (several tokens at a position from synonyms).
+   */
+  class State {
+    val term, pos, offStr, offEnd = new IntBuf
+    val groupStart, groupPos = new IntBuf // index of the first token at each position and the position
+    val key = new IntBuf // terms chosen for an unordered window
+    var sorted = new Array[Int](16)
+    // matches: query index, posStr, posEnd, offStr, offEnd
+    val mQuery, mPosStr, mPosEnd, mOffStr, mOffEnd = new IntBuf
+    var order = new Array[Long](64)
+
+    def clear: Unit = for (b <- Seq(term, pos, offStr, offEnd, groupStart, groupPos, key, mQuery, mPosStr, mPosEnd, mOffStr, mOffEnd)) b.clear
+
+    def numGroups = groupPos.size
+
+    def addMatch(q: Int, posStr: Int, posEnd: Int, offStr: Int, offEnd: Int): Unit = {
+      mQuery += q; mPosStr += posStr; mPosEnd += posEnd; mOffStr += offStr; mOffEnd += offEnd
+    }
+  }
+
+  /**
+   * Compile queries into the tries.
+   * As in PosDocSearch queries scoring <= minScore are skipped, and so are queries with a term that is not in the index
+   * (which can't match).
+   */
+  def compile(r: IndexReader, qs: Iterator[PosQuery], minScore: Float): Gazetteer = {
+    val timer = Timer()
+    val g = new Gazetteer
+    var skipped = 0
+    for (q <- qs) {
+      val terms = getTerms(q.extRef.name).toArray
+      val dfs = terms.map(r.docFreq)
+      val score = dfs.foldLeft(0.0)((s, df) => s + idf(r.numDocs, df))
+      if (terms.isEmpty || dfs.contains(0) || score <= minScore) skipped += 1
+      else g.add(q, terms, score)
+    }
+    log.info(s"compile: ${g.size} queries compiled, $skipped skipped, in ${timer.elapsedSecs} secs")
+    g
+  }
+
+  /** @return the docs in the index that haven't been deleted */
+  def docs(r: IndexReader): Iterator[LDoc] = for {
+    lrc <- r.leaves.asScala.iterator
+    live = lrc.reader.getLiveDocs
+    docId <- Iterator.range(0, lrc.reader.maxDoc) if live == null || live.get(docId)
+  } yield ldoc(lrc.reader.document(docId, java.util.Collections.singleton(F_JSON)))
+
+  /** fail if the docs' content isn't stored in the doc index (as it was indexed with `--storeContent false`) */
+  def checkContentStored(r: DirectoryReader): Unit =
+    if (!Indexer.contentStored(r.getIndexCommit.getUserData))
+      throw new IllegalArgumentException(s"--automaton searches the stored content but $docIndex was indexed with --storeContent false")
+
+  /**
+   * CLI method to run bulk searches (as Search.cliPosDocSearch) in a single pass over the doc index.
+   * The hits for each query are held in memory until the pass is complete.
+   */
+  def cliGazetteerSearch(c: CliOption): Unit = {
+    log.info("cliGazetteerSearch: start")
+    for (r <- managed(DirectoryReader.open(directory(docIndex)))) {
+      checkContentStored(r)
+      val g = compile(r, Search.queries(c), c.minScore)
+      val hits = new Array[ListBuffer[LPosDoc]](g.size)
+      val state = new ThreadLocal[State] {
+        override protected def initialValue = new State
+      }
+      def work(d: LDoc) = g.find(d, state.get)
+      def out(l: List[(Int, LPosDoc)]): Unit = for ((q, h) <- l) {
+        if (hits(q) == null) hits(q) = ListBuffer[LPosDoc]()
+        hits(q) += h
+      }
+      Pipeline.run(docs(r), work, out, Main.pipelineConfig(c, "cliGazetteerSearch"))
+
+      var n = 0
+      for (w <- managed(bufWriter(c.output))) {
+        for (q <- 0 until g.size if hits(q) != null) {
+          val h = hits(q).toList
+          w.write(PHits(Stats(h.size, 0.0f), h, None, g.query(q).extRef, g.score(q), g.query(q).typ).toJson.compactPrint)
+          w.write('\n')
+          n += 1
+        }
+      }
+      log.info(s"cliGazetteerSearch: $n of ${g.size} queries have hits")
+    }
+    log.info(s"cliGazetteerSearch: complete")
+  }
+}
+
+import Gazetteer.{ IntBuf, State, Trie }
+
+/** Compiled queries, use Gazetteer.compile to create. Once compiled `find` may be called from multiple threads. */
+class Gazetteer {
+  private val termIds = new CharArrayMap[Integer](1024, false)
+  private val ordered = new Trie
+  private val unordered = new Trie
+  private var unorderedLengths = Array.empty[Int] // distinct lengths of unordered queries (in terms), ascending
+  private val queries = new ListBuffer[PosQuery]
+  private val scores = new ListBuffer[Double]
+  private lazy val queryArr = queries.toArray
+  private lazy val scoreArr = scores.toArray
+
+  def size = queries.size
+  def query(q: Int) = queryArr(q)
+  def score(q: Int) = scoreArr(q)
+
+  private[search] def add(q: PosQuery, terms: Array[Term], score: Double): Unit = {
+    val ids = terms.map { t =>
+      val s = t.text
+      Option(termIds.get(s)).map(_.intValue).getOrElse {
+        val id = termIds.size
+        termIds.put(s, Integer.valueOf(id))
+        id
+      }
+    }
+    val idx = queries.size
+    if (q.typ == T_ORGANIZATION) ordered.add(ids, ids.length, idx)
+    else {
+      Arrays.sort(ids)
+      unordered.add(ids, ids.length, idx)
+      if (!unorderedLengths.contains(ids.length)) unorderedLengths = (unorderedLengths :+ ids.length).sorted
+    }
+    queries += q
+    scores += score
+  }
+
+  /** analyze `content` keeping only tokens that are query terms */
+  private def tokenize(content: String, s: State): Unit = {
+    val ts = analyzer.tokenStream(F_CONTENT, content)
+    try {
+      val termAtt = ts.addAttribute(classOf[CharTermAttribute])
+      val posIncAtt = ts.addAttribute(classOf[PositionIncrementAttribute])
+      val offAtt = ts.addAttribute(classOf[OffsetAttribute])
+      ts.reset
+      var pos = -1
+      while (ts.incrementToken) {
+        pos += posIncAtt.getPositionIncrement
+        val id = termIds.get(termAtt.buffer, 0, termAtt.length)
+        if (id != null) {
+          if (s.numGroups == 0 || s.groupPos(s.numGroups - 1) != pos) {
+            s.groupStart += s.term.size
+            s.groupPos += pos
+          }
+          s.term += id.intValue
+          s.pos += pos
+          s.offStr += offAtt.startOffset
+          s.offEnd += offAtt.endOffset
+        }
+      }
+      ts.end
+    } finally ts.close
+    s.groupStart += s.term.size // end of last group
+  }
+
+  /** true iff group g + 1 is at the position after group g */
+  private def nextAdjacent(s: State, g: Int) = g + 1 < s.numGroups && s.groupPos(g + 1) == s.groupPos(g) + 1
+
+  /** match ordered queries starting at group g0, having matched up to group g - 1 reaching `node` */
+  private def walkOrdered(s: State, g0: Int, g: Int, node: Int, offStr: Int, offEnd: Int): Unit = {
+    var i = s.groupStart(g)
+    while (i < s.groupStart(g + 1)) {
+      val c = ordered.child(node, s.term(i))
+      if (c >= 0) {
+        val str = Math.min(offStr, s.offStr(i))
+        val end = Math.max(offEnd, s.offEnd(i))
+        var e = ordered.head(c)
+        while (e >= 0) {
+          s.addMatch(ordered.query(e), s.groupPos(g0), s.groupPos(g) + 1, str, end)
+          e = ordered.next(e)
+        }
+        if (nextAdjacent(s, g)) walkOrdered(s, g0, g + 1, c, str, end)
+      }
+      i += 1
+    }
+  }
+
+  /** match unordered queries of length n on groups g0 until g0 + n, choosing a token from each group (depth = number chosen) */
+  private def windowUnordered(s: State, g0: Int, n: Int, depth: Int, offStr: Int, offEnd: Int): Unit = {
+    if (depth == n) {
+      if (s.sorted.length < n) s.sorted = new Array[Int](n * 2)
+      System.arraycopy(s.key.a, 0, s.sorted, 0, n)
+      Arrays.sort(s.sorted, 0, n)
+      var node = 0
+      var i = 0
+      while (node >= 0 && i < n) {
+        node = unordered.child(node, s.sorted(i))
+        i += 1
+      }
+      if (node >= 0) {
+        var e = unordered.head(node)
+        while (e >= 0) {
+          s.addMatch(unordered.query(e), s.groupPos(g0), s.groupPos(g0) + n, offStr, offEnd)
+          e = unordered.next(e)
+        }
+      }
+    } else {
+      val g = g0 + depth
+      var i = s.groupStart(g)
+      while (i < s.groupStart(g + 1)) {
+        s.key.size = depth
+        s.key += s.term(i)
+        windowUnordered(s, g0, n, depth + 1, Math.min(offStr, s.offStr(i)), Math.max(offEnd, s.offEnd(i)))
+        i += 1
+      }
+    }
+  }
+
+  /** @return (query index, hit) for each query matching d */
+  def find(d: LDoc, s: State): List[(Int, LPosDoc)] = {
+    s.clear
+    tokenize(d.content, s)
+    var run = 1 // number of groups at consecutive positions starting at g0
+    var g0 = s.numGroups - 1
+    while (g0 >= 0) { // backwards to compute run
+      run = if (nextAdjacent(s, g0)) run + 1 else 1
+      walkOrdered(s, g0, g0, 0, Int.MaxValue, Int.MinValue)
+      var j = 0
+      while (j < unorderedLengths.length && unorderedLengths(j) <= run) {
+        windowUnordered(s, g0, unorderedLengths(j), 0, Int.MaxValue, Int.MinValue)
+        j += 1
+      }
+      g0 -= 1
+    }
+    hits(d, s)
+  }
+
+  /** group the matches in s by query */
+  private def hits(d: LDoc, s: State): List[(Int, LPosDoc)] = {
+    val m = s.mQuery.size
+    if (m == 0) Nil else {
+      if (s.order.length < m) s.order = new Array[Long](m * 2)
+      // sort by query then (reverse) order found, which is by position as we walked backwards
+      for (i <- 0 until m) s.order(i) = s.mQuery(i).toLong << 32 | (m - 1 - i)
+      Arrays.sort(s.order, 0, m)
+      val out = ListBuffer[(Int, LPosDoc)]()
+      var i = 0
+      while (i < m) {
+        val q = (s.order(i) >>> 32).toInt
+        val posInfos = ListBuffer[PosInfo]()
+        var prev: PosInfo = null
+        while (i < m && (s.order(i) >>> 32).toInt == q) {
+          val j = m - 1 - (s.order(i) & 0xffffffffL).toInt
+          val p = PosInfo(s.mPosStr(j), s.mPosEnd(j), s.mOffStr(j), s.mOffEnd(j))
+          if (p != prev) posInfos += p // duplicates from alternative (synonym) tokens at a position
+          prev = p
+          i += 1
+        }
+        out += ((q, LPosDoc(d.idEmbIdx, posInfos.toList)))
+      }
+      out.toList
+    }
+  }
+}
@@ -1,78 +1,191 @@
 package au.csiro.data61.dataFusion.search
 
-import scala.io.{ Codec, Source }
+import java.io.{ Closeable, File }
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicInteger
 
-import org.apache.lucene.index.IndexWriter
+import scala.collection.JavaConverters.{ collectionAsScalaIterableConverter, iterableAsScalaIterableConverter, mapAsJavaMapConverter, seqAsJavaListConverter }
+import scala.io.Codec
+import scala.util.control.NonFatal
+
+import org.apache.commons.io.FileUtils
+import org.apache.lucene.document.Document
+import org.apache.lucene.index.{ IndexWriter, IndexWriterConfig, Term, TieredMergePolicy }
+import org.apache.lucene.index.IndexWriterConfig.OpenMode
 
-import com.typesafe.config.ConfigFactory
 import com.typesafe.scalalogging.Logger
 
-import DataFusionLucene.{ docIndex, metaIndex, nerIndex }
-import DataFusionLucene.DFIndexing.{ ldoc2doc, lmeta2doc, lner2doc, mkIndexer }
+import DataFusionLucene.{ F_ID, analyzer, docIndex, metaIndex, nerIndex }
+import DataFusionLucene.DFIndexing.{ ldoc2doc, lmeta2doc, lner2doc }
 import LuceneUtil.directory
 import Main.CliOption
 import au.csiro.data61.dataFusion.common.Data.{ Doc, EMB_IDX_MAIN, IdEmbIdx, LDoc, LMeta, LNer }
-import au.csiro.data61.dataFusion.common.Data.JsonProtocol.docFormat
-import au.csiro.data61.dataFusion.common.Parallel.doParallel
+import au.csiro.data61.dataFusion.common.{ DocIO, Pipeline }
+import au.csiro.data61.dataFusion.common.DocIO.DocRecord
 import resource.managed
-import spray.json.pimpString
 
 object Indexer {
   private val log = Logger(getClass)
   implicit val codec = Codec.UTF8
-  
-  def indexer(docIndexer: IndexWriter, metaIndexer: IndexWriter, nerIndexer: IndexWriter)(d: Doc): Unit = {
-    val idMain = IdEmbIdx(d.id, EMB_IDX_MAIN)
-    docIndexer.addDocument(LDoc(idMain, d.content.getOrElse(""), d.path))
-    for {
-      (k, v) <- d.meta
-    } metaIndexer.addDocument(LMeta(idMain, k, v))
-    for {
-      n <- d.ner
-    } nerIndexer.addDocument(LNer(idMain, n.posStr, n.posEnd, n.offStr, n.offEnd, n.text, n.typ, n.impl))
-    
-    for {
-      (e, embIdx) <- d.embedded.zipWithIndex
-    } {
-      val idEmb = IdEmbIdx(d.id, embIdx)
-      docIndexer.addDocument(LDoc(idEmb, e.content.getOrElse(""), d.path))
-      for {
-        (k, v) <- e.meta
-      } metaIndexer.addDocument(LMeta(idEmb, k, v))
-      for {
-        n <- e.ner
-      } nerIndexer.addDocument(LNer(idEmb, n.posStr, n.posEnd, n.offStr, n.offEnd, n.text, n.typ, n.impl))
+
+  /** key in the doc index's commit user data: "false" if the content of some docs isn't stored (see `--storeContent`) */
+  val STORE_CONTENT = "storeContent"
+
+  /** @return whether the content of all docs is stored, according to a doc index's commit user data */
+  def contentStored(userData: java.util.Map[String, String]) = Option(userData.get(STORE_CONTENT)).forall(_.toBoolean)
+
+  /** record `storeContent` in the doc index's next commit, remaining false once any docs without content were appended */
+  def setStoreContent(x: IndexWriter, storeContent: Boolean, append: Boolean): Unit = {
+    val prev = !append || Option(x.getLiveCommitData).forall(_.asScala.forall(e => e.getKey != STORE_CONTENT || e.getValue.toBoolean))
+    x.setLiveCommitData(Map(STORE_CONTENT -> (storeContent && prev).toString).asJava.entrySet)
+  }
+
+  /** writers for the doc, meta and ner indices */
+  case class Writers(doc: IndexWriter, meta: IndexWriter, ner: IndexWriter) extends Closeable {
+    def all = Seq(doc, meta, ner)
+    override def close = for (x <- all if x.isOpen) x.close // discards anything not committed
+  }
+
+  /** Lucene Documents for the doc, meta and ner indices from a Doc (including its embedded docs) */
+  def documents(d: Doc, storeContent: Boolean): (Seq[Document], Seq[Document], Seq[Document]) = {
+    val idEmbs = (IdEmbIdx(d.id, EMB_IDX_MAIN), d.content, d.meta, d.ner) +:
+      d.embedded.zipWithIndex.map { case (e, embIdx) => (IdEmbIdx(d.id, embIdx), e.content, e.meta, e.ner) }
+    val docs = idEmbs.map { case (idEmb, content, _, _) => ldoc2doc(LDoc(idEmb, content.getOrElse(""), d.path), storeContent) }
+    val metas = for {
+      (idEmb, _, meta, _) <- idEmbs
+      (k, v) <- meta
+    } yield lmeta2doc(LMeta(idEmb, k, v))
+    val ners = for {
+      (idEmb, _, _, ner) <- idEmbs
+      n <- ner
+    } yield lner2doc(LNer(idEmb, n.posStr, n.posEnd, n.offStr, n.offEnd, n.text, n.typ, n.impl))
+    (docs, metas, ners)
+  }
+
+  /**
+   * Index `d`. With `update` any existing Lucene Documents for d.id are replaced (or deleted if `d` no longer has any for
+   * an index), atomically for each index.
+   * `deletes` (when using per thread writers) are the writers for the existing indices from which to delete.
+   */
+  def indexer(w: Writers, update: Boolean, storeContent: Boolean, deletes: Option[Writers] = None)(d: Doc): Unit = {
+    val idTerm = new Term(F_ID, d.id.toString)
+    val (docs, metas, ners) = documents(d, storeContent)
+    for ((x, ds) <- w.all zip Seq(docs, metas, ners)) {
+      if (update && deletes.isEmpty) x.updateDocuments(idTerm, ds.asJava)
+      else x.addDocuments(ds.asJava)
+    }
+    for (dw <- deletes; x <- dw.all) x.deleteDocuments(idTerm)
+  }
+
+  def config(c: CliOption) = {
+    val mp = new TieredMergePolicy
+    mp.setMaxMergedSegmentMB(c.maxMergedSegmentMB)
+    mp.setSegmentsPerTier(c.segmentsPerTier)
+    new IndexWriterConfig(analyzer)
+      .setRAMBufferSizeMB(c.ramBufferMB)
+      .setMergePolicy(mp)
+      .setCommitOnClose(false) // commit explicitly only on success
+  }
+
+  def writers(c: CliOption, dirs: Seq[File], mode: OpenMode) = {
+    val Seq(d, m, n) = dirs.map(f => new IndexWriter(directory(f), config(c).setOpenMode(mode)))
+    Writers(d, m, n)
+  }
+
+  /**
+   * A set of writers per thread, to temporary indices next to the main ones, which `addTo` adds to the main indices.
+   * This avoids contention on the main writers in bulk loads.
+   */
+  class ThreadWriters(c: CliOption, dirs: Seq[File]) {
+    private val created = new ConcurrentLinkedQueue[(Writers, Seq[File])]
+    private val count = new AtomicInteger
+    private val tl = new ThreadLocal[Writers] {
+      override protected def initialValue = {
+        val n = count.incrementAndGet
+        val tmps = dirs.map(f => new File(f.getPath + s".tmp$n"))
+        val w = writers(c, tmps, OpenMode.CREATE)
+        created.add((w, tmps))
+        w
+      }
+    }
+
+    def get = tl.get
+
+    /** close the per thread writers, add their indices to w and delete them */
+    def addTo(w: Writers): Unit = {
+      val all = created.asScala.toList
+      for ((tw, _) <- all; x <- tw.all) {
+        x.commit
+        x.close
+      }
+      for ((x, i) <- w.all.zipWithIndex) x.addIndexes(all.map { case (_, tmps) => directory(tmps(i)) }: _*)
+      delete
+    }
+
+    def delete: Unit = for ((tw, tmps) <- created.asScala; f <- tmps) {
+      for (x <- tw.all if x.isOpen) x.rollback
+      FileUtils.deleteDirectory(f)
     }
   }
-  
+
   /**
-   * Reads JSON Doc's from stdin (one per line) and indexes them.
+   * Opens the indices and calls `body` with a function to index a Doc (which may be called from multiple threads).
+   * With `--append` the Docs are added to the existing indices, replacing any with the same id.
+   * The three indices are committed only when `body` completes, with a two phase commit
+   * (prepareCommit on all then commit on all) so a failed run leaves the previous commit in place.
    */
+  def indexing[A](c: CliOption)(body: (Doc => Unit) => A): A = {
+    val dirs = Seq(docIndex, metaIndex, nerIndex)
+
+    val result = managed(writers(c, dirs, if (c.append) OpenMode.CREATE_OR_APPEND else OpenMode.CREATE)).acquireAndGet { w =>
+      val threadWriters = if (c.writerPerThread) Some(new ThreadWriters(c, dirs)) else None
+      try {
+        val index: Doc => Unit = threadWriters match {
+          case Some(tw) => d => indexer(tw.get, c.append, c.storeContent, if (c.append) Some(w) else None)(d)
+          case None => indexer(w, c.append, c.storeContent)
+        }
+
+        val a = body(index)
+        for (tw <- threadWriters) {
+          log.info(s"indexing: adding per thread indices")
+          tw.addTo(w)
+        }
+        setStoreContent(w.doc, c.storeContent, c.append)
+        w.all.foreach(_.prepareCommit)
+        w.all.foreach(_.commit)
+        a
+      } catch {
+        case NonFatal(e) =>
+          w.all.foreach(_.rollback)
+          throw e
+      } finally {
+        threadWriters.foreach(_.delete)
+      }
+    }
+    // outside the try so a failure here doesn't roll back the committed indices (DocFreq.loadTermStats builds it when needed)
+    try DocFreq.writeTermStats(docIndex)
+    catch { case NonFatal(e) => log.warn(s"indexing: failed to write term stats for $docIndex", e) }
+    result
+  }
+
+  /** Reads Doc's from stdin (JSON one per line or binary, see DocIO) and indexes them. */
   def run(c: CliOption) = {
-    val conf = ConfigFactory.load.getConfig("search")
-
-    for {
-      docIndexer <- managed(mkIndexer(directory(docIndex)))
-      metaIndexer <- managed(mkIndexer(directory(metaIndex)))
-      nerIndexer <- managed(mkIndexer(directory(nerIndex)))
-    } {
-      val index: Doc => Unit = indexer(docIndexer, metaIndexer, nerIndexer)
-      
-      var count = 0
-      val in: Iterator[String] = Source.fromInputStream(System.in).getLines.map { json =>
+    var count = 0
+    indexing(c) { index =>
+      val in: Iterator[DocRecord] = DocIO.records(System.in).map { r =>
         count += 1
         if (count % 1000 == 0) log.info(s"run.in: Queued $count docs ...")
-        json
+        r
       }
-      def work(json: String): Boolean = {
-        index(json.parseJson.convertTo[Doc])
+      def work(r: DocRecord): Boolean = {
+        index(r.doc)
         true
       }
       def out(more: Boolean): Unit = ()
-      
-      doParallel(in, work, out, "", false, c.numWorkers)
-      log.info(s"run: complete. Indexed $count docs")
+
+      Pipeline.runWithDeadLetter(in, work, out, Main.pipelineConfig(c, "index"), c.deadLetter, (r: DocRecord) => r.json)
     }
+    log.info(s"run: complete. Indexed $count docs")
   }
 
-}
\ No newline at end of file
+}
@@ -13,7 +13,7 @@ import org.apache.lucene.store.{ Directory, FSDirectory }
 
 import com.typesafe.scalalogging.Logger
 
-import au.csiro.data61.dataFusion.common.Timer
+import au.csiro.data61.dataFusion.common.{ Metrics, Timer }
 import org.apache.lucene.analysis.TokenFilter
 
 
@@ -91,9 +91,11 @@ object LuceneUtil {
   class Searcher[Hit, Results](
     directory: Directory,
     toHit: (ScoreDoc, Document) => Hit, // convert score and map of fields to Hit
-    toResults: (Int, Float, Seq[Hit], Option[String]) => Results // convert totalHits, elapsedSecs, Seq[Hit], Option[error] to Results
+    toResults: (Int, Float, Seq[Hit], Option[String]) => Results, // convert totalHits, elapsedSecs, Seq[Hit], Option[error] to Results
+    name: String = "lucene" // search latency is recorded in the Metrics histogram `search.<name>`
   ) extends Closeable {      
     val log = Logger(getClass)
+    val latency = Metrics.histogram(s"search.$name")
 
     val searcher = open
     protected def open = new IndexSearcher(DirectoryReader.open(directory))
@@ -110,9 +112,12 @@ object LuceneUtil {
         hits <- Try {
           topDocs.scoreDocs map { scoreDoc => toHit(scoreDoc, searcher.doc(scoreDoc.doc)) }
         }
-      } yield toResults(topDocs.totalHits.toInt, timer.elapsedSecs.toFloat, hits, None)
+      } yield (topDocs.totalHits.toInt, hits)
+      timer.stop
+      latency.record(timer.elapsedNanos)
       
-      result.recover { case e => toResults(0, timer.elapsedSecs.toFloat, List(), Some(e.getMessage)) }.get
+      result.map { case (totalHits, hits) => toResults(totalHits, timer.elapsedSecs, hits, None) }
+        .recover { case e => toResults(0, timer.elapsedSecs, List(), Some(e.getMessage)) }.get
     }
     
     def close = searcher.getIndexReader.close
@@ -6,12 +6,17 @@ import scala.util.control.NonFatal
 
 import com.typesafe.scalalogging.Logger
 
+import DataFusionLucene.docIndex
+import au.csiro.data61.dataFusion.common.Pipeline
+
 object Main {
   private val log = Logger(getClass)
   
-  case class CliOption(output: File, index: Boolean, searchJson: Boolean, searchCsv: Boolean, csvDelim: Char, csvFields: Seq[String], csvPersonWith2Names: Boolean, minScore: Float, docFreq: Boolean, export: Boolean, filterQueryOnly: Boolean, filterQuery: Boolean, maxTerms: Int, nerToQuery: Boolean, slop: Int, numWorkers: Int)
+  case class CliOption(output: File, index: Boolean, searchJson: Boolean, searchCsv: Boolean, csvDelim: Char, csvFields: Seq[String], csvPersonWith2Names: Boolean, minScore: Float, docFreq: Boolean, termStats: Boolean, export: Boolean, filterQueryOnly: Boolean, filterQuery: Boolean, nerToQuery: Boolean, slop: Int, numWorkers: Int, ordered: Boolean, batchSize: Int, deadLetter: Option[File], automaton: Boolean, append: Boolean, ramBufferMB: Double, maxMergedSegmentMB: Double, segmentsPerTier: Double, writerPerThread: Boolean, storeContent: Boolean, csvTableMB: Int)
+  
+  val defaultCliOption = CliOption(new File("hits.json"), false, false, false, '\t', Seq("STRCTRD_FMLY_NM", "STRCTRD_GVN_NM", "STRCTRD_OTHR_GVN_NM", "SEX_CD", "USTRCTRD_FULL_NM", "CLNT_INTRNL_ID"), true, 3.5f, false, false, false, false, true, false, 0, Runtime.getRuntime.availableProcessors, false, 1, Some(new File("search-failed.json")), false, false, 256.0, 5120.0, 10.0, false, true, 512)
   
-  val defaultCliOption = CliOption(new File("hits.json"), false, false, false, '\t', Seq("STRCTRD_FMLY_NM", "STRCTRD_GVN_NM", "STRCTRD_OTHR_GVN_NM", "SEX_CD", "USTRCTRD_FULL_NM", "CLNT_INTRNL_ID"), true, 3.5f, false, false, false, true, 10000000, false, 0, Runtime.getRuntime.availableProcessors)
+  def pipelineConfig(c: CliOption, name: String) = Pipeline.Config(c.numWorkers, c.ordered, c.batchSize, name = name)
   
   val parser = new scopt.OptionParser[CliOption]("search") {
     head("search", "0.x")
@@ -21,6 +26,24 @@ object Main {
     opt[Unit]("index") action { (_, c) =>
       c.copy(index = true, numWorkers = Math.min(12, c.numWorkers))      // slower with more than 12 workers, if you really want more put --index before --numWorkers
     } text (s"create Lucene indices from JSON input (default ${defaultCliOption.index})")
+    opt[Boolean]("append") action { (v, c) =>
+      c.copy(append = v)
+    } text (s"index adds to the existing indices, replacing all Lucene documents for the id of each input doc, rather than creating new indices (default ${defaultCliOption.append})")
+    opt[Double]("ramBufferMB") action { (v, c) =>
+      c.copy(ramBufferMB = v)
+    } text (s"index RAM buffer per index before flushing a segment (default ${defaultCliOption.ramBufferMB})")
+    opt[Double]("maxMergedSegmentMB") action { (v, c) =>
+      c.copy(maxMergedSegmentMB = v)
+    } text (s"index merge policy max segment size (default ${defaultCliOption.maxMergedSegmentMB})")
+    opt[Double]("segmentsPerTier") action { (v, c) =>
+      c.copy(segmentsPerTier = v)
+    } text (s"index merge policy segments per tier, higher for faster indexing but slower search until merged (default ${defaultCliOption.segmentsPerTier})")
+    opt[Boolean]("writerPerThread") action { (v, c) =>
+      c.copy(writerPerThread = v)
+    } text (s"index with separate writers per thread, added to the main indices at the end, for bulk loads (default ${defaultCliOption.writerPerThread})")
+    opt[Boolean]("storeContent") action { (v, c) =>
+      c.copy(storeContent = v)
+    } text (s"index stores the doc content in the doc index (set false if it is available from the database, however search results then have empty content and --automaton fails) (default ${defaultCliOption.storeContent})")
     opt[Unit]("searchJson") action { (_, c) =>
       c.copy(searchJson = true, numWorkers = Math.min(25, c.numWorkers)) // slower with more than 25 workers, if you really want more put --searchJson before --numWorkers
     } text (s"search with JSON queries on stdin (default ${defaultCliOption.searchJson})")
@@ -30,6 +53,12 @@ object Main {
     opt[String]("csvDelim") action { (v, c) =>
       c.copy(csvDelim = v.headOption.getOrElse(defaultCliOption.csvDelim))
     } text (s"CSV field delimeter (default ${if (defaultCliOption.csvDelim == '\t') "tab" else defaultCliOption.csvDelim.toString})")
+    opt[Int]("csvTableMB") action { (v, c) =>
+      c.copy(csvTableMB = v)
+    } validate { v =>
+      if (v > 0 && v < 2048) success
+      else failure("csvTableMB must be between 1 and 2047")
+    } text (s"off heap memory for the names from --searchCsv (about as much again is used on the heap), sorted runs are spilled to temporary files when it is full (default ${defaultCliOption.csvTableMB})")
     opt[Seq[String]]("csvFields") action { (v, c) =>
       c.copy(csvFields = v)
     } validate { v =>
@@ -45,18 +74,18 @@ object Main {
     opt[Unit]("docFreq") action { (_, c) =>
       c.copy(docFreq = true)
     } text (s"output term document frequencies from index as CSV (default ${defaultCliOption.docFreq})")
+    opt[Unit]("termStats") action { (_, c) =>
+      c.copy(termStats = true)
+    } text (s"write the term document frequencies used by filterQuery to a file next to the doc index (also done by index) (default ${defaultCliOption.termStats})")
     opt[Unit]("export") action { (_, c) =>
       c.copy(export = true)
     } text (s"output the stored JSON for each doc (default ${defaultCliOption.export})")
     opt[Unit]("filterQueryOnly") action { (_, c) =>
       c.copy(filterQueryOnly = true)
-    } text (s"filter Query JSON from stdin to stdout, outputing only lines with all query terms most likely in the index (default ${defaultCliOption.filterQueryOnly})")
+    } text (s"filter Query JSON from stdin to stdout, outputing only lines with all query terms in the index (default ${defaultCliOption.filterQueryOnly})")
     opt[Boolean]("filterQuery") action { (v, c) =>
       c.copy(filterQuery = v)
-    } text (s"search CLI skips search if any query term is definitely not in the index (default ${defaultCliOption.filterQuery})")
-    opt[Int]("maxTerms") action { (v, c) =>
-      c.copy(maxTerms = v)
-    } text (s"maxTerms for Bloom Filter used with filterQuery, (default ${defaultCliOption.maxTerms})")
+    } text (s"search CLI skips search if any query term is not in the index (default ${defaultCliOption.filterQuery})")
     opt[Unit]("nerToQuery") action { (_, c) =>
       c.copy(nerToQuery = true)
     } text (s"filter JSON names from stdin to stdout, outputing queries only for lines with all specified query terms in the index (default ${defaultCliOption.filterQuery})")
@@ -66,6 +95,21 @@ object Main {
     opt[Int]("numWorkers") action { (v, c) =>
       c.copy(numWorkers = v)
     } text (s"numWorkers for CLI queries, (default ${defaultCliOption.numWorkers} the number of CPUs)")
+    opt[Boolean]("ordered") action { (v, c) =>
+      c.copy(ordered = v)
+    } text (s"whether output is in input order (default ${defaultCliOption.ordered})")
+    opt[Int]("batchSize") action { (v, c) =>
+      c.copy(batchSize = v)
+    } text (s"number of documents/queries passed between threads at a time (default ${defaultCliOption.batchSize})")
+    opt[File]("deadLetter") action { (v, c) =>
+      c.copy(deadLetter = Some(v))
+    } text (s"JSON for documents/queries that fail is written to this file, which can be used as input for a re-run (default ${defaultCliOption.deadLetter.get.getPath})")
+    opt[Unit]("failFast") action { (_, c) =>
+      c.copy(deadLetter = None)
+    } text (s"abort the run on the first document/query that fails, rather than writing it to the deadLetter file")
+    opt[Boolean]("automaton") action { (v, c) =>
+      c.copy(automaton = v)
+    } text (s"searchJson/searchCsv compiles all queries into an automaton and makes a single pass over the indexed docs, rather than a span query per query (default ${defaultCliOption.automaton})")
     help("help") text ("prints this usage text")
   }
     
@@ -75,9 +119,11 @@ object Main {
         log.info(s"main: cliOptions = $c")
         if (c.index) Indexer.run(c)
         else if (c.docFreq) DocFreq.writeDocFreqs(c)
+        else if (c.termStats) DocFreq.writeTermStats(docIndex)
         else if (c.filterQueryOnly) DocFreq.filterQuery(c)
         else if (c.nerToQuery) DocFreq.nerToQuery(c)
         else if (c.export) Search.cliExportDocIds(c)
+        else if ((c.searchJson || c.searchCsv) && c.automaton) Gazetteer.cliGazetteerSearch(c)
         else if (c.searchJson || c.searchCsv) Search.cliPosDocSearch(c)
         else log.info("Nothing to do. Try --help")
       }
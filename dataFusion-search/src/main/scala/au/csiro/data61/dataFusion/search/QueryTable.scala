@@ -0,0 +1,226 @@
+package au.csiro.data61.dataFusion.search
+
+import java.io.{ BufferedInputStream, BufferedOutputStream, DataInputStream, DataOutputStream, File, FileInputStream, FileOutputStream }
+import java.nio.ByteBuffer
+import java.nio.charset.StandardCharsets.UTF_8
+
+import scala.collection.mutable.{ ArrayBuffer, ListBuffer }
+
+import org.apache.lucene.util.IntroSorter
+
+import com.typesafe.scalalogging.Logger
+
+import au.csiro.data61.dataFusion.common.Data.{ ExtRef, PosQuery }
+
+object QueryTable {
+  private val log = Logger(getClass)
+
+  /** heap bytes per entry: offLen, typs and ids, and the index sorted when spilling */
+  val entryBytes = 8 + 1 + 8 + 4
+
+  /** a run of entries with the same name and typ */
+  class Group(val name: Array[Byte], val typ: Int, val ids: Array[Long])
+
+  /** unsigned lexicographic byte order, which for UTF-8 is code point order */
+  def compareBytes(a: Array[Byte], b: Array[Byte]): Int = {
+    val n = Math.min(a.length, b.length)
+    var i = 0
+    while (i < n) {
+      val d = (a(i) & 0xff) - (b(i) & 0xff)
+      if (d != 0) return d
+      i += 1
+    }
+    a.length - b.length
+  }
+
+  /** reads the groups from a run file written by `QueryTable.spill`, deleting the file when done */
+  class RunReader(f: File, numGroups: Int) extends Iterator[Group] {
+    private val in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 1 << 16))
+    private var remaining = numGroups
+    if (remaining == 0) done
+
+    private def done = {
+      in.close
+      f.delete
+    }
+
+    override def hasNext = remaining > 0
+    override def next = {
+      val name = new Array[Byte](in.readInt)
+      in.readFully(name)
+      val typ = in.readByte.toInt
+      val ids = Array.fill(in.readInt)(in.readLong)
+      remaining -= 1
+      if (remaining == 0) done
+      new Group(name, typ, ids)
+    }
+  }
+}
+
+/**
+ * A compact table of (name, typ, id) entries, for gazetteers too large to hold as PosQuery objects on the heap.
+ * Names are UTF-8 encoded into an off heap arena of `arenaBytes`, with typ codes and ids in primitive arrays.
+ * The arrays grow as entries are added, up to `arenaBytes / entryBytes` entries, so the table uses at most
+ * `arenaBytes` off heap plus about `arenaBytes` on the heap.
+ * When the arena or the arrays are full the entries are sorted (on an array of indices) and spilled to a temporary run file.
+ * `result` merges the sorted runs, yielding one PosQuery per distinct (name, typ) with all its ids,
+ * in order of name then typ.
+ * `add` is thread safe, `result` is called once after all the adds.
+ */
+class QueryTable(arenaBytes: Int) {
+  import QueryTable._
+
+  private var arena = ByteBuffer.allocateDirect(arenaBytes)
+  private val maxEntries = Math.max(16, arenaBytes / entryBytes)
+  private var offLen = new Array[Long](Math.min(1024, maxEntries)) // arena offset << 32 | name length
+  private var typs = new Array[Byte](offLen.length)
+  private var ids = new Array[Long](offLen.length)
+  private var n = 0
+
+  private val typNames = ArrayBuffer[String]()
+  private val typCodes = collection.mutable.Map[String, Int]()
+  private def typCode(typ: String) = typCodes.getOrElseUpdate(typ, {
+    require(typNames.size < Byte.MaxValue, "too many query types")
+    typNames += typ
+    typNames.size - 1
+  })
+  private def compareTyp(a: Int, b: Int) = typNames(a).compareTo(typNames(b))
+
+  private val runs = ListBuffer[(File, Int)]()
+
+  def size = synchronized { n }
+
+  def add(name: String, typ: String, id: Long): Unit = synchronized {
+    val b = name.getBytes(UTF_8)
+    require(b.length <= arenaBytes, s"name longer than the query table: $name")
+    if (b.length > arena.remaining || n == maxEntries) spill
+    if (n == offLen.length) {
+      val len = Math.min(maxEntries, n * 2)
+      offLen = java.util.Arrays.copyOf(offLen, len)
+      typs = java.util.Arrays.copyOf(typs, len)
+      ids = java.util.Arrays.copyOf(ids, len)
+    }
+    offLen(n) = arena.position().toLong << 32 | b.length
+    typs(n) = typCode(typ).toByte
+    ids(n) = id
+    arena.put(b)
+    n += 1
+  }
+
+  private def off(i: Int) = (offLen(i) >>> 32).toInt
+  private def len(i: Int) = offLen(i).toInt
+
+  private def compare(i: Int, j: Int): Int = {
+    val (oi, li, oj, lj) = (off(i), len(i), off(j), len(j))
+    val m = Math.min(li, lj)
+    var k = 0
+    while (k < m) {
+      val d = (arena.get(oi + k) & 0xff) - (arena.get(oj + k) & 0xff)
+      if (d != 0) return d
+      k += 1
+    }
+    if (li != lj) li - lj else compareTyp(typs(i), typs(j))
+  }
+
+  /** indices of the entries sorted by name, typ */
+  private def sorted: Array[Int] = {
+    val idx = Array.tabulate(n)(identity)
+    new IntroSorter {
+      var pivot = 0
+      override protected def compare(i: Int, j: Int) = QueryTable.this.compare(idx(i), idx(j))
+      override protected def swap(i: Int, j: Int) = {
+        val t = idx(i)
+        idx(i) = idx(j)
+        idx(j) = t
+      }
+      override protected def setPivot(i: Int) = pivot = idx(i)
+      override protected def comparePivot(j: Int) = QueryTable.this.compare(pivot, idx(j))
+    }.sort(0, n)
+    idx
+  }
+
+  private def name(i: Int) = {
+    val b = new Array[Byte](len(i))
+    val a = arena.duplicate
+    (a: java.nio.Buffer).position(off(i)) // Buffer method, not the JDK 9 ByteBuffer override
+    a.get(b)
+    b
+  }
+
+  /** the in memory entries merged into groups, in order */
+  private def groups: Iterator[Group] = {
+    val idx = sorted
+    val ids = new ArrayBuffer[Long]
+    var i = 0
+    new Iterator[Group] {
+      override def hasNext = i < idx.length
+      override def next = {
+        val first = idx(i)
+        ids.clear
+        while (i < idx.length && (idx(i) == first || compare(first, idx(i)) == 0)) {
+          ids += QueryTable.this.ids(idx(i))
+          i += 1
+        }
+        new Group(name(first), typs(first), ids.toArray)
+      }
+    }
+  }
+
+  private def spill: Unit = {
+    val f = File.createTempFile("queryTable", ".run")
+    f.deleteOnExit
+    log.info(s"spill: sorting $n entries to $f")
+    var numGroups = 0
+    val out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1 << 16))
+    try {
+      for (g <- groups) {
+        out.writeInt(g.name.length)
+        out.write(g.name)
+        out.writeByte(g.typ)
+        out.writeInt(g.ids.length)
+        g.ids.foreach(out.writeLong)
+        numGroups += 1
+      }
+    } finally out.close
+    runs += ((f, numGroups))
+    (arena: java.nio.Buffer).clear
+    n = 0
+  }
+
+  /**
+   * Merge the in memory entries and any spilled runs into one PosQuery per distinct (name, typ).
+   * The arena is released once the in memory entries have been spilled or read.
+   */
+  def result: Iterator[PosQuery] = synchronized {
+    val sources: Seq[BufferedIterator[Group]] = if (runs.isEmpty) Seq(groups.buffered) else {
+      if (n > 0) spill
+      arena = null
+      log.info(s"result: merging ${runs.size} runs")
+      runs.toList.map { case (f, numGroups) => new RunReader(f, numGroups).buffered }
+    }
+    val ord = new Ordering[BufferedIterator[Group]] {
+      override def compare(a: BufferedIterator[Group], b: BufferedIterator[Group]) = {
+        val i = compareBytes(b.head.name, a.head.name) // reversed for the min first PriorityQueue
+        if (i != 0) i else compareTyp(b.head.typ, a.head.typ)
+      }
+    }
+    val pq = collection.mutable.PriorityQueue[BufferedIterator[Group]]()(ord)
+    pq ++= sources.filter(_.hasNext)
+
+    new Iterator[PosQuery] {
+      override def hasNext = pq.nonEmpty
+      override def next = {
+        val it = pq.dequeue
+        val g = it.next
+        val ids = ListBuffer[Long](g.ids: _*)
+        if (it.hasNext) pq += it
+        while (pq.nonEmpty && compareBytes(pq.head.head.name, g.name) == 0 && pq.head.head.typ == g.typ) {
+          val it2 = pq.dequeue
+          ids ++= it2.next.ids
+          if (it2.hasNext) pq += it2
+        }
+        PosQuery(ExtRef(new String(g.name, UTF_8), ids.toList), typNames(g.typ))
+      }
+    }
+  }
+}
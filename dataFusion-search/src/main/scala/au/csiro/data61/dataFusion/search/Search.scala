@@ -2,7 +2,7 @@ package au.csiro.data61.dataFusion.search
 
 import java.util.concurrent.atomic.AtomicInteger
 
-import scala.collection.mutable.{ ArrayBuffer, ListBuffer }
+import scala.collection.mutable.ListBuffer
 import scala.io.Source
 import scala.language.postfixOps
 import scala.util.control.NonFatal
@@ -11,16 +11,15 @@ import org.apache.commons.io.input.BOMInputStream
 import org.apache.lucene.queryparser.classic.QueryParser
 import org.apache.lucene.search.MatchAllDocsQuery
 
-import com.google.common.hash.BloomFilter
 import com.typesafe.scalalogging.Logger
 
 import DataFusionLucene.{ F_CONTENT, F_JSON, F_TEXT, F_VAL, analyzer, docIndex, metaIndex, nerIndex }
 import LuceneUtil.{ Searcher, directory }
 import Main.CliOption
 import au.csiro.data61.dataFusion.common.CSV
-import au.csiro.data61.dataFusion.common.Data.{ DHits, ExtRef, MHits, NHits, PHits, PMultiHits, PosMultiQuery, PosQuery, Query, Stats, T_ORGANIZATION, T_PERSON, T_PERSON2 }
+import au.csiro.data61.dataFusion.common.Data.{ DHits, MHits, NHits, PHits, PMultiHits, PosMultiQuery, PosQuery, Query, Stats, T_ORGANIZATION, T_PERSON, T_PERSON2 }
 import au.csiro.data61.dataFusion.common.Data.JsonProtocol.{ pHitsCodec, posQueryCodec }
-import au.csiro.data61.dataFusion.common.Parallel.doParallel
+import au.csiro.data61.dataFusion.common.Pipeline
 import au.csiro.data61.dataFusion.common.Timer
 import au.csiro.data61.dataFusion.common.Util.bufWriter
 import resource.managed
@@ -37,7 +36,7 @@ object Search {
   object DocSearcher {
     import DataFusionLucene.DFSearching.DocSearch._
     
-    val searcher = new Searcher(directory(docIndex), toHit, toResult)
+    val searcher = new Searcher(directory(docIndex), toHit, toResult, "doc")
     
     def search(q: Query) = try {
       val qry = if (q.query.length == 0) new MatchAllDocsQuery else new QueryParser(F_CONTENT, analyzer).parse(q.query)
@@ -59,9 +58,9 @@ object Search {
      * Building the queries programatically rather than with a QueryParser allows us to search for terms that would match
      * QueryParser keywords such as "and".
      */
-    def search(slop: Int, q: PosQuery, minScore: Float) = 
+    def search(slop: Int, q: PosQuery, minScore: Float, termStats: Option[DocFreq.TermStats] = None) = 
       try {
-        searchSpans(indexSearcher, slop, q, minScore)
+        searchSpans(indexSearcher, slop, q, minScore, termStats)
       } catch {
         // TODO: probably wrong to eat exception here, do in Parallel.work instead?
         case NonFatal(e) => {
@@ -77,7 +76,7 @@ object Search {
   object MetaSearcher {
     import DataFusionLucene.DFSearching.MetaSearch._
     
-    val searcher = new Searcher(directory(metaIndex), toHit, toResult)
+    val searcher = new Searcher(directory(metaIndex), toHit, toResult, "meta")
     
     def search(q: Query) = {
       try {
@@ -95,7 +94,7 @@ object Search {
   object NerSearcher {
     import DataFusionLucene.DFSearching.NerSearch._
     
-    val searcher = new Searcher(directory(nerIndex), toHit, toResult)
+    val searcher = new Searcher(directory(nerIndex), toHit, toResult, "ner")
     
     def search(q: Query) = {
       try {
@@ -119,33 +118,32 @@ object Search {
     val nameOKRE = "^[A-Z](?:[' A-Z-]*[A-Z])?$".r
     def nameOK(n: String) = nameOKRE.unapplySeq(n).isDefined // matches
     
-    // single threaded load used to take 20 min using immutable data structs
-    val buf = new ArrayBuffer[PosQuery](20000000)
-    def add(q: PosQuery) = buf.synchronized {
-      buf += q
-    }
+    // single threaded load used to take 20 min using immutable data structs,
+    // the QueryTable keeps the names off heap and spills sorted runs to disk when it is full
+    val table = new QueryTable(c.csvTableMB << 20)
+    def add(name: String, typ: String, id: Long) = table.add(name, typ, id)
       
     val mkFieldData = CSV.mkFieldData(c.csvDelim, c.csvFields, iter)
       
     def work(line: String): List[String] = {
       val Seq(fam, gvn, oth, typ, org, idStr) = mkFieldData(line)
-      val id = List(idStr.toLong)
+      val id = idStr.toLong
       
       val warnBuf = new ListBuffer[String]
       
       // TODO: are any one word org names valid? If so we have to do a non-phrase search for them
       if (typ == "BUS") {
         if (org.nonEmpty) {
-          if (alpha.findFirstMatchIn(org).isDefined && space.findFirstMatchIn(org).isDefined) add(PosQuery(ExtRef(org, id), T_ORGANIZATION))
+          if (alpha.findFirstMatchIn(org).isDefined && space.findFirstMatchIn(org).isDefined) add(org, T_ORGANIZATION, id)
           else warnBuf += s"Rejected organisation: id = $idStr, $org"
         }
       } else {
         if (fam.nonEmpty || gvn.nonEmpty || oth.nonEmpty) {
-          if (nameOK(fam) && nameOK(gvn) && nameOK(oth)) add(PosQuery(ExtRef(s"$gvn $oth $fam", id), T_PERSON))
+          if (nameOK(fam) && nameOK(gvn) && nameOK(oth)) add(s"$gvn $oth $fam", T_PERSON, id)
           else warnBuf += s"Rejected person for 3 name query: id = $idStr, family = '$fam', given = '$gvn', other = '$oth'"
         }
         if (c.csvPersonWith2Names && (fam.nonEmpty || gvn.nonEmpty)) {
-          if (nameOK(fam) && nameOK(gvn)) add(PosQuery(ExtRef(s"$gvn $fam", id), T_PERSON2))
+          if (nameOK(fam) && nameOK(gvn)) add(s"$gvn $fam", T_PERSON2, id)
           else warnBuf += s"Rejected person for 2 name query: id = $idStr, family = '$fam', given = '$gvn', other = '$oth'"
         }
       }
@@ -155,65 +153,45 @@ object Search {
     
     def out(msgs: List[String]): Unit = for (m <- msgs) log.warn(m)
     
-    doParallel(iter, work, out, "done", List("done"), Math.min(4, c.numWorkers)) // 1 worker -> 12.5 min, 2 -> 7.5 min, 4 -> 6.5 min, slower with more
-    log.info(s"inCsv: load completed")
-      
-    val endMarker = PosQuery(ExtRef("done", List.empty), "done")
-    buf += endMarker
-    val sorted = buf.toArray
-    buf.clear
-    val cmp = new java.util.Comparator[PosQuery] {
-      override def compare(a: PosQuery, b: PosQuery): Int = {
-        val i = a.extRef.name.compareTo(b.extRef.name)
-        if (i != 0) i else a.typ.compareTo(b.typ)
-      }
-    }
-    java.util.Arrays.parallelSort(sorted, 0, sorted.length - 1, cmp) // don't sort endMarker, ~20 sec compared to 7 min for scala groupBy! 
-    log.info(s"inCsv: sort completed")
+    // lines that fail to parse are logged and skipped, as for the rejected names above
+    val conf = Pipeline.Config(Math.min(4, c.numWorkers), batchSize = 100, name = "inCsv") // 1 worker -> 12.5 min, 2 -> 7.5 min, 4 -> 6.5 min, slower with more
+    Pipeline.run(iter, work, out, conf, Pipeline.logAndSkip[String])
       
-    // manual groupBy, merge sorted items with same query & typ
-    val extRefId = new ListBuffer[Long]
-    sorted.iterator.sliding(2).flatMap {
-      case Seq(a, b) => {
-        extRefId ++= a.extRef.ids
-        if (a.extRef.name == b.extRef.name && a.typ == b.typ) {
-          Iterator.empty
-        } else {
-          val p = a.copy(extRef = a.extRef.copy(ids = extRefId.toList))
-          extRefId.clear
-          Iterator.single(p)
-        }
-      }
-      case _ => Iterator.empty
-    }
+    log.info(s"inCsv: load completed, merging ${table.size} in memory entries")
+    table.result // sorted by name, typ with the ids of the same query merged
+    
+  }
     
+  /** PosQuery's from JSON or CSV on stdin */
+  def queries(c: CliOption): Iterator[PosQuery] = {
+    val iter = Source.fromInputStream(new BOMInputStream(System.in), "UTF-8").getLines
+    if (c.searchJson) iter.map(_.parseJson.convertTo[PosQuery]) else inCsv(c, iter)
   }
     
   /**
    * CLI method to run bulk searches:
    * + way simpler than JSON web service + client (and no timeout issues)
-   * + parallelism using doParallel
+   * + parallelism using Pipeline
    */
   def cliPosDocSearch(c: CliOption): Unit = {
     log.info("cliPosDocSearch: start")
     
-    val in: Iterator[PosQuery] = {
-      val iter = Source.fromInputStream(new BOMInputStream(System.in), "UTF-8").getLines
-      if (c.searchJson) iter.map(_.parseJson.convertTo[PosQuery]) else inCsv(c, iter)
-    }
+    val in = queries(c)
     
     val searchCount = new AtomicInteger
     val filterCount = new AtomicInteger
     
     val work: PosQuery => PHits = {
 
+      val termStats = if (c.filterQuery) Some(DocFreq.loadTermStats) else None
+
       def workNoFilter(q: PosQuery) = {
         searchCount.incrementAndGet
-        PosDocSearcher.search(c.slop, q, c.minScore)
+        PosDocSearcher.search(c.slop, q, c.minScore, termStats)
       }
       
-      def workFilter(termFilter: BloomFilter[CharSequence])(q: PosQuery) = {
-        if (DocFreq.containsAllTokens(termFilter, q.extRef.name)) {
+      def workFilter(ts: DocFreq.TermStats)(q: PosQuery) = {
+        if (DocFreq.containsAllTokens(ts, q.extRef.name)) {
           workNoFilter(q)
         } else {
           filterCount.incrementAndGet
@@ -221,7 +199,7 @@ object Search {
         }
       }
     
-      if (c.filterQuery) workFilter(DocFreq.loadTermFilter(c.maxTerms)) else workNoFilter
+      termStats.map(workFilter).getOrElse(workNoFilter _)
     }
       
     for (w <- managed(bufWriter(c.output))) {
@@ -235,9 +213,7 @@ object Search {
         }
       }
       
-      val queryEndMarker = PosQuery(ExtRef("done", List.empty), T_ORGANIZATION)
-      val hitsEndMarker = PHits(Stats(0, 0), List.empty, None, ExtRef("done", List.empty), 0.0f, "")
-      doParallel(in, work, out, queryEndMarker, hitsEndMarker, c.numWorkers)
+      Pipeline.runWithDeadLetter(in, work, out, Main.pipelineConfig(c, "cliPosDocSearch"), c.deadLetter, (q: PosQuery) => q.toJson.compactPrint)
       
       log.info(s"cliPosDocSearch: Output thread busy for ${outTimer.elapsedSecs} secs")
       // With nuWorkers 25, runtime 1m42s, inTimer 12.5s, outTimer 22.5s,
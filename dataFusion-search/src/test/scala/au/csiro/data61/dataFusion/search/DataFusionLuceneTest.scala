@@ -1,13 +1,13 @@
 package au.csiro.data61.dataFusion.search
 
-import org.apache.lucene.index.DirectoryReader
+import org.apache.lucene.index.{ DirectoryReader, Term }
 import org.apache.lucene.search.IndexSearcher
 import org.apache.lucene.store.RAMDirectory
 import org.scalatest.{ FlatSpec, Matchers }
 
 import com.typesafe.scalalogging.Logger
 
-import DataFusionLucene.{ F_CONTENT, analyzer, synonymAnalyzer }
+import DataFusionLucene.{ F_CONTENT, F_ID, analyzer, synonymAnalyzer }
 import DataFusionLucene.DFIndexing.{ ldoc2doc, mkIndexer }
 import DataFusionLucene.DFSearching.PosDocSearch.searchSpans
 import LuceneUtil.tokenIter
@@ -110,17 +110,37 @@ class DataFusionLuceneTest extends FlatSpec with Matchers {
       x.stats.totalHits should be(0)
     }
     
-//    // TODO: this is known to fail, single term search is not working
-//    {
-//      val q = PosQuery(ExtRef("John", List(1L)), T_PERSON)
-//      val x = searchSpans(searcher, 0, q, 0.0f)
-//      log.debug(s"SpanQuery: x = $x")
-//      x.stats.totalHits should be(1)
-//      x.hits.size should be(1)
-//      x.hits.head.posInfos.size should be(1)
-//      val pi = x.hits.head.posInfos.head
-//      doc2.substring(pi.offStr, pi.offEnd) should be ("JOHN")
-//    }
+    {
+      val q = PosQuery(ExtRef("John", List(1L)), T_PERSON)
+      val x = searchSpans(searcher, 0, q, 0.0f)
+      log.debug(s"SpanQuery: x = $x")
+      x.stats.totalHits should be(1)
+      x.hits.size should be(1)
+      x.hits.head.idEmbIdx should be(IdEmbIdx(1, -1))
+      x.hits.head.posInfos.size should be(1)
+      val pi = x.hits.head.posInfos.head
+      doc2.substring(pi.offStr, pi.offEnd) should be ("John")
+    }
+    
+    {
+      val q = PosQuery(ExtRef("Jones", List(1L)), T_PERSON)
+      val x = searchSpans(searcher, 0, q, 0.0f)
+      x.hits.map(_.idEmbIdx) should be(List(IdEmbIdx(0, -1), IdEmbIdx(1, -1)))
+    }
+  }
+  
+  it should "skip deleted docs" in {
+    val dir = new RAMDirectory
+    val xer = mkIndexer(dir)
+    for {
+      (content, idx) <- Seq(doc1, doc2, doc3).zipWithIndex
+    } xer.addDocument(LDoc(IdEmbIdx(idx, -1), content, "path"))
+    xer.commit
+    xer.deleteDocuments(new Term(F_ID, "0"))
+    xer.close
+    val searcher = new IndexSearcher(DirectoryReader.open(dir))
+    searchSpans(searcher, 0, PosQuery(ExtRef("Jones", List(1L)), T_PERSON), 0.0f).hits.map(_.idEmbIdx) should be(List(IdEmbIdx(1, -1)))
+    searchSpans(searcher, 0, PosQuery(ExtRef("Sarah Jones", List(1L)), T_PERSON), 0.0f).stats.totalHits should be(0)
   }
 
 }
\ No newline at end of file
@@ -0,0 +1,44 @@
+package au.csiro.data61.dataFusion.search
+
+import java.nio.file.Files
+
+import org.apache.commons.io.FileUtils
+import org.apache.lucene.index.DirectoryReader
+import org.scalatest.{ FlatSpec, Matchers }
+
+import com.typesafe.scalalogging.Logger
+
+import DataFusionLucene.DFIndexing.{ ldoc2doc, mkIndexer }
+import DataFusionLucene.DFSearching.PosDocSearch.{ getScore, getTerms }
+import DocFreq.{ containsAllTokens, readTermStats, termStatsFile, writeTermStats }
+import LuceneUtil.directory
+import au.csiro.data61.dataFusion.common.Data.{ IdEmbIdx, LDoc }
+
+class DocFreqTest extends FlatSpec with Matchers {
+  val log = Logger(getClass)
+
+  "TermStats" should "persist exact docFreqs for the current commit" in {
+    val indexDir = Files.createTempDirectory("docFreqTest").resolve("docIndex").toFile
+    try {
+      val xer = mkIndexer(directory(indexDir))
+      for ((content, idx) <- Seq("Sarah Jones", "John Jones", "AA Pty. Limited").zipWithIndex) xer.addDocument(LDoc(IdEmbIdx(idx, -1), content, "path"))
+      xer.close
+
+      val ts = writeTermStats(indexDir)
+      termStatsFile(indexDir).isFile should be(true)
+      for (r <- resource.managed(DirectoryReader.open(directory(indexDir)))) {
+        val gen = r.getIndexCommit.getGeneration
+        val ts2 = readTermStats(indexDir, gen).get
+        for (t <- Seq("sarah", "jones", "ltd", "limited", "nobody")) {
+          ts.docFreq(t) should be(r.docFreq(new org.apache.lucene.index.Term(DataFusionLucene.F_CONTENT, t)))
+          ts2.docFreq(t) should be(ts.docFreq(t))
+        }
+        ts2.docFreq("jones") should be(2)
+        ts2.score(getTerms("Sarah Jones")) should be(getScore(r)(getTerms("Sarah Jones")))
+        containsAllTokens(ts2, "Sarah Jones Pty Limited") should be(true)
+        containsAllTokens(ts2, "Sarah Smith") should be(false)
+        readTermStats(indexDir, gen + 1) should be(None) // out of date
+      }
+    } finally FileUtils.deleteDirectory(indexDir.getParentFile)
+  }
+}
@@ -0,0 +1,83 @@
+package au.csiro.data61.dataFusion.search
+
+import org.apache.lucene.index.DirectoryReader
+import org.apache.lucene.search.IndexSearcher
+import org.apache.lucene.store.RAMDirectory
+import org.scalatest.{ FlatSpec, Matchers }
+
+import com.typesafe.scalalogging.Logger
+
+import DataFusionLucene.DFIndexing.{ ldoc2doc, mkIndexer }
+import DataFusionLucene.DFSearching.PosDocSearch.searchSpans
+import Gazetteer.{ LongIntMap, State, docs }
+import au.csiro.data61.dataFusion.common.Data.{ ExtRef, IdEmbIdx, LDoc, LPosDoc, PosQuery, T_ORGANIZATION, T_PERSON, T_PERSON2 }
+
+class GazetteerTest extends FlatSpec with Matchers {
+  val log = Logger(getClass)
+
+  val contents = Seq(
+    "doc1: Sarah Jones\nAA AA Pty. Limited",
+    "doc2: John Jones\nMs. AA\nMr. AA BB AA",
+    "doc3: @ PTY. LIMITED is a subsidiary of $ PTY LIMITED",
+    "doc4: Jones John and Sarah Jones met AA BB BB of Jones Sarah Pty Ltd"
+  )
+
+  def mkSearcher = {
+    val dir = new RAMDirectory
+    val xer = mkIndexer(dir)
+    for ((content, idx) <- contents.zipWithIndex) xer.addDocument(LDoc(IdEmbIdx(idx, -1), content, "path"))
+    xer.close
+    new IndexSearcher(DirectoryReader.open(dir))
+  }
+
+  val queries = Seq(
+    PosQuery(ExtRef("AA AA Proprietary Ltd.", List(1L)), T_ORGANIZATION),
+    PosQuery(ExtRef("Jones Sarah", List(2L)), T_PERSON),
+    PosQuery(ExtRef("Sarah Jones", List(3L)), T_ORGANIZATION),
+    PosQuery(ExtRef("John Jones", List(4L)), T_PERSON2),
+    PosQuery(ExtRef("AA AA", List(5L)), T_PERSON),
+    PosQuery(ExtRef("Jones", List(6L)), T_PERSON),
+    PosQuery(ExtRef("Jones Sarah Pty Limited", List(7L)), T_ORGANIZATION),
+    PosQuery(ExtRef("AA CC", List(8L)), T_PERSON)
+  )
+
+  def byQuery(g: Gazetteer, searcher: IndexSearcher) = {
+    val s = new State
+    docs(searcher.getIndexReader).flatMap(d => g.find(d, s)).toList.groupBy(x => g.query(x._1)).mapValues(_.map(_._2).toSet)
+  }
+
+  "Gazetteer" should "find the same hits as span queries" in {
+    val searcher = mkSearcher
+    val g = Gazetteer.compile(searcher.getIndexReader, queries.iterator, 0.0f)
+    g.size should be(queries.size - 1) // "cc" is not in the index
+    val hits = byQuery(g, searcher)
+    log.debug(s"hits = $hits")
+    for (q <- queries) {
+      val expected = searchSpans(searcher, 0, q, 0.0f).hits.toSet
+      hits.getOrElse(q, Set.empty[LPosDoc]) should be(expected)
+    }
+    hits(queries(1)).flatMap(_.posInfos).size should be(3) // "Sarah Jones" and "Jones Sarah" twice
+    hits(queries(2)).flatMap(_.posInfos).size should be(2) // in order only
+  }
+
+  it should "match repeated terms in any order the right number of times" in {
+    val searcher = mkSearcher
+    val q = PosQuery(ExtRef("AA BB AA", List(1L)), T_PERSON)
+    val hits = byQuery(Gazetteer.compile(searcher.getIndexReader, Iterator.single(q), 0.0f), searcher)
+    hits(q).map(_.idEmbIdx.id) should be(Set(1L)) // not doc4 "AA BB BB"
+    hits(q).subsetOf(searchSpans(searcher, 0, q, 0.0f).hits.toSet) should be(true)
+  }
+
+  it should "skip queries with a low score" in {
+    val searcher = mkSearcher
+    Gazetteer.compile(searcher.getIndexReader, queries.iterator, 100.0f).size should be(0)
+  }
+
+  "LongIntMap" should "map longs to ints" in {
+    val m = new LongIntMap(4)
+    for (i <- 0 until 1000) m.put(i.toLong << 32 | (i * 7), i)
+    m.size should be(1000)
+    for (i <- 0 until 1000) m.get(i.toLong << 32 | (i * 7)) should be(i)
+    m.get(12345L) should be(-1)
+  }
+}
@@ -0,0 +1,97 @@
+package au.csiro.data61.dataFusion.search
+
+import org.apache.lucene.index.{ DirectoryReader, IndexWriter, Term }
+import org.apache.lucene.index.IndexWriterConfig.OpenMode
+import org.apache.lucene.search.{ IndexSearcher, TermQuery }
+import org.apache.lucene.store.RAMDirectory
+import org.scalatest.{ FlatSpec, Matchers }
+
+import com.typesafe.scalalogging.Logger
+
+import DataFusionLucene.{ F_CONTENT, F_ID }
+import DataFusionLucene.DFSearching.ldoc
+import Indexer.{ Writers, config, indexer }
+import Main.defaultCliOption
+import au.csiro.data61.dataFusion.common.Data.{ Doc, Embedded, Ner }
+
+class IndexerTest extends FlatSpec with Matchers {
+  val log = Logger(getClass)
+
+  val ner = Ner(0, 1, 0, 5, 1.0, "Sarah", "PERSON", "test", None)
+  def doc(id: Long, content: String, numEmbedded: Int) =
+    Doc(id, Some(content), Map("k" -> "v"), "path", List(ner), List.fill(numEmbedded)(Embedded(Some(s"embedded $content"), Map("k" -> "v", "k2" -> "v2"), List.empty)))
+
+  def mkWriters = {
+    val dirs = Seq.fill(3)(new RAMDirectory)
+    def open = {
+      val Seq(d, m, n) = dirs.map(dir => new IndexWriter(dir, config(defaultCliOption).setOpenMode(OpenMode.CREATE_OR_APPEND)))
+      Writers(d, m, n)
+    }
+    (dirs, open _)
+  }
+
+  def count(dir: RAMDirectory, t: Term) = {
+    val r = DirectoryReader.open(dir)
+    try new IndexSearcher(r).count(new TermQuery(t)) finally r.close
+  }
+
+  "indexer" should "replace all Lucene documents for an id in each index" in {
+    val (Seq(docDir, metaDir, nerDir), open) = mkWriters
+    val id1 = new Term(F_ID, "1")
+    val id2 = new Term(F_ID, "2")
+
+    val w = open()
+    for (d <- Seq(doc(1, "Sarah Jones", 2), doc(2, "John Jones", 0))) indexer(w, false, true)(d)
+    w.all.foreach(_.commit)
+    w.close
+    (count(docDir, id1), count(metaDir, id1), count(nerDir, id1)) should be((3, 5, 1))
+
+    val w2 = open()
+    indexer(w2, true, true)(doc(1, "Sarah Smith", 1).copy(ner = List.empty))
+    w2.all.foreach(_.commit)
+    w2.close
+    (count(docDir, id1), count(metaDir, id1), count(nerDir, id1)) should be((2, 3, 0))
+    (count(docDir, id2), count(metaDir, id2), count(nerDir, id2)) should be((1, 1, 1))
+    count(docDir, new Term(F_CONTENT, "jones")) should be(1)
+    count(docDir, new Term(F_CONTENT, "smith")) should be(2)
+  }
+
+  it should "not commit on close" in {
+    val (Seq(docDir, _, _), open) = mkWriters
+    val w = open()
+    w.all.foreach(_.commit) // create empty indices
+    indexer(w, false, true)(doc(1, "Sarah Jones", 0))
+    w.close
+    count(docDir, new Term(F_ID, "1")) should be(0)
+  }
+
+  it should "optionally not store the content" in {
+    val (Seq(docDir, _, _), open) = mkWriters
+    val w = open()
+    indexer(w, false, false)(doc(1, "Sarah Jones", 0))
+    w.all.foreach(_.commit)
+    w.close
+    val r = DirectoryReader.open(docDir)
+    try {
+      ldoc(r.document(0)).content should be("")
+      new IndexSearcher(r).count(new TermQuery(new Term(F_CONTENT, "jones"))) should be(1)
+    } finally r.close
+  }
+  
+  it should "record in the doc index whether any content isn't stored" in {
+    val (Seq(docDir, _, _), open) = mkWriters
+    def commit(storeContent: Boolean, append: Boolean) = {
+      val w = open()
+      indexer(w, append, storeContent)(doc(1, "Sarah Jones", 0))
+      Indexer.setStoreContent(w.doc, storeContent, append)
+      w.all.foreach(_.commit)
+      w.close
+      val r = DirectoryReader.open(docDir)
+      try Indexer.contentStored(r.getIndexCommit.getUserData) finally r.close
+    }
+    commit(true, false) should be(true)
+    commit(false, true) should be(false)
+    commit(true, true) should be(false) // some docs still have no content
+    commit(true, false) should be(true)
+  }
+}
@@ -25,4 +25,17 @@ class SearchTest extends FlatSpec with Matchers {
     qs.toSet should be(Set(x1, x2, x3)) // inCsv is parallelized so results not ordered
   }
   
-}
\ No newline at end of file
+  "QueryTable" should "merge the same queries across spilled runs" in {
+    val entries = for (i <- 0 until 1000) yield (s"NAME ${i % 37}", if (i % 3 == 0) T_PERSON2 else T_PERSON, i.toLong)
+    val expected = entries.groupBy(e => (e._1, e._2)).map { case ((n, t), es) => PosQuery(ExtRef(n, es.map(_._3).toList.sorted), t) }
+    
+    for (arenaBytes <- Seq(100, 1 << 20)) { // spills many runs, all in memory
+      val t = new QueryTable(arenaBytes)
+      entries.foreach { case (n, typ, id) => t.add(n, typ, id) }
+      val qs = t.result.toList
+      qs.map(q => q.copy(extRef = q.extRef.copy(ids = q.extRef.ids.sorted))).toSet should be(expected.toSet)
+      qs.map(q => (q.extRef.name, q.typ)) should be(expected.toList.map(q => (q.extRef.name, q.typ)).sorted)
+    }
+  }
+  
+}
@@ -1,8 +1,10 @@
 package au.csiro.data61.dataFusion.tika.service
 
-import java.io.ByteArrayInputStream
+import java.io.File
+import java.util.concurrent.{ Executors, FutureTask, Semaphore, TimeUnit, TimeoutException }
+import java.util.concurrent.atomic.AtomicLong
 
-import scala.concurrent.{ ExecutionContext, Future }
+import scala.concurrent.{ ExecutionContext, Future, Promise }
 import scala.language.postfixOps
 import scala.reflect.runtime.universe.typeOf
 import scala.util.{ Failure, Success, Try }
@@ -15,33 +17,56 @@ import akka.actor.ActorSystem
 import akka.http.scaladsl.Http
 import akka.http.scaladsl.marshallers.sprayjson.SprayJsonSupport._
 import akka.http.scaladsl.marshalling.{ ToResponseMarshallable, ToResponseMarshaller }
-import akka.http.scaladsl.model.{ StatusCode, StatusCodes }
+import akka.http.scaladsl.model.{ HttpResponse, StatusCode, StatusCodes }
 import akka.http.scaladsl.model.HttpMethods.PUT
+import akka.http.scaladsl.model.headers.RawHeader
 import akka.http.scaladsl.server.Directives._
 import akka.stream.{ ActorMaterializer, Materializer }
-import akka.stream.scaladsl.Source
+import akka.stream.scaladsl.{ FileIO, Source }
 import akka.util.ByteString
 import au.csiro.data61.dataFusion.common.Data.Doc
 import au.csiro.data61.dataFusion.common.Data.JsonProtocol.docFormat
+import au.csiro.data61.dataFusion.common.Metrics
 import au.csiro.data61.dataFusion.tika.TikaUtil
 import ch.megard.akka.http.cors.scaladsl.CorsDirectives.cors
 import ch.megard.akka.http.cors.scaladsl.settings.CorsSettings
 import io.swagger.annotations.{ Api, ApiOperation, ApiParam, ApiResponses, ApiResponse }
 import javax.ws.rs.{ Consumes, Path, QueryParam }
-import resource.managed
-import java.util.concurrent.atomic.AtomicLong
+import org.apache.tika.io.TikaInputStream
 import org.apache.tika.parser.ocr.TesseractOCRParser
 import au.csiro.data61.dataFusion.tika.Main.{ CliOption, defaultCliOption, initSystemProperties }
 
 object Main {
   private val log = Logger(getClass)
   
+  /**
+   * @param queueSize max number of requests waiting for a worker (further requests get 503 Service Unavailable)
+   * @param timeoutSecs max time for a parse (from when a worker starts it), after which it is interrupted and the request fails
+   * @param retryAfterSecs value for the Retry-After header of a 503 response
+   */
+  case class ServiceConfig(queueSize: Int, timeoutSecs: Int, retryAfterSecs: Int)
+  
   @Api(value = "tika", description = "tika service", produces = "application/json")
   @Path("")
-  class TikaService(cliOption: CliOption)(implicit materializer: Materializer, val executionContext: ExecutionContext)  {
+  class TikaService(cliOption: CliOption, serviceConfig: ServiceConfig)(implicit materializer: Materializer, val executionContext: ExecutionContext)  {
     val tikaUtil = new TikaUtil(cliOption)
     val id = new AtomicLong(cliOption.startId)
     
+    // parsing is done on a dedicated pool (not the akka dispatcher), requests beyond numWorkers + queueSize are refused
+    val pool = Executors.newFixedThreadPool(cliOption.numWorkers)
+    val admission = new Semaphore(cliOption.numWorkers + serviceConfig.queueSize)
+    
+    // in addition to the ocr.* histograms from TesseractOCRParser
+    val parseLatency = Metrics.histogram("tikaService.parse")
+    val refused = Metrics.counter("tikaService.refused")
+    val timeouts = Metrics.counter("tikaService.timeout")
+    Metrics.gauge("tikaService.inProgress")(cliOption.numWorkers + serviceConfig.queueSize - admission.availablePermits)
+    val timer = Executors.newSingleThreadScheduledExecutor { r: Runnable =>
+      val t = new Thread(r, "tika-timeout")
+      t.setDaemon(true)
+      t
+    }
+    
 //    // isn't getting executed
 //    sys.addShutdownHook {
 //      log.info(s"TikaService: Shutting down: next id would be ${id.get}")
@@ -58,14 +83,43 @@ object Main {
       }
     }
     
-    /** convert a binary akka stream, src, to an Array[Byte] containing the whole stream */
-    def toBytes(src: Source[ByteString, Any]): Future[Array[Byte]] = {
-      src.runFold(new Array[Byte](0)) { (acc, bs) =>
-        val b = bs.toArray
-        acc ++ b
+    /** write a binary akka stream, src, to a temporary file (so large uploads don't have to fit on the heap) */
+    def toFile(src: Source[ByteString, Any]): Future[File] = {
+      val f = File.createTempFile("tika", ".upload")
+      src.runWith(FileIO.toPath(f.toPath)).map { r =>
+        r.status.get // throw any upload error
+        f
+      }.recover { case t =>
+        f.delete
+        throw t
       }
     }
-  
+    
+    /**
+     * Parse `data` on the pool, failing with a TimeoutException (and interrupting the parse) after timeoutSecs.
+     * The time starts when a worker starts the parse, so time spent queued for a worker doesn't count.
+     * `done` is called once, when the pool is no longer working on the request.
+     */
+    def parse(path: String, data: File)(done: => Unit): Future[Try[Doc]] = {
+      val p = Promise[Try[Doc]]
+      lazy val task: FutureTask[Unit] = new FutureTask(new Runnable {
+        override def run = {
+          val timeout = timer.schedule(new Runnable {
+            override def run = if (p.trySuccess(Failure(new TimeoutException(s"parse of $path took longer than ${serviceConfig.timeoutSecs} secs")))) {
+              timeouts.inc
+              task.cancel(true) // interrupt, which also kills any tesseract process
+            }
+          }, serviceConfig.timeoutSecs, TimeUnit.SECONDS)
+          try p.trySuccess(tika(path, data)) finally {
+            timeout.cancel(false)
+            done
+          }
+        }
+      }, ())
+      pool.execute(task)
+      p.future
+    }
+
     // supports:
     //   curl --upload-file PDF002.pdf http://${host}:${port}/tika?path=PDF002.pdf
     // or equivalently:
@@ -79,25 +133,44 @@ object Main {
     @ApiOperation(httpMethod = "PUT", response = classOf[Doc], value = "extract document text and metadata")
     @Consumes(Array("application/octet-stream"))
     @ApiResponses(Array(
-      new ApiResponse(code = 500, message = "tika error")
+      new ApiResponse(code = 500, message = "tika error or timeout"),
+      new ApiResponse(code = 503, message = "too many requests in progress, retry after the time given in the Retry-After header")
     ))
     def tika(
       @ApiParam(value = "path may be used as a hint for the data format", required = true) @QueryParam("path") path: String, 
-      data: Array[Byte]
+      data: File
     ): Try[Doc] = {
-      Try { tikaUtil.tika(new ByteArrayInputStream(data), path, id.getAndIncrement) } // stream opened/closed in parseTextMeta
+      parseLatency.time { Try { tikaUtil.tika(TikaInputStream.get(data.toPath), path, id.getAndIncrement) } } // stream opened/closed in parseTextMeta
     }
     
     def tikaRoute = put { path("tika") { parameters("path") { path => { extractDataBytes { src =>
-      complete {
-        tryOrElse(
-          toBytes(src).map { data => tika(path, data) }, 
-          t => (StatusCodes.InternalServerError, s"${t.getClass.getName}: ${t.getMessage}")
-        )
+      if (!admission.tryAcquire) {
+        refused.inc
+        log.warn(s"tikaRoute: refusing $path, ${cliOption.numWorkers} workers busy and ${serviceConfig.queueSize} requests queued")
+        complete(HttpResponse(StatusCodes.ServiceUnavailable, List(RawHeader("Retry-After", serviceConfig.retryAfterSecs.toString)), "too many requests in progress"))
+      } else complete {
+        val doc = toFile(src).flatMap { data =>
+          parse(path, data) {
+            data.delete
+            admission.release
+          }
+        }.recover { case t =>
+          admission.release // upload failed
+          Failure(t)
+        }
+        tryOrElse(doc, t => (StatusCodes.InternalServerError, s"${t.getClass.getName}: ${t.getMessage}"))
       }
     }}}}}
+
+    @Path("metrics")
+    @ApiOperation(httpMethod = "GET", response = classOf[String], value = "counters, gauges and latency histograms (in millis) since startup, including OCR steps")
+    def metrics = Metrics.toJson
+    
+    def metricsRoute = get { path("metrics") { complete {
+      metrics
+    }}}
                   
-    val routes = tikaRoute
+    val routes = tikaRoute ~ metricsRoute
   }
   
   def swaggerService(hst: String, prt: Int)(implicit s: ActorSystem, m: ActorMaterializer) = new SwaggerHttpService with HasActorSystem {
@@ -118,6 +191,7 @@ object Main {
     val conf = ConfigFactory.load
     val host = conf.getString("http.host")
     val port = conf.getInt("http.port")
+    val serviceConfig = ServiceConfig(conf.getInt("tika.queueSize"), conf.getInt("tika.timeoutSecs"), conf.getInt("tika.retryAfterSecs"))
   
     implicit val system = ActorSystem("dbActorSystem")
     implicit val exec = system.dispatcher
@@ -128,7 +202,7 @@ object Main {
       s.copy(allowedMethods = PUT +: s.allowedMethods)
     }
     val routes = cors(settings) {
-      (new TikaService(cliOption)).routes ~ 
+      (new TikaService(cliOption, serviceConfig)).routes ~ 
       swaggerService(host, port).routes
     }
     Http().bindAndHandle(routes, host, port)
@@ -148,7 +222,9 @@ Test with:
       opt[Long]("startId") action { (v, c) =>
         c.copy(startId = v)
       } text (s"id's allocated incrementally starting with this value, (default ${defaultCliOption.startId})")
-      // CliOption.numWorkers not used
+      opt[Int]("numWorkers") action { (v, c) =>
+        c.copy(numWorkers = v)
+      } text (s"number of requests parsed concurrently, (default ${defaultCliOption.numWorkers} the number of CPUs)")
       opt[String]("pdfOcrStrategy") action { (v, c) =>
         c.copy(pdfOcrStrategy = v)
       } text (s"pdfOcrStrategy = no_ocr|ocr_only|ocr_and_text, (default ${defaultCliOption.pdfOcrStrategy}). no_ocr means use the text in the PDF, but still OCR embedded images. ocr_only means render the whole page (text and images) as an image and OCR that, otherwise ignoring the text in the PDF.")
@@ -170,6 +246,18 @@ Test with:
       opt[Boolean]("ocrPreserveInterwordSpacing") action { (v, c) =>
         c.copy(ocrPreserveInterwordSpacing = v)
       } text (s"whether OCR should preserve interword spacing, (default ${defaultCliOption.ocrPreserveInterwordSpacing})")
+      opt[File]("ocrCache") action { (v, c) =>
+        c.copy(ocrCache = Some(v))
+      } text (s"directory for a persistent cache of OCR output, keyed by image content and OCR options, (default none)")
+      opt[Long]("ocrCacheMaxMB") action { (v, c) =>
+        c.copy(ocrCacheMaxMB = v)
+      } text (s"max size of ocrCache, least recently used entries are deleted when it's exceeded (MB, default ${defaultCliOption.ocrCacheMaxMB})")
+      opt[Boolean]("ocrParallel") action { (v, c) =>
+        c.copy(ocrParallel = v)
+      } text (s"whether to OCR the images in a document (e.g. pages of a scanned PDF) in parallel, (default ${defaultCliOption.ocrParallel})")
+      opt[Int]("ocrMaxProcesses") action { (v, c) =>
+        c.copy(ocrMaxProcesses = v)
+      } text (s"max number of images being OCR'd at once, over all requests, (default ${defaultCliOption.ocrMaxProcesses} the number of CPUs)")
       help("help") text ("prints this usage text")
     }
     
@@ -0,0 +1,202 @@
+package org.apache.tika.parser.ocr;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded disk cache of tesseract output, keyed by a digest of the image and the settings that affect OCR.
+ * Scanned documents repeat the same images (letterheads, logos, fax cover pages) so a hit saves running
+ * rotation.py, ImageMagick and tesseract.
+ *
+ * Entries are files under `dir` (written atomically, so the cache can be shared by concurrent processes).
+ * When the total size exceeds `maxBytes` the least recently used entries (by file modification time,
+ * which is updated on a hit) are deleted.
+ */
+public class OCRCache {
+    private static final Logger LOG = LoggerFactory.getLogger(OCRCache.class);
+    private static final String SUFFIX = ".ocr";
+
+    /** tesseract output and the metadata set while producing it */
+    public static class Entry {
+        public final Map<String, String> meta;
+        public final byte[] output;
+
+        public Entry(Map<String, String> meta, byte[] output) {
+            this.meta = meta;
+            this.output = output;
+        }
+    }
+
+    private final File dir;
+    private final long maxBytes;
+    private final AtomicLong size = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public OCRCache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        dir.mkdirs();
+        long n = 0;
+        for (File f : entries()) n += f.length();
+        size.set(n);
+        LOG.info("OCRCache: dir {}, {} bytes in use of max {}", new Object[]{dir, n, maxBytes});
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getSize() {
+        return size.get();
+    }
+
+    /** @return SHA-256 of `settings` and the content of `image` as hex */
+    public String key(File image, String settings) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        md.update(settings.getBytes(UTF_8));
+        try (InputStream in = new FileInputStream(image)) {
+            byte[] buf = new byte[1 << 16];
+            for (int n = in.read(buf); n != -1; n = in.read(buf)) md.update(buf, 0, n);
+        }
+        StringBuilder b = new StringBuilder(64);
+        for (byte x : md.digest()) b.append(String.format("%02x", x));
+        return b.toString();
+    }
+
+    File file(String key) {
+        return new File(new File(dir, key.substring(0, 2)), key + SUFFIX);
+    }
+
+    /** @return the entry for `key` or null (counted as a hit or miss) */
+    public Entry get(String key) {
+        File f = file(key);
+        if (f.isFile()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+                int n = in.readInt();
+                Map<String, String> meta = new LinkedHashMap<>();
+                for (int i = 0; i < n; ++i) meta.put(str(in), str(in));
+                byte[] output = new byte[in.readInt()];
+                in.readFully(output);
+                f.setLastModified(System.currentTimeMillis());
+                hits.incrementAndGet();
+                return new Entry(meta, output);
+            } catch (IOException e) {
+                LOG.warn("get: ignoring unreadable cache entry " + f, e);
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    public void put(String key, Entry e) throws IOException {
+        File f = file(key);
+        f.getParentFile().mkdirs();
+        File tmp = File.createTempFile(key, ".tmp", f.getParentFile());
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(e.meta.size());
+                for (Map.Entry<String, String> m : e.meta.entrySet()) {
+                    str(out, m.getKey());
+                    str(out, m.getValue());
+                }
+                out.writeInt(e.output.length);
+                out.write(e.output);
+            }
+            long prev = f.length(); // 0 if it doesn't exist
+            long len = tmp.length();
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            if (size.addAndGet(len - prev) > maxBytes) evict();
+        } finally {
+            tmp.delete(); // no-op after successful move
+        }
+    }
+
+    /** delete least recently used entries until the total size is under 90% of maxBytes */
+    synchronized void evict() {
+        List<File> fs = entries();
+        final Map<File, Long> mtime = new LinkedHashMap<>();
+        long n = 0;
+        for (File f : fs) {
+            mtime.put(f, f.lastModified());
+            n += f.length();
+        }
+        if (n > maxBytes) {
+            fs.sort(Comparator.comparing(mtime::get));
+            long target = maxBytes - maxBytes / 10;
+            int deleted = 0;
+            for (File f : fs) {
+                if (n <= target) break;
+                long len = f.length();
+                if (f.delete()) {
+                    n -= len;
+                    ++deleted;
+                }
+            }
+            LOG.info("evict: deleted {} entries, {} bytes in use", deleted, n);
+        }
+        size.set(n);
+    }
+
+    private List<File> entries() {
+        List<File> l = new ArrayList<>();
+        File[] subDirs = dir.listFiles(File::isDirectory);
+        if (subDirs != null) for (File d : subDirs) {
+            File[] fs = d.listFiles((x, name) -> name.endsWith(SUFFIX));
+            if (fs != null) for (File f : fs) l.add(f);
+        }
+        return l;
+    }
+
+    private static String str(DataInputStream in) throws IOException {
+        byte[] a = new byte[in.readInt()];
+        in.readFully(a);
+        return new String(a, UTF_8);
+    }
+
+    private static void str(DataOutputStream out, String s) throws IOException {
+        byte[] a = s.getBytes(UTF_8);
+        out.writeInt(a.length);
+        out.write(a);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("OCR cache hits = %d, misses = %d", hits.get(), misses.get());
+    }
+}
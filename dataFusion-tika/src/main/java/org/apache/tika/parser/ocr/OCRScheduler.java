@@ -0,0 +1,202 @@
+package org.apache.tika.parser.ocr;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.parser.RecursiveParserWrapper;
+
+/**
+ * Runs OCR of individual images (e.g. the pages of a scanned PDF) concurrently, independently of the thread parsing
+ * the document, so that a single large document can use all the CPUs.
+ *
+ * To defer OCR, put a {@link Batch} in the ParseContext. TesseractOCRParser then submits each image to the shared
+ * executor and marks its Metadata with PENDING (the index of the task in the Batch) instead of waiting for the result.
+ * After the parse, {@link Batch#resolve(Metadata)} waits for the result and adds it to the Metadata, so results are
+ * reassembled in the original (page) order.
+ *
+ * OCR of a page rendered by the PDF parser (pdfOcrStrategy ocr_only or ocr_and_text) is inline in the PDF's content,
+ * and the PDF parser calls TesseractOCRParser without the ParseContext, so for this the Batch is also set as the
+ * thread's current Batch (see {@link #setCurrent(Batch)}). A marker for the task is written to the content in place of
+ * the OCR text and {@link Batch#resolve(Metadata)} replaces it with the result.
+ *
+ * Whether deferred or not, the subprocesses for an image (rotation.py, ImageMagick, tesseract) only run while holding
+ * one of `maxProcesses` permits, giving a global cap on concurrent OCR subprocess chains.
+ */
+public class OCRScheduler {
+
+    public static final String PENDING = "X-TIKA:OCR-Pending";
+
+    /** start and end of the marker for inline OCR (private use chars) around the index of the task */
+    static final char MARKER_START = '\uE000';
+    static final char MARKER_END = '\uE001';
+
+    static String marker(int idx) {
+        return MARKER_START + Integer.toString(idx) + MARKER_END;
+    }
+
+    private static final ThreadLocal<Batch> current = new ThreadLocal<>();
+
+    /** set (or with null clear) the Batch for inline OCR of the document being parsed by this thread */
+    public static void setCurrent(Batch b) {
+        if (b == null) current.remove();
+        else current.set(b);
+    }
+
+    static Batch current() {
+        return current.get();
+    }
+
+    /** OCR output and metadata set while producing it */
+    public static class Result {
+        public final String text;
+        public final Map<String, String> meta;
+
+        public Result(String text, Map<String, String> meta) {
+            this.text = text;
+            this.meta = meta;
+        }
+    }
+
+    private static int maxProcesses = 0;
+    private static Semaphore permits;
+    private static ExecutorService executor;
+
+    /** (re)create the executor and permits if `n` differs from the current cap */
+    private static synchronized void init(int n) {
+        if (n != maxProcesses) {
+            if (executor != null) executor.shutdown(); // queued and running tasks still complete
+            maxProcesses = n;
+            permits = new Semaphore(n, true);
+            final AtomicInteger count = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(n, r -> {
+                Thread t = new Thread(r, "ocr-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    static synchronized Semaphore permits() {
+        init(TesseractOCRParser.ocrMaxProcesses);
+        return permits;
+    }
+
+    static synchronized ExecutorService executor() {
+        init(TesseractOCRParser.ocrMaxProcesses);
+        return executor;
+    }
+
+    /** The deferred OCR tasks for one document. */
+    public static class Batch {
+        private final List<Future<Result>> futures = Collections.synchronizedList(new ArrayList<>());
+
+        /** @return index of the task, to be set as the value of PENDING */
+        int submit(Callable<Result> task) {
+            return submit(task, null);
+        }
+
+        /**
+         * @param tmp a temporary file used by the task (or null), deleted when the task has run, or when it is cancelled
+         * before it starts (a task cancelled while running deletes it when its subprocesses have finished with it)
+         * @return index of the task, to be set as the value of PENDING
+         */
+        int submit(final Callable<Result> task, final File tmp) {
+            final AtomicBoolean claimed = new AtomicBoolean(); // by the task or cancellation, whichever deletes tmp
+            FutureTask<Result> f = new FutureTask<Result>(() -> {
+                if (tmp == null) return task.call();
+                if (!claimed.compareAndSet(false, true)) throw new CancellationException();
+                try {
+                    return task.call();
+                } finally {
+                    tmp.delete();
+                }
+            }) {
+                @Override
+                protected void done() {
+                    if (tmp != null && isCancelled() && claimed.compareAndSet(false, true)) tmp.delete();
+                }
+            };
+            synchronized (futures) {
+                futures.add(f);
+                executor().execute(f);
+                return futures.size() - 1;
+            }
+        }
+
+        public int size() {
+            return futures.size();
+        }
+
+        /**
+         * If `m` is PENDING, wait for its OCR result, append the text to the content and add the metadata.
+         * Replace any inline OCR markers in the content with the text of their results.
+         * An OCR failure is recorded as an embedded exception (as RecursiveParserWrapper does when OCR isn't deferred).
+         */
+        public void resolve(Metadata m) throws InterruptedException {
+            String idx = m.get(PENDING);
+            if (idx != null) {
+                m.remove(PENDING);
+                try {
+                    Result r = futures.get(Integer.parseInt(idx)).get();
+                    String content = m.get(RecursiveParserWrapper.TIKA_CONTENT);
+                    m.set(RecursiveParserWrapper.TIKA_CONTENT, content == null ? r.text : content + r.text);
+                    for (Map.Entry<String, String> e : r.meta.entrySet()) m.set(e.getKey(), e.getValue());
+                } catch (ExecutionException e) {
+                    setException(m, e);
+                }
+            }
+            resolveInline(m);
+        }
+
+        private void resolveInline(Metadata m) throws InterruptedException {
+            String content = m.get(RecursiveParserWrapper.TIKA_CONTENT);
+            int i = content == null ? -1 : content.indexOf(MARKER_START);
+            if (i < 0) return;
+            StringBuilder b = new StringBuilder(content.length());
+            int prev = 0;
+            while (i >= 0) {
+                int j = content.indexOf(MARKER_END, i);
+                if (j < 0) break;
+                b.append(content, prev, i);
+                try {
+                    b.append(futures.get(Integer.parseInt(content.substring(i + 1, j))).get().text);
+                } catch (ExecutionException e) {
+                    setException(m, e);
+                }
+                prev = j + 1;
+                i = content.indexOf(MARKER_START, prev);
+            }
+            b.append(content, prev, content.length());
+            m.set(RecursiveParserWrapper.TIKA_CONTENT, b.toString());
+        }
+
+        private static void setException(Metadata m, ExecutionException e) {
+            StringWriter w = new StringWriter();
+            e.getCause().printStackTrace(new PrintWriter(w));
+            m.set(RecursiveParserWrapper.EMBEDDED_EXCEPTION, w.toString());
+        }
+
+        /** cancel any tasks not yet done (e.g. when the parse has failed) */
+        public void cancel() {
+            synchronized (futures) {
+                for (Future<Result> f : futures) f.cancel(true);
+            }
+        }
+    }
+}
@@ -22,6 +22,7 @@ import javax.imageio.ImageIO;
 import javax.xml.parsers.SAXParser;
 import java.awt.Image;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -36,6 +37,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -43,6 +45,7 @@ import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicLong;
@@ -72,6 +75,7 @@ import org.apache.tika.parser.image.ImageParser;
 import org.apache.tika.parser.image.TiffParser;
 import org.apache.tika.parser.jpeg.JpegParser;
 import org.apache.tika.sax.OfflineContentHandler;
+import org.apache.tika.sax.ToTextContentHandler;
 import org.apache.tika.sax.XHTMLContentHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -80,9 +84,8 @@ import org.xml.sax.ContentHandler;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
 
-import com.google.common.util.concurrent.AtomicDouble;
-
-import au.csiro.data61.dataFusion.common.Timer;
+import au.csiro.data61.dataFusion.common.Histogram;
+import au.csiro.data61.dataFusion.common.Metrics;
 
 /**
  * TesseractOCRParser powered by tesseract-ocr engine. To enable this parser,
@@ -122,15 +125,46 @@ public class TesseractOCRParser extends AbstractParser implements Initializable
     public static int ocrTimeout = 300;
     public static int ocrResize = 200;
     public static boolean ocrPreserveInterwordSpacing = true;
+    public static File ocrCacheDir = null; // null for no cache
+    public static long ocrCacheMaxBytes = 1L << 30;
+    public static int ocrMaxProcesses = Runtime.getRuntime().availableProcessors(); // cap on concurrent OCR subprocess chains
     
-    // timing
-    private static AtomicLong count = new AtomicLong();
-    private static AtomicDouble pythonTime = new AtomicDouble();
-    private static AtomicDouble imageMagickTime  = new AtomicDouble();
-    private static AtomicDouble tesseractTime = new AtomicDouble();
+    // timing, also available with percentiles from Metrics (e.g. /metrics in dataFusion-tika-service)
+    private static final Histogram pythonTime = Metrics.histogram("ocr.python");
+    private static final Histogram imageMagickTime = Metrics.histogram("ocr.imageMagick");
+    private static final Histogram tesseractTime = Metrics.histogram("ocr.tesseract");
 
     public static String getTimers() {
-    	return String.format("OCR count = %d, Python $0.2f secs, ImageMagick $0.2f secs, Tesseract $0.2f secs", count.get(), pythonTime.get(), imageMagickTime.get(), tesseractTime.get());
+    	OCRCache c = cache;
+    	String t = String.format("OCR count = %d, Python %.2f secs, ImageMagick %.2f secs, Tesseract %.2f secs",
+    		tesseractTime.count(), pythonTime.sumNanos() * 1e-9, imageMagickTime.sumNanos() * 1e-9, tesseractTime.sumNanos() * 1e-9);
+    	return c == null ? t : t + ", " + c;
+    }
+    
+    // OCR result cache, created on first use from ocrCacheDir
+    private static volatile OCRCache cache = null;
+    
+    private static OCRCache getCache() {
+    	if (ocrCacheDir == null) return null;
+    	OCRCache c = cache;
+    	if (c == null || !c.getDir().equals(ocrCacheDir)) {
+    		synchronized (LOCK) {
+    			c = cache;
+    			if (c == null || !c.getDir().equals(ocrCacheDir)) cache = c = new OCRCache(ocrCacheDir, ocrCacheMaxBytes);
+    		}
+    	}
+    	return c;
+    }
+    
+    /** metadata keys set while producing OCR output, stored with it in the cache */
+    private static final String[] OCR_META_KEYS = { "X-TIKA:Skew-Angle", "X-TIKA:Skew-Error", "X-TIKA:ImageMagick-Error" };
+    
+    /** everything other than the image that affects the OCR output (so changing any of these invalidates cache entries) */
+    private static String cacheSettings(TesseractOCRConfig config, boolean preprocess) {
+    	return String.join(",", config.getLanguage(), config.getPageSegMode(), config.getOutputType().name(),
+    		String.valueOf(config.getPreserveInterwordSpacing()), String.valueOf(preprocess),
+    		preprocess ? String.join(",", String.valueOf(ocrImageDeskew), String.valueOf(config.getResize()), 
+    			String.valueOf(config.getDensity()), String.valueOf(config.getDepth()), config.getColorspace(), config.getFilter()) : "");
     }
 
     @Override
@@ -264,13 +298,59 @@ public class TesseractOCRParser extends AbstractParser implements Initializable
 
             XHTMLContentHandler xhtml = new XHTMLContentHandler(handler, metadata);
             xhtml.startDocument();
-            parse(tikaStream, tmpOCROutputFile, parseContext, xhtml, config, metadata);
+            OCRScheduler.Batch batch = parseContext.get(OCRScheduler.Batch.class);
+            if (batch != null) defer(tikaStream, batch, config, metadata);
+            else parse(tikaStream, tmpOCROutputFile, parseContext, xhtml, config, metadata);
             xhtml.endDocument();
         } finally {
             tmp.dispose();
         }
     }
 
+    /**
+     * Submit OCR of the image to the OCRScheduler rather than waiting for it.
+     * The result is added to the document's metadata by {@link OCRScheduler.Batch#resolve(Metadata)}.
+     */
+    private void defer(TikaInputStream tikaStream, OCRScheduler.Batch batch, final TesseractOCRConfig config, Metadata metadata) throws IOException {
+        metadata.set(OCRScheduler.PENDING, Integer.toString(submit(tikaStream, batch, config, metadata)));
+    }
+
+    /** @return index in `batch` of the task for OCR of the image */
+    private int submit(TikaInputStream tikaStream, OCRScheduler.Batch batch, final TesseractOCRConfig config, Metadata metadata) throws IOException {
+        // copy the image because tikaStream's temporary file is deleted when this parse returns (the Batch deletes the copy)
+        final File image = Files.createTempFile("ocr", null).toFile();
+        Files.copy(tikaStream.getPath(), image.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        // metadata used in parse
+        final Metadata m = new Metadata();
+        if (metadata != null) for (String k : new String[] { org.apache.tika.metadata.HttpHeaders.CONTENT_TYPE, TikaMetadataKeys.RESOURCE_NAME_KEY }) {
+            String v = metadata.get(k);
+            if (v != null) m.set(k, v);
+        }
+        return batch.submit(() -> {
+            TemporaryResources tmp = new TemporaryResources();
+            try (TikaInputStream tis = TikaInputStream.get(image.toPath())) {
+                ToTextContentHandler text = new ToTextContentHandler();
+                XHTMLContentHandler xhtml = new XHTMLContentHandler(text, m);
+                xhtml.startDocument();
+                parse(tis, tmp.createTemporaryFile(), new ParseContext(), xhtml, config, m);
+                xhtml.endDocument();
+                return new OCRScheduler.Result(text.toString(), ocrMeta(m));
+            } finally {
+                tmp.dispose();
+            }
+        }, image);
+    }
+    
+    /** @return values for OCR_META_KEYS from `metadata` */
+    private static Map<String, String> ocrMeta(Metadata metadata) {
+        Map<String, String> meta = new LinkedHashMap<>();
+        if (metadata != null) for (String k : OCR_META_KEYS) {
+            String v = metadata.get(k);
+            if (v != null) meta.put(k, v);
+        }
+        return meta;
+    }
+
     /**
      * Use this to parse content without starting a new document.
      * This appends SAX events to xhtml without re-adding the metadata, body start, etc.
@@ -286,7 +366,11 @@ public class TesseractOCRParser extends AbstractParser implements Initializable
      */
     public void parseInline(InputStream stream, XHTMLContentHandler xhtml, TesseractOCRConfig config)
             throws IOException, SAXException, TikaException {
-        parseInline(stream, xhtml, new ParseContext(), config);
+        // the PDF parser calls this (without its ParseContext) to OCR rendered pages
+        ParseContext parseContext = new ParseContext();
+        OCRScheduler.Batch batch = OCRScheduler.current();
+        if (batch != null) parseContext.set(OCRScheduler.Batch.class, batch);
+        parseInline(stream, xhtml, parseContext, config);
     }
 
     /**
@@ -313,8 +397,15 @@ public class TesseractOCRParser extends AbstractParser implements Initializable
         TemporaryResources tmp = new TemporaryResources();
         try {
             TikaInputStream tikaStream = TikaInputStream.get(stream, tmp);
-            File tmpImgFile = tmp.createTemporaryFile();
-            parse(tikaStream, tmpImgFile, parseContext, xhtml, config, null);
+            OCRScheduler.Batch batch = parseContext.get(OCRScheduler.Batch.class);
+            if (batch != null) {
+                // the text is added in place of the marker by OCRScheduler.Batch.resolve
+                char[] marker = OCRScheduler.marker(submit(tikaStream, batch, config, null)).toCharArray();
+                xhtml.characters(marker, 0, marker.length);
+            } else {
+                File tmpImgFile = tmp.createTemporaryFile();
+                parse(tikaStream, tmpImgFile, parseContext, xhtml, config, null);
+            }
         } finally {
             tmp.dispose();
         }
@@ -332,7 +423,7 @@ public class TesseractOCRParser extends AbstractParser implements Initializable
     	TemporaryResources tmp = new TemporaryResources();
     	if (ocrImageDeskew) {
 	    	ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        	Timer t = new Timer();
+        	long t0 = System.nanoTime();
             try {
 		    	// fetch rotation script from resources
 		    	InputStream in = getClass().getResourceAsStream("rotation.py");
@@ -355,12 +446,11 @@ public class TesseractOCRParser extends AbstractParser implements Initializable
             	if (err.length() > 0 && metadata != null) metadata.set("X-TIKA:Skew-Error", err);
             	LOG.warn("Can't run rotation.py to determine skew, so assume zero skew. Python said: " + err, e);
             }
-            t.stop();
-            pythonTime.addAndGet(t.elapsedSecs());
+            pythonTime.record(System.nanoTime() - t0);
     	}
               
     	ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-    	Timer t = new Timer();
+    	long t0 = System.nanoTime();
 		try {
 	        // process the image - parameter values can be set in TesseractOCRConfig.properties
 	    	String line = "convert -density " + config.getDensity() + " -depth " + config.getDepth() + 
@@ -377,8 +467,7 @@ public class TesseractOCRParser extends AbstractParser implements Initializable
 			if (metadata != null) metadata.set("X-TIKA:ImageMagick-Error", err);
 			LOG.warn("ImageMagick failed so OCR orig image. ImageMagick said: " + err, e);
 		} 
-		t.stop();
-		imageMagickTime.addAndGet(t.elapsedSecs());
+		imageMagickTime.record(System.nanoTime() - t0);
        
         tmp.close();
     }
@@ -402,36 +491,68 @@ public class TesseractOCRParser extends AbstractParser implements Initializable
             long size = tikaInputStream.getLength();
 
             if (size >= config.getMinFileSizeToOcr() && size <= config.getMaxFileSizeToOcr()) {
-            	if (ocrImagePreprocess && tiffPredicate(size, metadata)) {
-	            	// Process image if ImageMagick Tool is present
-	            	if(hasImageMagick(config)) {
-	                    // copy the contents of the original input file into a temporary file
-	                    // which will be preprocessed for OCR
-	                    TemporaryResources tmp = new TemporaryResources();
-	                    try {
-	                        File tmpFile = tmp.createTemporaryFile();
-	                        FileUtils.copyFile(input, tmpFile);
-	                        processImage(tmpFile, config, metadata);
-	                        doOCR(tmpFile, tmpOCROutputFile, config);
-	                    } finally {
-	                        if (tmp != null) {
-	                            tmp.dispose();
-	                        }
-	                    }
-	            	} else {
-	            		LOG.error("Image preprocessing requested but ImageMagick not found so it has been skipped");
-	                    doOCR(input, tmpOCROutputFile, config);
-	                }
+            	boolean preprocess = ocrImagePreprocess && tiffPredicate(size, metadata);
+            	if (preprocess && !hasImageMagick(config)) {
+            		LOG.error("Image preprocessing requested but ImageMagick not found so it has been skipped");
+            		preprocess = false;
+            	}
+            	
+            	OCRCache c = getCache();
+            	String key = c == null ? null : c.key(input, cacheSettings(config, preprocess));
+            	OCRCache.Entry hit = key == null ? null : c.get(key);
+            	byte[] ocrOutput = null;
+            	if (hit != null) {
+            		// no subprocesses, just replay what they produced before
+            		if (metadata != null) for (Map.Entry<String, String> e : hit.meta.entrySet()) metadata.set(e.getKey(), e.getValue());
+            		ocrOutput = hit.output;
             	} else {
-            		doOCR(input, tmpOCROutputFile, config);
+            		Semaphore permits = OCRScheduler.permits();
+            		try {
+            			permits.acquire();
+            		} catch (InterruptedException e) {
+            			Thread.currentThread().interrupt();
+            			throw new TikaException("TesseractOCRParser interrupted", e);
+            		}
+            		try {
+		            	if (preprocess) {
+		                    // copy the contents of the original input file into a temporary file
+		                    // which will be preprocessed for OCR
+		                    TemporaryResources tmp = new TemporaryResources();
+		                    try {
+		                        File tmpFile = tmp.createTemporaryFile();
+		                        FileUtils.copyFile(input, tmpFile);
+		                        processImage(tmpFile, config, metadata);
+		                        doOCR(tmpFile, tmpOCROutputFile, config);
+		                    } finally {
+		                        if (tmp != null) {
+		                            tmp.dispose();
+		                        }
+		                    }
+		            	} else {
+		            		doOCR(input, tmpOCROutputFile, config);
+		            	}
+            		} finally {
+            			permits.release();
+            		}
+	
+	                // Tesseract appends the output type (.txt or .hocr) to output file name
+	                tmpTxtOutput = new File(tmpOCROutputFile.getAbsolutePath() + "." +
+	                        config.getOutputType().toString().toLowerCase(Locale.US));
+	
+	                if (tmpTxtOutput.exists()) {
+	                	ocrOutput = Files.readAllBytes(tmpTxtOutput.toPath());
+	                	if (key != null) {
+	                		try {
+	                			c.put(key, new OCRCache.Entry(ocrMeta(metadata), ocrOutput));
+	                		} catch (IOException e) {
+	                			LOG.warn("Can't cache OCR output", e);
+	                		}
+	                	}
+	                }
             	}
 
-                // Tesseract appends the output type (.txt or .hocr) to output file name
-                tmpTxtOutput = new File(tmpOCROutputFile.getAbsolutePath() + "." +
-                        config.getOutputType().toString().toLowerCase(Locale.US));
-
-                if (tmpTxtOutput.exists()) {
-                    try (InputStream is = new FileInputStream(tmpTxtOutput)) {
+                if (ocrOutput != null) {
+                    try (InputStream is = new ByteArrayInputStream(ocrOutput)) {
                         if (config.getOutputType().equals(TesseractOCRConfig.OUTPUT_TYPE.HOCR)) {
                             extractHOCROutput(is, parseContext, xhtml);
                         } else {
@@ -507,7 +628,7 @@ public class TesseractOCRParser extends AbstractParser implements Initializable
      *           if an input error occurred
      */
     private void doOCR(File input, File output, TesseractOCRConfig config) throws IOException, TikaException {
-    	Timer t = new Timer();
+    	long t0 = System.nanoTime();
         String[] cmd = { config.getTesseractPath() + getTesseractProg(), input.getPath(), output.getPath(), "-l",
                 config.getLanguage(), "-psm", config.getPageSegMode(),
                 config.getOutputType().name().toLowerCase(Locale.US),
@@ -547,9 +668,7 @@ public class TesseractOCRParser extends AbstractParser implements Initializable
             process.destroy();
             throw new TikaException("TesseractOCRParser timeout", e);
         } finally {
-        	t.stop();
-        	tesseractTime.addAndGet(t.elapsedSecs());
-        	count.incrementAndGet();
+        	tesseractTime.record(System.nanoTime() - t0);
         }
     }
     
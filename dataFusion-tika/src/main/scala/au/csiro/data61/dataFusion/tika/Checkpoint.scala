@@ -0,0 +1,104 @@
+package au.csiro.data61.dataFusion.tika
+
+import java.io.{ BufferedInputStream, ByteArrayOutputStream, File, FileInputStream, RandomAccessFile }
+import java.nio.charset.StandardCharsets.UTF_8
+
+import scala.collection.mutable
+
+import com.typesafe.scalalogging.Logger
+
+import au.csiro.data61.dataFusion.common.DocIO.DocWriter
+import au.csiro.data61.dataFusion.common.Util.bufWriter
+import resource.managed
+
+/**
+ * Checkpoint file for resuming an interrupted cliTika run.
+ *
+ * Lines are either:
+ *  - P\tpath - a path for which output has been written; or
+ *  - C\toutputLength\tnextId - a commit, after which the output file is known to be complete up to outputLength bytes
+ *    and no id >= nextId has been allocated.
+ * Paths after the last commit are ignored on resume, as their output may not have been flushed,
+ * and are truncated from the file before it is appended to.
+ */
+object Checkpoint {
+  private val log = Logger(getClass)
+
+  /** @param checkpointLength bytes of the checkpoint file up to and including the last commit line */
+  case class State(done: Set[String], outputLength: Long, nextId: Long, checkpointLength: Long)
+
+  /** @return the state as of the last commit in `f`, if any */
+  def load(f: File): Option[State] = if (!f.isFile) None else {
+    val done = mutable.HashSet[String]()
+    val uncommitted = mutable.ListBuffer[String]()
+    var last: Option[State] = None
+    for (in <- managed(new BufferedInputStream(new FileInputStream(f)))) {
+      // lines are read as bytes to track the offset of each, a partial last line (with no '\n') is ignored
+      val line = new ByteArrayOutputStream
+      var offset = 0L
+      var c = in.read
+      while (c >= 0) {
+        offset += 1
+        if (c != '\n') line.write(c)
+        else {
+          val l = new String(line.toByteArray, UTF_8)
+          line.reset
+          if (l.startsWith("P\t")) uncommitted += l.substring(2)
+          else l.split("\t") match {
+            case Array("C", len, id) =>
+              done ++= uncommitted
+              uncommitted.clear
+              last = Some(State(Set.empty, len.toLong, id.toLong, offset))
+            case _ => log.warn(s"load: ignoring malformed line: $l")
+          }
+        }
+        c = in.read
+      }
+    }
+    last.map(_.copy(done = done.toSet))
+  }
+
+  private def setLength(f: File, len: Long) = for (raf <- managed(new RandomAccessFile(f, "rw"))) {
+    if (raf.length > len) log.info(s"truncate: discarding ${raf.length - len} bytes written to ${f.getPath} after last checkpoint")
+    raf.setLength(len)
+  }
+
+  /**
+   * Truncate `output` and the `checkpoint` file to their committed lengths, discarding anything written after the last commit
+   * (output that may not have been flushed and paths that would otherwise be committed by the next commit line).
+   */
+  def truncate(checkpoint: File, output: File, s: State): Unit = {
+    setLength(output, s.outputLength)
+    setLength(checkpoint, s.checkpointLength)
+  }
+}
+
+/**
+ * Appends to the checkpoint file `f`.
+ * Used from the single output thread: `done` after a Doc is written, `commit` periodically and at the end.
+ */
+class Checkpoint(f: File, output: File, w: DocWriter, intervalMillis: Long = 10000L) extends java.io.Closeable {
+  private val cw = bufWriter(f, true)
+  private val pending = mutable.ListBuffer[String]()
+  private var t0 = System.currentTimeMillis
+
+  def done(path: String, nextId: => Long): Unit = {
+    pending += path
+    if (System.currentTimeMillis - t0 > intervalMillis) commit(nextId)
+  }
+
+  def commit(nextId: Long): Unit = {
+    w.flush
+    for (p <- pending) {
+      cw.write("P\t")
+      cw.write(p)
+      cw.write('\n')
+    }
+    pending.clear
+    cw.write(s"C\t${output.length}\t$nextId\n")
+    cw.flush
+    t0 = System.currentTimeMillis
+  }
+
+  def close = cw.close
+}
@@ -0,0 +1,99 @@
+package au.csiro.data61.dataFusion.tika
+
+import java.io.{ BufferedInputStream, BufferedOutputStream, File, FileInputStream, FileOutputStream }
+import java.nio.file.{ Files, StandardCopyOption }
+import java.security.MessageDigest
+import java.util.concurrent.atomic.AtomicLong
+import java.util.zip.{ DeflaterOutputStream, InflaterInputStream }
+
+import scala.util.control.NonFatal
+
+import org.apache.commons.io.IOUtils
+import org.apache.tika.metadata.TikaMetadataKeys
+
+import com.typesafe.scalalogging.Logger
+
+import au.csiro.data61.dataFusion.common.Data.Doc
+import au.csiro.data61.dataFusion.common.DocIO.Binary
+import au.csiro.data61.dataFusion.tika.Main.CliOption
+import resource.managed
+
+/**
+ * Persistent cache of extracted Doc's, keyed by a digest of the input file's content
+ * and the CliOption's that affect extraction (so changing these invalidates the cache).
+ *
+ * The cached Doc has no id or path (these are set from the current input on a cache hit).
+ * Entries are files under `dir` (binary Doc format, compressed), written atomically so a crash can't leave a partial entry
+ * and the cache can be shared by concurrent runs.
+ * Only local files are cached (not http URL's).
+ */
+class ExtractCache(dir: File, cliOption: CliOption) {
+  private val log = Logger(getClass)
+
+  val hits = new AtomicLong
+  val misses = new AtomicLong
+
+  dir.mkdirs
+
+  val settings = {
+    import cliOption._
+    s"$pdfOcrStrategy,$pdfExtractInlineImages,$ocrImagePreprocess,$ocrImPreMaxTifSize,$ocrImageDeskew,$ocrResize,$ocrPreserveInterwordSpacing"
+  }
+
+  def key(f: File): String = {
+    val md = MessageDigest.getInstance("SHA-256")
+    md.update(settings.getBytes("UTF-8"))
+    for (in <- managed(new FileInputStream(f))) {
+      val buf = new Array[Byte](1 << 16)
+      Iterator.continually(in.read(buf)).takeWhile(_ != -1).foreach(md.update(buf, 0, _))
+    }
+    md.digest.map("%02x".format(_)).mkString
+  }
+
+  def file(key: String) = new File(new File(dir, key.take(2)), key)
+
+  def get(key: String): Option[Doc] = {
+    val f = file(key)
+    if (!f.isFile) None
+    else try {
+      Some(managed(new InflaterInputStream(new BufferedInputStream(new FileInputStream(f)))) acquireAndGet { in => Binary.decode(IOUtils.toByteArray(in)) })
+    } catch {
+      case NonFatal(e) =>
+        log.warn(s"get: ignoring unreadable cache entry $f", e)
+        None
+    }
+  }
+
+  def put(key: String, d: Doc): Unit = {
+    val f = file(key)
+    f.getParentFile.mkdirs
+    val tmp = File.createTempFile(key, ".tmp", f.getParentFile)
+    for (out <- managed(new DeflaterOutputStream(new BufferedOutputStream(new FileOutputStream(tmp))))) {
+      out.write(Binary.encode(d.copy(id = 0L, path = "")))
+    }
+    Files.move(tmp.toPath, f.toPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING)
+  }
+
+  /**
+   * @return cached Doc for `path` with `id` if available, otherwise `parse` it and cache the result
+   */
+  def getOrParse(path: String, id: Long)(parse: => Doc): Doc = {
+    val f = new File(path)
+    if (path.startsWith("http:") || !f.isFile) parse
+    else {
+      val k = key(f)
+      get(k).map { d =>
+        hits.incrementAndGet
+        val meta = if (d.meta.contains(TikaMetadataKeys.RESOURCE_NAME_KEY)) d.meta + (TikaMetadataKeys.RESOURCE_NAME_KEY -> path) else d.meta
+        d.copy(id = id, path = path, meta = meta)
+      }.getOrElse {
+        misses.incrementAndGet
+        val d = parse
+        try put(k, d) catch { case NonFatal(e) => log.warn(s"getOrParse: can't cache $path", e) }
+        d
+      }
+    }
+  }
+
+  override def toString = s"ExtractCache: hits = ${hits.get}, misses = ${misses.get}"
+}
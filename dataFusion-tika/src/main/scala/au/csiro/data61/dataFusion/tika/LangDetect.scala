@@ -5,18 +5,44 @@ import com.optimaize.langdetect.ngram.NgramExtractors
 import com.optimaize.langdetect.profiles.LanguageProfileReader
 import com.optimaize.langdetect.text.CommonTextObjectFactories
 
+import au.csiro.data61.dataFusion.common.EnglishScore.isSpace
+
 object LangDetect {
   case class Lang(lang: String, prob: Float)
-  
+
   val languageProfiles = new LanguageProfileReader().readAllBuiltIn
   val languageDetector: LanguageDetector = LanguageDetectorBuilder.create(NgramExtractors.standard).withProfiles(languageProfiles).build
   val textObjectFactory = CommonTextObjectFactories.forDetectingOnLargeText
-  
+
   def headOption[T](jl: java.util.List[T]): Option[T] = if (jl.isEmpty) None else Some(jl.get(0))
 
+  /** texts up to maxChars are used in full, longer texts are sampled */
+  val maxChars = 20000
+  val numSamples = 10
+
+  /**
+   * Bounded, deterministic sample of a long text (the same text always gives the same sample):
+   * `numSamples` windows of about `maxChars / numSamples` chars spread evenly from the start to the end of the text
+   * (so headers or an appendix in another language don't dominate), each trimmed to whole words where possible.
+   */
+  def sample(text: String): String = if (text.length <= maxChars) text else {
+    val window = maxChars / numSamples
+    val b = new java.lang.StringBuilder(maxChars + numSamples)
+    for (k <- 0 until numSamples) {
+      val s0 = ((text.length - window).toLong * k / (numSamples - 1)).toInt
+      val e0 = s0 + window
+      var start = s0
+      var end = e0
+      if (start > 0) while (start < end && !isSpace(text.charAt(start - 1))) start += 1
+      if (end < text.length) while (end > start && !isSpace(text.charAt(end))) end -= 1
+      if (end > start) b.append(text, start, end) else b.append(text, s0, e0) // no whitespace to trim to
+      b.append('\n')
+    }
+    b.toString
+  }
+
   def lang(text: String): Option[Lang] = {
-    headOption(languageDetector.getProbabilities(textObjectFactory.forText(text)))
+    headOption(languageDetector.getProbabilities(textObjectFactory.forText(sample(text))))
       .map(l => Lang(l.getLocale.getLanguage, l.getProbability.toFloat))
   }
 }
-  
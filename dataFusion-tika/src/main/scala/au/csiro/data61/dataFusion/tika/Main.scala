@@ -2,6 +2,7 @@ package au.csiro.data61.dataFusion.tika
 
 import java.io.{ BufferedWriter, File, FileInputStream, InputStream }
 import java.net.URL
+import java.util.concurrent.atomic.AtomicLong
 
 import scala.collection.concurrent.TrieMap
 import scala.io.Source
@@ -12,12 +13,11 @@ import scala.language.postfixOps
 import com.typesafe.scalalogging.Logger
 
 import au.csiro.data61.dataFusion.common.Data.Doc
-import au.csiro.data61.dataFusion.common.Data.JsonProtocol.docFormat
 import au.csiro.data61.dataFusion.common.Data.META_EN_SCORE
-import au.csiro.data61.dataFusion.common.Parallel.doParallel
-import au.csiro.data61.dataFusion.common.Util.bufWriter
+import au.csiro.data61.dataFusion.common.Metrics
+import au.csiro.data61.dataFusion.common.Pipeline
+import au.csiro.data61.dataFusion.common.DocIO
 import resource.managed
-import spray.json.{ pimpAny, pimpString }
 import org.apache.tika.parser.ocr.TesseractOCRParser
 
 object Main {
@@ -37,6 +37,7 @@ object Main {
             
     // identify path for which runtime is long, perhaps infinite, so we can add it to black list next run
     val inProgress = TrieMap.empty[String, Long] // path -> start time
+    Metrics.gauge("cliTika.inProgress")(inProgress.size)
     @volatile var t0 = System.currentTimeMillis
     val logDone = -1L
     val oneMinute = 60000L
@@ -64,38 +65,55 @@ object Main {
     logThread.setDaemon(true)
     logThread.start
       
-    for (w <- managed(bufWriter(cliOption.output))) {
+    val cache = cliOption.cache.map(new ExtractCache(_, cliOption))
+    
+    // resume from checkpoint: skip completed paths and discard any output written after the last checkpoint
+    val resume = cliOption.checkpoint.flatMap(Checkpoint.load)
+    for (f <- cliOption.checkpoint; s <- resume) {
+      log.info(s"cliTika: resuming after ${s.done.size} paths with next id ${s.nextId}")
+      Checkpoint.truncate(f, cliOption.output, s)
+    }
+    val done = resume.map(_.done).getOrElse(Set.empty)
+    val id = new AtomicLong(resume.map(_.nextId).getOrElse(cliOption.startId))
+    
+    for (w <- managed(DocIO.docWriter(cliOption.output, cliOption.format, resume.isDefined))) {
       
-      var id = cliOption.startId
-      val in = Source.fromInputStream(System.in, "UTF-8").getLines.map { path =>
-        if (id % 1000 == 0) log.info(s"cliTika.run() in: next id $id")
-        val x = (path, id)
-        id += 1
-        x
+      val in = Source.fromInputStream(System.in, "UTF-8").getLines.filter(!done.contains(_)).map { path =>
+        if (id.get % 1000 == 0) log.info(s"cliTika.run() in: next id ${id.get}")
+        (path, id.getAndIncrement)
       }
       
       def work(pathIdx: (String, Long)): Doc = {
-        val path = pathIdx._1
+        val (path, idx) = pathIdx
         inProgress += path -> System.currentTimeMillis
-        try tikaUtil.tika(inputStream(path), path, pathIdx._2) // stream opened/closed in parseTextMeta
+        def parse = tikaUtil.tika(inputStream(path), path, idx) // stream opened/closed in parseTextMeta
+        try cache.map(_.getOrParse(path, idx)(parse)).getOrElse(parse)
         finally inProgress.remove(path)
       }
       
-      def out(d: Doc): Unit = { 
-        w.write(d.toJson.compactPrint)
-        w.write('\n')
+      val checkpoint = cliOption.checkpoint.map(f => new Checkpoint(f, cliOption.output, w))
+      def out(d: Doc): Unit = {
+        w.write(d)
+        checkpoint.foreach(_.done(d.path, id.get))
       }
       
-      doParallel(in, work, out, ("done", 0L), Doc(0, None, Map.empty, "done", List.empty, List.empty), cliOption.numWorkers)
+      // dead letter lines are paths (without the id), so the file can be used as stdin for a re-run
+      val conf = Pipeline.Config(cliOption.numWorkers, cliOption.ordered, cliOption.batchSize, name = "cliTika")
+      try Pipeline.runWithDeadLetter(in, work, out, conf, cliOption.deadLetter, (pathIdx: (String, Long)) => pathIdx._1)
+      finally checkpoint.foreach { c => 
+        c.commit(id.get)
+        c.close
+      }
       log.info(s"cliTika: complete: ${TesseractOCRParser.getTimers}")
-      log.info(s"cliTika: complete: next id would be ${id}")
+      cache.foreach(c => log.info(s"cliTika: complete: $c"))
+      log.info(s"cliTika: complete: next id would be ${id.get}")
     }
     t0 = logDone
     // logThread.join // not necessary with daemon thread, can take up to 1 min to wake up
   }
   
-  case class CliOption(output: File, startId: Long, numWorkers: Int, pdfOcrStrategy: String, pdfExtractInlineImages: Boolean, ocrImagePreprocess: Boolean, ocrImPreMaxTifSize: Long, ocrImageDeskew: Boolean, ocrTimeout: Int, ocrResize: Int, ocrPreserveInterwordSpacing: Boolean)
-  val defaultCliOption = CliOption(new File("tika.json"), 0L, Runtime.getRuntime.availableProcessors, "no_ocr", true, true, 10L, false, 300, 200, true)
+  case class CliOption(output: File, format: String, startId: Long, numWorkers: Int, ordered: Boolean, batchSize: Int, deadLetter: Option[File], cache: Option[File], checkpoint: Option[File], pdfOcrStrategy: String, pdfExtractInlineImages: Boolean, ocrImagePreprocess: Boolean, ocrImPreMaxTifSize: Long, ocrImageDeskew: Boolean, ocrTimeout: Int, ocrResize: Int, ocrPreserveInterwordSpacing: Boolean, ocrCache: Option[File], ocrCacheMaxMB: Long, ocrParallel: Boolean, ocrMaxProcesses: Int)
+  val defaultCliOption = CliOption(new File("tika.json"), DocIO.JSON, 0L, Runtime.getRuntime.availableProcessors, false, 1, Some(new File("tika-failed.txt")), None, None, "no_ocr", true, true, 10L, false, 300, 200, true, None, 1024L, true, Runtime.getRuntime.availableProcessors)
 
   def initSystemProperties: Unit = {
     // https://pdfbox.apache.org/2.0/migration.html#pdf-rendering
@@ -115,12 +133,35 @@ object Main {
       opt[File]("output") action { (v, c) =>
         c.copy(output = v)
       } text (s"output JSON file (default ${defaultCliOption.output.getPath})")
+      opt[String]("format") action { (v, c) =>
+        c.copy(format = v)
+      } validate { v =>
+        if (DocIO.formats contains v) success else failure(s"format must be one of ${DocIO.formats.mkString(", ")}")
+      } text (s"output format: ${DocIO.formats.mkString("|")} (default ${defaultCliOption.format})")
       opt[Long]("startId") action { (v, c) =>
         c.copy(startId = v)
       } text (s"id's allocated incrementally starting with this value (default ${defaultCliOption.startId})")
       opt[Int]("numWorkers") action { (v, c) =>
         c.copy(numWorkers = v)
       } text (s"numWorkers (default ${defaultCliOption.numWorkers} the number of CPUs)")
+      opt[Boolean]("ordered") action { (v, c) =>
+        c.copy(ordered = v)
+      } text (s"whether output is in input order (default ${defaultCliOption.ordered})")
+      opt[Int]("batchSize") action { (v, c) =>
+        c.copy(batchSize = v)
+      } text (s"number of documents passed between threads at a time (default ${defaultCliOption.batchSize})")
+      opt[File]("deadLetter") action { (v, c) =>
+        c.copy(deadLetter = Some(v))
+      } text (s"paths that fail are written to this file, which can be used as input for a re-run (default ${defaultCliOption.deadLetter.get.getPath})")
+      opt[Unit]("failFast") action { (_, c) =>
+        c.copy(deadLetter = None)
+      } text (s"abort the run on the first path that fails, rather than writing it to the deadLetter file")
+      opt[File]("cache") action { (v, c) =>
+        c.copy(cache = Some(v))
+      } text (s"directory for a persistent cache of extracted docs, keyed by file content and extraction options (default none)")
+      opt[File]("checkpoint") action { (v, c) =>
+        c.copy(checkpoint = Some(v))
+      } text (s"record completed paths and the next id in this file. If it already exists resume from it: skip paths already done and append to the output, overriding startId (default none)")
       opt[String]("pdfOcrStrategy") action { (v, c) =>
         c.copy(pdfOcrStrategy = v)
       } text (s"pdfOcrStrategy = no_ocr|ocr_only|ocr_and_text (default ${defaultCliOption.pdfOcrStrategy}). no_ocr means use the text in the PDF, but still OCR embedded images. ocr_only means render the whole page (text and images) as an image and OCR that, otherwise ignoring the text in the PDF.")
@@ -146,6 +187,18 @@ object Main {
       opt[Boolean]("ocrPreserveInterwordSpacing") action { (v, c) =>
         c.copy(ocrPreserveInterwordSpacing = v)
       } text (s"whether OCR should preserve interword spacing (default ${defaultCliOption.ocrPreserveInterwordSpacing})")
+      opt[File]("ocrCache") action { (v, c) =>
+        c.copy(ocrCache = Some(v))
+      } text (s"directory for a persistent cache of OCR output, keyed by image content and OCR options (default none)")
+      opt[Long]("ocrCacheMaxMB") action { (v, c) =>
+        c.copy(ocrCacheMaxMB = v)
+      } text (s"max size of ocrCache, least recently used entries are deleted when it's exceeded (MB, default ${defaultCliOption.ocrCacheMaxMB})")
+      opt[Boolean]("ocrParallel") action { (v, c) =>
+        c.copy(ocrParallel = v)
+      } text (s"whether to OCR the images in a document (e.g. pages of a scanned PDF) in parallel rather than one at a time on the document's worker thread (default ${defaultCliOption.ocrParallel})")
+      opt[Int]("ocrMaxProcesses") action { (v, c) =>
+        c.copy(ocrMaxProcesses = v)
+      } text (s"max number of images being OCR'd at once, over all documents (default ${defaultCliOption.ocrMaxProcesses} the number of CPUs)")
       help("help") text ("prints this usage text")
     }
     
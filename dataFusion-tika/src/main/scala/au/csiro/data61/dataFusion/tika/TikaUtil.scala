@@ -17,7 +17,7 @@ import org.apache.tika.metadata.{ Metadata, TikaMetadataKeys }
 import org.apache.tika.mime.MediaType
 import org.apache.tika.parser.{ AutoDetectParser, ParseContext, Parser, RecursiveParserWrapper }
 import org.apache.tika.parser.html.HtmlParser
-import org.apache.tika.parser.ocr.{ TesseractOCRConfig, TesseractOCRParser }
+import org.apache.tika.parser.ocr.{ OCRScheduler, TesseractOCRConfig, TesseractOCRParser }
 import org.apache.tika.parser.pdf.PDFParserConfig
 import org.apache.tika.sax.BasicContentHandlerFactory
 import org.apache.tika.sax.BasicContentHandlerFactory.HANDLER_TYPE
@@ -44,6 +44,9 @@ class TikaUtil(cliOption: CliOption) {
   TesseractOCRParser.ocrTimeout = cliOption.ocrTimeout
   TesseractOCRParser.ocrResize = cliOption.ocrResize
   TesseractOCRParser.ocrPreserveInterwordSpacing = cliOption.ocrPreserveInterwordSpacing
+  TesseractOCRParser.ocrCacheDir = cliOption.ocrCache.orNull
+  TesseractOCRParser.ocrCacheMaxBytes = cliOption.ocrCacheMaxMB << 20
+  TesseractOCRParser.ocrMaxProcesses = cliOption.ocrMaxProcesses
     
   // modified from org.apache.tika.server.resource.TikaResource
   def createParser: AutoDetectParser = {
@@ -75,7 +78,8 @@ class TikaUtil(cliOption: CliOption) {
     })
   }
   
-	val context = {
+  /** @param batch to defer OCR to the OCRScheduler (a ParseContext per parse because the batch is per document) */
+	def context(batch: Option[OCRScheduler.Batch]) = {
 	  val c = new ParseContext
     c.set(classOf[TesseractOCRConfig], new TesseractOCRConfig)
     c.set(classOf[PDFParserConfig], {
@@ -84,6 +88,7 @@ class TikaUtil(cliOption: CliOption) {
       p.setExtractInlineImages(cliOption.pdfExtractInlineImages)
       p
     })
+    batch.foreach(c.set(classOf[OCRScheduler.Batch], _))
 	  c
 	}
     
@@ -96,10 +101,19 @@ class TikaUtil(cliOption: CliOption) {
 		fillMetadata(parser, metadata, fileName)
 		
 		val wrapper = new RecursiveParserWrapper(parser, new BasicContentHandlerFactory(HANDLER_TYPE.TEXT, -1))
-		for(tikaInputStream <- managed(TikaInputStream.get(is)))
-      wrapper.parse(tikaInputStream, null, metadata, context)
+		val batch = if (cliOption.ocrParallel) Some(new OCRScheduler.Batch) else None
+		try {
+		  batch.foreach(OCRScheduler.setCurrent) // for OCR of pages rendered by the PDF parser
+		  try {
+		    for(tikaInputStream <- managed(TikaInputStream.get(is)))
+          wrapper.parse(tikaInputStream, null, metadata, context(batch))
+		  } finally OCRScheduler.setCurrent(null)
 		
-    Option(wrapper.getMetadata).map(_.asScala.toList).getOrElse(List.empty)
+      val ms = Option(wrapper.getMetadata).map(_.asScala.toList).getOrElse(List.empty)
+      // wait for deferred OCR, adding results to the metadata in (page) order
+      for (b <- batch; m <- ms) b.resolve(m)
+      ms
+		} finally batch.foreach(_.cancel) // no-op unless the parse failed
   }
   
   /**
@@ -0,0 +1,90 @@
+package au.csiro.data61.dataFusion.tika
+
+import java.io.File
+import java.nio.file.Files
+
+import org.scalatest.{ FlatSpec, Matchers }
+
+import com.typesafe.scalalogging.Logger
+
+import au.csiro.data61.dataFusion.common.Data.Doc
+import au.csiro.data61.dataFusion.common.DocIO
+import au.csiro.data61.dataFusion.common.Util.bufWriter
+import resource.managed
+
+class CheckpointTest extends FlatSpec with Matchers {
+  private val log = Logger(getClass)
+  
+  def tmpDir = Files.createTempDirectory("CheckpointTest").toFile
+  def doc(path: String, id: Long) = Doc(id, Some("same content"), Map("resourceName" -> path), path, List.empty, List.empty)
+  
+  "ExtractCache" should "parse only once per file content" in {
+    val dir = tmpDir
+    val cache = new ExtractCache(new File(dir, "cache"), Main.defaultCliOption)
+    val (f1, f2) = (new File(dir, "a.txt"), new File(dir, "b.txt"))
+    for (f <- Seq(f1, f2); w <- managed(bufWriter(f))) w.write("same content")
+    
+    var parsed = 0
+    def parse(path: String, id: Long) = { parsed += 1; doc(path, id) }
+    
+    cache.getOrParse(f1.getPath, 1L)(parse(f1.getPath, 1L)) should be(doc(f1.getPath, 1L))
+    cache.getOrParse(f2.getPath, 2L)(parse(f2.getPath, 2L)) should be(doc(f2.getPath, 2L)) // cache hit with this path and id
+    parsed should be(1)
+    (cache.hits.get, cache.misses.get) should be((1L, 1L))
+    
+    val other = new ExtractCache(new File(dir, "cache"), Main.defaultCliOption.copy(ocrResize = 100)) // different options, different key
+    other.key(f1) should not be(cache.key(f1))
+  }
+  
+  "Checkpoint" should "resume from last commit" in {
+    val dir = tmpDir
+    val (cpFile, output) = (new File(dir, "checkpoint"), new File(dir, "out.json"))
+    Checkpoint.load(cpFile) should be(None)
+    
+    for (w <- managed(DocIO.docWriter(output, DocIO.JSON)); cp <- managed(new Checkpoint(cpFile, output, w))) {
+      w.write(doc("a", 0L))
+      cp.done("a", 2L)
+      w.write(doc("b", 1L))
+      cp.done("b", 2L)
+      cp.commit(2L)
+      w.write(doc("c", 2L))
+      cp.done("c", 3L) // not committed
+    }
+    
+    val s = Checkpoint.load(cpFile).get
+    s.done should be(Set("a", "b"))
+    s.nextId should be(2L)
+    
+    Checkpoint.truncate(cpFile, output, s)
+    for (w <- managed(DocIO.docWriter(output, DocIO.JSON, true))) w.write(doc("c", 2L))
+    managed(new java.io.FileInputStream(output)).acquireAndGet(in => DocIO.docs(in).map(_.path).toList) should be(List("a", "b", "c"))
+  }
+  
+  it should "not commit paths written after the last commit on a later resume" in {
+    val dir = tmpDir
+    val (cpFile, output) = (new File(dir, "checkpoint"), new File(dir, "out.json"))
+    
+    for (w <- managed(DocIO.docWriter(output, DocIO.JSON)); cp <- managed(new Checkpoint(cpFile, output, w))) {
+      w.write(doc("a", 0L))
+      cp.done("a", 1L)
+      cp.commit(1L)
+      w.write(doc("b", 1L))
+      cp.done("b", 2L)
+    }
+    // simulate a crash after the uncommitted path and a partial line were flushed
+    for (w <- managed(bufWriter(cpFile, true))) w.write("P\tb\nP\tpartial")
+    
+    val s = Checkpoint.load(cpFile).get
+    s.done should be(Set("a"))
+    Checkpoint.truncate(cpFile, output, s)
+    
+    // the resumed run commits only its own paths
+    for (w <- managed(DocIO.docWriter(output, DocIO.JSON, true)); cp <- managed(new Checkpoint(cpFile, output, w))) {
+      w.write(doc("c", 1L))
+      cp.done("c", 2L)
+      cp.commit(2L)
+    }
+    Checkpoint.load(cpFile).get.done should be(Set("a", "c"))
+    managed(new java.io.FileInputStream(output)).acquireAndGet(in => DocIO.docs(in).map(_.path).toList) should be(List("a", "c"))
+  }
+}
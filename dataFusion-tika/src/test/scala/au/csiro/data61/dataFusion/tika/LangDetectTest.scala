@@ -0,0 +1,36 @@
+package au.csiro.data61.dataFusion.tika
+
+import org.scalatest.{ FlatSpec, Matchers }
+
+import com.typesafe.scalalogging.Logger
+
+class LangDetectTest extends FlatSpec with Matchers {
+  private val log = Logger(getClass)
+
+  val english = """The quick brown fox jumps over the lazy dog. Senator Smith said the committee would meet again on Tuesday
+    |to consider the report, which found that the department had not kept adequate records of its spending.""".stripMargin
+
+  "sample" should "leave short texts unchanged" in {
+    LangDetect.sample(english) should be theSameInstanceAs english
+  }
+
+  it should "be bounded, deterministic and made of whole words" in {
+    val long = Iterator.continually(english).take(200).mkString("\n")
+    long.length > LangDetect.maxChars should be(true)
+    val s = LangDetect.sample(long)
+    s.length <= LangDetect.maxChars + LangDetect.numSamples should be(true)
+    s should be(LangDetect.sample(long))
+    val words = english.split("\\s+").toSet
+    s.split("\\s+").filter(_.nonEmpty).foreach(w => words should contain(w))
+  }
+
+  "lang" should "agree on sampled and full text" in {
+    val long = Iterator.continually(english).take(200).mkString("\n")
+    val full = LangDetect.headOption(LangDetect.languageDetector.getProbabilities(LangDetect.textObjectFactory.forText(long))).get
+    val sampled = LangDetect.lang(long).get
+    log.debug(s"full = $full, sampled = $sampled")
+    sampled.lang should be(full.getLocale.getLanguage)
+    sampled.lang should be("en")
+    Math.abs(sampled.prob - full.getProbability) < 0.05 should be(true)
+  }
+}
@@ -0,0 +1,57 @@
+package org.apache.tika.parser.ocr
+
+import java.io.File
+import java.nio.file.Files
+
+import scala.collection.JavaConverters.{ mapAsJavaMapConverter, mapAsScalaMapConverter }
+
+import org.scalatest.{ FlatSpec, Matchers }
+
+class OCRCacheTest extends FlatSpec with Matchers {
+
+  def tmpDir = Files.createTempDirectory("OCRCacheTest").toFile
+  def image(dir: File, name: String, content: String) = {
+    val f = new File(dir, name)
+    Files.write(f.toPath, content.getBytes("UTF-8"))
+    f
+  }
+
+  "OCRCache" should "key on image content and settings" in {
+    val dir = tmpDir
+    val c = new OCRCache(new File(dir, "cache"), 1L << 20)
+    val (a, b, x) = (image(dir, "a.png", "same"), image(dir, "b.png", "same"), image(dir, "x.png", "different"))
+    c.key(a, "eng,3") should be(c.key(b, "eng,3"))
+    c.key(a, "eng,3") should not be(c.key(x, "eng,3"))
+    c.key(a, "eng,3") should not be(c.key(a, "spa,3"))
+  }
+
+  it should "return what was put and count hits and misses" in {
+    val dir = tmpDir
+    val c = new OCRCache(new File(dir, "cache"), 1L << 20)
+    val k = c.key(image(dir, "a.png", "img"), "s")
+    c.get(k) should be(null)
+    c.put(k, new OCRCache.Entry(Map("X-TIKA:Skew-Angle" -> "1.5").asJava, "some text".getBytes("UTF-8")))
+    val e = c.get(k)
+    e.meta.asScala.toMap should be(Map("X-TIKA:Skew-Angle" -> "1.5"))
+    new String(e.output, "UTF-8") should be("some text")
+    (c.getHits, c.getMisses) should be((1L, 1L))
+    
+    // entries persist across instances
+    new OCRCache(new File(dir, "cache"), 1L << 20).get(k) should not be(null)
+  }
+
+  it should "evict least recently used entries when full" in {
+    val dir = tmpDir
+    val c = new OCRCache(new File(dir, "cache"), 3000L)
+    val ks = for (i <- 0 until 4) yield {
+      val k = c.key(image(dir, s"$i.png", s"img $i"), "s")
+      c.put(k, new OCRCache.Entry(Map.empty[String, String].asJava, new Array[Byte](1000)))
+      c.file(k).setLastModified(1000000L * (i + 1)) // deterministic LRU order
+      k
+    }
+    c.evict
+    c.getSize should be <= 3000L
+    c.get(ks(0)) should be(null)
+    c.get(ks(3)) should not be(null)
+  }
+}
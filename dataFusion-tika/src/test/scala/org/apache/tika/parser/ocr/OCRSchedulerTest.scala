@@ -0,0 +1,89 @@
+package org.apache.tika.parser.ocr
+
+import java.io.File
+import java.util.Collections
+import java.util.concurrent.CountDownLatch
+
+import org.apache.tika.metadata.Metadata
+import org.apache.tika.parser.RecursiveParserWrapper
+import org.scalatest.{ FlatSpec, Matchers }
+import org.scalatest.concurrent.Eventually
+import org.scalatest.time.{ Seconds, Span }
+
+class OCRSchedulerTest extends FlatSpec with Matchers with Eventually {
+  implicit override val patienceConfig = PatienceConfig(timeout = Span(5, Seconds))
+
+  def pending(b: OCRScheduler.Batch, text: String, delayMillis: Long, fail: Boolean = false) = {
+    val idx = b.submit { () =>
+      Thread.sleep(delayMillis)
+      if (fail) throw new Exception("tesseract said no")
+      new OCRScheduler.Result(text, Collections.singletonMap("X-TIKA:Skew-Angle", "0.5"))
+    }
+    val m = new Metadata
+    m.set(RecursiveParserWrapper.TIKA_CONTENT, "\n")
+    m.set(OCRScheduler.PENDING, idx.toString)
+    m
+  }
+
+  "OCRScheduler.Batch" should "resolve results in page order regardless of completion order" in {
+    val b = new OCRScheduler.Batch
+    val ms = List(pending(b, "page 1", 300L), pending(b, "page 2", 0L), pending(b, "page 3", 100L))
+    val notPending = new Metadata
+    for (m <- notPending :: ms) b.resolve(m)
+    ms.map(_.get(RecursiveParserWrapper.TIKA_CONTENT)) should be(List("\npage 1", "\npage 2", "\npage 3"))
+    ms.map(_.get("X-TIKA:Skew-Angle")).distinct should be(List("0.5"))
+    ms.exists(_.get(OCRScheduler.PENDING) != null) should be(false)
+    notPending.size should be(0)
+  }
+
+  it should "record an OCR failure as an embedded exception" in {
+    val b = new OCRScheduler.Batch
+    val m = pending(b, "x", 0L, true)
+    b.resolve(m)
+    m.get(RecursiveParserWrapper.EMBEDDED_EXCEPTION) should include("tesseract said no")
+    m.get(RecursiveParserWrapper.TIKA_CONTENT) should be("\n")
+  }
+
+  it should "delete the temporary files of cancelled tasks, including those not yet started" in {
+    val b = new OCRScheduler.Batch
+    val tmps = List.fill(4 * OCRScheduler.executor.asInstanceOf[java.util.concurrent.ThreadPoolExecutor].getMaximumPoolSize) {
+      val f = File.createTempFile("OCRSchedulerTest", null)
+      b.submit(() => { Thread.sleep(10000L); new OCRScheduler.Result("x", Collections.emptyMap[String, String]) }, f)
+      f
+    }
+    b.cancel
+    eventually { tmps.filter(_.exists) should be(List.empty) } // running tasks delete theirs when interrupted
+  }
+
+  it should "not delete the temporary file of a running task when it is cancelled" in {
+    val b = new OCRScheduler.Batch
+    val f = File.createTempFile("OCRSchedulerTest", null)
+    val started = new CountDownLatch(1)
+    @volatile var existed = false
+    b.submit(() => {
+      started.countDown
+      val t = System.nanoTime + 300000000L
+      while (System.nanoTime < t) {} // like a subprocess, not interruptible
+      existed = f.exists
+      new OCRScheduler.Result("x", Collections.emptyMap[String, String])
+    }, f)
+    started.await
+    b.cancel
+    eventually {
+      existed should be(true)
+      f.exists should be(false)
+    }
+  }
+
+  it should "replace inline markers with the OCR text in page order" in {
+    val b = new OCRScheduler.Batch
+    val idx = for ((text, delay) <- List(("page 1", 200L), ("page 2", 0L))) yield b.submit { () =>
+      Thread.sleep(delay)
+      new OCRScheduler.Result(text, Collections.emptyMap[String, String])
+    }
+    val m = new Metadata
+    m.set(RecursiveParserWrapper.TIKA_CONTENT, idx.map(i => s"<${OCRScheduler.marker(i)}>").mkString("\n"))
+    b.resolve(m)
+    m.get(RecursiveParserWrapper.TIKA_CONTENT) should be("<page 1>\n<page 2>")
+  }
+}
@@ -0,0 +1,225 @@
+package au.csiro.data61.dataFusion.util
+
+import java.io.{ BufferedInputStream, BufferedOutputStream, DataInputStream, DataOutputStream, File, FileInputStream, FileOutputStream }
+import java.util.concurrent.ConcurrentHashMap
+
+import scala.collection.mutable.{ ArrayBuffer, ListBuffer, PriorityQueue }
+
+import org.apache.lucene.util.IntroSorter
+
+import com.typesafe.scalalogging.Logger
+
+import au.csiro.data61.dataFusion.common.Data.Edge
+
+object EdgeAccumulator {
+  private val log = Logger(getClass)
+
+  /** an undirected edge as (smaller node id) << 32 | (larger node id) */
+  def pairKey(a: Int, b: Int): Long = if (a < b) a.toLong << 32 | (b & 0xffffffffL) else b.toLong << 32 | (a & 0xffffffffL)
+  def source(pair: Long) = (pair >>> 32).toInt
+  def target(pair: Long) = pair.toInt
+
+  /** murmur3 fmix64 */
+  def mix(k: Long, coll: Int): Int = {
+    var h = k * 31 + coll
+    h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL
+    h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L
+    (h ^ (h >>> 33)).toInt
+  }
+
+  def compare(pairA: Long, collA: Int, pairB: Long, collB: Int): Int = {
+    val i = java.lang.Long.compare(pairA, pairB)
+    if (i != 0) i else Integer.compare(collA, collB)
+  }
+
+  /** a sorted sequence of (pair, collection, weight, count) */
+  trait Source {
+    var pair = 0L
+    var coll = 0
+    var weight = 0.0
+    var count = 0
+    def advance: Boolean
+  }
+
+  /** reads a shard written by `Stripe.spill`, deleting the file when done */
+  class ShardReader(f: File, var remaining: Int) extends Source {
+    private val in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 1 << 16))
+    override def advance = remaining > 0 && {
+      pair = in.readLong
+      coll = in.readInt
+      weight = in.readDouble
+      count = in.readInt
+      remaining -= 1
+      if (remaining == 0) {
+        in.close
+        f.delete
+      }
+      true
+    }
+  }
+}
+
+/**
+ * Accumulates the (weight, count) for each edge and collection, for concurrent use by Proximity.accDoc.
+ * Edges are (source, target) node id pairs packed into a long and collections are interned to small ints.
+ * The edges are spread over `numStripes` (a power of 2) stripes, each locked separately, with an open addressing hash
+ * table of primitive arrays. When a stripe has `maxEdges / numStripes` entries its entries are sorted and spilled to a
+ * temporary shard file, and `edges` merges the shards.
+ */
+class EdgeAccumulator(maxEdges: Int, numStripes: Int = 64) {
+  import EdgeAccumulator._
+  require(Integer.bitCount(numStripes) == 1, "numStripes must be a power of 2")
+
+  private val collNames = ArrayBuffer[String]()
+  private val collIds = new ConcurrentHashMap[String, Integer]
+
+  def collectionId(name: String): Int = collIds.computeIfAbsent(name, n => collNames.synchronized {
+    collNames += n
+    collNames.size - 1
+  })
+  def collectionName(coll: Int) = collNames.synchronized { collNames(coll) }
+
+  private class Stripe(maxSize: Int) {
+    private var pairs = new Array[Long](16)
+    private var colls = Array.fill(16)(-1) // -1 for an empty slot
+    private var weights = new Array[Double](16)
+    private var counts = new Array[Int](16)
+    private var size = 0
+    private val shards = ListBuffer[(File, Int)]()
+
+    private def slot(pair: Long, coll: Int): Int = {
+      val mask = colls.length - 1
+      var i = mix(pair, coll) & mask
+      while (colls(i) != -1 && (pairs(i) != pair || colls(i) != coll)) i = (i + 1) & mask
+      i
+    }
+
+    def add(pair: Long, coll: Int, weight: Double, count: Int): Unit = {
+      val i = slot(pair, coll)
+      if (colls(i) == -1) {
+        if (size == maxSize) {
+          spill
+          add(pair, coll, weight, count)
+        } else {
+          pairs(i) = pair
+          colls(i) = coll
+          weights(i) = weight
+          counts(i) = count
+          size += 1
+          if (size * 2 > colls.length) resize(colls.length * 2) // load factor 0.5
+        }
+      } else {
+        weights(i) += weight
+        counts(i) += count
+      }
+    }
+
+    private def resize(capacity: Int) = {
+      val (p, c, w, n) = (pairs, colls, weights, counts)
+      pairs = new Array[Long](capacity)
+      colls = Array.fill(capacity)(-1)
+      weights = new Array[Double](capacity)
+      counts = new Array[Int](capacity)
+      size = 0
+      for (i <- 0 until c.length if c(i) != -1) add(p(i), c(i), w(i), n(i))
+    }
+
+    /** the in memory entries sorted by (pair, coll) */
+    private def sorted: Source = {
+      val idx = (0 until colls.length).filter(colls(_) != -1).toArray
+      new IntroSorter {
+        var pivot = 0
+        override protected def compare(i: Int, j: Int) = cmp(idx(i), idx(j))
+        override protected def swap(i: Int, j: Int) = {
+          val t = idx(i)
+          idx(i) = idx(j)
+          idx(j) = t
+        }
+        override protected def setPivot(i: Int) = pivot = idx(i)
+        override protected def comparePivot(j: Int) = cmp(pivot, idx(j))
+      }.sort(0, idx.length)
+      var k = 0
+      new Source {
+        override def advance = k < idx.length && {
+          val i = idx(k)
+          pair = pairs(i)
+          coll = colls(i)
+          weight = weights(i)
+          count = counts(i)
+          k += 1
+          true
+        }
+      }
+    }
+    private def cmp(i: Int, j: Int) = EdgeAccumulator.compare(pairs(i), colls(i), pairs(j), colls(j))
+
+    private def spill = {
+      val f = File.createTempFile("proximity", ".shard")
+      f.deleteOnExit
+      log.info(s"spill: sorting $size edges to $f")
+      val s = sorted
+      val out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1 << 16))
+      try {
+        while (s.advance) {
+          out.writeLong(s.pair)
+          out.writeInt(s.coll)
+          out.writeDouble(s.weight)
+          out.writeInt(s.count)
+        }
+      } finally out.close
+      shards += ((f, size))
+      pairs = new Array[Long](16)
+      colls = Array.fill(16)(-1)
+      weights = new Array[Double](16)
+      counts = new Array[Int](16)
+      size = 0
+    }
+
+    /** the in memory and spilled sources, sorted */
+    def sources: List[Source] = sorted :: shards.toList.map { case (f, n) => new ShardReader(f, n) }
+  }
+
+  private val stripes = Array.fill(numStripes)(new Stripe(Math.max(64, maxEdges / numStripes)))
+
+  def add(source: Int, target: Int, coll: Int, weight: Double): Unit = {
+    val pair = pairKey(source, target)
+    val s = stripes(mix(pair, 0) & (numStripes - 1)) // all the collections for an edge are in the same stripe
+    s.synchronized { s.add(pair, coll, weight, 1) }
+  }
+
+  /**
+   * The accumulated edges, merging any spilled shards, stripe by stripe. Call after all the adds.
+   * Shards are deleted as they are read, so if any were spilled this can only be called once.
+   * @param typ for the Edges
+   */
+  def edges(typ: String): Iterator[Edge] = stripes.iterator.flatMap { stripe =>
+    val ord = new Ordering[Source] {
+      override def compare(a: Source, b: Source) = EdgeAccumulator.compare(b.pair, b.coll, a.pair, a.coll) // reversed for the min first PriorityQueue
+    }
+    val pq = PriorityQueue[Source]()(ord)
+    pq ++= stripe.synchronized { stripe.sources }.filter(_.advance)
+
+    new Iterator[Edge] {
+      override def hasNext = pq.nonEmpty
+      override def next = {
+        val pair = pq.head.pair
+        val weights = Map.newBuilder[String, (Double, Int)]
+        var (coll, w, c) = (-1, 0.0, 0)
+        while (pq.nonEmpty && pq.head.pair == pair) {
+          val s = pq.dequeue
+          if (s.coll != coll) {
+            if (coll != -1) weights += collectionName(coll) -> (w, c)
+            coll = s.coll
+            w = 0.0
+            c = 0
+          }
+          w += s.weight
+          c += s.count
+          if (s.advance) pq += s
+        }
+        weights += collectionName(coll) -> (w, c)
+        Edge(source(pair), target(pair), weights.result, typ)
+      }
+    }
+  }
+}
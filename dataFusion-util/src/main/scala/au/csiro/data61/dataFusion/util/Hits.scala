@@ -31,8 +31,11 @@ object Hits {
   
   def hitIter(hIn: InputStream): Iterator[PHits] = Source.fromInputStream(hIn, "UTF-8").getLines.map(_.parseJson.convertTo[PHits])
   
-  /** idEmbIdx -> extRefId, score, typ, lposdoc */
-  type HitsMap = Map[IdEmbIdx, Seq[(ExtRef, Double, String, LPosDoc)]]
+  /** extRefId, score, typ, lposdoc */
+  type Hit = (ExtRef, Double, String, LPosDoc)
+  
+  /** idEmbIdx -> hits */
+  type HitsMap = Map[IdEmbIdx, Seq[Hit]]
   
   def hitsMap(iter: Iterator[PHits]): HitsMap =
     iter.flatMap { x =>
@@ -92,12 +95,14 @@ object Hits {
     ners filter pred
   }
     
-  def augment(hs: HitsMap): Doc => Doc = { d =>
+  def augment(hs: HitsMap): Doc => Doc = augment((k: IdEmbIdx) => hs.getOrElse(k, Seq.empty))
+  
+  /** @param hits the hits for an idEmbIdx, from a HitsMap or a HitsIndex */
+  def augment(hits: IdEmbIdx => Seq[Hit]): Doc => Doc = { d =>
     
     def searchNers(content: Option[String], idEmbIdx: IdEmbIdx): Seq[Ner] = for {
       c <- content.toSeq
-      hits <- hs.get(idEmbIdx).toSeq
-      (extRefId, score, typ, lposdoc) <- hits
+      (extRefId, score, typ, lposdoc) <- hits(idEmbIdx)
       qtf = qTermFreq(extRefId.name, typ) // query: term -> freq but only if it needs to be checked
       pi <- lposdoc.posInfos
       text = c.substring(pi.offStr, pi.offEnd)
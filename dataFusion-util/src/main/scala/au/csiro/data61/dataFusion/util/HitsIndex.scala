@@ -0,0 +1,242 @@
+package au.csiro.data61.dataFusion.util
+
+import java.io.{ Closeable, File }
+
+import scala.collection.mutable.{ ArrayBuffer, ListBuffer, PriorityQueue }
+import scala.util.Try
+
+import org.apache.lucene.store.{ Directory, IOContext, IndexInput, IndexOutput, RandomAccessInput }
+import org.apache.lucene.util.IOUtils
+
+import com.typesafe.scalalogging.Logger
+
+import au.csiro.data61.dataFusion.common.Data.{ ExtRef, IdEmbIdx, LPosDoc, PHits, PosInfo }
+import au.csiro.data61.dataFusion.search.LuceneUtil.directory
+import Hits.Hit
+import resource.managed
+
+/**
+ * An on disk index of search hits keyed by IdEmbIdx, so that `Hits.augment` can look up the hits for each doc
+ * without holding all the hits in memory (as `Hits.hitsMap` does).
+ *
+ * Files in the index directory:
+ *   - queries: for each PHits, the extRef, score and typ (in input order);
+ *   - hits: for each LPosDoc, the offset of its query in queries and its posInfos, sorted by IdEmbIdx;
+ *   - keys: fixed size entries (id, embIdx, offset in hits, number of hits) sorted by IdEmbIdx for binary search;
+ *   - done: written last, its absence means the index is incomplete. It identifies the hits file the index was built
+ *     from (see `hitsStamp`).
+ * The hits are sorted with an external merge sort: runs of up to `maxEntries` hits are sorted and written to temporary
+ * files then merged, so memory use is bounded regardless of the number of hits.
+ * For each IdEmbIdx the hits are in the order of the input file, as for `Hits.hitsMap`.
+ */
+object HitsIndex {
+  private val log = Logger(getClass)
+
+  val QUERIES = "queries"
+  val HITS = "hits"
+  val KEYS = "keys"
+  val DONE = "done"
+  val KEY_BYTES = 24 // id: Long, embIdx: Int, offset: Long, count: Int
+
+  /** a hit for a doc with flattened posInfos */
+  class Entry(val id: Long, val embIdx: Int, val qOff: Long, val pos: Array[Int]) {
+    def write(o: IndexOutput) = {
+      o.writeVLong(qOff)
+      o.writeVInt(pos.length)
+      pos.foreach(o.writeVInt)
+    }
+  }
+
+  def compare(a: Entry, b: Entry): Int = {
+    val i = java.lang.Long.compare(a.id, b.id)
+    if (i != 0) i else Integer.compare(a.embIdx, b.embIdx)
+  }
+
+  def entry(id: Long, embIdx: Int, in: IndexInput) = {
+    val qOff = in.readVLong
+    new Entry(id, embIdx, qOff, Array.fill(in.readVInt)(in.readVInt))
+  }
+
+  /** reads a sorted run written by `build.spill` */
+  class RunReader(val run: Int, in: IndexInput, var remaining: Int) {
+    var head: Entry = null
+    def advance: Boolean = remaining > 0 && {
+      head = entry(in.readLong, in.readInt, in)
+      remaining -= 1
+      true
+    }
+  }
+
+  /** (canonical path, length, last modified) of a hits file, recorded in `done` to detect a different or changed file */
+  def hitsStamp(hits: File) = (hits.getCanonicalPath, hits.length, hits.lastModified)
+
+  /** @return true if indexDir has a complete index built from the current version of the hits file */
+  def isUpToDate(indexDir: File, hits: File) = new File(indexDir, DONE).isFile && {
+    val stamp = Try {
+      managed(directory(indexDir)).acquireAndGet { dir =>
+        managed(dir.openInput(DONE, IOContext.READONCE)).acquireAndGet { in =>
+          in.readInt; in.readInt; in.readInt
+          (in.readString, in.readLong, in.readLong)
+        }
+      }
+    }
+    val ok = stamp.toOption == Some(hitsStamp(hits))
+    if (!ok) log.info(s"isUpToDate: index in $indexDir was built from ${stamp.map(_.toString).getOrElse("an unknown file")}, not ${hitsStamp(hits)}")
+    ok
+  }
+
+  /** create (or replace) the index of `iter` in `indexDir`, recording that it was built from `hits` (if known) */
+  def build(iter: Iterator[PHits], indexDir: File, maxEntries: Int = 1000000, hits: Option[File] = None): Unit = {
+    val (hitsPath, hitsLength, hitsModified) = hits.map(hitsStamp).getOrElse(("", -1L, 0L)) // before reading, so a change while building is detected
+    for (dir <- managed(directory(indexDir))) {
+      def delete(name: String) = if (new File(indexDir, name).exists) dir.deleteFile(name)
+      Seq(DONE, QUERIES, HITS, KEYS).foreach(delete)
+
+      val runs = ListBuffer[(String, Int)]()
+      val buf = new ArrayBuffer[Entry](maxEntries)
+      def spill = {
+        val name = s"run${runs.size}"
+        delete(name)
+        for (o <- managed(dir.createOutput(name, IOContext.DEFAULT))) {
+          for (e <- buf.sortWith(compare(_, _) < 0)) { // stable, preserving input order for each IdEmbIdx
+            o.writeLong(e.id)
+            o.writeInt(e.embIdx)
+            e.write(o)
+          }
+        }
+        runs += ((name, buf.size))
+        log.info(s"build.spill: sorted ${buf.size} hits to $name")
+        buf.clear
+      }
+
+      var numQueries = 0
+      for (q <- managed(dir.createOutput(QUERIES, IOContext.DEFAULT))) {
+        for (x <- iter) {
+          val qOff = q.getFilePointer
+          q.writeString(x.extRef.name)
+          q.writeVInt(x.extRef.ids.size)
+          x.extRef.ids.foreach(q.writeLong)
+          q.writeLong(java.lang.Double.doubleToLongBits(x.score))
+          q.writeString(x.typ)
+          numQueries += 1
+          for (d <- x.hits) {
+            buf += new Entry(d.idEmbIdx.id, d.idEmbIdx.embIdx, qOff, d.posInfos.flatMap(p => Seq(p.posStr, p.posEnd, p.offStr, p.offEnd)).toArray)
+            if (buf.size == maxEntries) spill
+          }
+        }
+      }
+      if (buf.nonEmpty || runs.isEmpty) spill
+
+      var (numHits, numKeys) = (0, 0)
+      for {
+        h <- managed(dir.createOutput(HITS, IOContext.DEFAULT))
+        k <- managed(dir.createOutput(KEYS, IOContext.DEFAULT))
+      } {
+        val ins = runs.toList.map { case (name, _) => dir.openInput(name, IOContext.READONCE) }
+        try {
+          val ord = new Ordering[RunReader] {
+            override def compare(a: RunReader, b: RunReader) = { // reversed for the min first PriorityQueue
+              val i = HitsIndex.compare(b.head, a.head)
+              if (i != 0) i else Integer.compare(b.run, a.run)
+            }
+          }
+          val pq = PriorityQueue[RunReader]()(ord)
+          for (((_, n), (in, run)) <- runs zip ins.zipWithIndex) {
+            val r = new RunReader(run, in, n)
+            if (r.advance) pq += r
+          }
+
+          var prev: Entry = null
+          var (start, count) = (0L, 0)
+          def writeKey = if (prev != null) {
+            k.writeLong(prev.id)
+            k.writeInt(prev.embIdx)
+            k.writeLong(start)
+            k.writeInt(count)
+            numKeys += 1
+          }
+          while (pq.nonEmpty) {
+            val r = pq.dequeue
+            val e = r.head
+            if (prev == null || compare(prev, e) != 0) {
+              writeKey
+              prev = e
+              start = h.getFilePointer
+              count = 0
+            }
+            e.write(h)
+            count += 1
+            numHits += 1
+            if (r.advance) pq += r
+          }
+          writeKey
+        } finally IOUtils.close(ins: _*)
+      }
+      runs.foreach { case (name, _) => dir.deleteFile(name) }
+
+      for (o <- managed(dir.createOutput(DONE, IOContext.DEFAULT))) {
+        o.writeInt(numQueries)
+        o.writeInt(numHits)
+        o.writeInt(numKeys)
+        o.writeString(hitsPath)
+        o.writeLong(hitsLength)
+        o.writeLong(hitsModified)
+      }
+      dir.sync(java.util.Arrays.asList(QUERIES, HITS, KEYS, DONE))
+      log.info(s"build: indexed $numHits hits from $numQueries queries for $numKeys docs/embedded docs in $indexDir")
+    }
+  }
+}
+
+/**
+ * Memory mapped access to an index created by `HitsIndex.build`. `get` is thread safe.
+ */
+class HitsIndex(indexDir: File) extends Closeable {
+  import HitsIndex._
+
+  private val dir: Directory = directory(indexDir)
+  private val keys = dir.openInput(KEYS, IOContext.READ)
+  private val keysRA: RandomAccessInput = keys.randomAccessSlice(0, keys.length)
+  private val hits = dir.openInput(HITS, IOContext.READ)
+  private val queries = dir.openInput(QUERIES, IOContext.READ)
+
+  /** number of docs/embedded docs with hits */
+  val size = (keys.length / KEY_BYTES).toInt
+
+  /** binary search for the key entry index of k, -1 if not found */
+  private def find(k: IdEmbIdx): Int = {
+    var (lo, hi) = (0, size - 1)
+    while (lo <= hi) {
+      val mid = (lo + hi) >>> 1
+      val p = mid.toLong * KEY_BYTES
+      val i = java.lang.Long.compare(keysRA.readLong(p), k.id)
+      val c = if (i != 0) i else Integer.compare(keysRA.readInt(p + 8), k.embIdx)
+      if (c < 0) lo = mid + 1
+      else if (c > 0) hi = mid - 1
+      else return mid
+    }
+    -1
+  }
+
+  def get(k: IdEmbIdx): Seq[Hit] = {
+    val i = find(k)
+    if (i < 0) Seq.empty else {
+      val p = i.toLong * KEY_BYTES
+      val h = hits.clone // IndexInput clones share the mapping but have their own position
+      val q = queries.clone
+      h.seek(keysRA.readLong(p + 12))
+      List.fill(keysRA.readInt(p + 20)) {
+        val e = entry(k.id, k.embIdx, h)
+        val posInfos = e.pos.grouped(4).map { case Array(ps, pe, os, oe) => PosInfo(ps, pe, os, oe) }.toList
+        q.seek(e.qOff)
+        val name = q.readString
+        val ids = List.fill(q.readVInt)(q.readLong)
+        val score = java.lang.Double.longBitsToDouble(q.readLong)
+        val typ = q.readString
+        (ExtRef(name, ids), score, typ, LPosDoc(k, posInfos))
+      }
+    }
+  }
+
+  override def close = IOUtils.close(keys, hits, queries, dir)
+}
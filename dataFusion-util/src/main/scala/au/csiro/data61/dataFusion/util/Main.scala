@@ -2,7 +2,6 @@ package au.csiro.data61.dataFusion.util
 
 import java.io.{ File, FileInputStream }
 
-import scala.io.Source
 import scala.util.control.NonFatal
 
 import com.typesafe.scalalogging.Logger
@@ -10,30 +9,44 @@ import com.typesafe.scalalogging.Logger
 import au.csiro.data61.dataFusion.common.Data.Doc
 import au.csiro.data61.dataFusion.common.Data.JsonProtocol.docFormat
 import au.csiro.data61.dataFusion.common.Data.META_EN_SCORE
-import au.csiro.data61.dataFusion.common.Parallel.doParallel
-import au.csiro.data61.dataFusion.common.Util.bufWriter
+import au.csiro.data61.dataFusion.common.{ DocIO, Pipeline }
+import au.csiro.data61.dataFusion.common.DocIO.DocRecord
 import au.csiro.data61.dataFusion.common.EnglishScore.englishScore
 import resource.managed
-import spray.json.{ pimpAny, pimpString }
+import spray.json.pimpAny
 
 object Main {
   private val log = Logger(getClass)
   
-  case class CliOption(hits: Option[File], email: Boolean, emailIDF: Boolean, age: Boolean, tmner: Option[File], output: Option[File], startId: Long, proximity: Boolean, collectionRe: String, decay: Double, resetEnglishScore: Boolean, resetId: Boolean, numWorkers: Int)
+  case class CliOption(convert: Boolean, format: String, hits: Option[File], email: Boolean, emailIDF: Boolean, age: Boolean, tmner: Option[File], output: Option[File], startId: Long, proximity: Boolean, collectionRe: String, decay: Double, resetEnglishScore: Boolean, resetId: Boolean, numWorkers: Int, ordered: Boolean, batchSize: Int, deadLetter: Option[File], hitsIndex: Option[File], maxEdges: Int)
   
-  val defaultCliOption = CliOption(None, false, true, false, None, None, 0L, false, "/collection/([^/]+)/", 500.0f, false, false, Runtime.getRuntime.availableProcessors)
+  val defaultCliOption = CliOption(false, DocIO.JSON, None, false, true, false, None, None, 0L, false, "/collection/([^/]+)/", 500.0f, false, false, Runtime.getRuntime.availableProcessors, false, 1, Some(new File("util-failed.json")), None, 20000000)
+  
+  def pipelineConfig(c: CliOption, name: String) = Pipeline.Config(c.numWorkers, c.ordered, c.batchSize, name = name)
   
   val defGazOut = "gaz.json" // gaz for gazetteer
   val node = "node.json"
   val edge = "edge.json"
   val defProximity = "proximity-" // prefix for node.json & edge.json
   val defResetOut = "reset.json"
+  val defConvertOut = "convert.out"
   
   val parser = new scopt.OptionParser[CliOption]("util") {
     head("util", "0.x")
+    opt[Unit]("convert") action { (_, c) =>
+      c.copy(convert = true, output = c.output.orElse(Some(new File(defConvertOut))))
+    } text (s"Read tika/ner json or binary docs from stdin and write them in the format specified by --format (in the same order). Output defaults to $defConvertOut")
+    opt[String]("format") action { (v, c) =>
+      c.copy(format = v)
+    } validate { v =>
+      if (DocIO.formats contains v) success else failure(s"format must be one of ${DocIO.formats.mkString(", ")}")
+    } text (s"output format for docs: ${DocIO.formats.mkString("|")} (default ${defaultCliOption.format}), input format is detected")
     opt[File]("hits") action { (v, c) =>
       c.copy(hits = Some(v), output = c.output.orElse(Some(new File(defGazOut))))
     } text (s"Read hits from specified file. Read tika/ner json from stdin and write it augmented with NER data derived from hits. Output defaults to $defGazOut")
+    opt[File]("hitsIndex") action { (v, c) =>
+      c.copy(hitsIndex = Some(v))
+    } text (s"With --hits, look up hits per doc in an on disk index in this directory (built from the hits file if it is missing or was built from a different or changed hits file) rather than loading all hits into memory")
     opt[Unit]("email") action { (_, c) =>
       c.copy(email = true, output = c.output.orElse(Some(new File(defGazOut))))
     } text (s"Parse content for people in email headers. Read tika/ner json from stdin and write it augmented with NER data derived from email headers. Output defaults to $defGazOut")
@@ -58,6 +71,9 @@ object Main {
     opt[Double]("decay") action { (v, c) =>
       c.copy(decay = v)
     } text (s"proximity score is exp(- num chars separating start of names / decay), defaults to ${defaultCliOption.decay}")
+    opt[Int]("maxEdges") action { (v, c) =>
+      c.copy(maxEdges = v)
+    } text (s"proximity edges (per collection) held in memory, more are sorted and spilled to temporary files which are merged when the edges are written (default ${defaultCliOption.maxEdges})")
     opt[String]("collectionRe") action { (v, c) =>
       c.copy(collectionRe = v)
     } text (s"regex to extract collection name from path, defaults to ${defaultCliOption.collectionRe}")
@@ -70,6 +86,18 @@ object Main {
     opt[Int]("numWorkers") action { (v, c) =>
       c.copy(numWorkers = v)
     } text (s"numWorkers for CLI queries, (default ${defaultCliOption.numWorkers} the number of CPUs)")
+    opt[Boolean]("ordered") action { (v, c) =>
+      c.copy(ordered = v)
+    } text (s"whether output is in input order (default ${defaultCliOption.ordered})")
+    opt[Int]("batchSize") action { (v, c) =>
+      c.copy(batchSize = v)
+    } text (s"number of documents passed between threads at a time (default ${defaultCliOption.batchSize})")
+    opt[File]("deadLetter") action { (v, c) =>
+      c.copy(deadLetter = Some(v))
+    } text (s"JSON for documents that fail is written to this file, which can be used as input for a re-run (default ${defaultCliOption.deadLetter.get.getPath})")
+    opt[Unit]("failFast") action { (_, c) =>
+      c.copy(deadLetter = None)
+    } text (s"abort the run on the first document that fails, rather than writing it to the deadLetter file")
     note("The options: --hits, --email, --age and --tmner; can be combined. Likewise: --startId, --resetId and --resetEnglishScore; can be combined.")
     help("help") text ("prints this usage text")
   }
@@ -79,7 +107,8 @@ object Main {
       log.info("start")
       parser.parse(args, defaultCliOption).foreach { c => 
         log.info(s"main: cliOptions = $c")
-        if (c.hits.isDefined || c.email || c.age || c.tmner.isDefined) doHitsEmailAgeTmner(c)
+        if (c.convert) convert(c)
+        else if (c.hits.isDefined || c.email || c.age || c.tmner.isDefined) doHitsEmailAgeTmner(c)
         else if (c.proximity) Proximity.doProximity(c)
         else if (c.resetEnglishScore || c.resetId) resetEnglishScoreId(c)
         else log.info("Nothing to do. Try --help")
@@ -96,13 +125,25 @@ object Main {
     hm
   }
   
+  /** open the index of hits file h in dir, building it first if it is missing or was built from another version of h */
+  def hitsIndex(h: File, dir: File) = {
+    if (!HitsIndex.isUpToDate(dir, h)) for (in <- managed(new FileInputStream(h))) HitsIndex.build(Hits.hitIter(in), dir, hits = Some(h))
+    val hi = new HitsIndex(dir)
+    log.info(s"hitsIndex: opened hits for ${hi.size} docs/embedded docs")
+    hi
+  }
+  
   def tmnerMap(h: File) = managed(new FileInputStream(h)).acquireAndGet { in =>
     val m = TmNer.tmnerMap(TmNer.tmnerIter(in))
     log.info(s"tmnerMap: loaded hits for ${m.size} docs docs")
     m
   }
   
-  def doHitsEmailAgeTmner(c: CliOption) = {
+  /**
+   * Calls `body` with the composition of the augmenters selected by --hits, --email, --age and --tmner
+   * (identity if none are selected), closing any hits index afterwards.
+   */
+  def withAugment[A](c: CliOption)(body: (Doc => Doc) => A): A = {
     type D2D = Option[Doc => Doc]
     
     def compose2(p: (D2D, D2D)): D2D = p match {
@@ -112,24 +153,41 @@ object Main {
       case (None, None) => None
     }
     
-    val a1: D2D = c.hits.map(h => Hits.augment(hitsMap(h)))
+    val hi = for (h <- c.hits; dir <- c.hitsIndex) yield hitsIndex(h, dir)
+    val a1: D2D = c.hits.map(h => hi.map(x => Hits.augment(x.get _)).getOrElse(Hits.augment(hitsMap(h))))
     val a2: D2D = if (c.email) Some(Email.augment(c)) else None
     val a3: D2D = if (c.age) Some(Age.augment) else None
     val a4: D2D = c.tmner.map(t => TmNer.augment(tmnerMap(t)))
     
     val augment: Doc => Doc = compose2(a4, compose2(a3, compose2(a2, a1))).getOrElse(identity)
     
+    try body(augment)
+    finally hi.foreach(_.close)
+  }
+  
+  def doHitsEmailAgeTmner(c: CliOption) = withAugment(c) { augment =>
     for {
       oFile <- c.output
-      w <- managed(bufWriter(oFile))
+      w <- managed(DocIO.docWriter(oFile, c.format))
     } {
-      val in = Source.fromInputStream(System.in, "UTF-8").getLines
-      val work: String => String = s => augment(s.parseJson.convertTo[Doc]).toJson.compactPrint
-      val out: String => Unit = json => {
-        w.write(json)
-        w.write('\n')
-      }
-      doParallel(in, work, out, "done", "done", c.numWorkers)
+      val in = DocIO.records(System.in)
+      val work: DocRecord => Array[Byte] = r => w.encode(augment(r.doc))
+      val out: Array[Byte] => Unit = w.writeEncoded
+      Pipeline.runWithDeadLetter(in, work, out, pipelineConfig(c, "doHitsEmailAgeTmner"), c.deadLetter, (r: DocRecord) => r.json)
+    }
+  }
+  
+  /**
+   * convert docs on stdin to the format c.format
+   */
+  def convert(c: CliOption) = {
+    for {
+      oFile <- c.output
+      w <- managed(DocIO.docWriter(oFile, c.format))
+    } {
+      val work: DocRecord => Array[Byte] = r => w.encode(r.doc)
+      val out: Array[Byte] => Unit = w.writeEncoded
+      Pipeline.runWithDeadLetter(DocIO.records(System.in), work, out, pipelineConfig(c, "convert").copy(ordered = true), c.deadLetter, (r: DocRecord) => r.json)
     }
   }
   
@@ -139,15 +197,14 @@ object Main {
   def resetEnglishScoreId(cliOption: CliOption) = {
     for {
       o <- cliOption.output
-      w <- managed(bufWriter(o))
+      w <- managed(DocIO.docWriter(o, cliOption.format))
     } {
       var cntIn = 0
       var id = cliOption.startId
       
-      val in = Source.fromInputStream(System.in, "UTF-8").getLines.map { json =>
+      val in = DocIO.docs(System.in).map { d =>
         if (cntIn % 1000 == 0) log.info(s"resetEnglishScoreId in: read $cntIn")
         cntIn += 1
-        val d = json.parseJson.convertTo[Doc]
         if (cliOption.resetId) {
           val d2 = d.copy(id = id)
           id += 1
@@ -171,14 +228,9 @@ object Main {
         d.copy(meta = meta, embedded = embedded)
       }
       
-      def out(d: Doc): Unit = {
-        w.write(d.toJson.compactPrint)
-        w.write('\n')
-      }
-      
-      val work: Doc => Doc = if (cliOption.resetEnglishScore) englishScoreWork else identity
-      val done = Doc(0, None, Map.empty, "done", List.empty, List.empty)
-      doParallel(in, work, out, done, done, cliOption.numWorkers)
+      val work: Doc => Array[Byte] = if (cliOption.resetEnglishScore) d => w.encode(englishScoreWork(d)) else w.encode
+      val out: Array[Byte] => Unit = w.writeEncoded
+      Pipeline.runWithDeadLetter(in, work, out, pipelineConfig(cliOption, "resetEnglishScoreId"), cliOption.deadLetter, (d: Doc) => d.toJson.compactPrint)
       log.info("work complete")
     }
   }
@@ -4,19 +4,19 @@ import java.io.File
 import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.atomic.AtomicInteger
 
-import scala.collection.JavaConverters.{ asScalaSetConverter, collectionAsScalaIterableConverter }
-import scala.io.Source
+import scala.collection.JavaConverters.collectionAsScalaIterableConverter
 
 import com.typesafe.scalalogging.Logger
 
 import Main.CliOption
-import au.csiro.data61.dataFusion.common.Data.{ Doc, EMAIL, Edge, ExtRef, GAZ }
-import au.csiro.data61.dataFusion.common.Data.{ Ner, Node, T_ORGANIZATION, T_PERSON, T_PERSON2, WeightMap }
-import au.csiro.data61.dataFusion.common.Data.JsonProtocol.{ docFormat, edgeFormat, nodeFormat }
-import au.csiro.data61.dataFusion.common.Parallel.doParallel
+import au.csiro.data61.dataFusion.common.Data.{ Doc, EMAIL, ExtRef, GAZ }
+import au.csiro.data61.dataFusion.common.Data.{ Ner, Node }
+import au.csiro.data61.dataFusion.common.Data.JsonProtocol.{ edgeFormat, nodeFormat }
+import au.csiro.data61.dataFusion.common.{ DocIO, Pipeline }
+import au.csiro.data61.dataFusion.common.DocIO.DocRecord
 import au.csiro.data61.dataFusion.common.Util.bufWriter
 import resource.managed
-import spray.json.{ pimpAny, pimpString }
+import spray.json.pimpAny
 
 object Proximity {
   private val log = Logger(getClass)
@@ -37,13 +37,13 @@ object Proximity {
   def doProximity(cliOption: CliOption) = {
     val prox = new Proximity(cliOption, nerFilter)
     
-    val in = Source.fromInputStream(System.in, "UTF-8").getLines
-    def work(json: String) = {
-      prox.accDoc(json.parseJson.convertTo[Doc])
+    val in = DocIO.records(System.in)
+    def work(r: DocRecord) = {
+      prox.accDoc(r.doc)
       "more"
     }
     def out(s: String) = {}
-    doParallel(in, work, out, "done", "done", cliOption.numWorkers)
+    Pipeline.runWithDeadLetter(in, work, out, Main.pipelineConfig(cliOption, "proximity"), cliOption.deadLetter, (r: DocRecord) => r.json)
     log.info("load complete")
     
     type JOB = () => String
@@ -64,9 +64,9 @@ object Proximity {
       for {
         o <- cliOption.output
         w <- managed(bufWriter(fileWithSuffix(o, "edge.json")))
-        e <- prox.edgeMap.entrySet.asScala
+        e <- prox.edges.edges(GAZ)
       } {
-        w.write(Edge(e.getKey._1, e.getKey._2, e.getValue, GAZ).toJson.compactPrint)
+        w.write(e.toJson.compactPrint)
         w.write('\n')
       }
       "more"
@@ -74,7 +74,7 @@ object Proximity {
     
     val in2 = Iterator(job1, job2)
     def work2(job: JOB) = job()
-    doParallel(in2, work2, out, () => "done", "done", Math.min(2, cliOption.numWorkers))
+    Pipeline.run(in2, work2, out, Pipeline.Config(Math.min(2, cliOption.numWorkers), logInterval = 0L, name = "proximity-write"))
   }
   
   case class NodeKey(name: String, typ: String)
@@ -92,18 +92,9 @@ class Proximity(cliOption: CliOption, nerFilter: List[Ner]=> Iterator[Ner]) {
   def accNode(k: NodeKey, score: Double, extRef: ExtRef): Int =
     nodeMap.computeIfAbsent(k, k => Node(nextId.getAndIncrement, extRef, score, k.typ)).nodeId
 
-  val edgeMap = new ConcurrentHashMap[(Int, Int), WeightMap]
+  val edges = new EdgeAccumulator(cliOption.maxEdges)
   
-  def accEdge(source: Int, target: Int, collection: String, weight: Double): Unit = {
-    val k = if (source < target) (source, target) else (target, source)
-    edgeMap.compute(k, (k, v) => 
-      if (v == null) Map(collection -> (weight, 1)) withDefaultValue (0.0, 0)
-      else {
-        val (w0, c0) = v(collection)
-        v + (collection -> (w0 + weight, c0 + 1))
-      }
-    )
-  }
+  def accEdge(source: Int, target: Int, collection: Int, weight: Double): Unit = edges.add(source, target, collection, weight)
   
   val collectionRE = cliOption.collectionRe.r
   def collection(path: String) = collectionRE.findFirstMatchIn(path).map(_.group(1)).getOrElse("UNKNOWN")
@@ -111,21 +102,31 @@ class Proximity(cliOption: CliOption, nerFilter: List[Ner]=> Iterator[Ner]) {
   // used concurrently
   def accDoc(d: Doc): Unit = {
     val cutoff = (cliOption.decay * 5).toInt
-    for {
-      ners <- nerFilter(d.ner) +: d.embedded.view.map(e => nerFilter(e.ner))
-      v = ners.toIndexedSeq.sortBy(_.offStr)
-      // _ = log.info(s"v.size = ${v.size}")
-      i <- 0 until v.size - 1 // exclude last
-      ni = v(i)
-      extRefi = ni.extRef.getOrElse(ExtRef(ni.text, List.empty))
-      (j, dist) <- (i + 1 until v.size).view.map { j => (j, v(j).offStr - ni.offStr) }.takeWhile(_._2 < cutoff)
-      nj = v(j)
-      extRefj = nj.extRef.getOrElse(ExtRef(nj.text, List.empty))
-    } {
-      // log.info(s"$i, $j -> $dist")
-      val idi = accNode(NodeKey(extRefi.name, ni.typ), ni.score, extRefi)
-      val idj = accNode(NodeKey(extRefj.name, nj.typ), nj.score, extRefj)
-      if (idi != idj) accEdge(idi, idj, collection(d.path), Math.exp(-dist/cliOption.decay)) // additive weight (distance = 1/sum(weights))
+    lazy val coll = edges.collectionId(collection(d.path))
+    for (ners <- nerFilter(d.ner) +: d.embedded.view.map(e => nerFilter(e.ner))) {
+      val v = ners.toArray.sortBy(_.offStr)
+      val ids = Array.fill(v.length)(-1) // node ids, created on first use in the same order as a nested loop over pairs
+      def id(i: Int) = {
+        if (ids(i) == -1) {
+          val n = v(i)
+          val extRef = n.extRef.getOrElse(ExtRef(n.text, List.empty))
+          ids(i) = accNode(NodeKey(extRef.name, n.typ), n.score, extRef)
+        }
+        ids(i)
+      }
+      var i = 0
+      while (i < v.length - 1) { // exclude last
+        val offStr = v(i).offStr
+        var j = i + 1
+        while (j < v.length && v(j).offStr - offStr < cutoff) {
+          val dist = v(j).offStr - offStr
+          val idi = id(i)
+          val idj = id(j)
+          if (idi != idj) accEdge(idi, idj, coll, Math.exp(-dist/cliOption.decay)) // additive weight (distance = 1/sum(weights))
+          j += 1
+        }
+        i += 1
+      }
     }
   }
   
@@ -72,4 +72,31 @@ class HitsTest extends FlatSpec with Matchers {
     log.debug(s"x = $x")
   }
   
-}
\ No newline at end of file
+  "HitsIndex" should "look up the same hits as hitsMap" in {
+    val hits = for (q <- 0 until 20) yield {
+      val lPosDocs = for (d <- (q % 5) until 30 by 3) yield LPosDoc(IdEmbIdx(d / 2, d % 2 - 1), List.tabulate(q % 3 + 1)(i => PosInfo(i, i + 2, 10 * i, 10 * i + q)))
+      PHits(Stats(0, 0), lPosDocs.toList, None, ExtRef(s"name $q", List(q.toLong, 100L + q)), q * 1.5, if (q % 2 == 0) T_PERSON else T_PERSON2)
+    }
+    val hm = Hits.hitsMap(hits.iterator)
+    val dir = java.nio.file.Files.createTempDirectory("hitsIndex").toFile
+    val hitsFile = new java.io.File(dir, "hits.json") // only its path, length and modification time are used
+    try {
+      java.nio.file.Files.write(hitsFile.toPath, "x".getBytes)
+      HitsIndex.isUpToDate(dir, hitsFile) should be(false)
+      HitsIndex.build(hits.iterator, dir, 7, Some(hitsFile)) // spills many runs
+      HitsIndex.isUpToDate(dir, hitsFile) should be(true)
+      HitsIndex.isUpToDate(dir, new java.io.File(dir, "../" + dir.getName + "/hits.json")) should be(true) // same canonical path
+      HitsIndex.isUpToDate(dir, new java.io.File(dir, "done")) should be(false)
+      java.nio.file.Files.write(hitsFile.toPath, "xy".getBytes)
+      HitsIndex.isUpToDate(dir, hitsFile) should be(false)
+      val hi = new HitsIndex(dir)
+      try {
+        hi.size should be(hm.size)
+        for ((k, v) <- hm) hi.get(k) should be(v) // same order too
+        hi.get(IdEmbIdx(1000L, 0)) should be(Seq.empty)
+        Hits.augment(hi.get _)(doc) should be(Hits.augment(hm)(doc))
+      } finally hi.close
+    } finally org.apache.commons.io.FileUtils.deleteDirectory(dir)
+  }
+  
+}
@@ -22,33 +22,54 @@ class ProximityTest extends FlatSpec with Matchers {
   val ners = List(ner1, ner2)
   
   
+  def edges(prox: Proximity) = prox.edges.edges(GAZ).map(e => (e.source, e.target) -> e.weights).toMap
+  
   "Proximity" should "find close ners" in {
     // case class Doc(id: Long, content: Option[String], meta: Map[String, String], path: String, ner: List[Ner], embedded: List[Embedded])
     val doc = Doc(0, Some("text"), Map.empty, "path", ners, List.empty)
     val prox = new Proximity(cli, n => n.iterator)
     prox.accDoc(doc)
     for (x <- prox.nodeMap.values.asScala) log.info(s"$x")
-    for (x <- prox.edgeMap.entrySet.asScala) log.info(s"$x")
+    for (x <- edges(prox)) log.info(s"$x")
     prox.nodeMap.size should be(2)
-    prox.edgeMap.size should be(1)
-    prox.edgeMap.get((0,1)) should be(Map("UNKNOWN" -> (weight, 1)))
+    edges(prox).size should be(1)
+    edges(prox)((0,1)) should be(Map("UNKNOWN" -> (weight, 1)))
 
     prox.accDoc(doc)
     for (x <- prox.nodeMap.values.asScala) log.info(s"$x")
-    for (x <- prox.edgeMap.entrySet.asScala) log.info(s"$x")
+    for (x <- edges(prox)) log.info(s"$x")
     prox.nodeMap.size should be(2)
-    prox.edgeMap.size should be(1)
-    prox.edgeMap.get((0,1)) should be(Map("UNKNOWN" -> (2*weight, 2)))
+    edges(prox).size should be(1)
+    edges(prox)((0,1)) should be(Map("UNKNOWN" -> (2*weight, 2)))
 
     // case class Embedded(content: Option[String], meta: Map[String, String], ner: List[Ner])
     val emb = Embedded(Some("text"), Map.empty, ners)
     val doc2 = doc.copy(embedded = List(emb))
     prox.accDoc(doc2)
     for (x <- prox.nodeMap.values.asScala) log.info(s"$x")
-    for (x <- prox.edgeMap.entrySet.asScala) log.info(s"$x")
+    for (x <- edges(prox)) log.info(s"$x")
     prox.nodeMap.size should be(2)
-    prox.edgeMap.size should be(1)
-    prox.edgeMap.get((0,1)) should be(Map("UNKNOWN" -> (4*weight, 4)))
+    edges(prox).size should be(1)
+    edges(prox)((0,1)) should be(Map("UNKNOWN" -> (4*weight, 4)))
+  }
+  
+  "EdgeAccumulator" should "merge spilled shards" in {
+    val rnd = new scala.util.Random(7)
+    val adds = Seq.fill(5000)((rnd.nextInt(50), rnd.nextInt(50), rnd.nextInt(3), rnd.nextDouble))
+    def acc(maxEdges: Int) = {
+      val a = new EdgeAccumulator(maxEdges, 4)
+      for (c <- Seq("c0", "c1", "c2")) a.collectionId(c)
+      for ((s, t, c, w) <- adds if s != t) a.add(s, t, c, w)
+      a.edges(GAZ).toList
+    }
+    val inMem = acc(100000)
+    val spilled = acc(256) // 64 per stripe, spills many shards
+    spilled.size should be(inMem.size)
+    for ((a, b) <- spilled.sortBy(e => (e.source, e.target)) zip inMem.sortBy(e => (e.source, e.target))) {
+      (a.source, a.target, a.weights.mapValues(_._2)) should be((b.source, b.target, b.weights.mapValues(_._2)))
+      for ((c, (w, _)) <- a.weights) w should be(b.weights(c)._1 +- 1e-9)
+    }
+    inMem.map(e => (e.source, e.target)).forall { case (s, t) => s < t } should be(true)
   }
   
-}
\ No newline at end of file
+}